@@ -0,0 +1,99 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cmdline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.LocalKeyStore;
+
+/**
+ * The <i>-keystore</i> option shared by the cryptfile generators.  Every key of the
+ * generated cryptfile is added to a {@link LocalKeyStore}
+ */
+public class KeyStoreOption {
+    
+    private String keystore;
+    
+    /**
+     * Print the usage of the option
+     */
+    public static void usage() {
+        System.out.println("\t-keystore <file>");
+        System.out.println("\t\tAdd all keys to the given local key store, creating it if it does not exist.");
+        System.out.println("");
+    }
+    
+    /**
+     * Parse the option if it is the current argument
+     * 
+     * @param cmdline the command line
+     * @param args the arguments
+     * @param current the index of the current argument
+     * @return true if the current argument is the option.  The caller must skip the
+     * option's argument
+     */
+    public boolean parse(CmdLine cmdline, String[] args, int current) {
+        String[] subopts = cmdline.checkOption("-keystore", args, current, 1);
+        if (subopts == null)
+            return false;
+        keystore = subopts[0];
+        return true;
+    }
+    
+    /**
+     * Add all keys of the given tracks to the key store, if the option was given.  Exits
+     * with an error if the key store could not be written
+     * 
+     * @param cmdline the command line
+     * @param tracks the tracks
+     * @param out the stream used to log the number of keys added
+     */
+    public void putTrackKeys(CmdLine cmdline, List<CryptTrack> tracks, PrintStream out) {
+        if (keystore == null)
+            return;
+        try {
+            LocalKeyStore store = new LocalKeyStore(new File(keystore), false);
+            try {
+                int added = store.putTrackKeys(tracks);
+                out.println("Added " + added + " key(s) to key store: " + keystore);
+            }
+            finally {
+                store.close();
+            }
+        }
+        catch (IOException e) {
+            cmdline.errorExit("Error writing key store (" + keystore + ") -- " + e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            cmdline.errorExit("Error writing key store (" + keystore + ") -- " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cmdline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cablelabs.cryptfile.ResponseCache;
+
+/**
+ * The <i>-respcache</i> option shared by the cryptfile generators that contact a key
+ * server.  Responses are kept in an encrypted {@link ResponseCache}
+ */
+public class ResponseCacheOption {
+    
+    public static final int DEFAULT_TTL_HOURS = 168;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    
+    private String[] subopts;
+    
+    /**
+     * Print the usage of the option
+     * 
+     * @param descriptionLines the lines describing what the generator caches, printed
+     * before the description of the common sub-options
+     */
+    public static void usage(String... descriptionLines) {
+        System.out.println("\t-respcache <cache_dir>,<key_file>[,<ttl_hours>[,<max_entries>]]");
+        for (String line : descriptionLines) {
+            System.out.println("\t\t" + line);
+        }
+        System.out.println("\t\tEntries are encrypted with the key in <key_file>, which is created with a new random key");
+        System.out.println("\t\tif it does not exist and should be kept outside of <cache_dir>.  Entries expire after");
+        System.out.println("\t\t<ttl_hours> (default " + DEFAULT_TTL_HOURS + ") and at most <max_entries> (default " +
+                           DEFAULT_MAX_ENTRIES + ") are kept.");
+        System.out.println("");
+    }
+    
+    /**
+     * Parse the option if it is the current argument
+     * 
+     * @param cmdline the command line
+     * @param args the arguments
+     * @param current the index of the current argument
+     * @return true if the current argument is the option.  The caller must skip the
+     * option's argument
+     */
+    public boolean parse(CmdLine cmdline, String[] args, int current) {
+        String[] subopts = cmdline.checkOption("-respcache", args, current, 2, 4);
+        if (subopts == null)
+            return false;
+        this.subopts = subopts;
+        return true;
+    }
+    
+    /**
+     * Returns the cache directory given with the option
+     * 
+     * @return the cache directory, or null if the option was not given
+     */
+    public String getDirectory() {
+        return (subopts == null) ? null : subopts[0];
+    }
+    
+    /**
+     * Open the response cache, if the option was given.  Exits with an error if the
+     * sub-options are invalid or the cache could not be opened
+     * 
+     * @param cmdline the command line
+     * @return the cache, or null if the option was not given
+     */
+    public ResponseCache open(CmdLine cmdline) {
+        if (subopts == null)
+            return null;
+        try {
+            int ttlHours = (subopts.length > 2) ? Integer.parseInt(subopts[2]) : DEFAULT_TTL_HOURS;
+            int maxEntries = (subopts.length > 3) ? Integer.parseInt(subopts[3]) : DEFAULT_MAX_ENTRIES;
+            return new ResponseCache(new File(subopts[0]),
+                                     ResponseCache.loadKey(new File(subopts[1])),
+                                     TimeUnit.HOURS.toMillis(ttlHours), maxEntries);
+        }
+        catch (IOException e) {
+            cmdline.errorExit("Error opening response cache (" + subopts[0] + ") -- " + e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            cmdline.errorExit("Error opening response cache (" + subopts[0] + ") -- " + e.getMessage());
+        }
+        return null;
+    }
+}
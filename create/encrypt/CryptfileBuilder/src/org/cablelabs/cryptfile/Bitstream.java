@@ -26,9 +26,13 @@
 
 package org.cablelabs.cryptfile;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -82,6 +86,9 @@ public class Bitstream implements MP4BoxXML {
     private static final String ATTR_DATA64 = "data64";
     private static final String ATTR_DATA = "data";
     
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    
     private void setupIntegerInternal(BSType type, int value, int bits) {
         this.type = type;
         this.value = value;
@@ -209,7 +216,12 @@ public class Bitstream implements MP4BoxXML {
      */
     public void setupDataHex(String hexData) throws DecoderException {
         type = BSType.DATA;
-        data = Hex.decodeHex(hexData.toCharArray());
+        try {
+            data = KeyCodec.decodeHex(hexData);
+        }
+        catch (IllegalArgumentException e) {
+            throw new DecoderException(e.getMessage());
+        }
         bits = 0;
     }
     
@@ -282,13 +294,13 @@ public class Bitstream implements MP4BoxXML {
             e.setAttribute(ATTR_FOURCC, string);
             break;
         case ID128:
-            e.setAttribute(ATTR_ID128, Hex.encodeHexString(data));
+            e.setAttribute(ATTR_ID128, KeyCodec.encodeHex(data));
             break;
         case DATA64:
-            e.setAttribute(ATTR_DATA64, Base64.encodeBase64String(data));
+            e.setAttribute(ATTR_DATA64, KeyCodec.encodeBase64(data));
             break;
         case DATA:
-            e.setAttribute(ATTR_DATA, Hex.encodeHexString(data));
+            e.setAttribute(ATTR_DATA, KeyCodec.encodeHex(data));
             break;
         default:
             break;
@@ -296,4 +308,172 @@ public class Bitstream implements MP4BoxXML {
         
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        
+        w.writeEmptyElement(ELEMENT);
+        if (bits != 0)
+            w.writeAttribute(ATTR_BITS, Integer.toString(bits));
+        
+        switch (type) {
+        case VALUE_LE:
+            w.writeAttribute(ATTR_ENDIAN, "little");
+            // fall through
+        case VALUE:
+            w.writeAttribute(ATTR_VALUE, Integer.toString(value));
+            break;
+        case FILE:
+            w.writeAttribute(ATTR_FILE, string);
+            w.writeAttribute(ATTR_FILE_LENGTH, Integer.toString(length));
+            w.writeAttribute(ATTR_FILE_OFFSET, Integer.toString(offset));
+            break;
+        case STRING:
+            w.writeAttribute(ATTR_STRING, string);
+            break;
+        case FOURCC:
+            w.writeAttribute(ATTR_FOURCC, string);
+            break;
+        case ID128:
+            w.writeAttribute(ATTR_ID128, KeyCodec.encodeHex(data));
+            break;
+        case DATA64:
+            w.writeAttribute(ATTR_DATA64, KeyCodec.encodeBase64(data));
+            break;
+        case DATA:
+            w.writeAttribute(ATTR_DATA, KeyCodec.encodeHex(data));
+            break;
+        default:
+            break;
+        }
+    }
+    
+    private static byte[] parseHex(String hex) {
+        if (hex.startsWith("0x") || hex.startsWith("0X"))
+            hex = hex.substring(2);
+        return KeyCodec.decodeHex(hex);
+    }
+    
+    /**
+     * Re-creates a bitstream from the attributes of a <i>BS</i> element.  Attributes
+     * are interpreted the same way MP4Box interprets them.
+     * 
+     * @param nameValues the BS element attributes as alternating name/value pairs
+     * @return the bitstream
+     * @throws IllegalArgumentException if the attributes do not describe a valid bitstream
+     */
+    static Bitstream fromAttributes(String[] nameValues) {
+        int bits = 0;
+        String value = null;
+        boolean littleEndian = false;
+        String file = null;
+        int offset = 0;
+        int length = -1;
+        String string = null;
+        String fourcc = null;
+        String id128 = null;
+        String data64 = null;
+        String data = null;
+        for (int i = 0; i < nameValues.length; i += 2) {
+            String name = nameValues[i];
+            String v = nameValues[i + 1];
+            if (ATTR_BITS.equals(name))
+                bits = Integer.parseInt(v);
+            else if (ATTR_VALUE.equals(name))
+                value = v;
+            else if (ATTR_ENDIAN.equals(name))
+                littleEndian = "little".equals(v);
+            else if (ATTR_FILE.equals(name))
+                file = v;
+            else if (ATTR_FILE_OFFSET.equals(name))
+                offset = Integer.parseInt(v);
+            else if (ATTR_FILE_LENGTH.equals(name))
+                length = Integer.parseInt(v);
+            else if (ATTR_STRING.equals(name))
+                string = v;
+            else if (ATTR_FOURCC.equals(name))
+                fourcc = v;
+            else if (ATTR_ID128.equals(name))
+                id128 = v;
+            else if (ATTR_DATA64.equals(name))
+                data64 = v;
+            else if (ATTR_DATA.equals(name))
+                data = v;
+        }
+        
+        // Same precedence as MP4Box
+        Bitstream b = new Bitstream();
+        if (string != null) {
+            b.setupString(string);
+            b.bits = bits;
+        }
+        else if (data64 != null) {
+            b.setupDataB64(KeyCodec.decodeBase64(data64));
+            b.bits = bits;
+        }
+        else if (data != null) {
+            b.setupData(parseHex(data));
+            b.bits = bits;
+        }
+        else if (id128 != null) {
+            b.setupID128(parseHex(id128));
+        }
+        else if (fourcc != null) {
+            b.setupFourCC(fourcc.toCharArray());
+        }
+        else if (file != null) {
+            b.setupFile(file, offset, length);
+        }
+        else {
+            b.setupIntegerInternal(littleEndian ? BSType.VALUE_LE : BSType.VALUE,
+                                   (value == null) ? 0 : (int)Long.parseLong(value), bits);
+        }
+        return b;
+    }
+    
+    /**
+     * Writes the binary form of this bitstream, as MP4Box would produce it
+     * 
+     * @param w the writer
+     * @throws IOException if a FILE bitstream can not be read
+     */
+    void writeTo(BitstreamWriter w) throws IOException {
+        switch (type) {
+        case VALUE:
+            if (bits != 0)
+                w.writeBits(value & 0xFFFFFFFFL, bits);
+            break;
+        case VALUE_LE:
+            if (bits != 0)
+                w.writeBitsLE(value & 0xFFFFFFFFL, bits);
+            break;
+        case FILE:
+            w.writeFile(string, offset, length);
+            break;
+        case STRING:
+            byte[] s = string.getBytes(UTF_8);
+            if (bits != 0)
+                w.writeBits(s.length, bits);
+            w.writeBytes(s);
+            break;
+        case FOURCC:
+            w.writeBytes(string.getBytes(US_ASCII));
+            break;
+        case ID128:
+            w.writeBytes(data);
+            break;
+        case DATA64:
+        case DATA:
+            if (bits != 0)
+                w.writeBits(data.length, bits);
+            w.writeBytes(data);
+            break;
+        default:
+            break;
+        }
+    }
 }
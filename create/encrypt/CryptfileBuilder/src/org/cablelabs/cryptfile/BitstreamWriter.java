@@ -0,0 +1,324 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Evaluates {@link Bitstream} definitions into the binary data that MP4Box would
+ * produce from them.  Fields are packed most-significant bit first, so fields narrower
+ * than 8 bits share bytes with their neighbors.  Any trailing partial byte is padded
+ * with zero bits.  <i>dataFile</i> fields are read through a memory-mapped slice of
+ * the file.
+ * <p>
+ * Bytes are written into a reusable buffer that grows as needed.  Instances are not
+ * thread-safe.  Each thread should own its own writer.
+ */
+public class BitstreamWriter {
+    
+    private static final int DEFAULT_CAPACITY = 4096;
+    
+    private static final String DRM_INFO_ELEMENT = "DRMInfo";
+    private static final String BS_ELEMENT = "BS";
+    private static final String ATTR_VERSION = "version";
+    
+    private ByteBuffer buffer;
+    private File baseDir;
+    
+    // Bits not yet written to the buffer (always less than 8)
+    private int pendingBits;
+    private int pendingCount;
+    
+    /**
+     * Create a new writer with a default-sized buffer.  Relative <i>dataFile</i> names
+     * are resolved against the current directory
+     */
+    public BitstreamWriter() {
+        this(DEFAULT_CAPACITY, null);
+    }
+    
+    /**
+     * Create a new writer
+     * 
+     * @param initialCapacity the initial size of the buffer.  The buffer grows as needed
+     * @param baseDir the directory against which relative <i>dataFile</i> names are
+     * resolved (usually the directory holding the cryptfile).  If null, the current
+     * directory is used
+     */
+    public BitstreamWriter(int initialCapacity, File baseDir) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+        this.baseDir = baseDir;
+    }
+    
+    /**
+     * Discard everything written so far
+     */
+    public void reset() {
+        buffer.clear();
+        pendingBits = 0;
+        pendingCount = 0;
+    }
+    
+    /**
+     * Returns the bytes written since the last reset.  Any partial byte is padded with zero
+     * bits.  The writer is reset, and the returned buffer is reused by the next call
+     * 
+     * @return a buffer holding the bytes from position 0 to its limit
+     */
+    public ByteBuffer finish() {
+        if (pendingCount != 0)
+            writeBits(0, 8 - pendingCount);
+        buffer.flip();
+        ByteBuffer result = buffer;
+        pendingBits = 0;
+        pendingCount = 0;
+        return result;
+    }
+    
+    /**
+     * Write a single bitstream field
+     * 
+     * @param bs the bitstream
+     * @throws IOException if a <i>dataFile</i> field can not be read
+     */
+    public void write(Bitstream bs) throws IOException {
+        bs.writeTo(this);
+    }
+    
+    /**
+     * Write a <i>BS</i> element, such as the ones generated by {@link Bitstream#generateXML(Document)}
+     * 
+     * @param bs the BS element
+     * @throws IOException if a <i>dataFile</i> field can not be read
+     * @throws IllegalArgumentException if the element does not describe a valid bitstream
+     */
+    public void write(Element bs) throws IOException {
+        NamedNodeMap attrs = bs.getAttributes();
+        String[] nameValues = new String[attrs.getLength() * 2];
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Node attr = attrs.item(i);
+            nameValues[i*2] = attr.getNodeName();
+            nameValues[i*2 + 1] = attr.getNodeValue();
+        }
+        write(Bitstream.fromAttributes(nameValues));
+    }
+    
+    /**
+     * Evaluate all <i>BS</i> children of the given element (typically a <i>DRMInfo</i>
+     * element)
+     * 
+     * @param parent the parent element
+     * @return a buffer holding the bytes from position 0 to its limit.  The buffer is
+     * reused by the next call to this writer
+     * @throws IOException if a <i>dataFile</i> field can not be read
+     */
+    public ByteBuffer writeAll(Element parent) throws IOException {
+        reset();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE && BS_ELEMENT.equals(n.getNodeName()))
+                write((Element)n);
+        }
+        return finish();
+    }
+    
+    /**
+     * Generates the binary PSSH box that MP4Box would create from the <i>DRMInfo</i>
+     * element of the given PSSH.  For PSSH that also provide their PSSH data natively,
+     * the result is identical to {@link DRMInfoPSSH#generatePSSHBox()}.
+     * 
+     * @param pssh the PSSH
+     * @return the PSSH box
+     * @throws IOException if a <i>dataFile</i> field can not be read
+     * @throws IllegalArgumentException if the DRMInfo bitstreams are too short to hold
+     * the system ID and key IDs
+     */
+    public byte[] generatePSSHBox(DRMInfoPSSH pssh) throws IOException {
+        Document d;
+        try {
+            d = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        }
+        catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+        Element drmInfo = (Element)pssh.generateXML(d);
+        if (!DRM_INFO_ELEMENT.equals(drmInfo.getNodeName()))
+            throw new IllegalArgumentException("Not a " + DRM_INFO_ELEMENT + " element: " +
+                                               drmInfo.getNodeName());
+        String version = drmInfo.getAttribute(ATTR_VERSION);
+        int psshVersion = (version.length() == 0) ? 0 : Integer.parseInt(version);
+        
+        ByteBuffer bits = writeAll(drmInfo);
+        
+        // System ID, then (version 1+) the KID count and KIDs, then the PSSH data
+        int headerSize = 16;
+        if (psshVersion > 0) {
+            if (bits.remaining() < headerSize + 4)
+                throw new IllegalArgumentException("DRMInfo is missing the KID count");
+            headerSize += 4 + KeyId.SIZE * bits.getInt(headerSize);
+        }
+        if (bits.remaining() < headerSize)
+            throw new IllegalArgumentException("DRMInfo is too short (" + bits.remaining() + " bytes)");
+        int dataSize = bits.remaining() - headerSize;
+        
+        ByteBuffer box = ByteBuffer.allocate(4 + 4 + 4 + headerSize + 4 + dataSize);
+        box.putInt(box.capacity());
+        box.put((byte)'p').put((byte)'s').put((byte)'s').put((byte)'h');
+        box.putInt((psshVersion & 0xFF) << 24);
+        bits.limit(headerSize);
+        box.put(bits);
+        bits.limit(headerSize + dataSize);
+        box.putInt(dataSize);
+        box.put(bits);
+        return box.array();
+    }
+    
+    // Make sure the buffer can hold the given number of additional bytes
+    private void ensureRemaining(int size) {
+        if (buffer.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.position() + size, buffer.capacity() * 2));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+    
+    /**
+     * Write the low-order bits of an integer value, most-significant bit first
+     * 
+     * @param value the value
+     * @param bits the width of the field (1-64)
+     */
+    void writeBits(long value, int bits) {
+        if (bits < 1 || bits > 64)
+            throw new IllegalArgumentException("Invalid bit width: " + bits);
+        ensureRemaining((pendingCount + bits + 7) / 8);
+        
+        // Byte-aligned fast path
+        if (pendingCount == 0) {
+            while (bits >= 8) {
+                bits -= 8;
+                buffer.put((byte)(value >>> bits));
+            }
+        }
+        while (bits > 0) {
+            int n = Math.min(bits, 8 - pendingCount);
+            bits -= n;
+            pendingBits = (pendingBits << n) | (int)((value >>> bits) & ((1 << n) - 1));
+            pendingCount += n;
+            if (pendingCount == 8) {
+                buffer.put((byte)pendingBits);
+                pendingBits = 0;
+                pendingCount = 0;
+            }
+        }
+    }
+    
+    /**
+     * Write the low-order bits of an integer value in little-endian byte order
+     * 
+     * @param value the value
+     * @param bits the width of the field.  Must be a multiple of 8
+     */
+    void writeBitsLE(long value, int bits) {
+        if (bits % 8 != 0)
+            throw new IllegalArgumentException("Little-endian bit width must be a multiple of 8: " + bits);
+        for (int i = 0; i < bits; i += 8) {
+            writeBits(value >>> i, 8);
+        }
+    }
+    
+    /**
+     * Write a sequence of bytes
+     * 
+     * @param src the bytes from position to limit.  On return, the position is at the limit
+     */
+    void writeBytes(ByteBuffer src) {
+        ensureRemaining(src.remaining() + 1);
+        if (pendingCount == 0) {
+            buffer.put(src);
+        }
+        else {
+            while (src.hasRemaining()) {
+                writeBits(src.get(), 8);
+            }
+        }
+    }
+    
+    /**
+     * Write a sequence of bytes
+     * 
+     * @param data the bytes
+     */
+    void writeBytes(byte[] data) {
+        writeBytes(ByteBuffer.wrap(data));
+    }
+    
+    /**
+     * Write the contents of a file
+     * 
+     * @param name the file name
+     * @param offset offset of the first byte to write
+     * @param length the number of bytes to write, or -1 to write to the end of the file
+     * @throws IOException if the file can not be read, or is shorter than requested
+     */
+    void writeFile(String name, int offset, int length) throws IOException {
+        File file = new File(name);
+        if (!file.isAbsolute() && baseDir != null)
+            file = new File(baseDir, name);
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long count = (length < 0) ? size - offset : length;
+            if (offset < 0 || offset + count > size)
+                throw new IOException("Requested range (offset=" + offset + ", length=" + length +
+                                      ") is outside of " + file + " (" + size + " bytes)");
+            if (count == 0)
+                return;
+            MappedByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, offset, count);
+            writeBytes(slice);
+        }
+        finally {
+            raf.close();
+        }
+    }
+}
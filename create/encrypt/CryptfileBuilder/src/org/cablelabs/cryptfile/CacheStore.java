@@ -0,0 +1,258 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The on-disk store behind {@link PSSHCache} and {@link ResponseCache}.  Each entry is a
+ * single file in the store directory, named after its key.  Entries are written to a
+ * temporary file and renamed into place, so a partially written entry is never seen, and
+ * the least recently used entries are removed once the store grows beyond its size or
+ * entry limit.
+ * <p>
+ * Entry files are read and written outside of the store's lock; only the LRU
+ * bookkeeping is synchronized.  Any number of threads may share a store.
+ */
+class CacheStore {
+    
+    private static final String TEMP_PREFIX = "tmp";
+    
+    /**
+     * The contents of an entry file as it was read
+     */
+    static class Entry {
+        
+        final byte[] data;
+        final long modified;
+        
+        Entry(byte[] data, long modified) {
+            this.data = data;
+            this.modified = modified;
+        }
+    }
+    
+    private final File dir;
+    private final String suffix;
+    private final long maxBytes;
+    private final int maxEntries;
+    private long totalBytes = 0;
+    
+    // Entry sizes in least-recently-used order
+    private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    
+    /**
+     * Open a store.  The directory is created if it does not exist, and any existing
+     * entries are reused.
+     * 
+     * @param dir the store directory
+     * @param suffix the file name suffix of entries
+     * @param maxBytes the maximum total size of all entries
+     * @param maxEntries the maximum number of entries
+     * @throws IOException if the directory could not be created or read
+     */
+    CacheStore(File dir, String suffix, long maxBytes, int maxEntries) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create cache directory: " + dir);
+        this.dir = dir;
+        this.suffix = suffix;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        
+        // Load existing entries, oldest first.  Left-over temporary files from an
+        // interrupted write are removed.
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("Could not read cache directory: " + dir);
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(suffix)) {
+                entries.put(name.substring(0, name.length() - suffix.length()), f.length());
+                totalBytes += f.length();
+            }
+            else if (name.startsWith(TEMP_PREFIX)) {
+                f.delete();
+            }
+        }
+        evict();
+    }
+    
+    private File entryFile(String key) {
+        return new File(dir, key + suffix);
+    }
+    
+    // Remove least recently used entries until we are within our limits
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while ((totalBytes > maxBytes || entries.size() > maxEntries) && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            entryFile(entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            it.remove();
+        }
+    }
+    
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null)
+            totalBytes -= size;
+    }
+    
+    /**
+     * Read a file completely
+     * 
+     * @param f the file
+     * @return the file contents
+     * @throws IOException if the file could not be read
+     */
+    static byte[] readFile(File f) throws IOException {
+        InputStream is = new FileInputStream(f);
+        try {
+            byte[] data = new byte[(int)f.length()];
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = is.read(data, offset, data.length - offset)) != -1)
+                offset += read;
+            if (offset != data.length)
+                throw new IOException("Short read on cache entry: " + f);
+            return data;
+        }
+        finally {
+            is.close();
+        }
+    }
+    
+    /**
+     * Read an entry and make it the most recently used one
+     * 
+     * @param key the entry key
+     * @return the entry, or null if the store does not contain the key
+     * @throws IOException if the entry file could not be read
+     */
+    Entry read(String key) throws IOException {
+        synchronized (this) {
+            if (entries.get(key) == null)
+                return null;
+        }
+        
+        File f = entryFile(key);
+        long modified = f.lastModified();
+        try {
+            return new Entry(readFile(f), modified);
+        }
+        catch (FileNotFoundException e) {
+            // Removed by someone else sharing the directory.  A concurrent write may have
+            // created the entry again since
+            synchronized (this) {
+                if (!f.exists())
+                    remove(key);
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Mark an entry file as recently used, so that the order of use is kept when the
+     * store is opened again
+     * 
+     * @param key the entry key
+     */
+    void touch(String key) {
+        entryFile(key).setLastModified(System.currentTimeMillis());
+    }
+    
+    /**
+     * Remove an entry that was found to be invalid.  Nothing is removed if the entry file
+     * has been replaced by a concurrent write since it was read
+     * 
+     * @param key the entry key
+     * @param entry the entry as it was read
+     */
+    synchronized void discard(String key, Entry entry) {
+        File f = entryFile(key);
+        if (f.lastModified() == entry.modified && f.length() == entry.data.length) {
+            remove(key);
+            f.delete();
+        }
+    }
+    
+    /**
+     * Add or replace an entry
+     * 
+     * @param key the entry key
+     * @param data the entry contents
+     * @throws IOException if the entry could not be written
+     */
+    void write(String key, byte[] data) throws IOException {
+        File tmp = File.createTempFile(TEMP_PREFIX, null, dir);
+        try {
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(data);
+            }
+            finally {
+                os.close();
+            }
+            synchronized (this) {
+                File f = entryFile(key);
+                try {
+                    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (IOException e) {
+                    throw new IOException("Could not create cache entry: " + f, e);
+                }
+                remove(key);
+                entries.put(key, (long)data.length);
+                totalBytes += data.length;
+                evict();
+            }
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+}
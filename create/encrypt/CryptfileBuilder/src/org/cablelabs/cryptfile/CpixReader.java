@@ -0,0 +1,538 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader for DASH-IF CPIX (Content Protection Information Exchange)
+ * documents.  The document is read in a single pass and every content key, DRM
+ * system, key period and usage rule is handed to a {@link Handler} as soon as it
+ * has been parsed, so memory use depends only on the number of distinct PSSH boxes,
+ * not on the size of the document.
+ * <p>
+ * Only clear content keys (<i>pskc:PlainValue</i>) are supported.  DRM systems are
+ * imported from their <i>PSSH</i> element as {@link RawPSSH}; other signaling
+ * data is ignored.  A DRM system without a <i>PSSH</i> element may refer to the PSSH
+ * of an earlier DRM system with a <i>psshRef</i> attribute holding that system's
+ * <i>id</i>, as written by {@link CpixWriter}.  Each distinct PSSH box is parsed once,
+ * however many DRM systems carry or refer to it.
+ * 
+ * @see CpixWriter
+ */
+public class CpixReader {
+    
+    /**
+     * CPIX namespace
+     */
+    public static final String CPIX_NS = "urn:dashif:org:cpix";
+    
+    /**
+     * PSKC namespace, used for key values
+     */
+    public static final String PSKC_NS = "urn:ietf:params:xml:ns:keyprov:pskc";
+    
+    static final String CPIX_ELEMENT = "CPIX";
+    static final String CONTENT_KEY_LIST_ELEMENT = "ContentKeyList";
+    static final String CONTENT_KEY_ELEMENT = "ContentKey";
+    static final String DATA_ELEMENT = "Data";
+    static final String SECRET_ELEMENT = "Secret";
+    static final String PLAIN_VALUE_ELEMENT = "PlainValue";
+    static final String ENCRYPTED_VALUE_ELEMENT = "EncryptedValue";
+    static final String DRM_SYSTEM_LIST_ELEMENT = "DRMSystemList";
+    static final String DRM_SYSTEM_ELEMENT = "DRMSystem";
+    static final String PSSH_ELEMENT = "PSSH";
+    static final String KEY_PERIOD_LIST_ELEMENT = "ContentKeyPeriodList";
+    static final String KEY_PERIOD_ELEMENT = "ContentKeyPeriod";
+    static final String USAGE_RULE_LIST_ELEMENT = "ContentKeyUsageRuleList";
+    static final String USAGE_RULE_ELEMENT = "ContentKeyUsageRule";
+    static final String KEY_PERIOD_FILTER_ELEMENT = "KeyPeriodFilter";
+    
+    static final String ATTR_CONTENT_ID = "contentId";
+    static final String ATTR_KID = "kid";
+    static final String ATTR_SCHEME = "commonEncryptionScheme";
+    static final String ATTR_SYSTEM_ID = "systemId";
+    static final String ATTR_ID = "id";
+    static final String ATTR_INDEX = "index";
+    static final String ATTR_TRACK_TYPE = "intendedTrackType";
+    static final String ATTR_PERIOD_ID = "periodId";
+    static final String ATTR_PSSH_REF = "psshRef";
+    
+    static final String SCHEME_CENC = "cenc";
+    static final String SCHEME_CBC1 = "cbc1";
+    static final String SCHEME_CBCS = "cbcs";
+    static final String SCHEME_CENS = "cens";
+    
+    /**
+     * Receives the contents of a CPIX document in document order
+     */
+    public interface Handler {
+        
+        /**
+         * Called for each content key
+         * 
+         * @param key the key ID and key
+         * @param scheme the value of the <i>commonEncryptionScheme</i> attribute, or null
+         * @throws IOException
+         */
+        void contentKey(KeyPair key, String scheme) throws IOException;
+        
+        /**
+         * Called for each DRM system that carries or refers to a PSSH box
+         * 
+         * @param keyID the content key the DRM system applies to
+         * @param pssh the PSSH.  The same instance is passed for every DRM system with
+         * the same PSSH box
+         * @throws IOException
+         */
+        void drmSystem(KeyId keyID, DRMInfoPSSH pssh) throws IOException;
+        
+        /**
+         * Called for each content key period
+         * 
+         * @param id the period ID
+         * @param index the period index (the position in the period list if the
+         * document does not give one)
+         * @throws IOException
+         */
+        void contentKeyPeriod(String id, long index) throws IOException;
+        
+        /**
+         * Called for each content key usage rule, once for each of its key period filters
+         * 
+         * @param keyID the content key the rule applies to
+         * @param intendedTrackType the intended track type, or null
+         * @param periodID the ID of the key period filter, or null if the rule has none
+         * @throws IOException
+         */
+        void usageRule(KeyId keyID, String intendedTrackType, String periodID) throws IOException;
+    }
+    
+    private XMLStreamReader r;
+    private Handler handler;
+    
+    // PSSH by DRM system ID, for psshRef, and by box, so that a box repeated for
+    // every key is parsed and held once
+    private Map<String, RawPSSH> drmSystems = new HashMap<String, RawPSSH>();
+    private Map<ByteBuffer, RawPSSH> psshBoxes = new HashMap<ByteBuffer, RawPSSH>();
+    
+    private CpixReader(XMLStreamReader r, Handler handler) {
+        this.r = r;
+        this.handler = handler;
+    }
+    
+    /**
+     * Read a CPIX document
+     * 
+     * @param is the stream containing the document
+     * @param handler receives the document contents
+     * @throws XMLStreamException if the document is not well-formed or contains invalid values
+     * @throws IOException if thrown by the handler
+     */
+    public static void read(InputStream is, Handler handler) throws XMLStreamException, IOException {
+        read(is, XMLInputFactory.newInstance(), handler);
+    }
+    
+    /**
+     * Read a CPIX document using the given factory to create the stream reader
+     * 
+     * @param is the stream containing the document
+     * @param factory the factory used to create the XML stream reader
+     * @param handler receives the document contents
+     * @throws XMLStreamException if the document is not well-formed or contains invalid values
+     * @throws IOException if thrown by the handler
+     */
+    public static void read(InputStream is, XMLInputFactory factory, Handler handler)
+            throws XMLStreamException, IOException {
+        XMLStreamReader r = factory.createXMLStreamReader(is);
+        try {
+            new CpixReader(r, handler).readCPIX();
+        }
+        catch (IllegalArgumentException e) {
+            throw new XMLStreamException(e.getMessage(), r.getLocation(), e);
+        }
+        finally {
+            r.close();
+        }
+    }
+    
+    /**
+     * Read a CPIX document into a cryptfile builder.  Each usage rule assigns its
+     * content key to the track given by the rule's <i>intendedTrackType</i>.  Keys
+     * of a track are ordered by key period, giving the track's rolling keys.  Only
+     * the keys and PSSH are held in memory.
+     * 
+     * @param is the stream containing the document
+     * @param trackIDs maps intended track types to track IDs.  Track types that are not
+     * in the map (or all track types if null) must be decimal track IDs
+     * @param keyRoll the number of samples encrypted with each rolling key, or -1
+     * @return a cryptfile builder with one track for every track referenced by the usage
+     * rules and the consolidated PSSH of all DRM systems
+     * @throws XMLStreamException if the document is not well-formed, contains invalid
+     * values or references unknown keys, periods or track types
+     */
+    public static CryptfileBuilder readCryptfile(InputStream is, Map<String, Integer> trackIDs, int keyRoll)
+            throws XMLStreamException {
+        BuilderHandler builder = new BuilderHandler(trackIDs);
+        try {
+            read(is, builder);
+            return builder.build(keyRoll);
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Returns the protection scheme for the given <i>commonEncryptionScheme</i>
+     * 
+     * @param scheme the CPIX scheme name
+     * @return the protection scheme
+     * @throws IllegalArgumentException if the scheme is not supported
+     */
+    static CryptfileBuilder.ProtectionScheme parseScheme(String scheme) {
+        if (SCHEME_CENC.equals(scheme) || SCHEME_CENS.equals(scheme))
+            return CryptfileBuilder.ProtectionScheme.AES_CTR;
+        if (SCHEME_CBC1.equals(scheme) || SCHEME_CBCS.equals(scheme))
+            return CryptfileBuilder.ProtectionScheme.AES_CBC;
+        throw new IllegalArgumentException("Unsupported common encryption scheme: " + scheme);
+    }
+    
+    // Advance to the next start element that is a child of the current element.  Returns
+    // false when the end of the current element is reached
+    private boolean nextChild() throws XMLStreamException {
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                return true;
+            if (event == XMLStreamConstants.END_ELEMENT)
+                return false;
+        }
+        return false;
+    }
+    
+    // Skip the remainder of the current element, including all of its children
+    private void skipElement() throws XMLStreamException {
+        while (nextChild()) {
+            skipElement();
+        }
+    }
+    
+    private boolean isElement(String ns, String name) {
+        return name.equals(r.getLocalName()) && ns.equals(r.getNamespaceURI());
+    }
+    
+    private String requiredAttribute(String name) throws XMLStreamException {
+        String value = r.getAttributeValue(null, name);
+        if (value == null)
+            throw new XMLStreamException("Missing '" + name + "' attribute on " + r.getLocalName(),
+                                         r.getLocation());
+        return value;
+    }
+    
+    private KeyId keyIDAttribute() throws XMLStreamException {
+        return KeyId.parseGUID(requiredAttribute(ATTR_KID));
+    }
+    
+    private void readCPIX() throws XMLStreamException, IOException {
+        if (!nextChild() || !isElement(CPIX_NS, CPIX_ELEMENT))
+            throw new XMLStreamException("Missing " + CPIX_ELEMENT + " root element", r.getLocation());
+        
+        while (nextChild()) {
+            if (isElement(CPIX_NS, CONTENT_KEY_LIST_ELEMENT)) {
+                while (nextChild()) {
+                    if (isElement(CPIX_NS, CONTENT_KEY_ELEMENT))
+                        readContentKey();
+                    else
+                        skipElement();
+                }
+            }
+            else if (isElement(CPIX_NS, DRM_SYSTEM_LIST_ELEMENT)) {
+                while (nextChild()) {
+                    if (isElement(CPIX_NS, DRM_SYSTEM_ELEMENT))
+                        readDRMSystem();
+                    else
+                        skipElement();
+                }
+            }
+            else if (isElement(CPIX_NS, KEY_PERIOD_LIST_ELEMENT)) {
+                long position = 0;
+                while (nextChild()) {
+                    if (isElement(CPIX_NS, KEY_PERIOD_ELEMENT)) {
+                        String id = requiredAttribute(ATTR_ID);
+                        String index = r.getAttributeValue(null, ATTR_INDEX);
+                        handler.contentKeyPeriod(id, (index != null) ? Long.parseLong(index) : position);
+                        position++;
+                    }
+                    skipElement();
+                }
+            }
+            else if (isElement(CPIX_NS, USAGE_RULE_LIST_ELEMENT)) {
+                while (nextChild()) {
+                    if (isElement(CPIX_NS, USAGE_RULE_ELEMENT))
+                        readUsageRule();
+                    else
+                        skipElement();
+                }
+            }
+            else {
+                skipElement();
+            }
+        }
+    }
+    
+    private void readContentKey() throws XMLStreamException, IOException {
+        KeyId keyID = keyIDAttribute();
+        String scheme = r.getAttributeValue(null, ATTR_SCHEME);
+        byte[] key = null;
+        while (nextChild()) {
+            if (!isElement(CPIX_NS, DATA_ELEMENT)) {
+                skipElement();
+                continue;
+            }
+            while (nextChild()) {
+                if (!isElement(PSKC_NS, SECRET_ELEMENT)) {
+                    skipElement();
+                    continue;
+                }
+                while (nextChild()) {
+                    if (isElement(PSKC_NS, PLAIN_VALUE_ELEMENT)) {
+                        key = KeyCodec.decodeBase64(r.getElementText());
+                    }
+                    else if (isElement(PSKC_NS, ENCRYPTED_VALUE_ELEMENT)) {
+                        throw new XMLStreamException("Encrypted content keys are not supported -- " + keyID,
+                                                     r.getLocation());
+                    }
+                    else {
+                        skipElement();
+                    }
+                }
+            }
+        }
+        if (key == null)
+            throw new XMLStreamException("Content key " + keyID + " has no value", r.getLocation());
+        handler.contentKey(new KeyPair(keyID, key), scheme);
+    }
+    
+    private void readDRMSystem() throws XMLStreamException, IOException {
+        KeyId keyID = keyIDAttribute();
+        KeyId systemID = KeyId.parseGUID(requiredAttribute(ATTR_SYSTEM_ID));
+        String id = r.getAttributeValue(null, ATTR_ID);
+        String ref = r.getAttributeValue(null, ATTR_PSSH_REF);
+        RawPSSH pssh = null;
+        if (ref != null) {
+            pssh = drmSystems.get(ref);
+            if (pssh == null)
+                throw new XMLStreamException("Unknown DRM system reference: " + ref, r.getLocation());
+        }
+        while (nextChild()) {
+            if (isElement(CPIX_NS, PSSH_ELEMENT)) {
+                byte[] box = KeyCodec.decodeBase64(r.getElementText());
+                pssh = psshBoxes.get(ByteBuffer.wrap(box));
+                if (pssh == null) {
+                    pssh = RawPSSH.parse(box);
+                    psshBoxes.put(ByteBuffer.wrap(box), pssh);
+                }
+            }
+            else {
+                skipElement();
+            }
+        }
+        if (pssh == null)
+            return;
+        if (!KeyId.fromBytes(pssh.getSystemID()).equals(systemID))
+            throw new XMLStreamException("PSSH system ID does not match DRM system " + systemID,
+                                         r.getLocation());
+        if (id != null)
+            drmSystems.put(id, pssh);
+        handler.drmSystem(keyID, pssh);
+    }
+    
+    private void readUsageRule() throws XMLStreamException, IOException {
+        KeyId keyID = keyIDAttribute();
+        String trackType = r.getAttributeValue(null, ATTR_TRACK_TYPE);
+        boolean filtered = false;
+        while (nextChild()) {
+            if (isElement(CPIX_NS, KEY_PERIOD_FILTER_ELEMENT)) {
+                handler.usageRule(keyID, trackType, requiredAttribute(ATTR_PERIOD_ID));
+                filtered = true;
+            }
+            skipElement();
+        }
+        if (!filtered)
+            handler.usageRule(keyID, trackType, null);
+    }
+    
+    /**
+     * Collects the handler callbacks into tracks and PSSH
+     */
+    private static class BuilderHandler implements Handler {
+        
+        private static class Rule {
+            final KeyId keyID;
+            final String periodID;
+            
+            Rule(KeyId keyID, String periodID) {
+                this.keyID = keyID;
+                this.periodID = periodID;
+            }
+        }
+        
+        private Map<String, Integer> trackIDs;
+        private CryptfileBuilder.ProtectionScheme scheme;
+        private Map<KeyId, KeyPair> keys = new HashMap<KeyId, KeyPair>();
+        private List<DRMInfoPSSH> pssh = new ArrayList<DRMInfoPSSH>();
+        private Set<DRMInfoPSSH> psshAdded = Collections.newSetFromMap(new IdentityHashMap<DRMInfoPSSH, Boolean>());
+        private Map<String, Long> periods = new HashMap<String, Long>();
+        private Map<Integer, List<Rule>> tracks = new LinkedHashMap<Integer, List<Rule>>();
+        
+        BuilderHandler(Map<String, Integer> trackIDs) {
+            this.trackIDs = trackIDs;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.cablelabs.cryptfile.CpixReader.Handler#contentKey(org.cablelabs.cryptfile.KeyPair, java.lang.String)
+         */
+        @Override
+        public void contentKey(KeyPair key, String keyScheme) {
+            if (keyScheme != null) {
+                CryptfileBuilder.ProtectionScheme s = parseScheme(keyScheme);
+                if (scheme != null && scheme != s)
+                    throw new IllegalArgumentException("Content keys use more than one encryption scheme");
+                scheme = s;
+            }
+            keys.put(key.getKeyId(), key);
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.cablelabs.cryptfile.CpixReader.Handler#drmSystem(org.cablelabs.cryptfile.KeyId, org.cablelabs.cryptfile.DRMInfoPSSH)
+         */
+        @Override
+        public void drmSystem(KeyId keyID, DRMInfoPSSH drmInfo) {
+            // The reader passes the same PSSH for every key it covers
+            if (psshAdded.add(drmInfo))
+                pssh.add(drmInfo);
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.cablelabs.cryptfile.CpixReader.Handler#contentKeyPeriod(java.lang.String, long)
+         */
+        @Override
+        public void contentKeyPeriod(String id, long index) {
+            periods.put(id, index);
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.cablelabs.cryptfile.CpixReader.Handler#usageRule(org.cablelabs.cryptfile.KeyId, java.lang.String, java.lang.String)
+         */
+        @Override
+        public void usageRule(KeyId keyID, String intendedTrackType, String periodID) {
+            Integer trackID = (trackIDs != null) ? trackIDs.get(intendedTrackType) : null;
+            if (trackID == null) {
+                try {
+                    trackID = Integer.valueOf(intendedTrackType);
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("No track ID for intended track type: " + intendedTrackType);
+                }
+            }
+            List<Rule> rules = tracks.get(trackID);
+            if (rules == null) {
+                rules = new ArrayList<Rule>();
+                tracks.put(trackID, rules);
+            }
+            rules.add(new Rule(keyID, periodID));
+        }
+        
+        private long periodIndex(Rule rule) {
+            if (rule.periodID == null)
+                return -1;
+            Long index = periods.get(rule.periodID);
+            if (index == null)
+                throw new IllegalArgumentException("Unknown content key period: " + rule.periodID);
+            return index;
+        }
+        
+        CryptfileBuilder build(int keyRoll) {
+            CryptfileBuilder builder = new CryptfileBuilder((scheme != null) ? scheme :
+                                                            CryptfileBuilder.ProtectionScheme.AES_CTR);
+            for (Map.Entry<Integer, List<Rule>> track : tracks.entrySet()) {
+                
+                // Rolling keys in period order.  The sort is stable, so rules without
+                // a period keep their document order
+                List<Rule> rules = track.getValue();
+                for (Rule rule : rules) {
+                    periodIndex(rule);
+                }
+                Collections.sort(rules, new Comparator<Rule>() {
+                    @Override
+                    public int compare(Rule a, Rule b) {
+                        long ia = periodIndex(a);
+                        long ib = periodIndex(b);
+                        return (ia < ib) ? -1 : ((ia == ib) ? 0 : 1);
+                    }
+                });
+                
+                List<CryptKey> cryptKeys = new ArrayList<CryptKey>(rules.size());
+                for (Rule rule : rules) {
+                    KeyPair key = keys.get(rule.keyID);
+                    if (key == null)
+                        throw new IllegalArgumentException("Usage rule references unknown content key: " + rule.keyID);
+                    cryptKeys.add(new CryptKey(key));
+                }
+                builder.addTrack(new CryptTrack(track.getKey(), CryptTrack.IV_SIZE_8, null, cryptKeys, keyRoll));
+            }
+            builder.addPSSH(pssh);
+            builder.consolidatePSSH();
+            return builder;
+        }
+    }
+}
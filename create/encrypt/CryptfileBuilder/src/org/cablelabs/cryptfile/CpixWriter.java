@@ -0,0 +1,217 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes the tracks, keys and PSSH of a {@link CryptfileBuilder} as a DASH-IF CPIX
+ * document.  Elements are streamed as they are generated, and track keys are read
+ * through {@link CryptTrack#getKeys()} one at a time, so derived key lists are never
+ * materialized.  Apart from the builder itself, memory use grows only by a 16-byte
+ * key ID per content key, used to write each content key once.
+ * <p>
+ * Content keys are written in the clear.  Each PSSH is written as a <i>DRMSystem</i>
+ * for every content key it lists (or for every content key if it is a version 0
+ * PSSH).  The PSSH box itself is written only once, in the <i>DRMSystem</i> of the
+ * first key, which is given an <i>id</i>.  The <i>DRMSystem</i> of every other key
+ * refers to it with a <i>psshRef</i> attribute, so that the document grows linearly
+ * with the number of keys.  The usage rules use the track ID as <i>intendedTrackType</i> and one
+ * key period per rolling key, which is what {@link CpixReader#readCryptfile} expects.
+ */
+public class CpixWriter {
+    
+    private static final String KEY_PERIOD_PREFIX = "keyPeriod_";
+    private static final String DRM_SYSTEM_PREFIX = "drmSystem_";
+    
+    private XMLStreamWriter w;
+    private CryptfileBuilder builder;
+    private KeyIdSet contentKeys = new KeyIdSet();
+    
+    private CpixWriter(XMLStreamWriter w, CryptfileBuilder builder) {
+        this.w = w;
+        this.builder = builder;
+    }
+    
+    /**
+     * Write a CPIX document
+     * 
+     * @param builder the cryptfile builder holding the tracks and PSSH
+     * @param contentID the content ID of the document, or null
+     * @param os the stream to write the document.  It is flushed but not closed
+     * @throws XMLStreamException
+     */
+    public static void writeCpix(CryptfileBuilder builder, String contentID, OutputStream os)
+            throws XMLStreamException {
+        writeCpix(builder, contentID, os, XMLOutputFactory.newInstance());
+    }
+    
+    /**
+     * Write a CPIX document using the given factory to create the stream writer
+     * 
+     * @param builder the cryptfile builder holding the tracks and PSSH
+     * @param contentID the content ID of the document, or null
+     * @param os the stream to write the document.  It is flushed but not closed
+     * @param factory the factory used to create the XML stream writer
+     * @throws XMLStreamException
+     */
+    public static void writeCpix(CryptfileBuilder builder, String contentID, OutputStream os,
+                                 XMLOutputFactory factory) throws XMLStreamException {
+        XMLStreamWriter w = new IndentingXMLStreamWriter(factory.createXMLStreamWriter(os, "UTF-8"));
+        new CpixWriter(w, builder).write(contentID);
+        w.close();
+    }
+    
+    private String scheme() {
+        return (builder.getScheme() == CryptfileBuilder.ProtectionScheme.AES_CBC) ?
+                CpixReader.SCHEME_CBC1 : CpixReader.SCHEME_CENC;
+    }
+    
+    private void write(String contentID) throws XMLStreamException {
+        w.writeStartElement(CpixReader.CPIX_ELEMENT);
+        w.writeDefaultNamespace(CpixReader.CPIX_NS);
+        w.writeNamespace("pskc", CpixReader.PSKC_NS);
+        if (contentID != null)
+            w.writeAttribute(CpixReader.ATTR_CONTENT_ID, contentID);
+        
+        writeContentKeys();
+        writeDRMSystems();
+        writeUsageRules();
+        
+        w.writeEndDocument();
+    }
+    
+    private void writeContentKeys() throws XMLStreamException {
+        String scheme = scheme();
+        w.writeStartElement(CpixReader.CONTENT_KEY_LIST_ELEMENT);
+        for (CryptTrack track : builder.getTracks()) {
+            for (CryptKey cryptKey : track.getKeys()) {
+                KeyPair key = cryptKey.getKeyPair();
+                KeyId keyID = key.getKeyId();
+                if (!contentKeys.add(keyID))
+                    continue;
+                w.writeStartElement(CpixReader.CONTENT_KEY_ELEMENT);
+                w.writeAttribute(CpixReader.ATTR_KID, keyID.toGUID());
+                w.writeAttribute(CpixReader.ATTR_SCHEME, scheme);
+                w.writeStartElement(CpixReader.DATA_ELEMENT);
+                w.writeStartElement("pskc", CpixReader.SECRET_ELEMENT, CpixReader.PSKC_NS);
+                w.writeStartElement("pskc", CpixReader.PLAIN_VALUE_ELEMENT, CpixReader.PSKC_NS);
+                w.writeCharacters(KeyCodec.encodeBase64(key.getKey()));
+                w.writeEndElement();
+                w.writeEndElement();
+                w.writeEndElement();
+                w.writeEndElement();
+            }
+        }
+        w.writeEndElement();
+    }
+    
+    private void writeDRMSystems() throws XMLStreamException {
+        List<DRMInfoPSSH> psshList = builder.getPSSH();
+        if (psshList.isEmpty())
+            return;
+        
+        BitstreamWriter bsWriter = new BitstreamWriter();
+        w.writeStartElement(CpixReader.DRM_SYSTEM_LIST_ELEMENT);
+        for (int i = 0; i < psshList.size(); i++) {
+            DRMInfoPSSH pssh = psshList.get(i);
+            String systemID = KeyId.fromBytes(pssh.getSystemID()).toGUID();
+            byte[] box = CryptfileBuilder.psshBox(pssh, bsWriter);
+            if (box == null)
+                throw new XMLStreamException("Could not generate the PSSH box for DRM system " + systemID);
+            String id = DRM_SYSTEM_PREFIX + i;
+            
+            boolean written = false;
+            KeyIdSet keyIDs = pssh.getKeyIDs();
+            for (KeyId keyID : (keyIDs != null) ? keyIDs : contentKeys) {
+                if (!contentKeys.contains(keyID))
+                    continue;
+                if (written) {
+                    w.writeEmptyElement(CpixReader.DRM_SYSTEM_ELEMENT);
+                    w.writeAttribute(CpixReader.ATTR_KID, keyID.toGUID());
+                    w.writeAttribute(CpixReader.ATTR_SYSTEM_ID, systemID);
+                    w.writeAttribute(CpixReader.ATTR_PSSH_REF, id);
+                    continue;
+                }
+                w.writeStartElement(CpixReader.DRM_SYSTEM_ELEMENT);
+                w.writeAttribute(CpixReader.ATTR_ID, id);
+                w.writeAttribute(CpixReader.ATTR_KID, keyID.toGUID());
+                w.writeAttribute(CpixReader.ATTR_SYSTEM_ID, systemID);
+                w.writeStartElement(CpixReader.PSSH_ELEMENT);
+                w.writeCharacters(KeyCodec.encodeBase64(box));
+                w.writeEndElement();
+                w.writeEndElement();
+                written = true;
+            }
+        }
+        w.writeEndElement();
+    }
+    
+    private void writeUsageRules() throws XMLStreamException {
+        
+        // One key period per rolling key position
+        int periods = 0;
+        for (CryptTrack track : builder.getTracks()) {
+            periods = Math.max(periods, track.getKeys().size());
+        }
+        if (periods > 1) {
+            w.writeStartElement(CpixReader.KEY_PERIOD_LIST_ELEMENT);
+            for (int i = 0; i < periods; i++) {
+                w.writeEmptyElement(CpixReader.KEY_PERIOD_ELEMENT);
+                w.writeAttribute(CpixReader.ATTR_ID, KEY_PERIOD_PREFIX + i);
+                w.writeAttribute(CpixReader.ATTR_INDEX, Integer.toString(i));
+            }
+            w.writeEndElement();
+        }
+        
+        w.writeStartElement(CpixReader.USAGE_RULE_LIST_ELEMENT);
+        for (CryptTrack track : builder.getTracks()) {
+            List<CryptKey> keys = track.getKeys();
+            String trackType = Integer.toString(track.getTrackID());
+            for (int i = 0; i < keys.size(); i++) {
+                if (keys.size() > 1)
+                    w.writeStartElement(CpixReader.USAGE_RULE_ELEMENT);
+                else
+                    w.writeEmptyElement(CpixReader.USAGE_RULE_ELEMENT);
+                w.writeAttribute(CpixReader.ATTR_KID, keys.get(i).getKeyPair().getKeyId().toGUID());
+                w.writeAttribute(CpixReader.ATTR_TRACK_TYPE, trackType);
+                if (keys.size() > 1) {
+                    w.writeEmptyElement(CpixReader.KEY_PERIOD_FILTER_ELEMENT);
+                    w.writeAttribute(CpixReader.ATTR_PERIOD_ID, KEY_PERIOD_PREFIX + i);
+                    w.writeEndElement();
+                }
+            }
+        }
+        w.writeEndElement();
+    }
+}
@@ -26,7 +26,9 @@
 
 package org.cablelabs.cryptfile;
 
-import org.apache.commons.codec.binary.Hex;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -72,8 +74,20 @@ public class CryptKey implements MP4BoxXML {
     public Node generateXML(Document d) {
         
         Element e = d.createElement(ELEMENT);
-        e.setAttribute(ATTR_KEYID, "0x" + Hex.encodeHexString(keypair.getID()));
-        e.setAttribute(ATTR_KEY, "0x" + Hex.encodeHexString(keypair.getKey()));
+        e.setAttribute(ATTR_KEYID, KeyCodec.encodeHex0x(keypair.getID()));
+        e.setAttribute(ATTR_KEY, KeyCodec.encodeHex0x(keypair.getKey()));
         return e;
     }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        
+        w.writeEmptyElement(ELEMENT);
+        w.writeAttribute(ATTR_KEYID, KeyCodec.encodeHex0x(keypair.getID()));
+        w.writeAttribute(ATTR_KEY, KeyCodec.encodeHex0x(keypair.getKey()));
+    }
 }
@@ -27,10 +27,12 @@
 package org.cablelabs.cryptfile;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.security.SecureRandom;
 
-import org.apache.commons.codec.binary.Hex;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -82,9 +84,7 @@ public class CryptTrack implements MP4BoxXML {
         
         // Generate random IV or use the one provided
         if (iv == null) {
-            this.iv = new byte[ivSize];
-            SecureRandom sr = new SecureRandom();
-            sr.nextBytes(this.iv);
+            this.iv = KeyMaterialSource.getDefault().nextIV(ivSize);
         }
         else {
             this.iv = iv;
@@ -151,22 +151,66 @@ public class CryptTrack implements MP4BoxXML {
             this.keyRoll = keyRoll;
     }
     
+    /**
+     * Create a new track encrypted with rolling keys that are derived from a master secret
+     * (see {@link HKDFKeyDeriver}).  Keys are not stored with the track -- they are derived
+     * each time they are needed, such as when the cryptfile is written.  Keys can not be
+     * added to such a track
+     * 
+     * @param trackID the track ID found in the ISOBMFF track header
+     * @param ivSize the length of the initialization vector (either IV_SIZE_8 or
+     * IV_SIZE_16)
+     * @param iv the initialization vector, or null if you want a random IV of the given
+     * IV length generated for you
+     * @param deriver derives the key of each crypto period
+     * @param firstPeriod the crypto period of the first key
+     * @param periods the number of keys
+     * @param keyRoll the number of consecutive samples that will be encrypted with a
+     * particular key.  If there is only one key, this parameter is ignored
+     */
+    public CryptTrack(int trackID, int ivSize, byte[] iv, HKDFKeyDeriver deriver,
+                      long firstPeriod, int periods, int keyRoll) {
+        this(trackID, ivSize, iv);
+        
+        if (deriver == null || periods < 1)
+            throw new IllegalArgumentException("Key deriver may not be null and must provide at least one key");
+        if (periods > 1 && keyRoll < 1)
+            throw new IllegalArgumentException("KeyRoll value must be greater than 0 when multiple keys are specified");
+        
+        this.keys = deriver.keys(trackID, firstPeriod, periods);
+        if (periods > 1)
+            this.keyRoll = keyRoll;
+    }
+    
     /**
      * Add a new encryption key to this track
      * 
      * @param key the key
+     * @throws UnsupportedOperationException if the track uses derived keys
      */
     public void addKey(CryptKey key) {
         keys.add(key);
     }
     
+    /**
+     * Returns the track ID
+     * 
+     * @return the track ID found in the ISOBMFF track header
+     */
+    public int getTrackID() {
+        return trackID;
+    }
+    
     /**
      * Return the list of keys associated with this track
      * 
-     * @return the keys
+     * @return an unmodifiable view of the keys (empty for non-encrypted tracks).  Use
+     * {@link #addKey(CryptKey)} to add keys
      */
     public List<CryptKey> getKeys() {
-        return new ArrayList<CryptKey>(keys);
+        if (keys == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(keys);
     }
 
     /* (non-Javadoc)
@@ -179,7 +223,7 @@ public class CryptTrack implements MP4BoxXML {
         e.setAttribute(ATTR_IS_ENCRYPTED, (isEncrypted ? "1" : "0"));
         if (isEncrypted) {
             e.setAttribute(ATTR_IV_SIZE, Integer.toString(ivSize));
-            e.setAttribute(ATTR_FIRST_IV, "0x" + Hex.encodeHexString(iv));
+            e.setAttribute(ATTR_FIRST_IV, KeyCodec.encodeHex0x(iv));
             e.setAttribute(ATTR_SAI_BOX, "senc");
             if (keyRoll != -1)
                 e.setAttribute(ATTR_KEY_ROLL, Integer.toString(keyRoll));
@@ -191,4 +235,37 @@ public class CryptTrack implements MP4BoxXML {
         
         return e;
     }
+
+    /* (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        
+        // Non-encrypted tracks have no keys
+        boolean hasKeys = keys != null && !keys.isEmpty();
+        if (hasKeys)
+            w.writeStartElement(ELEMENT);
+        else
+            w.writeEmptyElement(ELEMENT);
+        
+        if (isEncrypted) {
+            w.writeAttribute(ATTR_IV_SIZE, Integer.toString(ivSize));
+            w.writeAttribute(ATTR_FIRST_IV, KeyCodec.encodeHex0x(iv));
+        }
+        w.writeAttribute(ATTR_IS_ENCRYPTED, (isEncrypted ? "1" : "0"));
+        if (isEncrypted) {
+            if (keyRoll != -1)
+                w.writeAttribute(ATTR_KEY_ROLL, Integer.toString(keyRoll));
+            w.writeAttribute(ATTR_SAI_BOX, "senc");
+        }
+        w.writeAttribute(ATTR_TRACK_ID, Integer.toString(trackID));
+        
+        if (hasKeys) {
+            for (CryptKey key : keys) {
+                key.writeXML(w);
+            }
+            w.writeEndElement();
+        }
+    }
 }
@@ -26,13 +26,20 @@
 
 package org.cablelabs.cryptfile;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -97,6 +104,15 @@ public class CryptfileBuilder {
         tracks = new ArrayList<CryptTrack>();
     }
     
+    /**
+     * Returns the encryption scheme
+     * 
+     * @return the encryption scheme
+     */
+    public ProtectionScheme getScheme() {
+        return scheme;
+    }
+    
     /**
      * Add a single track 
      * 
@@ -112,7 +128,17 @@ public class CryptfileBuilder {
      * @param tracks the tracks to add
      */
     public void addTracks(List<CryptTrack> tracks) {
-        tracks.addAll(tracks);
+        this.tracks.addAll(tracks);
+    }
+    
+    /**
+     * Returns the tracks in this cryptfile.  The list is not copied, so changes to it
+     * (or to the tracks in it) will be reflected in the generated cryptfile
+     * 
+     * @return the track list
+     */
+    public List<CryptTrack> getTracks() {
+        return tracks;
     }
     
     /**
@@ -133,6 +159,82 @@ public class CryptfileBuilder {
         this.pssh.addAll(pssh);
     }
     
+    /**
+     * Returns the PSSH in this cryptfile.  The list is not copied, so changes to it
+     * will be reflected in the generated cryptfile
+     * 
+     * @return the PSSH list
+     */
+    public List<DRMInfoPSSH> getPSSH() {
+        return pssh;
+    }
+    
+    /**
+     * Reduce the number of PSSH in this cryptfile.  PSSH whose binary boxes are
+     * identical to an earlier PSSH are dropped.  The remaining PSSH are grouped by
+     * system ID, and each one is merged into the first PSSH of the same DRM system
+     * that accepts it (see {@link DRMInfoPSSH#merge(DRMInfoPSSH)}).  Merged PSSH take
+     * the place of the first PSSH of the merge, so the relative order of DRM systems
+     * is kept.
+     * 
+     * @return the number of PSSH removed
+     */
+    public int consolidatePSSH() {
+        List<DRMInfoPSSH> consolidated = new ArrayList<DRMInfoPSSH>(pssh.size());
+        Set<ByteBuffer> boxes = new HashSet<ByteBuffer>();
+        BitstreamWriter bsWriter = new BitstreamWriter();
+        
+        for (DRMInfoPSSH p : pssh) {
+            
+            // Drop exact duplicates
+            byte[] box = psshBox(p, bsWriter);
+            if (box != null && !boxes.add(ByteBuffer.wrap(box)))
+                continue;
+            
+            boolean merged = false;
+            for (int i = 0; i < consolidated.size() && !merged; i++) {
+                DRMInfoPSSH existing = consolidated.get(i);
+                if (!DRMInfoPSSH.systemIDMatch(existing.getSystemID(), p.getSystemID()))
+                    continue;
+                DRMInfoPSSH m = existing.merge(p);
+                if (m != null) {
+                    consolidated.set(i, m);
+                    merged = true;
+                }
+            }
+            if (!merged)
+                consolidated.add(p);
+        }
+        
+        int removed = pssh.size() - consolidated.size();
+        pssh.clear();
+        pssh.addAll(consolidated);
+        return removed;
+    }
+    
+    // Returns the binary PSSH box, or null if it can not be determined.  PSSH that do not
+    // generate their own boxes are evaluated from their DRMInfo bitstreams
+    static byte[] psshBox(DRMInfoPSSH p, BitstreamWriter bsWriter) {
+        try {
+            return p.generatePSSHBox();
+        }
+        catch (UnsupportedOperationException e) {
+            // Fall through to the DRMInfo bitstreams
+        }
+        catch (IOException e) {
+            return null;
+        }
+        try {
+            return bsWriter.generatePSSHBox(p);
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
     /**
      * Build the cryptfile document
      * 
@@ -159,6 +261,62 @@ public class CryptfileBuilder {
         return d;
     }
     
+    /**
+     * Write the cryptfile directly to the given stream.  No DOM document is built, so
+     * memory use does not grow with the number of tracks, keys, or PSSH.  The output is
+     * identical to <i>writeXML(buildCryptfile(), os)</i>
+     * 
+     * @param os the stream to write the cryptfile.  It is flushed but not closed
+     * @throws XMLStreamException
+     */
+    public void writeCryptfile(OutputStream os) throws XMLStreamException {
+        writeCryptfile(os, XMLOutputFactory.newInstance());
+    }
+    
+    /**
+     * Write the cryptfile directly to the given stream using the given factory to
+     * create the stream writer
+     * 
+     * @param os the stream to write the cryptfile.  It is flushed but not closed
+     * @param factory the factory used to create the XML stream writer
+     * @throws XMLStreamException
+     */
+    public void writeCryptfile(OutputStream os, XMLOutputFactory factory) throws XMLStreamException {
+        
+        XMLStreamWriter w = new IndentingXMLStreamWriter(factory.createXMLStreamWriter(os, "UTF-8"));
+        
+        // Root node
+        if (pssh.isEmpty() && tracks.isEmpty())
+            w.writeEmptyElement(ELEMENT);
+        else
+            w.writeStartElement(ELEMENT);
+        w.writeAttribute(ATTR_TYPE, "CENC " + scheme.toString());
+        
+        // All the child elements (DRMInfo and CryptTracks)
+        for (DRMInfoPSSH xml : pssh) {
+            xml.writeXML(w);
+        }
+        for (CryptTrack xml : tracks) {
+            xml.writeXML(w);
+        }
+        
+        w.writeEndDocument();
+        w.close();
+    }
+    
+    /**
+     * Write the tracks, keys and PSSH as a DASH-IF CPIX document.  The document is
+     * streamed to the output as it is generated
+     * 
+     * @param os the stream to write the document.  It is flushed but not closed
+     * @param contentID the content ID of the document, or null
+     * @throws XMLStreamException
+     * @see CpixWriter
+     */
+    public void writeCpix(OutputStream os, String contentID) throws XMLStreamException {
+        CpixWriter.writeCpix(this, contentID, os);
+    }
+    
     /**
      * Creates a new XML document
      * 
@@ -0,0 +1,251 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an existing MP4Box cryptfile back into a {@link CryptfileBuilder} in a single
+ * streaming pass.  Tracks, keys, and initialization vectors are restored exactly.  DRMInfo
+ * elements are restored as {@link OpaqueDRMInfo} objects since the DRM-specific PSSH data
+ * can not be interpreted generically.
+ * <p>
+ * Once read, the builder can be edited (new PSSH added, keys appended to tracks) and
+ * written back out.  Attributes that are not generated by this toolkit are not preserved.
+ */
+public class CryptfileReader {
+    
+    private static final String GPACDRM_ELEMENT = "GPACDRM";
+    private static final String DRM_INFO_ELEMENT = "DRMInfo";
+    private static final String BS_ELEMENT = "BS";
+    private static final String TRACK_ELEMENT = "CrypTrack";
+    private static final String KEY_ELEMENT = "key";
+    
+    private static final String ATTR_TYPE = "type";
+    private static final String ATTR_ID128 = "ID128";
+    private static final String ATTR_TRACK_ID = "trackID";
+    private static final String ATTR_IS_ENCRYPTED = "isEncrypted";
+    private static final String ATTR_IV_SIZE = "IV_size";
+    private static final String ATTR_FIRST_IV = "first_IV";
+    private static final String ATTR_KEY_ROLL = "keyRoll";
+    private static final String ATTR_KEYID = "KID";
+    private static final String ATTR_KEY = "value";
+    
+    private XMLStreamReader r;
+    
+    private CryptfileReader(XMLStreamReader r) {
+        this.r = r;
+    }
+    
+    /**
+     * Read a cryptfile
+     * 
+     * @param is the stream containing the cryptfile
+     * @return a cryptfile builder containing all tracks and DRMInfo elements from the file
+     * @throws XMLStreamException if the cryptfile is not well-formed or contains invalid values
+     */
+    public static CryptfileBuilder readCryptfile(InputStream is) throws XMLStreamException {
+        return readCryptfile(is, XMLInputFactory.newInstance());
+    }
+    
+    /**
+     * Read a cryptfile using the given factory to create the stream reader
+     * 
+     * @param is the stream containing the cryptfile
+     * @param factory the factory used to create the XML stream reader
+     * @return a cryptfile builder containing all tracks and DRMInfo elements from the file
+     * @throws XMLStreamException if the cryptfile is not well-formed or contains invalid values
+     */
+    public static CryptfileBuilder readCryptfile(InputStream is, XMLInputFactory factory)
+            throws XMLStreamException {
+        XMLStreamReader r = factory.createXMLStreamReader(is);
+        try {
+            return new CryptfileReader(r).readGPACDRM();
+        }
+        catch (IllegalArgumentException e) {
+            throw new XMLStreamException(e.getMessage(), r.getLocation(), e);
+        }
+        finally {
+            r.close();
+        }
+    }
+    
+    /**
+     * Read a single, standalone DRMInfo element
+     * 
+     * @param r the stream reader, positioned before the DRMInfo element
+     * @return the DRMInfo
+     * @throws XMLStreamException if the element is missing or invalid
+     */
+    static OpaqueDRMInfo parseDRMInfo(XMLStreamReader r) throws XMLStreamException {
+        CryptfileReader reader = new CryptfileReader(r);
+        if (!reader.nextChild() || !DRM_INFO_ELEMENT.equals(r.getLocalName()))
+            throw new XMLStreamException("Missing " + DRM_INFO_ELEMENT + " element", r.getLocation());
+        try {
+            return reader.readDRMInfo();
+        }
+        catch (IllegalArgumentException e) {
+            throw new XMLStreamException(e.getMessage(), r.getLocation(), e);
+        }
+    }
+    
+    // Advance to the next start element that is a child of the current element.  Returns
+    // false when the end of the current element is reached
+    private boolean nextChild() throws XMLStreamException {
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                return true;
+            if (event == XMLStreamConstants.END_ELEMENT)
+                return false;
+        }
+        return false;
+    }
+    
+    // Skip the remainder of the current element, including all of its children
+    private void skipElement() throws XMLStreamException {
+        while (nextChild()) {
+            skipElement();
+        }
+    }
+    
+    private String requiredAttribute(String name) throws XMLStreamException {
+        String value = r.getAttributeValue(null, name);
+        if (value == null)
+            throw new XMLStreamException("Missing '" + name + "' attribute on " + r.getLocalName(),
+                                         r.getLocation());
+        return value;
+    }
+    
+    private static byte[] parseHex(String hex) {
+        if (hex.startsWith("0x") || hex.startsWith("0X"))
+            hex = hex.substring(2);
+        try {
+            return KeyCodec.decodeHex(hex);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid hex value: " + hex);
+        }
+    }
+    
+    private static CryptfileBuilder.ProtectionScheme parseScheme(String type) {
+        for (CryptfileBuilder.ProtectionScheme scheme : CryptfileBuilder.ProtectionScheme.values()) {
+            if (("CENC " + scheme.toString()).equals(type))
+                return scheme;
+        }
+        throw new IllegalArgumentException("Unsupported cryptfile type: " + type);
+    }
+    
+    private CryptfileBuilder readGPACDRM() throws XMLStreamException {
+        if (!nextChild() || !GPACDRM_ELEMENT.equals(r.getLocalName()))
+            throw new XMLStreamException("Missing " + GPACDRM_ELEMENT + " root element", r.getLocation());
+        
+        CryptfileBuilder builder = new CryptfileBuilder(parseScheme(requiredAttribute(ATTR_TYPE)));
+        while (nextChild()) {
+            String name = r.getLocalName();
+            if (DRM_INFO_ELEMENT.equals(name)) {
+                builder.addPSSH(readDRMInfo());
+            }
+            else if (TRACK_ELEMENT.equals(name)) {
+                builder.addTrack(readTrack());
+            }
+            else {
+                skipElement();
+            }
+        }
+        return builder;
+    }
+    
+    private static String[] attributes(XMLStreamReader r) {
+        String[] attrs = new String[r.getAttributeCount() * 2];
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            attrs[i*2] = r.getAttributeLocalName(i);
+            attrs[i*2 + 1] = r.getAttributeValue(i);
+        }
+        return attrs;
+    }
+    
+    private OpaqueDRMInfo readDRMInfo() throws XMLStreamException {
+        String[] drmInfoAttrs = attributes(r);
+        
+        // The first bitstream is always the system ID
+        List<String[]> bitstreams = new ArrayList<String[]>();
+        byte[] systemID = null;
+        while (nextChild()) {
+            if (BS_ELEMENT.equals(r.getLocalName())) {
+                if (systemID == null)
+                    systemID = parseHex(requiredAttribute(ATTR_ID128));
+                bitstreams.add(attributes(r));
+            }
+            skipElement();
+        }
+        if (systemID == null)
+            throw new XMLStreamException(DRM_INFO_ELEMENT + " element has no system ID", r.getLocation());
+        
+        OpaqueDRMInfo drmInfo = new OpaqueDRMInfo(systemID, drmInfoAttrs);
+        for (String[] bs : bitstreams) {
+            drmInfo.addBitstream(bs);
+        }
+        return drmInfo;
+    }
+    
+    private CryptTrack readTrack() throws XMLStreamException {
+        int trackID = Integer.parseInt(requiredAttribute(ATTR_TRACK_ID));
+        boolean isEncrypted = "1".equals(requiredAttribute(ATTR_IS_ENCRYPTED));
+        int ivSize = 0;
+        byte[] iv = null;
+        int keyRoll = -1;
+        if (isEncrypted) {
+            ivSize = Integer.parseInt(requiredAttribute(ATTR_IV_SIZE));
+            iv = parseHex(requiredAttribute(ATTR_FIRST_IV));
+            String roll = r.getAttributeValue(null, ATTR_KEY_ROLL);
+            if (roll != null)
+                keyRoll = Integer.parseInt(roll);
+        }
+        
+        List<CryptKey> keys = new ArrayList<CryptKey>();
+        while (nextChild()) {
+            if (KEY_ELEMENT.equals(r.getLocalName())) {
+                byte[] keyID = parseHex(requiredAttribute(ATTR_KEYID));
+                byte[] key = parseHex(requiredAttribute(ATTR_KEY));
+                keys.add(new CryptKey(new KeyPair(keyID, key)));
+            }
+            skipElement();
+        }
+        
+        if (!isEncrypted)
+            return new CryptTrack(trackID, ivSize);
+        return new CryptTrack(trackID, ivSize, iv, keys, keyRoll);
+    }
+}
@@ -26,12 +26,15 @@
 
 package org.cablelabs.cryptfile;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
-import org.apache.commons.codec.binary.Base64;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -51,7 +54,7 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
     private static final String ATTR_VERSION = "version";
     
     private int psshVersion = 0;
-    private byte[][] keyIDs;
+    private KeyIdSet keyIDs;
     
     protected byte[] systemID; 
     
@@ -72,6 +75,63 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
         return true;
     }
     
+    /**
+     * Returns the unique identifier of the DRM system
+     * 
+     * @return the 16-byte system ID
+     */
+    public byte[] getSystemID() {
+        return systemID;
+    }
+    
+    /**
+     * Returns the PSSH box version
+     * 
+     * @return the PSSH version
+     */
+    public int getPSSHVersion() {
+        return psshVersion;
+    }
+    
+    /**
+     * Returns the key IDs listed in the PSSH box (version 1+).  The returned set
+     * must not be modified
+     * 
+     * @return the key IDs, or null for version 0 PSSH
+     */
+    protected KeyIdSet getKeyIDs() {
+        return keyIDs;
+    }
+    
+    /**
+     * Returns the union of the key IDs of this PSSH and the given PSSH.  Key IDs of
+     * this PSSH come first, followed by those of the other PSSH that are not
+     * already present
+     * 
+     * @param other the other PSSH (version 1+)
+     * @return the combined key IDs
+     */
+    protected KeyIdSet mergeKeyIDs(DRMInfoPSSH other) {
+        KeyIdSet merged = new KeyIdSet(keyIDs.size() + other.keyIDs.size());
+        merged.addAll(keyIDs);
+        merged.addAll(other.keyIDs);
+        return merged;
+    }
+    
+    /**
+     * Combines this PSSH with another PSSH of the same DRM system into a single
+     * PSSH that references the content keys of both.  Used by
+     * {@link CryptfileBuilder#consolidatePSSH()} to reduce the number of boxes in
+     * the init segment.  Neither PSSH is modified.  The default implementation
+     * does not merge.
+     * 
+     * @param other the other PSSH
+     * @return the combined PSSH, or null if the two can not be combined
+     */
+    public DRMInfoPSSH merge(DRMInfoPSSH other) {
+        return null;
+    }
+    
     /**
      * Construct a new DRMInfo element (PSSH version 0)
      * 
@@ -90,9 +150,21 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
      * 
      * @param systemID the unique identifier registered to a particular DRM system
      * @param psshVersion pssh version
-     * @param keyIDs an array of 16-byte key ID values
+     * @param keyIDs an array of 16-byte key ID values.  Duplicates are removed, otherwise
+     * the order is kept
      */
     protected DRMInfoPSSH(byte[] systemID, int psshVersion, byte[][] keyIDs) {
+        this(systemID, psshVersion, new KeyIdSet(keyIDs));
+    }
+    
+    /**
+     * Construct a new DRMInfo element (PSSH version 1+)
+     * 
+     * @param systemID the unique identifier registered to a particular DRM system
+     * @param psshVersion pssh version
+     * @param keyIDs the key IDs, in the order they should appear in the PSSH
+     */
+    protected DRMInfoPSSH(byte[] systemID, int psshVersion, KeyIdSet keyIDs) {
         this(systemID);
         
         if (psshVersion < 1) 
@@ -100,20 +172,8 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
         
         this.systemID = systemID;
         this.psshVersion = psshVersion;
-
-        // Remove any duplicate keyIDs
-        HashSet<String> hs = new HashSet<String>();
-        for (byte[] keyID : keyIDs) {
-            String guid = KeyPair.toGUID(keyID);
-            if (!hs.contains(guid)) {
-                hs.add(guid);
-            }
-        }
-        this.keyIDs = new byte[hs.size()][];
-        int i = 0;
-        for (String s : hs) {
-            this.keyIDs[i++] = KeyPair.parseGUID(s);
-        }
+        this.keyIDs = new KeyIdSet(keyIDs.size());
+        this.keyIDs.addAll(keyIDs);
     }
     
     /**
@@ -126,7 +186,7 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
      */
     public Element generateContentProtection(Document d) throws IOException {
         Element e = d.createElement(CONTENT_PROTECTION_ELEMENT);
-        e.setAttribute(ATTR_SCHEME_ID_URI, "urn:uuid:" + KeyPair.toGUID(systemID));
+        e.setAttribute(ATTR_SCHEME_ID_URI, "urn:uuid:" + KeyCodec.encodeGUID(systemID));
         return e;
     }
     
@@ -141,58 +201,99 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
     protected Element generateCENCContentProtectionData(Document d) throws IOException {
         
         Element psshElem = d.createElement(CENC_PSSH_ELEMENT);
+        psshElem.setTextContent(KeyCodec.encodeBase64(generatePSSHBox()));
+        return psshElem;
+    }
+    
+    /**
+     * Returns the exact size of the binary PSSH box, including the box header
+     * 
+     * @return the PSSH box size in bytes
+     * @throws UnsupportedOperationException if the child class does not provide PSSH data
+     */
+    public int getPSSHBoxSize() {
         
-        ByteArrayOutputStream psshBytes = new ByteArrayOutputStream();
-        DataOutputStream pssh = new DataOutputStream(psshBytes);
-        
-        // Size field placeholder
-        pssh.writeInt(0);
-        
-        // Box-type
-        pssh.write('p'); pssh.write('s'); pssh.write('s'); pssh.write('h');
+        // Size + box-type + version/flags + system ID + data size
+        int size = 4 + 4 + 4 + 16 + 4;
         
-        // Version (8 bits)
-        pssh.write(psshVersion & 0xFF);
+        // KID count + KIDs
+        if (psshVersion > 0)
+            size += 4 + (KeyId.SIZE * keyIDs.size());
         
-        // Flags (24 bits)
-        pssh.writeByte(0); pssh.writeByte(0); pssh.writeByte(0);
+        return size + getPSSHDataSize();
+    }
+    
+    /**
+     * Writes the complete binary PSSH box, including the box header, into the given buffer
+     * starting at its current position.  On return, the buffer position is just past the end
+     * of the box.  The byte order of the buffer is not changed.
+     * 
+     * @param bb the buffer
+     * @throws IOException
+     * @throws BufferOverflowException if there is not enough room in the buffer
+     * for the entire box
+     * @throws UnsupportedOperationException if the child class does not provide PSSH data
+     */
+    public void writePSSHBox(ByteBuffer bb) throws IOException {
         
-        // System ID
-        pssh.write(systemID);
+        int dataSize = getPSSHDataSize();
+        int size = getPSSHBoxSize();
+        if (bb.remaining() < size)
+            throw new BufferOverflowException();
         
-        // KID list?
-        if (psshVersion > 0) {
-            pssh.writeInt(keyIDs.length);
-            for (int i = 0; i < keyIDs.length; i++) {
-                pssh.write(keyIDs[i]);
+        ByteOrder order = bb.order();
+        bb.order(ByteOrder.BIG_ENDIAN);
+        try {
+            // Size
+            bb.putInt(size);
+            
+            // Box-type
+            bb.put((byte)'p').put((byte)'s').put((byte)'s').put((byte)'h');
+            
+            // Version (8 bits) and flags (24 bits)
+            bb.putInt((psshVersion & 0xFF) << 24);
+            
+            // System ID
+            bb.put(systemID);
+            
+            // KID list?
+            if (psshVersion > 0) {
+                bb.putInt(keyIDs.size());
+                keyIDs.writeTo(bb);
             }
+            
+            // Write data
+            bb.putInt(dataSize);
+            int start = bb.position();
+            generatePSSHData(new DataOutputStream(new ByteBufferOutputStream(bb)));
+            if (bb.position() - start != dataSize)
+                throw new IllegalStateException("PSSH data size mismatch: expected " + dataSize +
+                                                ", wrote " + (bb.position() - start));
+        }
+        finally {
+            bb.order(order);
         }
-        
-        // Write data
-        ByteArrayOutputStream psshDataBAOS = new ByteArrayOutputStream();
-        DataOutputStream psshData = new DataOutputStream(psshDataBAOS);
-        generatePSSHData(psshData);
-        byte[] psshDataBytes = psshDataBAOS.toByteArray();
-        pssh.writeInt(psshDataBytes.length);
-        pssh.write(psshDataBytes);
-        
-        // Write length field at the start of the data
-        byte[] psshByteArray = psshBytes.toByteArray();
-        int size = psshByteArray.length;
-        psshByteArray[0] = (byte)((size >> 24) & 0xFF);
-        psshByteArray[1] = (byte)((size >> 16) & 0xFF);
-        psshByteArray[2] = (byte)((size >>  8) & 0xFF);
-        psshByteArray[3] = (byte)((size      ) & 0xFF);
-        
-        psshElem.setTextContent(Base64.encodeBase64String(psshByteArray));
-        
-        return psshElem;
+    }
+    
+    /**
+     * Generates the complete binary PSSH box, including the box header.  Only
+     * supported by child classes that implement {@link #generatePSSHData(DataOutputStream)}
+     * 
+     * @return the PSSH box
+     * @throws IOException
+     * @throws UnsupportedOperationException if the child class does not provide PSSH data
+     */
+    public byte[] generatePSSHBox() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(getPSSHBoxSize());
+        writePSSHBox(bb);
+        return bb.array();
     }
     
     /**
      * Child classes who provide PSSH in base64 as their content protection
      * data should write their PSSH data here starting after
-     * the "DataSize" field
+     * the "DataSize" field.  The number of bytes written must match
+     * {@link #getPSSHDataSize()}
      * 
      * @param dos output stream for writing PSSH data
      * @throws IOException
@@ -201,6 +302,16 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
         throw new UnsupportedOperationException();
     }
     
+    /**
+     * Child classes who provide PSSH data must return the exact number of
+     * bytes written by {@link #generatePSSHData(DataOutputStream)}
+     * 
+     * @return the PSSH data size in bytes
+     */
+    protected int getPSSHDataSize() {
+        throw new UnsupportedOperationException();
+    }
+    
     /**
      * Generates the base DRMInfo element with a system ID child element
      * 
@@ -218,15 +329,43 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
        
        if (psshVersion >= 1) {
            b = new Bitstream();
-           b.setupInteger(keyIDs.length, 32);
+           b.setupInteger(keyIDs.size(), 32);
            e.appendChild(b.generateXML(d));
-           for (int i = 0; i < keyIDs.length; i++) {
+           for (KeyId keyID : keyIDs) {
                b = new Bitstream();
-               b.setupID128(keyIDs[i]);
+               b.setupID128(keyID.toBytes());
                e.appendChild(b.generateXML(d));
            }
        }
        
        return e;
     }
+    
+    /**
+     * Streaming counterpart to {@link #generateDRMInfo(Document)}.  Writes the start
+     * of the DRMInfo element and its system ID (and key ID) children.  The element
+     * is left open so that child classes can write their own data before calling
+     * <i>writeEndElement()</i>
+     * 
+     * @param w the stream writer
+     * @throws XMLStreamException
+     */
+    protected void writeDRMInfo(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartElement(DRM_INFO_ELEMENT);
+        w.writeAttribute(ATTR_TYPE, "pssh");
+        w.writeAttribute(ATTR_VERSION, "" + psshVersion);
+        
+        Bitstream b = new Bitstream();
+        b.setupID128(systemID);
+        b.writeXML(w);
+        
+        if (psshVersion >= 1) {
+            b.setupInteger(keyIDs.size(), 32);
+            b.writeXML(w);
+            for (KeyId keyID : keyIDs) {
+                b.setupID128(keyID.toBytes());
+                b.writeXML(w);
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives rolling keys and key IDs from a per-asset master secret with HKDF-SHA256
+ * (RFC 5869).  Nothing but the master secret and asset ID needs to be stored or
+ * exchanged -- any consumer holding them can recompute the key of any crypto period.
+ * <p>
+ * The pseudo-random key is extracted once, using the UTF-8 encoded asset ID as salt.
+ * The key ID and key of a period are then each expanded to 16 bytes with the info
+ * string:
+ * <pre>
+ *     label ("cenc-kid" or "cenc-key") || track ID (32-bit) || period (64-bit)
+ * </pre>
+ * with integers in big-endian byte order.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class HKDFKeyDeriver {
+    
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int HASH_SIZE = 32;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] KID_LABEL = "cenc-kid".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] KEY_LABEL = "cenc-key".getBytes(Charset.forName("US-ASCII"));
+    
+    private final SecretKeySpec prk;
+    
+    // HMAC keyed with the PRK for each thread
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            return newMac(prk);
+        }
+    };
+    
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Java Virtual Machine does not support " + HMAC_ALGORITHM, e);
+        }
+    }
+    
+    /**
+     * Lazily-derived list of the keys for a range of crypto periods
+     */
+    private static class DerivedKeyList extends AbstractList<CryptKey> implements RandomAccess {
+        
+        private HKDFKeyDeriver deriver;
+        private int trackID;
+        private long firstPeriod;
+        private int count;
+        
+        DerivedKeyList(HKDFKeyDeriver deriver, int trackID, long firstPeriod, int count) {
+            this.deriver = deriver;
+            this.trackID = trackID;
+            this.firstPeriod = firstPeriod;
+            this.count = count;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.AbstractList#get(int)
+         */
+        @Override
+        public CryptKey get(int index) {
+            if (index < 0 || index >= count)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+            return new CryptKey(deriver.derive(trackID, firstPeriod + index));
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.AbstractCollection#size()
+         */
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+    
+    /**
+     * Create a key deriver
+     * 
+     * @param masterSecret the per-asset master secret (at least 16 bytes)
+     * @param assetID identifies the asset.  Used as the HKDF salt
+     */
+    public HKDFKeyDeriver(byte[] masterSecret, String assetID) {
+        if (masterSecret.length < KeyPair.AES_128_KEYSIZE)
+            throw new IllegalArgumentException("Master secret must be at least " +
+                                               KeyPair.AES_128_KEYSIZE + " bytes");
+        
+        // HKDF-Extract: PRK = HMAC-Hash(salt, IKM)
+        byte[] salt = (assetID == null || assetID.length() == 0) ?
+                new byte[HASH_SIZE] : assetID.getBytes(UTF_8);
+        byte[] prkBytes = newMac(new SecretKeySpec(salt, HMAC_ALGORITHM)).doFinal(masterSecret);
+        prk = new SecretKeySpec(prkBytes, HMAC_ALGORITHM);
+        Arrays.fill(prkBytes, (byte)0);
+    }
+    
+    // HKDF-Expand for a single block: T(1) = HMAC-Hash(PRK, info || 0x01)
+    private byte[] expand(byte[] label, int trackID, long period) {
+        byte[] info = new byte[label.length + 4 + 8 + 1];
+        System.arraycopy(label, 0, info, 0, label.length);
+        int pos = label.length;
+        for (int i = 3; i >= 0; i--)
+            info[pos++] = (byte)(trackID >>> (i * 8));
+        KeyId.writeLong(period, info, pos);
+        info[info.length - 1] = 1;
+        
+        byte[] t = mac.get().doFinal(info);
+        byte[] out = Arrays.copyOf(t, KeyPair.AES_128_KEYSIZE);
+        Arrays.fill(t, (byte)0);
+        return out;
+    }
+    
+    /**
+     * Derive the key ID and key for a single crypto period
+     * 
+     * @param trackID the track
+     * @param period the crypto period
+     * @return the key pair
+     */
+    public KeyPair derive(int trackID, long period) {
+        return new KeyPair(expand(KID_LABEL, trackID, period), expand(KEY_LABEL, trackID, period));
+    }
+    
+    /**
+     * Returns the keys for a range of consecutive crypto periods.  No keys are derived
+     * up front -- each key is derived every time it is retrieved from the list
+     * 
+     * @param trackID the track
+     * @param firstPeriod the first crypto period
+     * @param count the number of crypto periods
+     * @return an unmodifiable list of the keys
+     */
+    public List<CryptKey> keys(int trackID, long firstPeriod, int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("Invalid crypto period count: " + count);
+        return new DerivedKeyList(this, trackID, firstPeriod, count);
+    }
+}
@@ -0,0 +1,427 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.util.Arrays;
+
+/**
+ * Table-driven hex, base64, base64url, and GUID conversions for key material.  Each
+ * conversion is available in two forms: one that reads from and writes into
+ * caller-provided arrays (and allocates nothing), and a convenience form that returns a
+ * new string or byte array.
+ * <p>
+ * Hex output is lower case.  Base64 output uses the standard alphabet with padding, and
+ * base64url output uses the URL-safe alphabet without padding (as used in JSON Web Keys).
+ * The base64 decoders accept either alphabet, with or without padding, and skip
+ * whitespace.  All decoders throw {@link IllegalArgumentException} on invalid input.
+ */
+public final class KeyCodec {
+    
+    /**
+     * Number of characters in a GUID string (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx)
+     */
+    public static final int GUID_LENGTH = 36;
+    
+    static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char[] BASE64_URL =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final char BASE64_PAD = '=';
+    
+    // Character to value lookup tables.  -1 marks an invalid character
+    private static final byte[] HEX_VALUES = new byte[128];
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte)-1);
+        for (int i = 0; i < 10; i++)
+            HEX_VALUES['0' + i] = (byte)i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte)(10 + i);
+            HEX_VALUES['A' + i] = (byte)(10 + i);
+        }
+        Arrays.fill(BASE64_VALUES, (byte)-1);
+        for (int i = 0; i < 64; i++) {
+            BASE64_VALUES[BASE64[i]] = (byte)i;
+            BASE64_VALUES[BASE64_URL[i]] = (byte)i;
+        }
+    }
+    
+    // Number of bytes in each dash-separated group of a GUID
+    private static final int[] GUID_GROUPS = { 4, 2, 2, 2, 6 };
+    
+    private KeyCodec() {
+    }
+    
+    /**
+     * Returns the value of a single hex digit
+     * 
+     * @param c the character
+     * @return the value (0-15) or -1 if the character is not a hex digit
+     */
+    static int hexValue(char c) {
+        return (c < 128) ? HEX_VALUES[c] : -1;
+    }
+    
+    // ------------------------------------------------------------------------
+    // Hex
+    // ------------------------------------------------------------------------
+    
+    /**
+     * Encode bytes as hex into a character array
+     * 
+     * @param src the source bytes
+     * @param srcOff offset of the first source byte
+     * @param len the number of bytes to encode
+     * @param dst the destination array, with room for <i>len * 2</i> characters
+     * @param dstOff offset of the first destination character
+     * @return the number of characters written
+     */
+    public static int encodeHex(byte[] src, int srcOff, int len, char[] dst, int dstOff) {
+        for (int i = 0; i < len; i++) {
+            int b = src[srcOff + i];
+            dst[dstOff++] = HEX_DIGITS[(b >> 4) & 0xF];
+            dst[dstOff++] = HEX_DIGITS[b & 0xF];
+        }
+        return len * 2;
+    }
+    
+    /**
+     * Encode bytes as a hex string
+     * 
+     * @param data the bytes
+     * @return the hex string
+     */
+    public static String encodeHex(byte[] data) {
+        char[] out = new char[data.length * 2];
+        encodeHex(data, 0, data.length, out, 0);
+        return new String(out);
+    }
+    
+    /**
+     * Encode bytes as a hex string with a leading "0x", as used in MP4Box cryptfiles
+     * 
+     * @param data the bytes
+     * @return the hex string
+     */
+    public static String encodeHex0x(byte[] data) {
+        char[] out = new char[2 + data.length * 2];
+        out[0] = '0';
+        out[1] = 'x';
+        encodeHex(data, 0, data.length, out, 2);
+        return new String(out);
+    }
+    
+    /**
+     * Decode hex characters into a byte array
+     * 
+     * @param src the hex characters
+     * @param srcOff offset of the first hex character
+     * @param len the number of hex characters.  Must be even
+     * @param dst the destination array, with room for <i>len / 2</i> bytes
+     * @param dstOff offset of the first destination byte
+     * @return the number of bytes written
+     */
+    public static int decodeHex(CharSequence src, int srcOff, int len, byte[] dst, int dstOff) {
+        if ((len & 1) != 0)
+            throw new IllegalArgumentException("Odd number of hex characters: " + len);
+        for (int i = 0; i < len; i += 2) {
+            int hi = hexValue(src.charAt(srcOff + i));
+            int lo = hexValue(src.charAt(srcOff + i + 1));
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Invalid hex character at index " + (srcOff + i) +
+                                                   ": " + src);
+            dst[dstOff++] = (byte)((hi << 4) | lo);
+        }
+        return len / 2;
+    }
+    
+    /**
+     * Decode a hex string
+     * 
+     * @param hex the hex string
+     * @return the bytes
+     */
+    public static byte[] decodeHex(CharSequence hex) {
+        byte[] data = new byte[hex.length() / 2];
+        decodeHex(hex, 0, hex.length(), data, 0);
+        return data;
+    }
+    
+    // ------------------------------------------------------------------------
+    // GUID
+    // ------------------------------------------------------------------------
+    
+    /**
+     * Encode 16 bytes as a GUID (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx)
+     * 
+     * @param src the source bytes
+     * @param srcOff offset of the first of the 16 source bytes
+     * @param dst the destination array, with room for {@link #GUID_LENGTH} characters
+     * @param dstOff offset of the first destination character
+     * @return the number of characters written
+     */
+    public static int encodeGUID(byte[] src, int srcOff, char[] dst, int dstOff) {
+        int start = dstOff;
+        for (int g = 0; g < GUID_GROUPS.length; g++) {
+            if (g > 0)
+                dst[dstOff++] = '-';
+            dstOff += encodeHex(src, srcOff, GUID_GROUPS[g], dst, dstOff);
+            srcOff += GUID_GROUPS[g];
+        }
+        return dstOff - start;
+    }
+    
+    /**
+     * Encode 16 bytes as a GUID string
+     * 
+     * @param data the 16 bytes
+     * @return the GUID string
+     */
+    public static String encodeGUID(byte[] data) {
+        if (data.length != KeyId.SIZE)
+            throw new IllegalArgumentException("Invalid data! -- must be 16-bytes to create GUID");
+        char[] out = new char[GUID_LENGTH];
+        encodeGUID(data, 0, out, 0);
+        return new String(out);
+    }
+    
+    /**
+     * Decode a GUID (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx) into 16 bytes
+     * 
+     * @param src the characters
+     * @param srcOff offset of the first GUID character
+     * @param dst the destination array, with room for 16 bytes
+     * @param dstOff offset of the first destination byte
+     * @return the number of bytes written (always 16)
+     */
+    public static int decodeGUID(CharSequence src, int srcOff, byte[] dst, int dstOff) {
+        if (src.length() - srcOff < GUID_LENGTH)
+            throw new IllegalArgumentException("Invalid GUID: " + src);
+        int start = dstOff;
+        for (int g = 0; g < GUID_GROUPS.length; g++) {
+            if (g > 0 && src.charAt(srcOff++) != '-')
+                throw new IllegalArgumentException("Invalid GUID: " + src);
+            int chars = GUID_GROUPS[g] * 2;
+            try {
+                dstOff += decodeHex(src, srcOff, chars, dst, dstOff);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid GUID: " + src);
+            }
+            srcOff += chars;
+        }
+        return dstOff - start;
+    }
+    
+    /**
+     * Decode a GUID string
+     * 
+     * @param guid the GUID string
+     * @return the 16 bytes
+     */
+    public static byte[] decodeGUID(CharSequence guid) {
+        if (guid.length() != GUID_LENGTH)
+            throw new IllegalArgumentException("Invalid GUID: " + guid);
+        byte[] data = new byte[KeyId.SIZE];
+        decodeGUID(guid, 0, data, 0);
+        return data;
+    }
+    
+    // ------------------------------------------------------------------------
+    // Base64
+    // ------------------------------------------------------------------------
+    
+    /**
+     * Returns the number of characters needed to base64-encode the given number of bytes
+     * 
+     * @param len the number of bytes
+     * @param pad true if the output is padded
+     * @return the number of characters
+     */
+    public static int base64Length(int len, boolean pad) {
+        if (pad)
+            return ((len + 2) / 3) * 4;
+        return (len / 3) * 4 + ((len % 3 == 0) ? 0 : (len % 3) + 1);
+    }
+    
+    private static int encodeBase64(byte[] src, int srcOff, int len, char[] dst, int dstOff,
+                                    char[] alphabet, boolean pad) {
+        int start = dstOff;
+        int end = srcOff + len;
+        while (end - srcOff >= 3) {
+            int bits = ((src[srcOff] & 0xFF) << 16) | ((src[srcOff + 1] & 0xFF) << 8) | (src[srcOff + 2] & 0xFF);
+            srcOff += 3;
+            dst[dstOff++] = alphabet[(bits >> 18) & 0x3F];
+            dst[dstOff++] = alphabet[(bits >> 12) & 0x3F];
+            dst[dstOff++] = alphabet[(bits >> 6) & 0x3F];
+            dst[dstOff++] = alphabet[bits & 0x3F];
+        }
+        int remaining = end - srcOff;
+        if (remaining > 0) {
+            int bits = (src[srcOff] & 0xFF) << 16;
+            if (remaining == 2)
+                bits |= (src[srcOff + 1] & 0xFF) << 8;
+            dst[dstOff++] = alphabet[(bits >> 18) & 0x3F];
+            dst[dstOff++] = alphabet[(bits >> 12) & 0x3F];
+            if (remaining == 2)
+                dst[dstOff++] = alphabet[(bits >> 6) & 0x3F];
+            else if (pad)
+                dst[dstOff++] = BASE64_PAD;
+            if (pad)
+                dst[dstOff++] = BASE64_PAD;
+        }
+        return dstOff - start;
+    }
+    
+    /**
+     * Encode bytes as padded base64 into a character array
+     * 
+     * @param src the source bytes
+     * @param srcOff offset of the first source byte
+     * @param len the number of bytes to encode
+     * @param dst the destination array, with room for {@link #base64Length(int, boolean)} characters
+     * @param dstOff offset of the first destination character
+     * @return the number of characters written
+     */
+    public static int encodeBase64(byte[] src, int srcOff, int len, char[] dst, int dstOff) {
+        return encodeBase64(src, srcOff, len, dst, dstOff, BASE64, true);
+    }
+    
+    /**
+     * Encode bytes as a padded base64 string
+     * 
+     * @param data the bytes
+     * @return the base64 string
+     */
+    public static String encodeBase64(byte[] data) {
+        char[] out = new char[base64Length(data.length, true)];
+        encodeBase64(data, 0, data.length, out, 0);
+        return new String(out);
+    }
+    
+    /**
+     * Encode bytes as unpadded base64url into a character array
+     * 
+     * @param src the source bytes
+     * @param srcOff offset of the first source byte
+     * @param len the number of bytes to encode
+     * @param dst the destination array, with room for {@link #base64Length(int, boolean)} characters
+     * @param dstOff offset of the first destination character
+     * @return the number of characters written
+     */
+    public static int encodeBase64URL(byte[] src, int srcOff, int len, char[] dst, int dstOff) {
+        return encodeBase64(src, srcOff, len, dst, dstOff, BASE64_URL, false);
+    }
+    
+    /**
+     * Encode bytes as an unpadded base64url string
+     * 
+     * @param data the bytes
+     * @return the base64url string
+     */
+    public static String encodeBase64URL(byte[] data) {
+        char[] out = new char[base64Length(data.length, false)];
+        encodeBase64URL(data, 0, data.length, out, 0);
+        return new String(out);
+    }
+    
+    /**
+     * Returns the maximum number of bytes that the given number of base64 characters
+     * can decode to
+     * 
+     * @param len the number of characters
+     * @return the maximum number of bytes
+     */
+    public static int maxDecodedBase64Length(int len) {
+        return (len / 4) * 3 + ((len % 4) * 3) / 4;
+    }
+    
+    /**
+     * Decode base64 or base64url characters into a byte array
+     * 
+     * @param src the base64 characters
+     * @param srcOff offset of the first base64 character
+     * @param len the number of characters
+     * @param dst the destination array, with room for {@link #maxDecodedBase64Length(int)} bytes
+     * @param dstOff offset of the first destination byte
+     * @return the number of bytes written
+     */
+    public static int decodeBase64(CharSequence src, int srcOff, int len, byte[] dst, int dstOff) {
+        int start = dstOff;
+        int bits = 0;
+        int count = 0;
+        boolean padding = false;
+        for (int i = srcOff; i < srcOff + len; i++) {
+            char c = src.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+                continue;
+            if (c == BASE64_PAD) {
+                padding = true;
+                continue;
+            }
+            int value = (c < 128 && !padding) ? BASE64_VALUES[c] : -1;
+            if (value < 0)
+                throw new IllegalArgumentException("Invalid base64 character at index " + i);
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                dst[dstOff++] = (byte)(bits >> 16);
+                dst[dstOff++] = (byte)(bits >> 8);
+                dst[dstOff++] = (byte)bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        switch (count) {
+            case 0:
+                break;
+            case 2:
+                dst[dstOff++] = (byte)(bits >> 4);
+                break;
+            case 3:
+                dst[dstOff++] = (byte)(bits >> 10);
+                dst[dstOff++] = (byte)(bits >> 2);
+                break;
+            default:
+                throw new IllegalArgumentException("Truncated base64 data");
+        }
+        return dstOff - start;
+    }
+    
+    /**
+     * Decode a base64 or base64url string
+     * 
+     * @param base64 the base64 string
+     * @return the bytes
+     */
+    public static byte[] decodeBase64(CharSequence base64) {
+        byte[] data = new byte[maxDecodedBase64Length(base64.length())];
+        int len = decodeBase64(base64, 0, base64.length(), data, 0);
+        return (len == data.length) ? data : Arrays.copyOf(data, len);
+    }
+}
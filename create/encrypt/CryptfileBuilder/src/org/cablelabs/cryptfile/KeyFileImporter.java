@@ -0,0 +1,532 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Imports key pairs from a key file.  The file is memory-mapped and split into
+ * chunks on line boundaries, and the chunks are parsed and validated in parallel.
+ * Keys are returned in file order along with every line that could not be
+ * imported, so one bad line does not hide the rest of the file.
+ * <p>
+ * Each line holds one key ID and an optional key, in any of these forms:
+ * <pre>
+ *     &lt;key_id&gt;:&lt;key&gt;
+ *     &lt;key_id&gt;,&lt;key&gt;                         (CSV, also ';' or tab separated)
+ *     { "kid": "&lt;key_id&gt;", "key": "&lt;key&gt;" }    (JSON lines, "keyId"/"key_id" and "k" also accepted)
+ * </pre>
+ * Key IDs may be GUIDs, 32 hex digits or base64; keys may be 32 hex digits or base64.
+ * Blank lines and lines starting with '#' are ignored, as is a CSV header line
+ * naming the key ID column.
+ *
+ * @param <T> the type of key pair created for each line
+ */
+public class KeyFileImporter<T extends KeyPair> {
+    
+    /**
+     * Creates key pairs from the key ID and key parsed from each line.  Called
+     * concurrently from the import threads.
+     *
+     * @param <T> the type of key pair
+     */
+    public interface Factory<T extends KeyPair> {
+        
+        /**
+         * Create a key pair
+         * 
+         * @param keyID the 16-byte key ID
+         * @param key the 16-byte key, or null if the line did not contain a key
+         * @return the key pair
+         * @throws IllegalArgumentException if the line's key pair is not valid
+         */
+        T create(byte[] keyID, byte[] key);
+    }
+    
+    /**
+     * Factory for plain key pairs.  A random key is generated for lines that
+     * only contain a key ID.
+     */
+    public static final Factory<KeyPair> KEY_PAIRS = new Factory<KeyPair>() {
+        @Override
+        public KeyPair create(byte[] keyID, byte[] key) {
+            if (key == null) {
+                key = KeyMaterialSource.getDefault().nextKey();
+            }
+            return new KeyPair(keyID, key);
+        }
+    };
+    
+    /**
+     * A key file line that could not be imported
+     */
+    public static class LineError {
+        
+        private final long line;
+        private final String text;
+        private final String message;
+        
+        LineError(long line, String text, String message) {
+            this.line = line;
+            this.text = text;
+            this.message = message;
+        }
+        
+        /**
+         * Returns the line number, starting at 1
+         * 
+         * @return the line number
+         */
+        public long getLine() {
+            return line;
+        }
+        
+        /**
+         * Returns the text of the line
+         * 
+         * @return the line text
+         */
+        public String getText() {
+            return text;
+        }
+        
+        /**
+         * Returns the reason the line could not be imported
+         * 
+         * @return the error message
+         */
+        public String getMessage() {
+            return message;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "line " + line + ": " + message + " -- " + text;
+        }
+    }
+    
+    /**
+     * The keys and errors of one import
+     *
+     * @param <T> the type of key pair
+     */
+    public static class Result<T> {
+        
+        private final List<T> keys;
+        private final List<LineError> errors;
+        private final long lines;
+        
+        Result(List<T> keys, List<LineError> errors, long lines) {
+            this.keys = Collections.unmodifiableList(keys);
+            this.errors = Collections.unmodifiableList(errors);
+            this.lines = lines;
+        }
+        
+        /**
+         * Returns the imported key pairs in the order they appear in the file
+         * 
+         * @return the key pairs
+         */
+        public List<T> getKeys() {
+            return keys;
+        }
+        
+        /**
+         * Returns the lines that could not be imported, in file order
+         * 
+         * @return the line errors
+         */
+        public List<LineError> getErrors() {
+            return errors;
+        }
+        
+        /**
+         * Returns true if any line could not be imported
+         * 
+         * @return true if there were errors
+         */
+        public boolean hasErrors() {
+            return !errors.isEmpty();
+        }
+        
+        /**
+         * Returns the number of lines read from the file
+         * 
+         * @return the line count
+         */
+        public long getLineCount() {
+            return lines;
+        }
+    }
+    
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int BOUNDARY_SCAN_SIZE = 4096;
+    private static final int ID_SIZE = 16;
+    
+    private static final String[] KEY_ID_NAMES = { "kid", "keyId", "key_id", "keyID" };
+    private static final String[] KEY_NAMES = { "key", "k" };
+    
+    private final Factory<T> factory;
+    private final int threads;
+    private final int chunkSize;
+    
+    /**
+     * Creates an importer that uses one thread per available processor
+     * 
+     * @param factory creates a key pair for each line
+     */
+    public KeyFileImporter(Factory<T> factory) {
+        this(factory, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+    
+    /**
+     * Creates an importer with the default chunk size.  An importer with a single
+     * thread parses the file in the calling thread and creates no thread pool, which
+     * is what callers that already run on a pool of their own should use
+     * 
+     * @param factory creates a key pair for each line
+     * @param threads the number of threads used to parse chunks
+     */
+    public KeyFileImporter(Factory<T> factory, int threads) {
+        this(factory, threads, DEFAULT_CHUNK_SIZE);
+    }
+    
+    /**
+     * Creates an importer
+     * 
+     * @param factory creates a key pair for each line
+     * @param threads the number of threads used to parse chunks
+     * @param chunkSize the approximate number of bytes in each chunk
+     */
+    public KeyFileImporter(Factory<T> factory, int threads, int chunkSize) {
+        if (threads < 1 || chunkSize < 1)
+            throw new IllegalArgumentException("Invalid thread count or chunk size");
+        this.factory = factory;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Import all key pairs from the given file
+     * 
+     * @param file the key file
+     * @return the imported key pairs and line errors
+     * @throws IOException if the file could not be read
+     */
+    public Result<T> importFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            List<long[]> bounds = findChunks(channel);
+            
+            List<Chunk<T>> chunks = new ArrayList<Chunk<T>>(bounds.size());
+            if (threads == 1 || bounds.size() <= 1) {
+                for (long[] b : bounds) {
+                    chunks.add(new Chunk<T>(channel, b[0], b[1], b[0] == 0, factory).call());
+                }
+            }
+            else {
+                List<Future<Chunk<T>>> futures = new ArrayList<Future<Chunk<T>>>(bounds.size());
+                ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, bounds.size()));
+                try {
+                    for (long[] b : bounds) {
+                        futures.add(executor.submit(new Chunk<T>(channel, b[0], b[1], b[0] == 0, factory)));
+                    }
+                    for (Future<Chunk<T>> f : futures) {
+                        chunks.add(get(f));
+                    }
+                }
+                finally {
+                    executor.shutdownNow();
+                }
+            }
+            
+            // Gather results in file order, numbering lines from the start of the file
+            List<T> keys = new ArrayList<T>();
+            List<LineError> errors = new ArrayList<LineError>();
+            long lines = 0;
+            for (Chunk<T> chunk : chunks) {
+                keys.addAll(chunk.keys);
+                for (LineError e : chunk.errors) {
+                    errors.add(new LineError(lines + e.line, e.text, e.message));
+                }
+                lines += chunk.lines;
+            }
+            return new Result<T>(keys, errors, lines);
+        }
+        finally {
+            raf.close();
+        }
+    }
+    
+    private static <T extends KeyPair> Chunk<T> get(Future<Chunk<T>> f) throws IOException {
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing key file");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+    
+    // Split the file into chunks of roughly chunkSize bytes that each end just
+    // after a newline (or at the end of the file)
+    private List<long[]> findChunks(FileChannel channel) throws IOException {
+        List<long[]> bounds = new ArrayList<long[]>();
+        long size = channel.size();
+        ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            while (end < size) {
+                scan.clear();
+                int n = channel.read(scan, end);
+                if (n <= 0) {
+                    end = size;
+                    break;
+                }
+                int i = 0;
+                while (i < n && scan.get(i) != '\n')
+                    i++;
+                end += (i < n) ? i + 1 : n;
+                if (i < n)
+                    break;
+            }
+            bounds.add(new long[] { start, end });
+            start = end;
+        }
+        return bounds;
+    }
+    
+    /**
+     * Parses the lines of one chunk of the key file
+     */
+    private static class Chunk<T extends KeyPair> implements Callable<Chunk<T>> {
+        
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final boolean first;
+        private final Factory<T> factory;
+        
+        List<T> keys = new ArrayList<T>();
+        List<LineError> errors = new ArrayList<LineError>();
+        long lines;
+        
+        private JsonParser jsonParser;
+        
+        Chunk(FileChannel channel, long start, long end, boolean first, Factory<T> factory) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.first = first;
+            this.factory = factory;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.Callable#call()
+         */
+        @Override
+        public Chunk<T> call() throws IOException {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            StringBuilder line = new StringBuilder(128);
+            boolean header = first;
+            
+            // Skip a UTF-8 byte order mark
+            if (first && buf.remaining() >= 3 &&
+                    buf.get(0) == (byte)0xEF && buf.get(1) == (byte)0xBB && buf.get(2) == (byte)0xBF)
+                buf.position(3);
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b != '\n') {
+                    line.append((char)(b & 0xFF));
+                    if (buf.hasRemaining())
+                        continue;
+                }
+                lines++;
+                String text = line.toString().trim();
+                line.setLength(0);
+                if (text.isEmpty() || text.charAt(0) == '#')
+                    continue;
+                if (header && isHeader(text)) {
+                    header = false;
+                    continue;
+                }
+                header = false;
+                try {
+                    keys.add(parseLine(text));
+                }
+                catch (IllegalArgumentException e) {
+                    errors.add(new LineError(lines, text, e.getMessage()));
+                }
+                catch (JsonParseException e) {
+                    errors.add(new LineError(lines, text, "Invalid JSON: " + e.getMessage()));
+                }
+            }
+            return this;
+        }
+        
+        private T parseLine(String text) {
+            String keyID;
+            String key;
+            if (text.charAt(0) == '{') {
+                if (jsonParser == null)
+                    jsonParser = new JsonParser();
+                JsonElement element = jsonParser.parse(text);
+                if (!element.isJsonObject())
+                    throw new IllegalArgumentException("Expected a JSON object");
+                JsonObject obj = element.getAsJsonObject();
+                keyID = jsonString(obj, KEY_ID_NAMES);
+                key = jsonString(obj, KEY_NAMES);
+                if (keyID == null)
+                    throw new IllegalArgumentException("Missing key ID");
+            }
+            else {
+                String[] fields = splitFields(text);
+                if (fields.length > 2)
+                    throw new IllegalArgumentException("Expected <key_id>[:<key>]");
+                keyID = fields[0];
+                key = (fields.length == 2 && !fields[1].isEmpty()) ? fields[1] : null;
+            }
+            return factory.create(parseKeyID(keyID), (key != null) ? parseKey(key) : null);
+        }
+        
+        private static String jsonString(JsonObject obj, String[] names) {
+            for (String name : names) {
+                JsonElement value = obj.get(name);
+                if (value != null && !value.isJsonNull()) {
+                    if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isString())
+                        throw new IllegalArgumentException("Expected a string value for \"" + name + "\"");
+                    return value.getAsString();
+                }
+            }
+            return null;
+        }
+        
+        private static boolean isHeader(String text) {
+            String name = splitFields(text)[0];
+            for (String n : KEY_ID_NAMES) {
+                if (n.equalsIgnoreCase(name))
+                    return true;
+            }
+            return false;
+        }
+    }
+    
+    private static String[] splitFields(String text) {
+        List<String> fields = new ArrayList<String>(2);
+        int from = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i == text.length() || isSeparator(text.charAt(i))) {
+                fields.add(unquote(text.substring(from, i).trim()));
+                from = i + 1;
+            }
+        }
+        return fields.toArray(new String[fields.size()]);
+    }
+    
+    private static boolean isSeparator(char c) {
+        return c == ':' || c == ',' || c == ';' || c == '\t';
+    }
+    
+    private static String unquote(String field) {
+        if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"')
+            return field.substring(1, field.length() - 1).trim();
+        return field;
+    }
+    
+    /**
+     * Parse a key ID given as a GUID, 32 hex digits or base64
+     * 
+     * @param keyID the key ID string
+     * @return the 16-byte key ID
+     * @throws IllegalArgumentException if the key ID is not valid
+     */
+    public static byte[] parseKeyID(String keyID) {
+        if (keyID.length() == KeyCodec.GUID_LENGTH)
+            return KeyCodec.decodeGUID(keyID);
+        return parseValue("key ID", keyID);
+    }
+    
+    /**
+     * Parse a key given as 32 hex digits or base64
+     * 
+     * @param key the key string
+     * @return the 16-byte key
+     * @throws IllegalArgumentException if the key is not valid
+     */
+    public static byte[] parseKey(String key) {
+        return parseValue("key", key);
+    }
+    
+    private static byte[] parseValue(String what, String value) {
+        if (value.startsWith("0x") || value.startsWith("0X"))
+            value = value.substring(2);
+        byte[] data;
+        try {
+            data = (value.length() == ID_SIZE * 2) ? KeyCodec.decodeHex(value) : KeyCodec.decodeBase64(value);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid " + what + " (" + e.getMessage() + ")");
+        }
+        if (data.length != ID_SIZE)
+            throw new IllegalArgumentException("Invalid " + what + " size: " + data.length);
+        return data;
+    }
+}
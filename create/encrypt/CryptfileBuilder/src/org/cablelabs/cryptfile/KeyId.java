@@ -0,0 +1,243 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An immutable 16-byte encryption key ID.  The value is held in two longs (most
+ * significant 8 bytes first) so that key IDs can be compared, hashed, and stored
+ * without any byte array or string allocations.
+ */
+public final class KeyId implements Comparable<KeyId> {
+    
+    /**
+     * Size of a key ID in bytes
+     */
+    public static final int SIZE = 16;
+    
+    private final long msb;
+    private final long lsb;
+    
+    /**
+     * Create a key ID from its two 8-byte halves
+     * 
+     * @param msb the most significant 8 bytes
+     * @param lsb the least significant 8 bytes
+     */
+    public KeyId(long msb, long lsb) {
+        this.msb = msb;
+        this.lsb = lsb;
+    }
+    
+    // Read 8 bytes big-endian
+    static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        return value;
+    }
+    
+    // Write 8 bytes big-endian
+    static void writeLong(long value, byte[] data, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            data[offset + i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+    
+    /**
+     * Create a key ID from a 16-byte array
+     * 
+     * @param data the key ID bytes
+     * @return the key ID
+     */
+    public static KeyId fromBytes(byte[] data) {
+        if (data.length != SIZE)
+            throw new IllegalArgumentException("Invalid key ID size: " + data.length);
+        return new KeyId(readLong(data, 0), readLong(data, 8));
+    }
+    
+    /**
+     * Parse a key ID in GUID form (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx)
+     * 
+     * @param guid the GUID
+     * @return the key ID
+     */
+    public static KeyId parseGUID(String guid) {
+        if (guid.length() != 36 || guid.charAt(8) != '-' || guid.charAt(13) != '-' ||
+                guid.charAt(18) != '-' || guid.charAt(23) != '-')
+            throw new IllegalArgumentException("Invalid GUID: " + guid);
+        long msb = 0;
+        long lsb = 0;
+        int digits = 0;
+        for (int i = 0; i < 36; i++) {
+            if (i == 8 || i == 13 || i == 18 || i == 23)
+                continue;
+            int nibble = KeyCodec.hexValue(guid.charAt(i));
+            if (nibble < 0)
+                throw new IllegalArgumentException("Invalid GUID: " + guid);
+            if (digits++ < 16)
+                msb = (msb << 4) | nibble;
+            else
+                lsb = (lsb << 4) | nibble;
+        }
+        return new KeyId(msb, lsb);
+    }
+    
+    /**
+     * Returns the most significant 8 bytes of the key ID
+     * 
+     * @return the most significant bytes
+     */
+    public long getMostSignificantBits() {
+        return msb;
+    }
+    
+    /**
+     * Returns the least significant 8 bytes of the key ID
+     * 
+     * @return the least significant bytes
+     */
+    public long getLeastSignificantBits() {
+        return lsb;
+    }
+    
+    /**
+     * Returns the key ID as a new 16-byte array
+     * 
+     * @return the key ID bytes
+     */
+    public byte[] toBytes() {
+        byte[] data = new byte[SIZE];
+        writeLong(msb, data, 0);
+        writeLong(lsb, data, 8);
+        return data;
+    }
+    
+    /**
+     * Write the 16-byte key ID to the given buffer at its current position
+     * 
+     * @param bb the buffer
+     */
+    public void writeTo(ByteBuffer bb) {
+        if (bb.order() == ByteOrder.BIG_ENDIAN) {
+            bb.putLong(msb).putLong(lsb);
+        }
+        else {
+            bb.putLong(Long.reverseBytes(msb)).putLong(Long.reverseBytes(lsb));
+        }
+    }
+    
+    private static void appendHex(char[] out, int offset, long value, int byteCount) {
+        for (int i = byteCount * 2 - 1; i >= 0; i--) {
+            out[offset + i] = KeyCodec.HEX_DIGITS[(int)(value & 0xF)];
+            value >>>= 4;
+        }
+    }
+    
+    /**
+     * Returns the key ID in GUID form (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx)
+     * 
+     * @return the GUID string
+     */
+    public String toGUID() {
+        char[] guid = new char[36];
+        appendHex(guid, 0, msb >>> 32, 4);
+        guid[8] = '-';
+        appendHex(guid, 9, msb >>> 16, 2);
+        guid[13] = '-';
+        appendHex(guid, 14, msb, 2);
+        guid[18] = '-';
+        appendHex(guid, 19, lsb >>> 48, 2);
+        guid[23] = '-';
+        appendHex(guid, 24, lsb, 6);
+        return new String(guid);
+    }
+    
+    // Spread the bits of both halves so that sequential key IDs hash well
+    static int hash(long msb, long lsb) {
+        long h = (msb * 0x9E3779B97F4A7C15L) ^ lsb;
+        h = (h ^ (h >>> 32)) * 0xC2B2AE3D27D4EB4FL;
+        return (int)(h ^ (h >>> 29));
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return hash(msb, lsb);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof KeyId))
+            return false;
+        KeyId other = (KeyId)obj;
+        return msb == other.msb && lsb == other.lsb;
+    }
+    
+    // Unsigned comparison of two longs
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return (a < b) ? -1 : (a > b) ? 1 : 0;
+    }
+    
+    /**
+     * Key IDs are ordered by their byte values, as if compared byte-by-byte
+     * 
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(KeyId other) {
+        return compare(msb, lsb, other.msb, other.lsb);
+    }
+    
+    // Byte order comparison of two key IDs given as their halves
+    static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        int cmp = compareUnsigned(msb1, msb2);
+        return (cmp != 0) ? cmp : compareUnsigned(lsb1, lsb2);
+    }
+    
+    /**
+     * Returns the key ID in GUID form
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return toGUID();
+    }
+}
@@ -0,0 +1,263 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of key IDs that remembers the order in which key IDs were first added.  Key IDs
+ * are stored as pairs of longs in an open-addressing hash table, so adding a key ID from
+ * its byte form allocates nothing.  Iteration (and {@link #toByteArrays()}) always returns
+ * key IDs in insertion order, which keeps generated PSSH stable from run to run.
+ * <p>
+ * Key IDs can not be removed from the set.  Not thread-safe.
+ */
+public class KeyIdSet implements Iterable<KeyId> {
+    
+    private static final int DEFAULT_CAPACITY = 16;
+    
+    // Key ID halves in insertion order
+    private long[] msbs;
+    private long[] lsbs;
+    private int size = 0;
+    
+    // Hash table of (index + 1) into the arrays above.  0 marks an empty slot.  The
+    // table is kept at most half full
+    private int[] table;
+    
+    /**
+     * Create an empty set
+     */
+    public KeyIdSet() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Create an empty set sized for the given number of key IDs
+     * 
+     * @param expectedSize the number of key IDs expected
+     */
+    public KeyIdSet(int expectedSize) {
+        int capacity = Math.max(expectedSize, 1);
+        msbs = new long[capacity];
+        lsbs = new long[capacity];
+        table = new int[tableSize(capacity)];
+    }
+    
+    /**
+     * Create a set holding the given key IDs, duplicates removed
+     * 
+     * @param keyIDs 16-byte key IDs
+     */
+    public KeyIdSet(byte[][] keyIDs) {
+        this(keyIDs.length);
+        for (byte[] keyID : keyIDs) {
+            add(keyID);
+        }
+    }
+    
+    // Smallest power of two that is at least twice the given count
+    private static int tableSize(int count) {
+        int size = 2;
+        while (size < count * 2)
+            size <<= 1;
+        return size;
+    }
+    
+    // Returns the table slot holding the given key ID, or the empty slot where it
+    // should be inserted
+    private int slot(long msb, long lsb) {
+        int mask = table.length - 1;
+        int i = KeyId.hash(msb, lsb) & mask;
+        while (true) {
+            int entry = table[i];
+            if (entry == 0)
+                return i;
+            if (msbs[entry - 1] == msb && lsbs[entry - 1] == lsb)
+                return i;
+            i = (i + 1) & mask;
+        }
+    }
+    
+    private void grow() {
+        int capacity = msbs.length * 2;
+        long[] newMsbs = new long[capacity];
+        long[] newLsbs = new long[capacity];
+        System.arraycopy(msbs, 0, newMsbs, 0, size);
+        System.arraycopy(lsbs, 0, newLsbs, 0, size);
+        msbs = newMsbs;
+        lsbs = newLsbs;
+        
+        table = new int[tableSize(capacity)];
+        for (int i = 0; i < size; i++) {
+            table[slot(msbs[i], lsbs[i])] = i + 1;
+        }
+    }
+    
+    /**
+     * Add a key ID given by its two 8-byte halves
+     * 
+     * @param msb the most significant 8 bytes
+     * @param lsb the least significant 8 bytes
+     * @return true if the key ID was added, false if it was already present
+     */
+    public boolean add(long msb, long lsb) {
+        int i = slot(msb, lsb);
+        if (table[i] != 0)
+            return false;
+        if (size == msbs.length) {
+            grow();
+            i = slot(msb, lsb);
+        }
+        msbs[size] = msb;
+        lsbs[size] = lsb;
+        table[i] = ++size;
+        return true;
+    }
+    
+    /**
+     * Add a key ID
+     * 
+     * @param keyID the key ID
+     * @return true if the key ID was added, false if it was already present
+     */
+    public boolean add(KeyId keyID) {
+        return add(keyID.getMostSignificantBits(), keyID.getLeastSignificantBits());
+    }
+    
+    /**
+     * Add a key ID in byte form
+     * 
+     * @param keyID the 16-byte key ID
+     * @return true if the key ID was added, false if it was already present
+     */
+    public boolean add(byte[] keyID) {
+        if (keyID.length != KeyId.SIZE)
+            throw new IllegalArgumentException("Invalid key ID size: " + keyID.length);
+        return add(KeyId.readLong(keyID, 0), KeyId.readLong(keyID, 8));
+    }
+    
+    /**
+     * Add all key IDs of another set, in that set's order
+     * 
+     * @param other the other set
+     */
+    public void addAll(KeyIdSet other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.msbs[i], other.lsbs[i]);
+        }
+    }
+    
+    /**
+     * Returns whether or not the set contains the given key ID
+     * 
+     * @param keyID the key ID
+     * @return true if the key ID is in the set
+     */
+    public boolean contains(KeyId keyID) {
+        return table[slot(keyID.getMostSignificantBits(), keyID.getLeastSignificantBits())] != 0;
+    }
+    
+    /**
+     * Returns the number of key IDs in the set
+     * 
+     * @return the size of the set
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the key ID that was added at the given position
+     * 
+     * @param index the insertion position
+     * @return the key ID
+     */
+    public KeyId get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return new KeyId(msbs[index], lsbs[index]);
+    }
+    
+    /**
+     * Returns the key IDs as 16-byte arrays in insertion order
+     * 
+     * @return the key IDs
+     */
+    public byte[][] toByteArrays() {
+        byte[][] keyIDs = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            keyIDs[i] = new byte[KeyId.SIZE];
+            KeyId.writeLong(msbs[i], keyIDs[i], 0);
+            KeyId.writeLong(lsbs[i], keyIDs[i], 8);
+        }
+        return keyIDs;
+    }
+    
+    /**
+     * Write all key IDs, 16 bytes each and in insertion order, to the given buffer at its
+     * current position.  The buffer must be big-endian
+     * 
+     * @param bb the buffer
+     */
+    void writeTo(ByteBuffer bb) {
+        for (int i = 0; i < size; i++) {
+            bb.putLong(msbs[i]).putLong(lsbs[i]);
+        }
+    }
+    
+    /**
+     * Returns the key IDs in insertion order
+     * 
+     * @see java.lang.Iterable#iterator()
+     */
+    @Override
+    public Iterator<KeyId> iterator() {
+        return new Iterator<KeyId>() {
+            private int next = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+            
+            @Override
+            public KeyId next() {
+                if (next >= size)
+                    throw new NoSuchElementException();
+                return get(next++);
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
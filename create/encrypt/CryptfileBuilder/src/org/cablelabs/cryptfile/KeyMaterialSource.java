@@ -0,0 +1,269 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Source of random key material (keys, key IDs, and initialization vectors).
+ * <p>
+ * Each thread draws from its own {@link SecureRandom} instance (a DRBG, where the
+ * platform provides one), so callers never contend on a shared generator.  In addition,
+ * a background thread keeps a bounded pool of pre-generated blocks full.  Callers take
+ * whole blocks from the pool when one is available and fall back to their own generator
+ * otherwise, so the pool smooths out bursts (such as key rotation jobs minting millions of
+ * values) but is never waited on.  Bytes are cleared from a block as they are handed out.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class KeyMaterialSource {
+    
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int DEFAULT_POOL_BLOCKS = 64;
+    
+    private static KeyMaterialSource defaultSource;
+    
+    private final int blockSize;
+    private final BlockingQueue<byte[]> pool;
+    private final Thread refiller;
+    private volatile boolean closed = false;
+    
+    // Per-thread generator and the block the thread is currently consuming
+    private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return newSecureRandom();
+        }
+    };
+    private final ThreadLocal<Block> current = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            return new Block();
+        }
+    };
+    
+    private static class Block {
+        byte[] data;
+        int pos;
+    }
+    
+    /**
+     * Returns the shared key material source used throughout the toolkit
+     * 
+     * @return the default source
+     */
+    public static synchronized KeyMaterialSource getDefault() {
+        if (defaultSource == null)
+            defaultSource = new KeyMaterialSource(DEFAULT_BLOCK_SIZE, DEFAULT_POOL_BLOCKS);
+        return defaultSource;
+    }
+    
+    // Prefer a DRBG (Java 9+), otherwise the platform default
+    private static SecureRandom newSecureRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        }
+        catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+    
+    /**
+     * Create a new key material source
+     * 
+     * @param blockSize the size of each pre-generated block in bytes
+     * @param poolBlocks the maximum number of pre-generated blocks.  If 0, no background
+     * thread is started and all material is generated on the calling thread
+     */
+    public KeyMaterialSource(int blockSize, int poolBlocks) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        if (poolBlocks < 0)
+            throw new IllegalArgumentException("Invalid pool size: " + poolBlocks);
+        
+        this.blockSize = blockSize;
+        if (poolBlocks == 0) {
+            pool = null;
+            refiller = null;
+            return;
+        }
+        
+        pool = new ArrayBlockingQueue<byte[]>(poolBlocks);
+        refiller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SecureRandom sr = newSecureRandom();
+                try {
+                    while (!closed) {
+                        byte[] block = new byte[KeyMaterialSource.this.blockSize];
+                        sr.nextBytes(block);
+                        pool.put(block);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Closed
+                }
+            }
+        }, "KeyMaterialSource-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+    
+    /**
+     * Stop the background refill thread and clear all pre-generated material.  Material
+     * is still available afterwards, but it is always generated on the calling thread
+     */
+    public void close() {
+        closed = true;
+        if (refiller != null) {
+            refiller.interrupt();
+            byte[] block;
+            while ((block = pool.poll()) != null) {
+                Arrays.fill(block, (byte)0);
+            }
+        }
+    }
+    
+    /**
+     * Fill the given range of an array with random bytes
+     * 
+     * @param dst the destination array
+     * @param off offset of the first byte to fill
+     * @param len the number of bytes to fill
+     */
+    public void nextBytes(byte[] dst, int off, int len) {
+        Block b = current.get();
+        while (len > 0) {
+            if (b.data == null || b.pos == b.data.length) {
+                b.data = (pool == null || closed) ? null : pool.poll();
+                b.pos = 0;
+                if (b.data == null) {
+                    
+                    // Pool is empty -- generate the remainder ourselves
+                    byte[] tmp = new byte[len];
+                    random.get().nextBytes(tmp);
+                    System.arraycopy(tmp, 0, dst, off, len);
+                    Arrays.fill(tmp, (byte)0);
+                    return;
+                }
+            }
+            int n = Math.min(len, b.data.length - b.pos);
+            System.arraycopy(b.data, b.pos, dst, off, n);
+            Arrays.fill(b.data, b.pos, b.pos + n, (byte)0);
+            b.pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+    
+    /**
+     * Fill an array with random bytes
+     * 
+     * @param dst the destination array
+     */
+    public void nextBytes(byte[] dst) {
+        nextBytes(dst, 0, dst.length);
+    }
+    
+    /**
+     * Returns a new random AES-128 key (or key ID)
+     * 
+     * @return 16 random bytes
+     */
+    public byte[] nextKey() {
+        byte[] key = new byte[KeyPair.AES_128_KEYSIZE];
+        nextBytes(key);
+        return key;
+    }
+    
+    /**
+     * Returns a new key pair with a random key ID and key
+     * 
+     * @return the key pair
+     */
+    public KeyPair nextKeyPair() {
+        byte[] keyID = new byte[KeyPair.GUID_SIZE];
+        byte[] key = new byte[KeyPair.AES_128_KEYSIZE];
+        nextBytes(keyID);
+        nextBytes(key);
+        return new KeyPair(keyID, key);
+    }
+    
+    /**
+     * Fill an array with new key pairs, each with a random key ID and key.  The
+     * material for all key pairs is drawn in a single request
+     * 
+     * @param pairs the array to fill
+     */
+    public void fill(KeyPair[] pairs) {
+        int pairSize = KeyPair.GUID_SIZE + KeyPair.AES_128_KEYSIZE;
+        byte[] material = new byte[pairs.length * pairSize];
+        nextBytes(material);
+        for (int i = 0; i < pairs.length; i++) {
+            int off = i * pairSize;
+            pairs[i] = new KeyPair(Arrays.copyOfRange(material, off, off + KeyPair.GUID_SIZE),
+                                   Arrays.copyOfRange(material, off + KeyPair.GUID_SIZE, off + pairSize));
+        }
+        Arrays.fill(material, (byte)0);
+    }
+    
+    /**
+     * Returns a new random initialization vector
+     * 
+     * @param ivSize the IV size in bytes
+     * @return the IV
+     */
+    public byte[] nextIV(int ivSize) {
+        byte[] iv = new byte[ivSize];
+        nextBytes(iv);
+        return iv;
+    }
+    
+    /**
+     * Returns several new random initialization vectors.  The material for all IVs
+     * is drawn in a single request
+     * 
+     * @param count the number of IVs
+     * @param ivSize the IV size in bytes
+     * @return the IVs
+     */
+    public byte[][] nextIVs(int count, int ivSize) {
+        byte[] material = new byte[count * ivSize];
+        nextBytes(material);
+        byte[][] ivs = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ivs[i] = Arrays.copyOfRange(material, i * ivSize, (i + 1) * ivSize);
+        }
+        Arrays.fill(material, (byte)0);
+        return ivs;
+    }
+}
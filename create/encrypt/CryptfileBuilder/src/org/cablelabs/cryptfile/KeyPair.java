@@ -26,13 +26,7 @@
 
 package org.cablelabs.cryptfile;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Arrays;
-import java.util.Random;
-
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
 
 /**
  * This class represents a 16-byte encryption key ID and a 16-byte AES-128 encryption
@@ -44,6 +38,9 @@ public class KeyPair {
     protected byte[] keyID;
     protected byte[] key;
     
+    // Key pair whose key ID and key are shared rather than copied
+    private KeyPair shared;
+    
     protected static final int AES_128_KEYSIZE = 16;
     protected static final int GUID_SIZE       = 16;
     
@@ -54,28 +51,7 @@ public class KeyPair {
      * @return the 16-byte equivalant of the given GUID
      */
     public static byte[] parseGUID(String guid) {
-        String[] parts = guid.split("-");
-        if (parts.length != 5 || parts[0].length() != 8 || parts[1].length() != 4 ||
-                parts[2].length() != 4 || parts[3].length() != 4 || parts[4].length() != 12)
-            throw new IllegalArgumentException("Invalid GUID: " + guid);
-        
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(GUID_SIZE);
-        byte[] val;
-        
-        try {
-            for (int i = 0; i < 5; i++) {
-                val = Hex.decodeHex(parts[i].toCharArray());
-                baos.write(val);
-            }
-        }
-        catch (DecoderException e) {
-            throw new IllegalArgumentException("Invalid GUID: " + guid);
-        }
-        catch (IOException e) {
-            throw new IllegalArgumentException("Problem writing to ByteArrayOutputStream");
-        }
-        
-        return baos.toByteArray();
+        return KeyCodec.decodeGUID(guid);
     }
     
     /**
@@ -85,34 +61,14 @@ public class KeyPair {
      * @return the GUID string
      */
     public static String toGUID(byte[] data) {
-        if (data.length != GUID_SIZE)
-            throw new IllegalArgumentException("Invalid data! -- must be 16-bytes to create GUID");
-        
-        String retVal = "";
-        int byteIndex = 0;
-        for (int i = 0; i < 4; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 2; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 2; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 2; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        retVal += "-";
-        for (int i = 0; i < 6; i++, byteIndex++)
-            retVal += String.format("%02x", data[byteIndex]);
-        
-        return retVal;
+        return KeyCodec.encodeGUID(data);
     }
     
     private static byte[] parseHexKey(String hexKey) {
         try {
-            return Hex.decodeHex(hexKey.toCharArray());
+            return KeyCodec.decodeHex(hexKey);
         }
-        catch (DecoderException e) {
+        catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("Invalid hex key value: " + e.getMessage());
         }
     }
@@ -137,14 +93,10 @@ public class KeyPair {
      * Creates a new key pair from a randomly generated key ID and key
      * 
      * @return a random key pair
+     * @see KeyMaterialSource#nextKeyPair()
      */
     public static KeyPair random() {
-        Random r = new Random();
-        byte[] key = new byte[16];
-        r.nextBytes(key);
-        byte[] keyID = new byte[16];
-        r.nextBytes(keyID);
-        return new KeyPair(keyID, key);
+        return KeyMaterialSource.getDefault().nextKeyPair();
     }
     
     /**
@@ -183,14 +135,44 @@ public class KeyPair {
         this.keyID = keyID;
     }
     
+    /**
+     * Creates a key pair from the given key id and key values
+     * 
+     * @param keyID the key ID
+     * @param key the 16-byte key value
+     */
+    public KeyPair(KeyId keyID, byte[] key) {
+        this(key);
+        this.keyID = keyID.toBytes();
+    }
+    
     /**
      * Copy constructor.  
      * 
      * @param copy the key to copy
      */
     public KeyPair(KeyPair copy) {
-        this.key = Arrays.copyOf(copy.key, copy.key.length);
-        this.keyID = Arrays.copyOf(copy.keyID, copy.keyID.length);
+        this(copy, true);
+    }
+    
+    /**
+     * Protected constructor for key pairs built on top of another key pair
+     * 
+     * @param source the source key pair
+     * @param copy true to copy the key ID and key of the source, false to share them.
+     * Shared key pairs always return the values of the source, so key pairs held
+     * off-heap (see {@link KeyVault}) are not copied onto the heap
+     */
+    protected KeyPair(KeyPair source, boolean copy) {
+        if (copy) {
+            byte[] sourceKey = source.getKey();
+            byte[] sourceKeyID = source.getID();
+            this.key = Arrays.copyOf(sourceKey, sourceKey.length);
+            this.keyID = Arrays.copyOf(sourceKeyID, sourceKeyID.length);
+        }
+        else {
+            this.shared = source;
+        }
     }
     
     /**
@@ -199,7 +181,16 @@ public class KeyPair {
      * @return the key ID
      */
     public byte[] getID() {
-        return keyID;
+        return (shared != null) ? shared.getID() : keyID;
+    }
+    
+    /**
+     * Returns the key ID as a value type suitable for hashing and comparison
+     * 
+     * @return the key ID
+     */
+    public KeyId getKeyId() {
+        return (shared != null) ? shared.getKeyId() : KeyId.fromBytes(keyID);
     }
     
     /**
@@ -208,6 +199,6 @@ public class KeyPair {
      * @return the key
      */
     public byte[] getKey() {
-        return key;
+        return (shared != null) ? shared.getKey() : key;
     }
 }
@@ -0,0 +1,282 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds key pairs outside of the Java heap.
+ * <p>
+ * Key IDs and keys are packed into fixed-size slabs of direct memory (or of a memory-mapped
+ * temporary file), and the vault hands out lightweight {@link KeyPair} handles that refer
+ * to their slot.  A handle returns a fresh copy of its key ID or key each time it is asked,
+ * so key material only lives on the heap for as long as the caller holds on to it.  Handles
+ * can be used anywhere a key pair is expected ({@link CryptKey}, {@link CryptTrack}, and
+ * key pairs built with {@link KeyPair#KeyPair(KeyPair, boolean)} that share their source).
+ * <p>
+ * Slabs are allocated as needed up to a fixed memory budget.  Closing the vault overwrites
+ * every slab with zeros, after which all of its handles are unusable.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class KeyVault implements Closeable {
+    
+    private static final int ENTRY_SIZE = KeyId.SIZE + KeyPair.AES_128_KEYSIZE;
+    private static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    private static final String TEMP_PREFIX = "keyvault";
+    
+    private long budget;
+    private int slabSize;
+    private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer current;
+    private long used = 0;
+    private volatile boolean closed = false;
+    
+    // Backing file for mapped slabs (null for direct memory)
+    private File file;
+    private RandomAccessFile raf;
+    
+    /**
+     * A key pair stored in the vault
+     */
+    private static class Handle extends KeyPair {
+        
+        private KeyVault vault;
+        private ByteBuffer slab;
+        private int offset;
+        
+        Handle(KeyVault vault, ByteBuffer slab, int offset) {
+            this.vault = vault;
+            this.slab = slab;
+            this.offset = offset;
+        }
+        
+        private byte[] read(int pos, int len) {
+            if (vault.closed)
+                throw new IllegalStateException("Key vault is closed");
+            byte[] data = new byte[len];
+            for (int i = 0; i < len; i++)
+                data[i] = slab.get(pos + i);
+            return data;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.cablelabs.cryptfile.KeyPair#getID()
+         */
+        @Override
+        public byte[] getID() {
+            return read(offset, KeyId.SIZE);
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.cablelabs.cryptfile.KeyPair#getKeyId()
+         */
+        @Override
+        public KeyId getKeyId() {
+            if (vault.closed)
+                throw new IllegalStateException("Key vault is closed");
+            return new KeyId(slab.getLong(offset), slab.getLong(offset + 8));
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see org.cablelabs.cryptfile.KeyPair#getKey()
+         */
+        @Override
+        public byte[] getKey() {
+            return read(offset + KeyId.SIZE, AES_128_KEYSIZE);
+        }
+    }
+    
+    /**
+     * Create a vault backed by direct memory
+     * 
+     * @param budget the maximum number of bytes of key material the vault may hold
+     */
+    public KeyVault(long budget) {
+        if (budget < ENTRY_SIZE)
+            throw new IllegalArgumentException("Key vault budget is too small: " + budget);
+        this.budget = budget - (budget % ENTRY_SIZE);
+        this.slabSize = (int)Math.min(DEFAULT_SLAB_SIZE, this.budget);
+    }
+    
+    /**
+     * Create a vault backed by a memory-mapped temporary file.  The file is deleted
+     * when the vault is closed
+     * 
+     * @param budget the maximum number of bytes of key material the vault may hold
+     * @param dir the directory in which to create the file (null for the default
+     * temporary directory)
+     * @throws IOException if the file can not be created
+     */
+    public KeyVault(long budget, File dir) throws IOException {
+        this(budget);
+        file = File.createTempFile(TEMP_PREFIX, null, dir);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+    }
+    
+    /**
+     * Returns the memory budget
+     * 
+     * @return the maximum number of bytes of key material
+     */
+    public long getBudget() {
+        return budget;
+    }
+    
+    /**
+     * Returns the amount of memory in use
+     * 
+     * @return the number of bytes of key material held in the vault
+     */
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+    
+    // Returns the offset of the next free entry in the current slab, allocating a new
+    // slab if needed
+    private int allocate() throws IOException {
+        if (closed)
+            throw new IllegalStateException("Key vault is closed");
+        if (used + ENTRY_SIZE > budget)
+            throw new IllegalStateException("Key vault memory budget (" + budget + " bytes) exceeded");
+        if (current == null || current.remaining() < ENTRY_SIZE) {
+            long offset = (long)slabs.size() * slabSize;
+            int size = (int)Math.min(slabSize, budget - offset);
+            if (raf != null)
+                current = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, size);
+            else
+                current = ByteBuffer.allocateDirect(size);
+            slabs.add(current);
+        }
+        int pos = current.position();
+        current.position(pos + ENTRY_SIZE);
+        used += ENTRY_SIZE;
+        return pos;
+    }
+    
+    /**
+     * Store a key pair in the vault
+     * 
+     * @param keyID the 16-byte key ID
+     * @param key the 16-byte key
+     * @return a handle to the stored key pair
+     * @throws IOException if a mapped slab can not be allocated
+     * @throws IllegalStateException if the vault is closed or the budget would be exceeded
+     */
+    public synchronized KeyPair add(byte[] keyID, byte[] key) throws IOException {
+        if (keyID.length != KeyId.SIZE)
+            throw new IllegalArgumentException("Invalid key ID size: " + keyID.length);
+        if (key.length != KeyPair.AES_128_KEYSIZE)
+            throw new IllegalArgumentException("Invalid AES-128 key size: " + key.length);
+        int pos = allocate();
+        for (int i = 0; i < KeyId.SIZE; i++)
+            current.put(pos + i, keyID[i]);
+        for (int i = 0; i < KeyPair.AES_128_KEYSIZE; i++)
+            current.put(pos + KeyId.SIZE + i, key[i]);
+        return new Handle(this, current, pos);
+    }
+    
+    /**
+     * Store a copy of the given key pair in the vault.  The key of the given key pair
+     * is not modified -- callers that no longer need it should clear it
+     * 
+     * @param keyPair the key pair
+     * @return a handle to the stored key pair
+     * @throws IOException if a mapped slab can not be allocated
+     * @throws IllegalStateException if the vault is closed or the budget would be exceeded
+     */
+    public KeyPair add(KeyPair keyPair) throws IOException {
+        return add(keyPair.getID(), keyPair.getKey());
+    }
+    
+    /**
+     * Fill an array with handles to new key pairs, each with a random key ID and key
+     * drawn from the default {@link KeyMaterialSource}
+     * 
+     * @param pairs the array to fill
+     * @throws IOException if a mapped slab can not be allocated
+     * @throws IllegalStateException if the vault is closed or the budget would be exceeded
+     */
+    public synchronized void fill(KeyPair[] pairs) throws IOException {
+        if (used + (long)pairs.length * ENTRY_SIZE > budget)
+            throw new IllegalStateException("Key vault memory budget (" + budget + " bytes) exceeded");
+        byte[] material = new byte[ENTRY_SIZE];
+        KeyMaterialSource source = KeyMaterialSource.getDefault();
+        for (int i = 0; i < pairs.length; i++) {
+            source.nextBytes(material);
+            int pos = allocate();
+            for (int j = 0; j < ENTRY_SIZE; j++)
+                current.put(pos + j, material[j]);
+            pairs[i] = new Handle(this, current, pos);
+        }
+        Arrays.fill(material, (byte)0);
+    }
+    
+    /**
+     * Overwrite all key material with zeros and release the vault's memory.  Handles
+     * obtained from this vault throw {@link IllegalStateException} once it is closed
+     * 
+     * @throws IOException if the backing file can not be released
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        
+        byte[] zeros = new byte[4096];
+        for (ByteBuffer slab : slabs) {
+            slab.clear();
+            while (slab.hasRemaining())
+                slab.put(zeros, 0, Math.min(zeros.length, slab.remaining()));
+            if (slab instanceof MappedByteBuffer)
+                ((MappedByteBuffer)slab).force();
+        }
+        slabs.clear();
+        current = null;
+        used = 0;
+        
+        if (raf != null) {
+            raf.close();
+            file.delete();
+        }
+    }
+}
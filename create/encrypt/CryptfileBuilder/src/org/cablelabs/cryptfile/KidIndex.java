@@ -0,0 +1,806 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * On-disk inverted index from key ID to the assets, tracks, DRM systems and
+ * cryptfiles that use it.  Answers "where was this key used?" without reading any
+ * cryptfiles.
+ * <p>
+ * The index is a directory of immutable segment files.  Each segment holds
+ * fixed-size entries (128-bit key ID, track ID, reference) sorted by key ID,
+ * followed by a table of references (asset, cryptfile path, DRM system IDs).
+ * Lookups binary search every segment through a memory mapping.  Entries are
+ * collected in memory by a {@link Batch} and written as one new segment on
+ * {@link Batch#commit()}, so recording costs one sequential file write per batch.
+ * Segments become visible atomically (written to a temporary file and renamed),
+ * so any number of processes may record and query at the same time.
+ * {@link #compact()} merges all segments into one to keep lookups fast.  Committing
+ * a batch also merges the smallest segments whenever the index has more than
+ * {@value #AUTO_COMPACT_SEGMENTS} of them, so the number of segments a lookup
+ * searches stays bounded however many times a generator records into the index.
+ */
+public class KidIndex {
+    
+    private static final int MAGIC = ('C' << 24) | ('L' << 16) | ('K' << 8) | 'X';
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 24;
+    
+    private static final String SEGMENT_PREFIX = "kids-";
+    private static final String SEGMENT_SUFFIX = ".idx";
+    private static final String TEMP_PREFIX = "tmp";
+    private static final String LOCK_FILE = ".lock";
+    
+    // Number of entries collected in memory before a batch writes a segment
+    private static final int MAX_BATCH_ENTRIES = 256 * 1024;
+    
+    /**
+     * Segment count above which committing a batch merges segments
+     */
+    public static final int AUTO_COMPACT_SEGMENTS = 32;
+    
+    // Number of times the directory is listed again when a segment is removed by a
+    // concurrent compaction while it is being opened
+    private static final int MAX_REFRESH_ATTEMPTS = 16;
+    
+    private static final FileFilter SEGMENT_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.getName().startsWith(SEGMENT_PREFIX) && f.getName().endsWith(SEGMENT_SUFFIX);
+        }
+    };
+    
+    /**
+     * One use of a key ID
+     */
+    public static class Entry {
+        
+        private final KeyId keyID;
+        private final int trackID;
+        private final String asset;
+        private final String cryptfile;
+        private final List<KeyId> systemIDs;
+        
+        Entry(KeyId keyID, int trackID, String asset, String cryptfile, List<KeyId> systemIDs) {
+            this.keyID = keyID;
+            this.trackID = trackID;
+            this.asset = asset;
+            this.cryptfile = cryptfile;
+            this.systemIDs = systemIDs;
+        }
+        
+        /**
+         * Returns the key ID
+         * 
+         * @return the key ID
+         */
+        public KeyId getKeyID() {
+            return keyID;
+        }
+        
+        /**
+         * Returns the ID of the track encrypted with the key
+         * 
+         * @return the track ID
+         */
+        public int getTrackID() {
+            return trackID;
+        }
+        
+        /**
+         * Returns the asset the cryptfile was generated for
+         * 
+         * @return the asset ID
+         */
+        public String getAsset() {
+            return asset;
+        }
+        
+        /**
+         * Returns the path of the cryptfile that contains the key
+         * 
+         * @return the cryptfile path
+         */
+        public String getCryptfile() {
+            return cryptfile;
+        }
+        
+        /**
+         * Returns the system IDs of the DRM systems whose PSSH reference the key
+         * 
+         * @return the DRM system IDs, as 128-bit values
+         */
+        public List<KeyId> getSystemIDs() {
+            return systemIDs;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return keyID.hashCode() ^ (trackID * 31) ^ asset.hashCode() ^ cryptfile.hashCode();
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry))
+                return false;
+            Entry other = (Entry)obj;
+            return keyID.equals(other.keyID) && trackID == other.trackID && asset.equals(other.asset) &&
+                    cryptfile.equals(other.cryptfile) && systemIDs.equals(other.systemIDs);
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("asset=").append(asset).append(" track=").append(trackID)
+              .append(" cryptfile=").append(cryptfile).append(" drm=");
+            for (int i = 0; i < systemIDs.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(systemIDs.get(i).toGUID());
+            }
+            return sb.toString();
+        }
+    }
+    
+    // Index entry held by a batch before it is written
+    private static class Record implements Comparable<Record> {
+        final long msb;
+        final long lsb;
+        final int trackID;
+        final int ref;
+        
+        Record(long msb, long lsb, int trackID, int ref) {
+            this.msb = msb;
+            this.lsb = lsb;
+            this.trackID = trackID;
+            this.ref = ref;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(Record other) {
+            return KeyId.compare(msb, lsb, other.msb, other.lsb);
+        }
+    }
+    
+    /**
+     * Collects index entries and writes them to the index as a single segment.
+     * Thread-safe, so one batch can be shared by many generator threads.
+     */
+    public class Batch {
+        
+        private List<Record> records = new ArrayList<Record>();
+        private List<byte[]> refs = new ArrayList<byte[]>();
+        private Map<String, Integer> refIndex = new HashMap<String, Integer>();
+        private int written = 0;
+        
+        private Batch() {
+        }
+        
+        private int ref(String asset, String cryptfile, List<KeyId> systemIDs) throws IOException {
+            StringBuilder key = new StringBuilder(asset).append('\0').append(cryptfile);
+            for (KeyId systemID : systemIDs) {
+                key.append('\0').append(systemID.toGUID());
+            }
+            Integer index = refIndex.get(key.toString());
+            if (index == null) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bos);
+                dos.writeUTF(asset);
+                dos.writeUTF(cryptfile);
+                dos.writeByte(systemIDs.size());
+                for (KeyId systemID : systemIDs) {
+                    dos.writeLong(systemID.getMostSignificantBits());
+                    dos.writeLong(systemID.getLeastSignificantBits());
+                }
+                dos.close();
+                index = refs.size();
+                refs.add(bos.toByteArray());
+                refIndex.put(key.toString(), index);
+            }
+            return index;
+        }
+        
+        /**
+         * Record one use of a key ID
+         * 
+         * @param keyID the key ID
+         * @param asset the asset ID
+         * @param trackID the ID of the track encrypted with the key
+         * @param systemIDs the DRM systems whose PSSH reference the key (at most 255)
+         * @param cryptfile the cryptfile path
+         * @throws IOException if the batch was full and could not be written
+         */
+        public synchronized void add(KeyId keyID, String asset, int trackID, List<KeyId> systemIDs,
+                                     String cryptfile) throws IOException {
+            if (systemIDs.size() > 0xFF)
+                throw new IllegalArgumentException("Too many DRM systems: " + systemIDs.size());
+            records.add(new Record(keyID.getMostSignificantBits(), keyID.getLeastSignificantBits(),
+                                   trackID, ref(asset, cryptfile, systemIDs)));
+            if (records.size() >= MAX_BATCH_ENTRIES)
+                flush();
+        }
+        
+        /**
+         * Record every key of every track of a cryptfile.  The DRM systems of a key
+         * are those whose PSSH list the key ID, plus all version 0 PSSH
+         * 
+         * @param asset the asset ID
+         * @param cryptfile the cryptfile path
+         * @param builder the cryptfile builder
+         * @return the number of entries added
+         * @throws IOException if the batch was full and could not be written
+         */
+        public synchronized int addCryptfile(String asset, String cryptfile, CryptfileBuilder builder)
+                throws IOException {
+            List<DRMInfoPSSH> pssh = builder.getPSSH();
+            int added = 0;
+            for (CryptTrack track : builder.getTracks()) {
+                for (CryptKey key : track.getKeys()) {
+                    KeyId keyID = key.getKeyPair().getKeyId();
+                    List<KeyId> systemIDs = new ArrayList<KeyId>(pssh.size());
+                    for (DRMInfoPSSH p : pssh) {
+                        KeyIdSet keyIDs = p.getKeyIDs();
+                        KeyId systemID = KeyId.fromBytes(p.getSystemID());
+                        if ((keyIDs == null || keyIDs.contains(keyID)) && !systemIDs.contains(systemID))
+                            systemIDs.add(systemID);
+                    }
+                    add(keyID, asset, track.getTrackID(), systemIDs, cryptfile);
+                    added++;
+                }
+            }
+            return added;
+        }
+        
+        // Write the collected entries as a new segment
+        private void flush() throws IOException {
+            if (records.isEmpty())
+                return;
+            Collections.sort(records);
+            
+            File tmp = File.createTempFile(TEMP_PREFIX, SEGMENT_SUFFIX, dir);
+            try {
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    long refOffset = HEADER_SIZE + (long)ENTRY_SIZE * records.size();
+                    writeHeader(dos, records.size(), refs.size(), refOffset);
+                    for (Record r : records) {
+                        dos.writeLong(r.msb);
+                        dos.writeLong(r.lsb);
+                        dos.writeInt(r.trackID);
+                        dos.writeInt(r.ref);
+                    }
+                    
+                    // Reference offsets, then the references
+                    long offset = refOffset + 4L * refs.size();
+                    for (byte[] ref : refs) {
+                        dos.writeInt(checkOffset(offset));
+                        offset += ref.length;
+                    }
+                    for (byte[] ref : refs) {
+                        dos.write(ref);
+                    }
+                }
+                finally {
+                    dos.close();
+                }
+                publish(tmp);
+            }
+            finally {
+                tmp.delete();
+            }
+            
+            written += records.size();
+            records.clear();
+            refs.clear();
+            refIndex.clear();
+        }
+        
+        /**
+         * Write all entries collected so far to the index
+         * 
+         * @return the number of entries written by this batch
+         * @throws IOException
+         */
+        public synchronized int commit() throws IOException {
+            flush();
+            autoCompact();
+            return written;
+        }
+    }
+    
+    /**
+     * A memory-mapped segment file
+     */
+    private static class Segment {
+        
+        private final ByteBuffer buf;
+        private final int count;
+        private final int refCount;
+        private final int refOffset;
+        
+        Segment(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long size = raf.length();
+                if (size > Integer.MAX_VALUE || size < HEADER_SIZE)
+                    throw new IOException("Invalid KID index segment size: " + file);
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            finally {
+                raf.close();
+            }
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+                throw new IOException("Not a KID index segment: " + file);
+            count = buf.getInt(8);
+            refCount = buf.getInt(12);
+            refOffset = (int)buf.getLong(16);
+        }
+        
+        long msb(int i) {
+            return buf.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+        }
+        
+        long lsb(int i) {
+            return buf.getLong(HEADER_SIZE + i * ENTRY_SIZE + 8);
+        }
+        
+        int trackID(int i) {
+            return buf.getInt(HEADER_SIZE + i * ENTRY_SIZE + 16);
+        }
+        
+        int ref(int i) {
+            return buf.getInt(HEADER_SIZE + i * ENTRY_SIZE + 20);
+        }
+        
+        // Index of the first entry not less than the given key ID
+        int lowerBound(long msb, long lsb) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (KeyId.compare(msb(mid), lsb(mid), msb, lsb) < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+        
+        int refStart(int ref) {
+            return buf.getInt(refOffset + 4 * ref);
+        }
+        
+        int refEnd(int ref) {
+            return (ref + 1 < refCount) ? refStart(ref + 1) : buf.capacity();
+        }
+        
+        Entry entry(int i) throws IOException {
+            ByteBuffer ref = buf.duplicate();
+            ref.position(refStart(ref(i)));
+            DataInputStream dis = new DataInputStream(new ByteBufferInputStream(ref));
+            String asset = dis.readUTF();
+            String cryptfile = dis.readUTF();
+            int systems = dis.readUnsignedByte();
+            List<KeyId> systemIDs = new ArrayList<KeyId>(systems);
+            for (int s = 0; s < systems; s++) {
+                systemIDs.add(new KeyId(dis.readLong(), dis.readLong()));
+            }
+            return new Entry(new KeyId(msb(i), lsb(i)), trackID(i), asset, cryptfile,
+                             Collections.unmodifiableList(systemIDs));
+        }
+    }
+    
+    /**
+     * Reads a byte buffer from its position to its limit
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        
+        private final ByteBuffer bb;
+        
+        ByteBufferInputStream(ByteBuffer bb) {
+            this.bb = bb;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() {
+            return bb.hasRemaining() ? (bb.get() & 0xFF) : -1;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!bb.hasRemaining())
+                return -1;
+            len = Math.min(len, bb.remaining());
+            bb.get(b, off, len);
+            return len;
+        }
+    }
+    
+    private final File dir;
+    private Map<String, Segment> segments = new HashMap<String, Segment>();
+    
+    /**
+     * Open a KID index, creating the index directory if it does not exist
+     * 
+     * @param dir the index directory
+     * @throws IOException if the directory could not be created
+     */
+    public KidIndex(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create KID index directory: " + dir);
+        this.dir = dir;
+    }
+    
+    /**
+     * Start a new batch of index entries
+     * 
+     * @return the batch
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+    
+    /**
+     * Record every key of a cryptfile in the given index
+     * 
+     * @param dir the index directory
+     * @param asset the asset ID
+     * @param cryptfile the cryptfile path
+     * @param builder the cryptfile builder
+     * @return the number of entries written
+     * @throws IOException
+     */
+    public static int record(File dir, String asset, String cryptfile, CryptfileBuilder builder)
+            throws IOException {
+        Batch batch = new KidIndex(dir).newBatch();
+        batch.addCryptfile(asset, cryptfile, builder);
+        return batch.commit();
+    }
+    
+    private static void writeHeader(DataOutputStream dos, int count, int refCount, long refOffset)
+            throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(count);
+        dos.writeInt(refCount);
+        dos.writeLong(refOffset);
+        dos.writeLong(0);
+    }
+    
+    private static int checkOffset(long offset) throws IOException {
+        if (offset > Integer.MAX_VALUE)
+            throw new IOException("KID index segment too large");
+        return (int)offset;
+    }
+    
+    // Rename a finished temporary file to a new, unique segment name
+    private void publish(File tmp) throws IOException {
+        while (true) {
+            String name = SEGMENT_PREFIX + Long.toHexString(System.currentTimeMillis()) + "-" +
+                    Long.toHexString(System.nanoTime() & 0xFFFFFFFFFFFFL) + SEGMENT_SUFFIX;
+            File segment = new File(dir, name);
+            if (segment.exists())
+                continue;
+            if (!tmp.renameTo(segment))
+                throw new IOException("Could not create KID index segment: " + segment);
+            return;
+        }
+    }
+    
+    // Open new segments and forget deleted ones.  A segment that disappears between
+    // listing and opening was merged by a concurrent compaction, which publishes the
+    // merged segment before deleting the old ones, so listing again finds its entries
+    private void refresh() throws IOException {
+        for (int attempt = 0; attempt < MAX_REFRESH_ATTEMPTS; attempt++) {
+            Map<String, Segment> current = openSegments();
+            if (current != null) {
+                segments = current;
+                return;
+            }
+        }
+        throw new IOException("KID index segments keep changing: " + dir);
+    }
+    
+    // Returns all current segments, or null if one of them was removed while listing
+    private Map<String, Segment> openSegments() throws IOException {
+        File[] files = dir.listFiles(SEGMENT_FILTER);
+        if (files == null)
+            throw new IOException("Could not list KID index directory: " + dir);
+        Map<String, Segment> current = new HashMap<String, Segment>();
+        for (File f : files) {
+            Segment s = segments.get(f.getName());
+            if (s == null) {
+                try {
+                    s = new Segment(f);
+                }
+                catch (FileNotFoundException e) {
+                    return null;
+                }
+            }
+            current.put(f.getName(), s);
+        }
+        return current;
+    }
+    
+    /**
+     * Returns every recorded use of the given key ID
+     * 
+     * @param keyID the key ID
+     * @return the entries, without duplicates
+     * @throws IOException if the index could not be read
+     */
+    public synchronized List<Entry> lookup(KeyId keyID) throws IOException {
+        refresh();
+        long msb = keyID.getMostSignificantBits();
+        long lsb = keyID.getLeastSignificantBits();
+        Set<Entry> entries = new LinkedHashSet<Entry>();
+        for (Segment s : segments.values()) {
+            for (int i = s.lowerBound(msb, lsb); i < s.count && s.msb(i) == msb && s.lsb(i) == lsb; i++) {
+                entries.add(s.entry(i));
+            }
+        }
+        return new ArrayList<Entry>(entries);
+    }
+    
+    /**
+     * Returns the number of segment files in the index
+     * 
+     * @return the segment count
+     * @throws IOException if the index could not be read
+     */
+    public synchronized int getSegmentCount() throws IOException {
+        refresh();
+        return segments.size();
+    }
+    
+    /**
+     * Returns the total number of entries in the index, including duplicates
+     * 
+     * @return the entry count
+     * @throws IOException if the index could not be read
+     */
+    public synchronized long getEntryCount() throws IOException {
+        refresh();
+        long count = 0;
+        for (Segment s : segments.values()) {
+            count += s.count;
+        }
+        return count;
+    }
+    
+    // Position in one segment during a merge
+    private static class Cursor implements Comparable<Cursor> {
+        final Segment segment;
+        final int refBase;
+        int pos = 0;
+        
+        Cursor(Segment segment, int refBase) {
+            this.segment = segment;
+            this.refBase = refBase;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(Cursor other) {
+            return KeyId.compare(segment.msb(pos), segment.lsb(pos),
+                                 other.segment.msb(other.pos), other.segment.lsb(other.pos));
+        }
+    }
+    
+    /**
+     * Merge all segments into one.  Segments are merged in a single streaming pass,
+     * and the merged segment replaces the old ones atomically.  Only one process
+     * compacts at a time; recording and lookups may continue during compaction
+     * 
+     * @return the number of segments merged
+     * @throws IOException
+     */
+    public synchronized int compact() throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                refresh();
+                if (segments.size() < 2)
+                    return 0;
+                return merge(new ArrayList<String>(segments.keySet()));
+            }
+            finally {
+                lock.release();
+            }
+        }
+        finally {
+            lockFile.close();
+        }
+    }
+    
+    // Merge the smallest segments once there are more than AUTO_COMPACT_SEGMENTS, leaving
+    // half that many.  Large segments are rarely rewritten, so the cost of merging stays
+    // proportional to the entries recorded since.  Skipped if another process is
+    // already compacting
+    private synchronized void autoCompact() throws IOException {
+        refresh();
+        if (segments.size() <= AUTO_COMPACT_SEGMENTS)
+            return;
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().tryLock();
+            if (lock == null)
+                return;
+            try {
+                refresh();
+                if (segments.size() <= AUTO_COMPACT_SEGMENTS)
+                    return;
+                List<String> names = new ArrayList<String>(segments.keySet());
+                Collections.sort(names, new Comparator<String>() {
+                    @Override
+                    public int compare(String a, String b) {
+                        int ca = segments.get(a).count;
+                        int cb = segments.get(b).count;
+                        return (ca < cb) ? -1 : (ca > cb) ? 1 : 0;
+                    }
+                });
+                merge(names.subList(0, names.size() - AUTO_COMPACT_SEGMENTS / 2 + 1));
+            }
+            finally {
+                lock.release();
+            }
+        }
+        finally {
+            lockFile.close();
+        }
+    }
+    
+    // Replace the given segments with one merged segment.  Must hold the compaction lock
+    private int merge(List<String> names) throws IOException {
+        List<Cursor> cursors = new ArrayList<Cursor>(names.size());
+        long count = 0;
+        int refCount = 0;
+        for (String name : names) {
+            Segment s = segments.get(name);
+            cursors.add(new Cursor(s, refCount));
+            count += s.count;
+            refCount += s.refCount;
+        }
+        
+        File tmp = File.createTempFile(TEMP_PREFIX, SEGMENT_SUFFIX, dir);
+        try {
+            writeMerged(tmp, cursors, count, refCount);
+            publish(tmp);
+        }
+        finally {
+            tmp.delete();
+        }
+        for (String name : names) {
+            new File(dir, name).delete();
+        }
+        return names.size();
+    }
+    
+    private static void writeMerged(File tmp, List<Cursor> cursors, long count, int refCount)
+            throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            long refOffset = HEADER_SIZE + (long)ENTRY_SIZE * count;
+            writeHeader(dos, checkOffset(count), refCount, refOffset);
+            
+            // Entries, by k-way merge of the sorted segments
+            PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(cursors.size());
+            for (Cursor c : cursors) {
+                if (c.segment.count > 0)
+                    queue.add(c);
+            }
+            while (!queue.isEmpty()) {
+                Cursor c = queue.poll();
+                Segment s = c.segment;
+                dos.writeLong(s.msb(c.pos));
+                dos.writeLong(s.lsb(c.pos));
+                dos.writeInt(s.trackID(c.pos));
+                dos.writeInt(c.refBase + s.ref(c.pos));
+                if (++c.pos < s.count)
+                    queue.add(c);
+            }
+            
+            // Reference offsets, then the references of each segment in order
+            long offset = refOffset + 4L * refCount;
+            for (Cursor c : cursors) {
+                for (int r = 0; r < c.segment.refCount; r++) {
+                    dos.writeInt(checkOffset(offset));
+                    offset += c.segment.refEnd(r) - c.segment.refStart(r);
+                }
+            }
+            byte[] copy = new byte[8192];
+            for (Cursor c : cursors) {
+                if (c.segment.refCount == 0)
+                    continue;
+                ByteBuffer refs = c.segment.buf.duplicate();
+                refs.position(c.segment.refStart(0));
+                while (refs.hasRemaining()) {
+                    int n = Math.min(copy.length, refs.remaining());
+                    refs.get(copy, 0, n);
+                    dos.write(copy, 0, n);
+                }
+            }
+        }
+        finally {
+            dos.close();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A persistent, append-only store of key pairs, indexed by key ID.
+ * <p>
+ * The store is made of two memory-mapped files.  The key file holds a small header
+ * followed by fixed-size (key ID, key) records in the order they were added.  The index
+ * file (the key file name plus ".idx") is an open-addressing hash table of record
+ * numbers, so a lookup touches a handful of slots no matter how many keys are stored, and
+ * keys are never loaded onto the heap.  The index can always be rebuilt from the key file
+ * and is rebuilt automatically when it is missing or out of date.
+ * <p>
+ * Any number of processes may read and write the same store.  Writers serialize on an
+ * exclusive lock of the key file, and records are written before they are made visible
+ * through the index, so readers never need to lock.  Records are never changed or
+ * removed -- storing a different key for an existing key ID is an error.
+ * <p>
+ * Instances are thread-safe.  Use a single instance per store within a process.
+ */
+public class LocalKeyStore implements Closeable {
+    
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMP_PREFIX = "tmp";
+    
+    private static final int KEYS_MAGIC = 0x434c4b53;  // "CLKS"
+    private static final int INDEX_MAGIC = 0x434c4b49; // "CLKI"
+    private static final int FORMAT_VERSION = 1;
+    
+    // Key file header: magic, version, record count, index generation
+    private static final int KEYS_HEADER_SIZE = 32;
+    private static final int KEYS_COUNT = 8;
+    private static final int KEYS_GENERATION = 12;
+    private static final int RECORD_SIZE = KeyId.SIZE + KeyPair.AES_128_KEYSIZE;
+    
+    // Index file header: magic, version, slot count, indexed record count, generation
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int INDEX_SLOTS = 8;
+    private static final int INDEX_COUNT = 12;
+    private static final int INDEX_GENERATION = 16;
+    
+    private static final int MIN_INDEX_SLOTS = 1024;
+    
+    // The key file is grown this many records at a time
+    private static final int GROW_RECORDS = 65536;
+    
+    // The key file is mapped as a single buffer, so it is limited to 2GB
+    private static final int MAX_RECORDS = (Integer.MAX_VALUE - KEYS_HEADER_SIZE) / RECORD_SIZE - GROW_RECORDS;
+    
+    private File keysFile;
+    private File indexFile;
+    private boolean readOnly;
+    
+    private RandomAccessFile keysRaf;
+    private FileChannel keysChannel;
+    private MappedByteBuffer keys;
+    
+    private MappedByteBuffer index;
+    private int slots;
+    private int generation;
+    
+    /**
+     * Open a key store, creating it if it does not exist and the store is writable
+     * 
+     * @param file the key file.  The index is kept next to it, with an added ".idx" suffix
+     * @param readOnly true to open the store for lookups only
+     * @throws IOException if the store can not be opened or is not a valid key store
+     */
+    public LocalKeyStore(File file, boolean readOnly) throws IOException {
+        this.keysFile = file;
+        this.indexFile = new File(file.getPath() + INDEX_SUFFIX);
+        this.readOnly = readOnly;
+        
+        keysRaf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        keysChannel = keysRaf.getChannel();
+        try {
+            if (readOnly) {
+                mapKeys();
+                if (!mapIndex())
+                    throw new IOException("Key store index " + indexFile + " is missing or out of " +
+                                          "date.  Open the store for writing once to rebuild it.");
+            }
+            else {
+                FileLock lock = keysChannel.lock();
+                try {
+                    if (keysChannel.size() == 0)
+                        initialize();
+                    mapKeys();
+                    sync();
+                }
+                finally {
+                    lock.release();
+                }
+            }
+        }
+        catch (IOException e) {
+            keysRaf.close();
+            throw e;
+        }
+    }
+    
+    // Write the header of a new, empty key file
+    private void initialize() throws IOException {
+        MappedByteBuffer header = keysChannel.map(FileChannel.MapMode.READ_WRITE, 0, KEYS_HEADER_SIZE);
+        header.putInt(0, KEYS_MAGIC);
+        header.putInt(4, FORMAT_VERSION);
+        header.putInt(KEYS_COUNT, 0);
+        header.putInt(KEYS_GENERATION, 0);
+        header.force();
+    }
+    
+    private void mapKeys() throws IOException {
+        long size = keysChannel.size();
+        if (size < KEYS_HEADER_SIZE)
+            throw new IOException("Not a key store: " + keysFile);
+        keys = keysChannel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                               0, size);
+        if (keys.getInt(0) != KEYS_MAGIC)
+            throw new IOException("Not a key store: " + keysFile);
+        if (keys.getInt(4) != FORMAT_VERSION)
+            throw new IOException("Unsupported key store version (" + keys.getInt(4) + "): " + keysFile);
+    }
+    
+    // Map the index file.  Returns false if it is missing or invalid
+    private boolean mapIndex() throws IOException {
+        if (!indexFile.exists() || indexFile.length() < INDEX_HEADER_SIZE)
+            return false;
+        RandomAccessFile raf = new RandomAccessFile(indexFile, readOnly ? "r" : "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, INDEX_HEADER_SIZE);
+            int n = header.getInt(INDEX_SLOTS);
+            if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != FORMAT_VERSION ||
+                    n < MIN_INDEX_SLOTS || Integer.bitCount(n) != 1 ||
+                    channel.size() != INDEX_HEADER_SIZE + 4L * n)
+                return false;
+            index = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                                0, channel.size());
+            slots = n;
+            generation = index.getInt(INDEX_GENERATION);
+            return true;
+        }
+        finally {
+            raf.close();
+        }
+    }
+    
+    // Bring our mappings up to date with changes made by other writers, and make sure
+    // the index covers every record.  Must hold the file lock
+    private void sync() throws IOException {
+        if (keysChannel.size() != keys.capacity())
+            mapKeys();
+        int count = keys.getInt(KEYS_COUNT);
+        if (index == null || keys.getInt(KEYS_GENERATION) != generation) {
+            if (!mapIndex() || index.getInt(INDEX_GENERATION) != keys.getInt(KEYS_GENERATION) ||
+                    index.getInt(INDEX_COUNT) > count) {
+                rebuildIndex(Math.max(MIN_INDEX_SLOTS, Integer.highestOneBit(Math.max(count, 1)) * 4));
+                return;
+            }
+        }
+        
+        // Records appended by a writer that stopped before updating the index
+        for (int rec = index.getInt(INDEX_COUNT); rec < count; rec++) {
+            int pos = recordPosition(rec);
+            index.putInt(slotPosition(findSlot(keys.getLong(pos), keys.getLong(pos + 8))), rec + 1);
+            index.putInt(INDEX_COUNT, rec + 1);
+        }
+    }
+    
+    // Reader side of sync().  Returns true if anything changed
+    private boolean refresh() throws IOException {
+        boolean changed = false;
+        if (keysChannel.size() != keys.capacity()) {
+            mapKeys();
+            changed = true;
+        }
+        if (keys.getInt(KEYS_GENERATION) != generation) {
+            changed |= mapIndex();
+        }
+        return changed;
+    }
+    
+    private static int recordPosition(int rec) {
+        return KEYS_HEADER_SIZE + rec * RECORD_SIZE;
+    }
+    
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER_SIZE + slot * 4;
+    }
+    
+    // Returns the slot that holds the given key ID, or the empty slot where it belongs
+    private int findSlot(long msb, long lsb) throws IOException {
+        int mask = slots - 1;
+        int slot = KeyId.hash(msb, lsb) & mask;
+        while (true) {
+            int rec = index.getInt(slotPosition(slot)) - 1;
+            if (rec < 0)
+                return slot;
+            int pos = recordPosition(rec);
+            if (pos + RECORD_SIZE > keys.capacity())
+                mapKeys();
+            if (keys.getLong(pos) == msb && keys.getLong(pos + 8) == lsb)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    // Write a new index with the given number of slots next to the current one, then
+    // replace it.  Must hold the file lock
+    private void rebuildIndex(int newSlots) throws IOException {
+        int count = keys.getInt(KEYS_COUNT);
+        int newGeneration = keys.getInt(KEYS_GENERATION) + 1;
+        
+        File tmp = File.createTempFile(TEMP_PREFIX, INDEX_SUFFIX, keysFile.getAbsoluteFile().getParentFile());
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(INDEX_HEADER_SIZE + 4L * newSlots);
+            index = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            slots = newSlots;
+            for (int rec = 0; rec < count; rec++) {
+                int pos = recordPosition(rec);
+                index.putInt(slotPosition(findSlot(keys.getLong(pos), keys.getLong(pos + 8))), rec + 1);
+            }
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, FORMAT_VERSION);
+            index.putInt(INDEX_SLOTS, newSlots);
+            index.putInt(INDEX_COUNT, count);
+            index.putInt(INDEX_GENERATION, newGeneration);
+            index.force();
+        }
+        finally {
+            raf.close();
+        }
+        
+        if (!tmp.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tmp.renameTo(indexFile)) {
+                tmp.delete();
+                throw new IOException("Could not replace key store index " + indexFile);
+            }
+        }
+        
+        generation = newGeneration;
+        keys.putInt(KEYS_GENERATION, newGeneration);
+        keys.force();
+        if (!mapIndex())
+            throw new IOException("Could not map key store index " + indexFile);
+    }
+    
+    // Add a single record.  Must hold the file lock
+    private boolean add(KeyPair keyPair) throws IOException {
+        byte[] keyID = keyPair.getID();
+        if (keyID.length != KeyId.SIZE)
+            throw new IllegalArgumentException("Invalid key ID size: " + keyID.length);
+        long msb = KeyId.readLong(keyID, 0);
+        long lsb = KeyId.readLong(keyID, 8);
+        byte[] key = keyPair.getKey();
+        
+        int slot = findSlot(msb, lsb);
+        int rec = index.getInt(slotPosition(slot)) - 1;
+        if (rec >= 0) {
+            if (!Arrays.equals(readKey(rec), key))
+                throw new IllegalArgumentException("Key ID " + KeyCodec.encodeGUID(keyID) +
+                                                   " is already stored with a different key");
+            return false;
+        }
+        
+        // Grow the key file
+        int count = keys.getInt(KEYS_COUNT);
+        if (count >= MAX_RECORDS)
+            throw new IOException("Key store is full (" + count + " keys): " + keysFile);
+        int pos = recordPosition(count);
+        if (pos + RECORD_SIZE > keys.capacity()) {
+            keysRaf.setLength(recordPosition(count + GROW_RECORDS));
+            mapKeys();
+        }
+        
+        // Record first, then the index, then the count that makes it official
+        keys.putLong(pos, msb);
+        keys.putLong(pos + 8, lsb);
+        for (int i = 0; i < key.length; i++)
+            keys.put(pos + KeyId.SIZE + i, key[i]);
+        index.putInt(slotPosition(slot), count + 1);
+        index.putInt(INDEX_COUNT, count + 1);
+        keys.putInt(KEYS_COUNT, count + 1);
+        
+        // Keep the index at most half full
+        if ((count + 1) * 2 > slots)
+            rebuildIndex(slots * 2);
+        return true;
+    }
+    
+    private byte[] readKey(int rec) {
+        byte[] key = new byte[KeyPair.AES_128_KEYSIZE];
+        int pos = recordPosition(rec) + KeyId.SIZE;
+        for (int i = 0; i < key.length; i++)
+            key[i] = keys.get(pos + i);
+        return key;
+    }
+    
+    // Returns the record number of the given key ID, or -1
+    private int lookup(long msb, long lsb) throws IOException {
+        int rec = index.getInt(slotPosition(findSlot(msb, lsb))) - 1;
+        if (rec < 0 && refresh())
+            rec = index.getInt(slotPosition(findSlot(msb, lsb))) - 1;
+        return rec;
+    }
+    
+    /**
+     * Add a key pair to the store
+     * 
+     * @param keyPair the key pair
+     * @return true if the key pair was added, false if it was already in the store
+     * @throws IOException
+     * @throws IllegalArgumentException if the key ID is already stored with a different key
+     */
+    public boolean put(KeyPair keyPair) throws IOException {
+        return putAll(Collections.singletonList(keyPair)) == 1;
+    }
+    
+    /**
+     * Add several key pairs to the store while holding the file lock once
+     * 
+     * @param keyPairs the key pairs
+     * @return the number of key pairs added (those not already in the store)
+     * @throws IOException
+     * @throws IllegalArgumentException if a key ID is already stored with a different key.
+     * Key pairs before it in the collection are still added
+     */
+    public synchronized int putAll(Collection<? extends KeyPair> keyPairs) throws IOException {
+        if (readOnly)
+            throw new IllegalStateException("Key store is open for reading only");
+        
+        int added = 0;
+        FileLock lock = keysChannel.lock();
+        try {
+            sync();
+            for (KeyPair keyPair : keyPairs) {
+                if (add(keyPair))
+                    added++;
+            }
+            keys.force();
+        }
+        finally {
+            lock.release();
+        }
+        return added;
+    }
+    
+    /**
+     * Add the keys of all given tracks to the store
+     * 
+     * @param tracks the tracks
+     * @return the number of key pairs added (those not already in the store)
+     * @throws IOException
+     * @throws IllegalArgumentException if a key ID is already stored with a different key
+     */
+    public int putTrackKeys(List<CryptTrack> tracks) throws IOException {
+        List<KeyPair> keyPairs = new ArrayList<KeyPair>();
+        for (CryptTrack track : tracks) {
+            for (CryptKey key : track.getKeys()) {
+                keyPairs.add(key.getKeyPair());
+            }
+        }
+        return putAll(keyPairs);
+    }
+    
+    /**
+     * Look up the key for a key ID
+     * 
+     * @param keyID the key ID
+     * @return the key, or null if the key ID is not in the store
+     * @throws IOException
+     */
+    public synchronized byte[] getKey(KeyId keyID) throws IOException {
+        int rec = lookup(keyID.getMostSignificantBits(), keyID.getLeastSignificantBits());
+        return (rec < 0) ? null : readKey(rec);
+    }
+    
+    /**
+     * Look up the key pair for a key ID
+     * 
+     * @param keyID the 16-byte key ID
+     * @return the key pair, or null if the key ID is not in the store
+     * @throws IOException
+     */
+    public KeyPair get(byte[] keyID) throws IOException {
+        byte[] key = getKey(KeyId.fromBytes(keyID));
+        return (key == null) ? null : new KeyPair(keyID, key);
+    }
+    
+    /**
+     * Determine if the store holds a key for the given key ID
+     * 
+     * @param keyID the key ID
+     * @return true if the key ID is in the store
+     * @throws IOException
+     */
+    public synchronized boolean contains(KeyId keyID) throws IOException {
+        return lookup(keyID.getMostSignificantBits(), keyID.getLeastSignificantBits()) >= 0;
+    }
+    
+    /**
+     * Returns the number of key pairs in the store, including those added by other
+     * processes
+     * 
+     * @return the key pair count
+     */
+    public synchronized int size() {
+        return keys.getInt(KEYS_COUNT);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        keysRaf.close();
+    }
+}
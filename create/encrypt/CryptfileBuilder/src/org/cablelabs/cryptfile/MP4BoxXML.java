@@ -26,6 +26,9 @@
 
 package org.cablelabs.cryptfile;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
@@ -38,5 +41,16 @@ public interface MP4BoxXML {
      * @return the XML Element
      */
     public abstract Node generateXML(Document d);
+    
+    /**
+     * Write the XML representation directly to the given stream writer.  Must
+     * produce the same elements and attributes as {@link #generateXML(Document)}.
+     * Attributes are written in name order since that is how the DOM serializer
+     * orders them
+     * 
+     * @param w the stream writer
+     * @throws XMLStreamException
+     */
+    public abstract void writeXML(XMLStreamWriter w) throws XMLStreamException;
 
 }
@@ -0,0 +1,188 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A <i>DRMInfo</i> element read back from an existing cryptfile.  The DRM-specific
+ * content is not interpreted -- the attributes of the DRMInfo element and each of its
+ * <i>BS</i> children are kept exactly as they were read so that the element can be
+ * written back unchanged.
+ * <p>
+ * If the binary PSSH box is known (see {@link #setPSSHBox(byte[])}), it is used as the
+ * <i>cenc:pssh</i> data of the DASH ContentProtection element.
+ */
+public class OpaqueDRMInfo extends DRMInfoPSSH {
+    
+    private static final String DRM_INFO_ELEMENT = "DRMInfo";
+    private static final String BS_ELEMENT = "BS";
+    
+    // Attributes are stored as alternating name/value pairs sorted by name
+    private String[] attributes;
+    private List<String[]> bitstreams = new ArrayList<String[]>();
+    private byte[] psshBox;
+    
+    // Sort name/value pairs by name, the order in which the DOM serializer writes them
+    private static String[] sortAttributes(String[] nameValues) {
+        int count = nameValues.length / 2;
+        String[][] pairs = new String[count][];
+        for (int i = 0; i < count; i++) {
+            pairs[i] = new String[] { nameValues[i*2], nameValues[i*2 + 1] };
+        }
+        Arrays.sort(pairs, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+        String[] sorted = new String[count * 2];
+        for (int i = 0; i < count; i++) {
+            sorted[i*2] = pairs[i][0];
+            sorted[i*2 + 1] = pairs[i][1];
+        }
+        return sorted;
+    }
+    
+    /**
+     * Create a new opaque DRMInfo
+     * 
+     * @param systemID the system ID (taken from the first ID128 bitstream)
+     * @param attributes the DRMInfo element attributes as alternating name/value pairs
+     */
+    public OpaqueDRMInfo(byte[] systemID, String[] attributes) {
+        super(systemID);
+        if (attributes.length % 2 != 0)
+            throw new IllegalArgumentException("Attributes must be name/value pairs");
+        this.attributes = sortAttributes(attributes);
+    }
+    
+    /**
+     * Add the next <i>BS</i> child element
+     * 
+     * @param attributes the BS element attributes as alternating name/value pairs
+     */
+    public void addBitstream(String[] attributes) {
+        if (attributes.length % 2 != 0)
+            throw new IllegalArgumentException("Attributes must be name/value pairs");
+        bitstreams.add(sortAttributes(attributes));
+    }
+    
+    /**
+     * Set the complete binary PSSH box that corresponds to this DRMInfo
+     * 
+     * @param psshBox the PSSH box
+     */
+    public void setPSSHBox(byte[] psshBox) {
+        this.psshBox = psshBox;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPSSHBoxSize()
+     */
+    @Override
+    public int getPSSHBoxSize() {
+        if (psshBox == null)
+            throw new UnsupportedOperationException();
+        return psshBox.length;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePSSHBox(java.nio.ByteBuffer)
+     */
+    @Override
+    public void writePSSHBox(ByteBuffer bb) throws IOException {
+        if (psshBox == null)
+            throw new UnsupportedOperationException();
+        bb.put(psshBox);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#generateContentProtection(org.w3c.dom.Document)
+     */
+    @Override
+    public Element generateContentProtection(Document d) throws IOException {
+        Element e = super.generateContentProtection(d);
+        if (psshBox != null)
+            e.appendChild(generateCENCContentProtectionData(d));
+        return e;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+     */
+    @Override
+    public Node generateXML(Document d) {
+        Element e = d.createElement(DRM_INFO_ELEMENT);
+        for (int i = 0; i < attributes.length; i += 2)
+            e.setAttribute(attributes[i], attributes[i + 1]);
+        for (String[] bs : bitstreams) {
+            Element b = d.createElement(BS_ELEMENT);
+            for (int i = 0; i < bs.length; i += 2)
+                b.setAttribute(bs[i], bs[i + 1]);
+            e.appendChild(b);
+        }
+        return e;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        if (bitstreams.isEmpty())
+            w.writeEmptyElement(DRM_INFO_ELEMENT);
+        else
+            w.writeStartElement(DRM_INFO_ELEMENT);
+        for (int i = 0; i < attributes.length; i += 2)
+            w.writeAttribute(attributes[i], attributes[i + 1]);
+        for (String[] bs : bitstreams) {
+            w.writeEmptyElement(BS_ELEMENT);
+            for (int i = 0; i < bs.length; i += 2)
+                w.writeAttribute(bs[i], bs[i + 1]);
+        }
+        if (!bitstreams.isEmpty())
+            w.writeEndElement();
+    }
+}
@@ -0,0 +1,284 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * A content-addressed, size-bounded, on-disk cache of generated <i>DRMInfo</i> elements
+ * and their binary PSSH boxes.
+ * <p>
+ * Entries are addressed by a SHA-256 hash of everything that goes into building a
+ * particular PSSH (see {@link KeyBuilder}).  DRM-specific classes provide static
+ * helpers that compute this key from the same inputs used by their constructors so that
+ * a cache hit skips construction of the PSSH entirely.  Cached entries are returned as
+ * {@link OpaqueDRMInfo} objects that write exactly the same DRMInfo element and
+ * <i>cenc:pssh</i> data as the original.
+ * <p>
+ * Each entry is a single file in the cache directory.  The least recently used entries
+ * are removed once the total size of all entries exceeds the configured limit.  A cache
+ * may be shared by multiple threads.
+ */
+public class PSSHCache {
+    
+    private static final String ENTRY_SUFFIX = ".drm";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    // Bumped whenever the key derivation or entry format changes so that stale
+    // entries are never returned
+    private static final int FORMAT_VERSION = 3;
+    
+    private CacheStore store;
+    
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    
+    // StAX factories are not guaranteed to be thread-safe, so each thread gets its own
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            return XMLInputFactory.newInstance();
+        }
+    };
+    private static final ThreadLocal<XMLOutputFactory> xmlOutputFactory = new ThreadLocal<XMLOutputFactory>() {
+        @Override
+        protected XMLOutputFactory initialValue() {
+            return XMLOutputFactory.newInstance();
+        }
+    };
+    
+    /**
+     * Computes the cache key for a single PSSH.  Every input is length-prefixed so that
+     * different combinations of fields can never produce the same key.
+     */
+    public static class KeyBuilder {
+        
+        private MessageDigest md;
+        
+        /**
+         * Start a new cache key
+         * 
+         * @param systemID the DRM system ID
+         * @param psshVersion the PSSH box version
+         */
+        public KeyBuilder(byte[] systemID, int psshVersion) {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not supported");
+            }
+            add(FORMAT_VERSION);
+            add(systemID);
+            add(psshVersion);
+        }
+        
+        /**
+         * Add an integer field
+         * 
+         * @param value the value
+         * @return this builder
+         */
+        public KeyBuilder add(int value) {
+            md.update((byte)(value >> 24));
+            md.update((byte)(value >> 16));
+            md.update((byte)(value >> 8));
+            md.update((byte)value);
+            return this;
+        }
+        
+        /**
+         * Add a binary field
+         * 
+         * @param data the data, may be null
+         * @return this builder
+         */
+        public KeyBuilder add(byte[] data) {
+            if (data == null)
+                return add(-1);
+            add(data.length);
+            md.update(data);
+            return this;
+        }
+        
+        /**
+         * Add a key ID field
+         * 
+         * @param keyID the key ID
+         * @return this builder
+         */
+        public KeyBuilder add(KeyId keyID) {
+            return add(keyID.toBytes());
+        }
+        
+        /**
+         * Add a string field
+         * 
+         * @param s the string, may be null
+         * @return this builder
+         */
+        public KeyBuilder add(String s) {
+            return add(s == null ? null : s.getBytes(UTF8));
+        }
+        
+        /**
+         * Returns the cache key.  The builder may not be used afterwards.
+         * 
+         * @return the key as a hex string
+         */
+        public String build() {
+            return KeyCodec.encodeHex(md.digest());
+        }
+    }
+    
+    /**
+     * Open a cache.  The directory is created if it does not exist, and any
+     * existing entries are reused.
+     * 
+     * @param dir the cache directory
+     * @param maxBytes the maximum total size of all cache entries
+     * @throws IOException if the cache directory could not be created
+     */
+    public PSSHCache(File dir, long maxBytes) throws IOException {
+        store = new CacheStore(dir, ENTRY_SUFFIX, maxBytes, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Look up a PSSH in the cache.  Entries that can not be parsed are removed and
+     * reported as misses
+     * 
+     * @param key the cache key
+     * @return the cached DRMInfo or null if the cache does not contain the key
+     * @throws IOException if the cache entry could not be read
+     */
+    public DRMInfoPSSH get(String key) throws IOException {
+        CacheStore.Entry entry = store.read(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        
+        // Entry format is the base64 PSSH box (may be empty) on the first line followed
+        // by the DRMInfo element
+        OpaqueDRMInfo drmInfo = parseEntry(new String(entry.data, UTF8));
+        if (drmInfo == null) {
+            store.discard(key, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+        
+        store.touch(key);
+        hits.incrementAndGet();
+        return drmInfo;
+    }
+    
+    // Returns the DRMInfo of a cache entry, or null if the entry is corrupt
+    private static OpaqueDRMInfo parseEntry(String entry) {
+        int newline = entry.indexOf('\n');
+        if (newline < 0)
+            return null;
+        try {
+            OpaqueDRMInfo drmInfo;
+            XMLStreamReader r = xmlInputFactory.get().createXMLStreamReader(
+                    new StringReader(entry.substring(newline + 1)));
+            try {
+                drmInfo = CryptfileReader.parseDRMInfo(r);
+            }
+            finally {
+                r.close();
+            }
+            if (newline > 0)
+                drmInfo.setPSSHBox(KeyCodec.decodeBase64(entry.substring(0, newline)));
+            return drmInfo;
+        }
+        catch (XMLStreamException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Add a PSSH to the cache.  The DRMInfo element and, if supported by the PSSH, the
+     * binary PSSH box are stored.
+     * 
+     * @param key the cache key
+     * @param pssh the PSSH
+     * @throws IOException if the cache entry could not be written
+     */
+    public void put(String key, DRMInfoPSSH pssh) throws IOException {
+        StringWriter sw = new StringWriter();
+        try {
+            sw.write(KeyCodec.encodeBase64(pssh.generatePSSHBox()));
+        }
+        catch (UnsupportedOperationException e) {
+            // DRMInfo only
+        }
+        sw.write('\n');
+        try {
+            XMLStreamWriter w = xmlOutputFactory.get().createXMLStreamWriter(sw);
+            pssh.writeXML(w);
+            w.close();
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Could not serialize DRMInfo", e);
+        }
+        store.write(key, sw.toString().getBytes(UTF8));
+    }
+    
+    /**
+     * Returns the number of lookups that found an entry
+     * 
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Returns the number of lookups that did not find an entry
+     * 
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
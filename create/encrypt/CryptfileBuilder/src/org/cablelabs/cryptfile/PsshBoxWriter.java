@@ -0,0 +1,114 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Writes binary PSSH boxes into a reusable {@link ByteBuffer}.  The exact size of each
+ * box is known before anything is written, so every box is written exactly once with
+ * no intermediate copies.  To write into a caller-supplied buffer, use
+ * {@link DRMInfoPSSH#writePSSHBox(ByteBuffer)} directly.
+ * <p>
+ * Instances are not thread-safe.  Each thread should own its own writer.
+ */
+public class PsshBoxWriter {
+    
+    private static final int DEFAULT_CAPACITY = 4096;
+    
+    private ByteBuffer buffer;
+    private boolean direct;
+    
+    /**
+     * Create a new writer with a default-sized heap buffer
+     */
+    public PsshBoxWriter() {
+        this(DEFAULT_CAPACITY, false);
+    }
+    
+    /**
+     * Create a new writer
+     * 
+     * @param initialCapacity the initial size of the buffer.  The buffer grows as needed
+     * @param direct true to use a direct buffer, false to use a heap buffer
+     */
+    public PsshBoxWriter(int initialCapacity, boolean direct) {
+        this.direct = direct;
+        this.buffer = allocate(initialCapacity);
+    }
+    
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+    
+    // Make sure the buffer can hold the given number of bytes and reset it
+    private void reset(int size) {
+        if (buffer.capacity() < size)
+            buffer = allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.clear();
+    }
+    
+    /**
+     * Write a single PSSH box
+     * 
+     * @param pssh the PSSH
+     * @return a buffer holding the box from position 0 to its limit.  The buffer is
+     * reused by the next call to this writer
+     * @throws IOException
+     * @throws UnsupportedOperationException if the PSSH does not provide PSSH data
+     */
+    public ByteBuffer write(DRMInfoPSSH pssh) throws IOException {
+        reset(pssh.getPSSHBoxSize());
+        pssh.writePSSHBox(buffer);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Write several PSSH boxes back-to-back, as they would appear in a <i>moov</i> box
+     * 
+     * @param psshList the PSSH
+     * @return a buffer holding all boxes from position 0 to its limit.  The buffer is
+     * reused by the next call to this writer
+     * @throws IOException
+     * @throws UnsupportedOperationException if any PSSH does not provide PSSH data
+     */
+    public ByteBuffer write(List<DRMInfoPSSH> psshList) throws IOException {
+        int size = 0;
+        for (DRMInfoPSSH pssh : psshList) {
+            size += pssh.getPSSHBoxSize();
+        }
+        reset(size);
+        for (DRMInfoPSSH pssh : psshList) {
+            pssh.writePSSHBox(buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
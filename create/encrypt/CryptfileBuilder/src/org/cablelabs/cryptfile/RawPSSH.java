@@ -0,0 +1,195 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A PSSH created from a complete binary PSSH box, such as those exchanged in CPIX
+ * documents.  The system ID, key IDs (version 1+) and data are taken from the box,
+ * so the DRMInfo element regenerates exactly the same box.
+ */
+public class RawPSSH extends DRMInfoPSSH {
+    
+    private static final int PSSH_TYPE = ('p' << 24) | ('s' << 16) | ('s' << 8) | 'h';
+    
+    private byte[] data;
+    
+    /**
+     * Parse a binary PSSH box
+     * 
+     * @param box the complete PSSH box, including the box header
+     * @return the PSSH
+     * @throws IllegalArgumentException if the box is not a valid PSSH box
+     */
+    public static RawPSSH parse(byte[] box) {
+        ByteBuffer bb = ByteBuffer.wrap(box);
+        try {
+            int size = bb.getInt();
+            if (size != box.length)
+                throw new IllegalArgumentException("PSSH box size (" + size + ") does not match data length (" +
+                                                   box.length + ")");
+            if (bb.getInt() != PSSH_TYPE)
+                throw new IllegalArgumentException("Not a PSSH box");
+            int version = bb.getInt() >>> 24;
+            byte[] systemID = new byte[16];
+            bb.get(systemID);
+            
+            KeyIdSet keyIDs = null;
+            if (version > 0) {
+                int count = bb.getInt();
+                if (count < 0 || count > bb.remaining() / KeyId.SIZE)
+                    throw new IllegalArgumentException("Invalid PSSH key ID count: " + count);
+                keyIDs = new KeyIdSet(count);
+                for (int i = 0; i < count; i++) {
+                    keyIDs.add(bb.getLong(), bb.getLong());
+                }
+            }
+            
+            int dataSize = bb.getInt();
+            if (dataSize != bb.remaining())
+                throw new IllegalArgumentException("Invalid PSSH data size: " + dataSize);
+            byte[] data = new byte[dataSize];
+            bb.get(data);
+            
+            return (keyIDs == null) ? new RawPSSH(systemID, data) : new RawPSSH(systemID, version, keyIDs, data);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated PSSH box");
+        }
+    }
+    
+    /**
+     * Create a version 0 PSSH
+     * 
+     * @param systemID the DRM system ID
+     * @param data the DRM-specific PSSH data
+     */
+    public RawPSSH(byte[] systemID, byte[] data) {
+        super(systemID);
+        this.data = data;
+    }
+    
+    /**
+     * Create a version 1+ PSSH
+     * 
+     * @param systemID the DRM system ID
+     * @param psshVersion the PSSH version
+     * @param keyIDs the key IDs listed in the PSSH
+     * @param data the DRM-specific PSSH data
+     */
+    public RawPSSH(byte[] systemID, int psshVersion, KeyIdSet keyIDs, byte[] data) {
+        super(systemID, psshVersion, keyIDs);
+        this.data = data;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#merge(org.cablelabs.cryptfile.DRMInfoPSSH)
+     */
+    @Override
+    public DRMInfoPSSH merge(DRMInfoPSSH other) {
+        
+        // Only boxes that differ in nothing but their key IDs can be combined
+        if (!(other instanceof RawPSSH) || getPSSHVersion() < 1 ||
+                other.getPSSHVersion() != getPSSHVersion() ||
+                !Arrays.equals(data, ((RawPSSH)other).data))
+            return null;
+        return new RawPSSH(systemID, getPSSHVersion(), mergeKeyIDs(other), data);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#generateContentProtection(org.w3c.dom.Document)
+     */
+    @Override
+    public Element generateContentProtection(Document d) throws IOException {
+        Element e = super.generateContentProtection(d);
+        e.appendChild(generateCENCContentProtectionData(d));
+        return e;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#generatePSSHData(java.io.DataOutputStream)
+     */
+    @Override
+    protected void generatePSSHData(DataOutputStream dos) throws IOException {
+        dos.write(data);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPSSHDataSize()
+     */
+    @Override
+    protected int getPSSHDataSize() {
+        return data.length;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+     */
+    @Override
+    public Node generateXML(Document d) {
+        Element e = generateDRMInfo(d);
+        if (data.length > 0) {
+            Bitstream b = new Bitstream();
+            b.setupDataB64(data);
+            e.appendChild(b.generateXML(d));
+        }
+        return e;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        if (data.length > 0) {
+            Bitstream b = new Bitstream();
+            b.setupDataB64(data);
+            b.writeXML(w);
+        }
+        w.writeEndElement();
+    }
+}
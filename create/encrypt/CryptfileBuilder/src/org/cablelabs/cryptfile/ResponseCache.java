@@ -0,0 +1,324 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An encrypted, time- and size-bounded, on-disk cache of key server responses.  Caching
+ * the response for an asset makes re-generating its cryptfile idempotent (the same keys
+ * and PSSH are used every time) and avoids the round trip to the key server.
+ * <p>
+ * Entries are addressed by a SHA-256 hash of the request fields (see {@link #key(String...)}).
+ * Responses contain content keys, so every entry is encrypted with AES-CTR and
+ * authenticated with HMAC-SHA256 using keys derived from a secret cache key.  The cache
+ * key should be kept apart from the cache directory (see {@link #loadKey(File)}).  Entries
+ * older than the time-to-live, entries that fail authentication, and the least recently
+ * used entries beyond the entry limit are removed.
+ * <p>
+ * Each entry is a single file in the cache directory.  A cache may be shared by multiple
+ * threads.
+ */
+public class ResponseCache {
+    
+    private static final String ENTRY_SUFFIX = ".resp";
+    private static final String TEMP_PREFIX = "tmp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int CACHE_KEY_SIZE = 32;
+    private static final int AES_KEY_SIZE = 16;
+    private static final int IV_SIZE = 16;
+    private static final int MAC_SIZE = 32;
+    
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    
+    // Bumped whenever the key derivation or entry format changes so that stale
+    // entries are never returned
+    private static final int FORMAT_VERSION = 1;
+    
+    // Format version, expiry time and IV
+    private static final int HEADER_SIZE = 4 + 8 + IV_SIZE;
+    
+    private CacheStore store;
+    private long ttlMillis;
+    
+    private SecretKeySpec encKey;
+    private SecretKeySpec macKey;
+    
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    
+    /**
+     * Open a cache.  The directory is created if it does not exist, and any
+     * existing entries are reused.
+     * 
+     * @param dir the cache directory
+     * @param cacheKey the 32-byte secret cache key
+     * @param ttlMillis the time, in milliseconds, that an entry remains valid after it is
+     * stored
+     * @param maxEntries the maximum number of entries
+     * @throws IOException if the cache directory could not be created
+     */
+    public ResponseCache(File dir, byte[] cacheKey, long ttlMillis, int maxEntries) throws IOException {
+        if (cacheKey == null || cacheKey.length != CACHE_KEY_SIZE)
+            throw new IllegalArgumentException("Cache key must be " + CACHE_KEY_SIZE + " bytes");
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("Invalid time-to-live: " + ttlMillis);
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("Invalid maximum entry count: " + maxEntries);
+        this.ttlMillis = ttlMillis;
+        
+        // Separate keys for encryption and authentication
+        encKey = new SecretKeySpec(Arrays.copyOf(hmac(cacheKey, "encrypt"), AES_KEY_SIZE), "AES");
+        macKey = new SecretKeySpec(hmac(cacheKey, "authenticate"), MAC_ALGORITHM);
+        
+        store = new CacheStore(dir, ENTRY_SUFFIX, Long.MAX_VALUE, maxEntries);
+    }
+    
+    private static byte[] hmac(byte[] key, String label) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac.doFinal(label.getBytes(UTF8));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " not supported", e);
+        }
+    }
+    
+    /**
+     * Read the secret cache key from the given file, creating the file with a new random
+     * key if it does not exist.  New key files are created atomically and are readable
+     * only by their owner.
+     * 
+     * @param keyFile the key file, holding the base64 cache key
+     * @return the 32-byte cache key
+     * @throws IOException if the key file could not be read or created
+     * @throws IllegalArgumentException if the key file does not hold a valid key
+     */
+    public static byte[] loadKey(File keyFile) throws IOException {
+        if (keyFile.exists())
+            return readKey(keyFile);
+        
+        File parent = keyFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create directory for cache key: " + parent);
+        
+        // Write the key to a temporary file created with owner-only permissions, so that
+        // the key is never readable by others, then link it into place.  Linking fails if
+        // the key file exists, so of several concurrent callers only one key is kept and
+        // a partially written key is never seen
+        Path path = keyFile.toPath();
+        Path tmp;
+        try {
+            tmp = Files.createTempFile(path.toAbsolutePath().getParent(), TEMP_PREFIX, null,
+                                       PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        }
+        catch (UnsupportedOperationException e) {
+            throw new IOException("Cannot restrict permissions of cache key file: " + keyFile, e);
+        }
+        try {
+            byte[] key = new byte[CACHE_KEY_SIZE];
+            KeyMaterialSource.getDefault().nextBytes(key);
+            Files.write(tmp, KeyCodec.encodeBase64(key).getBytes(UTF8));
+            Files.createLink(path, tmp);
+            return key;
+        }
+        catch (FileAlreadyExistsException e) {
+            return readKey(keyFile);
+        }
+        finally {
+            Files.delete(tmp);
+        }
+    }
+    
+    private static byte[] readKey(File keyFile) throws IOException {
+        byte[] key = KeyCodec.decodeBase64(new String(CacheStore.readFile(keyFile), UTF8).trim());
+        if (key == null || key.length != CACHE_KEY_SIZE)
+            throw new IllegalArgumentException("Cache key in " + keyFile + " is not " + CACHE_KEY_SIZE + " bytes");
+        return key;
+    }
+    
+    /**
+     * Computes the cache key for a request.  Every field is length-prefixed so that
+     * different combinations of fields can never produce the same key.
+     * 
+     * @param fields the request fields, which may be null
+     * @return the key as a hex string
+     */
+    public static String key(String... fields) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported");
+        }
+        ByteBuffer len = ByteBuffer.allocate(4);
+        len.putInt(0, FORMAT_VERSION);
+        md.update(len.array());
+        for (String field : fields) {
+            byte[] data = (field != null) ? field.getBytes(UTF8) : null;
+            len.putInt(0, (data != null) ? data.length : -1);
+            md.update(len.array());
+            if (data != null)
+                md.update(data);
+        }
+        return KeyCodec.encodeHex(md.digest());
+    }
+    
+    // The MAC covers the entry name, so an entry can not be passed off as another one
+    private byte[] mac(String key, byte[] entry, int len) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(macKey);
+        mac.update(key.getBytes(UTF8));
+        mac.update(entry, 0, len);
+        return mac.doFinal();
+    }
+    
+    private Cipher cipher(int mode, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(mode, encKey, new IvParameterSpec(iv));
+        return cipher;
+    }
+    
+    /**
+     * Look up a response in the cache.  Expired entries, and entries that were not
+     * written with this cache key or have been modified, are removed and reported as
+     * misses
+     * 
+     * @param key the cache key
+     * @return the cached response or null if the cache does not contain a valid entry
+     * for the key
+     * @throws IOException if the cache entry could not be read
+     */
+    public byte[] get(String key) throws IOException {
+        CacheStore.Entry cached = store.read(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        
+        // Entry format is the format version, expiry time and IV, followed by the
+        // encrypted response and the MAC of everything before it
+        byte[] entry = cached.data;
+        byte[] response = null;
+        try {
+            if (entry.length >= HEADER_SIZE + MAC_SIZE) {
+                int macOffset = entry.length - MAC_SIZE;
+                byte[] expected = mac(key, entry, macOffset);
+                if (MessageDigest.isEqual(expected, Arrays.copyOfRange(entry, macOffset, entry.length))) {
+                    ByteBuffer header = ByteBuffer.wrap(entry, 0, HEADER_SIZE);
+                    int version = header.getInt();
+                    long expires = header.getLong();
+                    if (version == FORMAT_VERSION && System.currentTimeMillis() < expires) {
+                        byte[] iv = Arrays.copyOfRange(entry, 4 + 8, HEADER_SIZE);
+                        response = cipher(Cipher.DECRYPT_MODE, iv).doFinal(entry, HEADER_SIZE, macOffset - HEADER_SIZE);
+                    }
+                }
+            }
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt cache entry: " + key, e);
+        }
+        
+        if (response == null) {
+            store.discard(key, cached);
+            misses.incrementAndGet();
+            return null;
+        }
+        
+        store.touch(key);
+        hits.incrementAndGet();
+        return response;
+    }
+    
+    /**
+     * Add a response to the cache.  It expires after the time-to-live of the cache
+     * 
+     * @param key the cache key
+     * @param response the response
+     * @throws IOException if the cache entry could not be written
+     */
+    public void put(String key, byte[] response) throws IOException {
+        byte[] iv = KeyMaterialSource.getDefault().nextIV(IV_SIZE);
+        byte[] entry = new byte[HEADER_SIZE + response.length + MAC_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(entry);
+        bb.putInt(FORMAT_VERSION);
+        bb.putLong(System.currentTimeMillis() + ttlMillis);
+        bb.put(iv);
+        try {
+            cipher(Cipher.ENCRYPT_MODE, iv).doFinal(response, 0, response.length, entry, HEADER_SIZE);
+            byte[] mac = mac(key, entry, HEADER_SIZE + response.length);
+            System.arraycopy(mac, 0, entry, HEADER_SIZE + response.length, MAC_SIZE);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt cache entry", e);
+        }
+        
+        store.write(key, entry);
+    }
+    
+    /**
+     * Returns the number of lookups that found a valid entry
+     * 
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * Returns the number of lookups that did not find a valid entry
+     * 
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
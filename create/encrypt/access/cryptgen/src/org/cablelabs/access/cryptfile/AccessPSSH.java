@@ -32,8 +32,14 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyId;
+import org.cablelabs.cryptfile.KeyIdSet;
+import org.cablelabs.cryptfile.PSSHCache;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -47,10 +53,53 @@ public class AccessPSSH extends DRMInfoPSSH {
         (byte)0xc6, (byte)0x93, (byte)0x2e, (byte)0xfb
     };
     
+    private KeyIdSet keyIDs;
     private byte[] accessMetadataBoxData;
     
+    /**
+     * Returns the {@link PSSHCache} key for the Adobe Access PSSH with the given key IDs
+     * 
+     * @param keyIDs the key IDs
+     * @return the cache key
+     */
+    public static String cacheKey(KeyIdSet keyIDs) {
+        PSSHCache.KeyBuilder kb = new PSSHCache.KeyBuilder(ACCESS_SYSTEM_ID, 0);
+        kb.add(keyIDs.size());
+        for (KeyId keyID : keyIDs) {
+            kb.add(keyID);
+        }
+        return kb.build();
+    }
+    
+    private static KeyIdSet toKeyIdSet(List<byte[]> keyIDs) {
+        KeyIdSet set = new KeyIdSet(keyIDs.size());
+        for (byte[] keyID : keyIDs) {
+            set.add(keyID);
+        }
+        return set;
+    }
+    
+    /**
+     * Create an Adobe Access PSSH for the given key IDs.  Duplicate key IDs
+     * are removed, otherwise the order is kept
+     * 
+     * @param keyIDs 16-byte key IDs
+     * @throws IOException
+     */
     public AccessPSSH(List<byte[]> keyIDs) throws IOException {
+        this(toKeyIdSet(keyIDs));
+    }
+    
+    /**
+     * Create an Adobe Access PSSH for the given key IDs
+     * 
+     * @param keyIDs the key IDs, in the order they should appear in the PSSH
+     * @throws IOException
+     */
+    public AccessPSSH(KeyIdSet keyIDs) throws IOException {
         super(ACCESS_SYSTEM_ID);
+        this.keyIDs = new KeyIdSet(keyIDs.size());
+        this.keyIDs.addAll(keyIDs);
         
         // Write AccessMetadata box data first
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -58,8 +107,9 @@ public class AccessPSSH extends DRMInfoPSSH {
         
         // Key IDs
         box.writeInt(keyIDs.size());
-        for (byte[] keyID : keyIDs) {
-            box.write(keyID);
+        for (KeyId keyID : keyIDs) {
+            box.writeLong(keyID.getMostSignificantBits());
+            box.writeLong(keyID.getLeastSignificantBits());
         }
         
         // Data (none for now)
@@ -68,6 +118,26 @@ public class AccessPSSH extends DRMInfoPSSH {
         accessMetadataBoxData = baos.toByteArray();
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#merge(org.cablelabs.cryptfile.DRMInfoPSSH)
+     */
+    @Override
+    public DRMInfoPSSH merge(DRMInfoPSSH other) {
+        if (!(other instanceof AccessPSSH))
+            return null;
+        KeyIdSet otherKeyIDs = ((AccessPSSH)other).keyIDs;
+        KeyIdSet merged = new KeyIdSet(keyIDs.size() + otherKeyIDs.size());
+        merged.addAll(keyIDs);
+        merged.addAll(otherKeyIDs);
+        try {
+            return new AccessPSSH(merged);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see org.cablelabs.cryptfile.DRMInfoPSSH#generateContentProtection(org.w3c.dom.Document)
@@ -75,7 +145,7 @@ public class AccessPSSH extends DRMInfoPSSH {
     @Override
     public Element generateContentProtection(Document d) throws IOException {
         Element e = super.generateContentProtection(d);
-        generateCENCContentProtectionData(d);
+        e.appendChild(generateCENCContentProtectionData(d));
         return e;
     }
 
@@ -87,7 +157,7 @@ public class AccessPSSH extends DRMInfoPSSH {
     protected void generatePSSHData(DataOutputStream dos) throws IOException {
         
         // Size is 4-byte "size" + 4-byte "boxtype" + 4-byte "version+flags" + datasize
-        dos.write(12 + accessMetadataBoxData.length);
+        dos.writeInt(12 + accessMetadataBoxData.length);
         
         // boxtype
         dos.write('a'); dos.write('m'); dos.write('e'); dos.write('t');
@@ -99,6 +169,15 @@ public class AccessPSSH extends DRMInfoPSSH {
         dos.write(accessMetadataBoxData);
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPSSHDataSize()
+     */
+    @Override
+    protected int getPSSHDataSize() {
+        return 12 + accessMetadataBoxData.length;
+    }
+
     /*
      * (non-Javadoc)
      * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
@@ -127,4 +206,33 @@ public class AccessPSSH extends DRMInfoPSSH {
         
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        
+        // Size 
+        b.setupInteger(12 + accessMetadataBoxData.length, 32);
+        b.writeXML(w);
+        
+        // Type
+        char[] amet = {'a','m','e','t'};
+        b.setupFourCC(amet);
+        b.writeXML(w);
+        
+        // Version & Flags
+        b.setupInteger(0, 32);
+        b.writeXML(w);
+        
+        // Box data
+        b.setupData(accessMetadataBoxData);
+        b.writeXML(w);
+        
+        w.writeEndElement();
+    }
 }
@@ -0,0 +1,268 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.cablelabs.access.cryptfile.AccessPSSH;
+import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyFileImporter;
+import org.cablelabs.cryptfile.KeyIdSet;
+import org.cablelabs.cryptfile.KeyMaterialSource;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KidIndex;
+import org.cablelabs.cryptfile.PSSHCache;
+import org.cablelabs.playready.PlayReadyKeyPair;
+import org.cablelabs.playready.WRMHeader;
+import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
+
+/**
+ * Generates the cryptfile for a single asset of a batch manifest.  Instances are not
+ * thread-safe; each worker thread should own its own generator so that the XML factories
+ * are created only once per thread.  A {@link PSSHCache} may be shared by all generators
+ * so that assets that reuse the same keys skip PSSH construction.
+ */
+public class AssetGenerator {
+    
+    private static final String DRM_CLEARKEY = "clearkey";
+    private static final String DRM_PLAYREADY = "playready";
+    private static final String DRM_ACCESS = "access";
+    
+    private XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+    private String playReadyURL;
+    private PSSHCache psshCache;
+    private KidIndex.Batch kidIndex;
+    
+    /**
+     * Create a new asset generator
+     * 
+     * @param playReadyURL the license URL to embed in PlayReady WRMHeaders
+     */
+    public AssetGenerator(String playReadyURL) {
+        this(playReadyURL, null);
+    }
+    
+    /**
+     * Create a new asset generator that caches generated PSSH
+     * 
+     * @param playReadyURL the license URL to embed in PlayReady WRMHeaders
+     * @param psshCache the PSSH cache, or null to always generate PSSH
+     */
+    public AssetGenerator(String playReadyURL, PSSHCache psshCache) {
+        this(playReadyURL, psshCache, null);
+    }
+    
+    /**
+     * Create a new asset generator that caches generated PSSH and records the key IDs
+     * of every generated cryptfile in a KID index
+     * 
+     * @param playReadyURL the license URL to embed in PlayReady WRMHeaders
+     * @param psshCache the PSSH cache, or null to always generate PSSH
+     * @param kidIndex the KID index batch, shared by all generators and committed by
+     * the caller, or null to not record key IDs
+     */
+    public AssetGenerator(String playReadyURL, PSSHCache psshCache, KidIndex.Batch kidIndex) {
+        this.playReadyURL = playReadyURL;
+        this.psshCache = psshCache;
+        this.kidIndex = kidIndex;
+    }
+    
+    private DRMInfoPSSH cacheGet(String key) throws IOException {
+        return (psshCache != null) ? psshCache.get(key) : null;
+    }
+    
+    private void cachePut(String key, DRMInfoPSSH pssh) throws IOException {
+        if (psshCache != null)
+            psshCache.put(key, pssh);
+    }
+    
+    // Parse a single <key_id>[<separator><key>] key specification
+    private KeyPair parseKey(String spec, String separator, boolean playready) {
+        String[] keypair = spec.trim().split(separator);
+        if (keypair.length == 2) {
+            return new KeyPair(keypair[0], keypair[1]);
+        }
+        if (keypair.length != 1) {
+            throw new IllegalArgumentException("Illegal keypair: " + spec);
+        }
+        
+        // No key given.  PlayReady keys are derived from the key seed, otherwise
+        // a random key is generated
+        if (playready) {
+            return new PlayReadyKeyPair(keypair[0]);
+        }
+        return new KeyPair(keypair[0], KeyMaterialSource.getDefault().nextKey());
+    }
+    
+    // Import all key pairs from a key file, reporting every line that could not be imported.
+    // Assets are already generated in parallel, so the file is imported in this thread
+    private static <T extends KeyPair> List<T> importKeyFile(String keyFile, KeyFileImporter.Factory<T> factory)
+            throws IOException {
+        KeyFileImporter.Result<T> result = new KeyFileImporter<T>(factory, 1).importFile(new File(keyFile));
+        if (result.hasErrors()) {
+            // Line errors are part of the message so that the output of concurrently
+            // generated assets does not interleave
+            StringBuilder msg = new StringBuilder("Illegal keypairs in key file: ").append(keyFile).
+                    append(" (").append(result.getErrors().size()).append(" line(s))");
+            for (KeyFileImporter.LineError e : result.getErrors()) {
+                msg.append(System.lineSeparator()).append('\t').append(keyFile).append(": ").append(e);
+            }
+            throw new IllegalArgumentException(msg.toString());
+        }
+        return result.getKeys();
+    }
+    
+    private List<KeyPair> parseKeys(AssetSpec.TrackSpec track, boolean playready) throws IOException {
+        List<KeyPair> keypairs = new ArrayList<KeyPair>();
+        if (track.keyFile != null) {
+            if (playready)
+                keypairs.addAll(importKeyFile(track.keyFile, PlayReadyKeyPair.KEY_FILE_FACTORY));
+            else
+                keypairs.addAll(importKeyFile(track.keyFile, KeyFileImporter.KEY_PAIRS));
+        }
+        else if (track.keys != null) {
+            for (String key : track.keys) {
+                keypairs.add(parseKey(key, "=", playready));
+            }
+        }
+        if (keypairs.isEmpty())
+            throw new IllegalArgumentException("No keys given for track " + track.id);
+        return keypairs;
+    }
+    
+    /**
+     * Build the cryptfile for the given asset and write it to the asset's output path
+     * 
+     * @param asset the asset
+     * @throws IOException if a key file could not be read or the cryptfile could not
+     * be written
+     * @throws XMLStreamException if there was an error generating the cryptfile
+     * @throws IllegalArgumentException if the asset specification is invalid
+     */
+    public void generate(AssetSpec asset) throws IOException, XMLStreamException {
+        
+        if (asset.out == null)
+            throw new IllegalArgumentException("No output path given");
+        if (asset.tracks == null || asset.tracks.length == 0)
+            throw new IllegalArgumentException("Must specify at least one track");
+        if (asset.drms == null || asset.drms.length == 0)
+            throw new IllegalArgumentException("Must specify at least one DRM");
+        
+        boolean clearkey = false;
+        boolean playready = false;
+        boolean access = false;
+        for (String drm : asset.drms) {
+            if (DRM_CLEARKEY.equalsIgnoreCase(drm))
+                clearkey = true;
+            else if (DRM_PLAYREADY.equalsIgnoreCase(drm))
+                playready = true;
+            else if (DRM_ACCESS.equalsIgnoreCase(drm))
+                access = true;
+            else
+                throw new IllegalArgumentException("Unsupported DRM: " + drm);
+        }
+        
+        List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
+        List<KeyPair> keypairs = new ArrayList<KeyPair>();
+        for (AssetSpec.TrackSpec t : asset.tracks) {
+            List<KeyPair> trackKeys = parseKeys(t, playready);
+            List<CryptKey> cryptKeys = new ArrayList<CryptKey>(trackKeys.size());
+            for (KeyPair key : trackKeys) {
+                cryptKeys.add(new CryptKey(key));
+            }
+            keypairs.addAll(trackKeys);
+            cryptTracks.add(new CryptTrack(t.id, 8, null, cryptKeys, asset.roll));
+        }
+        
+        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+        if (playready) {
+            List<PlayReadyKeyPair> prKeys = new ArrayList<PlayReadyKeyPair>(keypairs.size());
+            for (KeyPair key : keypairs) {
+                prKeys.add((key instanceof PlayReadyKeyPair) ?
+                        (PlayReadyKeyPair)key : new PlayReadyKeyPair(key));
+            }
+            WRMHeader.Version version = WRMHeader.minimumVersion(prKeys.size(), WRMHeader.AlgorithmID.AESCTR);
+            String cacheKey = PlayReadyPSSH.cacheKey(version, prKeys, playReadyURL);
+            DRMInfoPSSH pssh = cacheGet(cacheKey);
+            if (pssh == null) {
+                pssh = new PlayReadyPSSH(prKeys, playReadyURL, PlayReadyPSSH.ContentProtectionType.CENC);
+                cachePut(cacheKey, pssh);
+            }
+            psshList.add(pssh);
+        }
+        if (clearkey || access) {
+            KeyIdSet keyIDs = new KeyIdSet(keypairs.size());
+            for (KeyPair key : keypairs) {
+                keyIDs.add(key.getID());
+            }
+            if (clearkey) {
+                String cacheKey = ClearKeyPSSH.cacheKey(keyIDs);
+                DRMInfoPSSH pssh = cacheGet(cacheKey);
+                if (pssh == null) {
+                    pssh = new ClearKeyPSSH(keyIDs);
+                    cachePut(cacheKey, pssh);
+                }
+                psshList.add(pssh);
+            }
+            if (access) {
+                String cacheKey = AccessPSSH.cacheKey(keyIDs);
+                DRMInfoPSSH pssh = cacheGet(cacheKey);
+                if (pssh == null) {
+                    pssh = new AccessPSSH(keyIDs);
+                    cachePut(cacheKey, pssh);
+                }
+                psshList.add(pssh);
+            }
+        }
+        
+        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
+                                                          cryptTracks, psshList);
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(asset.out));
+        try {
+            cfBuilder.writeCryptfile(os, xmlOutputFactory);
+        }
+        finally {
+            os.close();
+        }
+        
+        if (kidIndex != null)
+            kidIndex.addCryptfile(asset.assetId, new File(asset.out).getAbsolutePath(), cfBuilder);
+    }
+}
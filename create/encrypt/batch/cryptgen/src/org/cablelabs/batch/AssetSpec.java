@@ -0,0 +1,86 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.batch;
+
+/**
+ * One asset entry in a batch manifest.  The manifest is a JSON-lines file with one
+ * asset object per line, for example:
+ * <pre>
+ * {"assetId":"movie1","out":"out/movie1.xml","drms":["playready","clearkey"],
+ *  "tracks":[{"id":1,"keys":["xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx"]},{"id":2,"keyFile":"audio.keys"}]}
+ * </pre>
+ */
+public class AssetSpec {
+    
+    /**
+     * A single track to be encrypted
+     */
+    public static class TrackSpec {
+        
+        /**
+         * The track ID from the MP4 file
+         */
+        public int id;
+        
+        /**
+         * Keys in the form &lt;key_id&gt;[=&lt;key&gt;].  Key IDs are GUIDs and keys are
+         * hexadecimal.  Multiple keys indicate the use of rolling keys
+         */
+        public String[] keys;
+        
+        /**
+         * A file containing one key per line in the form &lt;key_id&gt;[:&lt;key&gt;].  Used
+         * instead of <i>keys</i>
+         */
+        public String keyFile;
+    }
+    
+    /**
+     * Unique asset identifier used when reporting results
+     */
+    public String assetId;
+    
+    /**
+     * The cryptfile output path
+     */
+    public String out;
+    
+    /**
+     * The DRMs to generate PSSH for ("clearkey", "playready", or "access")
+     */
+    public String[] drms;
+    
+    /**
+     * Number of consecutive samples encrypted with each key when using rolling keys
+     */
+    public int roll = -1;
+    
+    /**
+     * Tracks to encrypt
+     */
+    public TrackSpec[] tracks;
+}
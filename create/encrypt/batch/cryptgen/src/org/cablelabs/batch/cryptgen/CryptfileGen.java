@@ -0,0 +1,317 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.batch.cryptgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cablelabs.batch.AssetGenerator;
+import org.cablelabs.batch.AssetSpec;
+import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cryptfile.KidIndex;
+import org.cablelabs.cryptfile.PSSHCache;
+import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * This utility will build MP4Box cryptfiles for many assets in a single process.  Assets
+ * are read from a manifest and spread across a pool of worker threads.  A failure in one
+ * asset is reported and does not stop the others.
+ */
+public class CryptfileGen {
+
+    private static class Usage implements org.cablelabs.cmdline.Usage {
+        public void usage() {
+            System.out.println("Batch MP4Box cryptfile generation tool.");
+            System.out.println("");
+            System.out.println("usage:  CryptfileGen [OPTIONS] <manifest_file>");
+            System.out.println("");
+            System.out.println("\t<manifest_file> is a file with one JSON asset description per line.  Blank lines");
+            System.out.println("\tand lines starting with '#' are ignored.  Each asset has the form:");
+            System.out.println("");
+            System.out.println("\t\t{\"assetId\":\"<id>\", \"out\":\"<cryptfile>\", \"drms\":[\"<drm>\",...], \"roll\":<sample_count>,");
+            System.out.println("\t\t \"tracks\":[{\"id\":<track_id>, \"keys\":[\"<key_id>[=<key>]\",...]},");
+            System.out.println("\t\t           {\"id\":<track_id>, \"keyFile\":\"<key_file>\"},...]}");
+            System.out.println("");
+            System.out.println("\t\t<drm> is one of 'clearkey', 'playready', or 'access'.");
+            System.out.println("");
+            System.out.println("\t\t<key_id> is a key ID in GUID form and <key> is a 16-byte key value in hexadecimal.");
+            System.out.println("\t\tIf the key is omitted, it is derived from the PlayReady test server key seed when");
+            System.out.println("\t\t'playready' is one of the DRMs, otherwise a random key is generated.");
+            System.out.println("");
+            System.out.println("\t\t<key_file> contains one <key_id>[:<key>] per line.  CSV and JSON-lines key files, and");
+            System.out.println("\t\tkey IDs and keys in hex or base64, are also accepted.");
+            System.out.println("");
+            System.out.println("\t\t\"roll\" is optional and used for rolling keys only.");
+            System.out.println("");
+            System.out.println("\tOPTIONS:");
+            System.out.println("");
+            System.out.println("\t-cache <cache_dir>");
+            System.out.println("\t\tIf present, generated DRMInfo/PSSH are cached in the given directory and reused");
+            System.out.println("\t\tby any asset (in this or later runs) with the same DRM inputs.");
+            System.out.println("");
+            System.out.println("\t-cachesize <megabytes>");
+            System.out.println("\t\tMaximum size of the PSSH cache.  Least recently used entries are removed when");
+            System.out.println("\t\tthe cache grows beyond this size.  Default is 64.");
+            System.out.println("");
+            System.out.println("\t-kidindex <index_dir>");
+            System.out.println("\t\tRecord the key IDs of all generated cryptfiles in the given KID index.  Entries are");
+            System.out.println("\t\twritten in one batch when all assets are done.");
+            System.out.println("");
+            System.out.println("\t-help");
+            System.out.println("\t\tDisplay this usage message.");
+            System.out.println("");
+            System.out.println("\t-quiet");
+            System.out.println("\t\tDo not log successfully generated assets on stdout.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tNumber of worker threads.  Default is the number of available processors.");
+            System.out.println("");
+            System.out.println("\t-url <license_url>");
+            System.out.println("\t\tIf present, specifies the license URL to embed in PlayReady WRMHeaders.  If not");
+            System.out.println("\t\tspecified, the PlayReady test server URL is used.");
+        }
+    }
+    
+    public static void main(String[] args) {
+        
+        CmdLine cmdline = new CmdLine(new Usage());
+        
+        int threads = Runtime.getRuntime().availableProcessors();
+        String url = PlayReadyPSSH.TEST_URL;
+        String manifest = null;
+        String cacheDir = null;
+        long cacheSize = 64;
+        String kidIndexDir = null;
+        
+        PrintStream outputStream = System.out;
+        
+        // Parse arguments
+        for (int i = 0; i < args.length; i++) {
+            
+            // Parse options
+            if (args[i].startsWith("-")) {
+                String[] subopts;
+                if ((subopts = cmdline.checkOption("-help", args, i, 0)) != null) {
+                    (new Usage()).usage();
+                    System.exit(0);
+                }
+                else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                    try {
+                        threads = Integer.parseInt(subopts[0]);
+                    }
+                    catch (NumberFormatException e) {
+                        threads = 0;
+                    }
+                    if (threads < 1)
+                        cmdline.errorExit("Illegal thread count: " + subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cache", args, i, 1)) != null) {
+                    cacheDir = subopts[0];
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-cachesize", args, i, 1)) != null) {
+                    try {
+                        cacheSize = Long.parseLong(subopts[0]);
+                    }
+                    catch (NumberFormatException e) {
+                        cacheSize = 0;
+                    }
+                    if (cacheSize < 1)
+                        cmdline.errorExit("Illegal cache size: " + subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-kidindex", args, i, 1)) != null) {
+                    kidIndexDir = subopts[0];
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-url", args, i, 1)) != null) {
+                    url = subopts[0];
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-quiet", args, i, 0)) != null) {
+                    outputStream = new PrintStream(new OutputStream() {
+                        public void write(int b) {
+                        }
+                    });
+                }
+                else {
+                    cmdline.errorExit("Illegal argument: " + args[i]);
+                }
+                
+                continue;
+            }
+            
+            if (manifest != null) {
+                cmdline.errorExit("Only one manifest file may be specified");
+            }
+            manifest = args[i];
+        }
+        
+        if (manifest == null) {
+            cmdline.errorExit("Must specify manifest file!");
+        }
+        
+        PSSHCache cache = null;
+        if (cacheDir != null) {
+            try {
+                cache = new PSSHCache(new File(cacheDir), cacheSize * 1024 * 1024);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Could not open PSSH cache: " + e.getMessage());
+            }
+        }
+        
+        KidIndex.Batch batch = null;
+        if (kidIndexDir != null) {
+            try {
+                batch = new KidIndex(new File(kidIndexDir)).newBatch();
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Could not open KID index: " + e.getMessage());
+            }
+        }
+        
+        // Each worker thread keeps its own generator (and XML factories).  The queue is
+        // bounded so that huge manifests are not read into memory all at once -- when it
+        // fills up, the reading thread generates assets itself
+        final String licenseURL = url;
+        final PSSHCache psshCache = cache;
+        final KidIndex.Batch kidIndex = batch;
+        final ThreadLocal<AssetGenerator> generators = new ThreadLocal<AssetGenerator>() {
+            @Override
+            protected AssetGenerator initialValue() {
+                return new AssetGenerator(licenseURL, psshCache, kidIndex);
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final PrintStream log = outputStream;
+        Gson gson = new Gson();
+        
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(manifest));
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                
+                final AssetSpec asset;
+                try {
+                    asset = gson.fromJson(line, AssetSpec.class);
+                }
+                catch (JsonParseException e) {
+                    System.err.println("FAILED line " + lineNumber + " -- Illegal asset description: " + e.getMessage());
+                    failed.incrementAndGet();
+                    continue;
+                }
+                if (asset == null) {
+                    // The JSON literal 'null'
+                    System.err.println("FAILED line " + lineNumber + " -- Illegal asset description");
+                    failed.incrementAndGet();
+                    continue;
+                }
+                if (asset.assetId == null) {
+                    asset.assetId = "line " + lineNumber;
+                }
+                
+                // Each asset's result is logged with a single println so that the output of
+                // concurrent workers does not interleave
+                final int assetLine = lineNumber;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            generators.get().generate(asset);
+                            succeeded.incrementAndGet();
+                            log.println("OK " + asset.assetId + " -> " + asset.out);
+                        }
+                        catch (Exception e) {
+                            failed.incrementAndGet();
+                            System.err.println("FAILED line " + assetLine + " (" + asset.assetId + ") -- " + e.getMessage());
+                        }
+                    }
+                });
+            }
+            br.close();
+        }
+        catch (FileNotFoundException e) {
+            cmdline.errorExit("Manifest file not found: " + e.getMessage());
+        }
+        catch (IOException e) {
+            System.err.println("Error reading from manifest file: " + e.getMessage());
+            failed.incrementAndGet();
+        }
+        
+        // Wait for all outstanding assets
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Still working
+            }
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        
+        outputStream.println("Generated " + succeeded.get() + " cryptfile(s), " + failed.get() + " failed");
+        if (kidIndex != null) {
+            try {
+                outputStream.println("Recorded " + kidIndex.commit() + " key ID(s) in KID index: " + kidIndexDir);
+            }
+            catch (IOException e) {
+                System.err.println("Error writing KID index: " + e.getMessage());
+                failed.incrementAndGet();
+            }
+        }
+        if (psshCache != null) {
+            outputStream.println("PSSH cache: " + psshCache.getHits() + " hit(s), " + psshCache.getMisses() + " miss(es)");
+        }
+        if (failed.get() != 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.batch.kidquery;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cryptfile.KeyFileImporter;
+import org.cablelabs.cryptfile.KeyId;
+import org.cablelabs.cryptfile.KidIndex;
+
+/**
+ * This utility answers which assets, tracks, DRM systems and cryptfiles used a
+ * key ID, from the KID index recorded by the cryptfile generators.
+ */
+public class KidQuery {
+    
+    private static final int EXIT_NOT_FOUND = 2;
+
+    private static class Usage implements org.cablelabs.cmdline.Usage {
+        public void usage() {
+            System.out.println("KID index query tool.");
+            System.out.println("");
+            System.out.println("usage:  KidQuery [OPTIONS] <index_dir> [<key_id>...]");
+            System.out.println("");
+            System.out.println("\t<index_dir> is a KID index directory written with the -kidindex option of the");
+            System.out.println("\tcryptfile generators.");
+            System.out.println("");
+            System.out.println("\t<key_id> is a key ID in GUID form, 32 hex digits or base64.  Every use of each key");
+            System.out.println("\tID is printed.  Exits with status " + EXIT_NOT_FOUND + " if any key ID was not found.");
+            System.out.println("");
+            System.out.println("\tOPTIONS:");
+            System.out.println("");
+            System.out.println("\t-help");
+            System.out.println("\t\tDisplay this usage message.");
+            System.out.println("");
+            System.out.println("\t-file <keyid_file>");
+            System.out.println("\t\tAlso look up the key IDs in the given file, one key ID per line.");
+            System.out.println("");
+            System.out.println("\t-compact");
+            System.out.println("\t\tMerge all index segments into one before querying.  Keeps lookups fast after");
+            System.out.println("\t\tmany generator runs.");
+            System.out.println("");
+            System.out.println("\t-stats");
+            System.out.println("\t\tPrint the number of segments and entries in the index.");
+        }
+    }
+    
+    public static void main(String[] args) {
+        
+        CmdLine cmdline = new CmdLine(new Usage());
+        
+        String indexDir = null;
+        List<String> keyIDs = new ArrayList<String>();
+        boolean compact = false;
+        boolean stats = false;
+        
+        // Parse arguments
+        for (int i = 0; i < args.length; i++) {
+            
+            // Parse options
+            if (args[i].startsWith("-")) {
+                String[] subopts;
+                if ((subopts = cmdline.checkOption("-help", args, i, 0)) != null) {
+                    (new Usage()).usage();
+                    System.exit(0);
+                }
+                else if ((subopts = cmdline.checkOption("-file", args, i, 1)) != null) {
+                    try {
+                        BufferedReader br = new BufferedReader(new FileReader(subopts[0]));
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            if (!line.trim().isEmpty())
+                                keyIDs.add(line.trim());
+                        }
+                        br.close();
+                    }
+                    catch (FileNotFoundException e) {
+                        cmdline.errorExit("Key ID file not found: " + e.getMessage());
+                    }
+                    catch (IOException e) {
+                        cmdline.errorExit("Error reading from Key ID file: " + e.getMessage());
+                    }
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-compact", args, i, 0)) != null) {
+                    compact = true;
+                }
+                else if ((subopts = cmdline.checkOption("-stats", args, i, 0)) != null) {
+                    stats = true;
+                }
+                else {
+                    cmdline.errorExit("Illegal argument: " + args[i]);
+                }
+                
+                continue;
+            }
+            
+            if (indexDir == null)
+                indexDir = args[i];
+            else
+                keyIDs.add(args[i]);
+        }
+        
+        if (indexDir == null) {
+            cmdline.errorExit("Must specify KID index directory!");
+        }
+        if (!new File(indexDir).isDirectory()) {
+            cmdline.errorExit("KID index not found: " + indexDir);
+        }
+        
+        boolean allFound = true;
+        try {
+            KidIndex index = new KidIndex(new File(indexDir));
+            if (compact) {
+                System.out.println("Merged " + index.compact() + " segment(s)");
+            }
+            if (stats) {
+                System.out.println(index.getSegmentCount() + " segment(s), " + index.getEntryCount() + " entries");
+            }
+            
+            for (String keyID : keyIDs) {
+                KeyId kid;
+                try {
+                    kid = KeyId.fromBytes(KeyFileImporter.parseKeyID(keyID));
+                }
+                catch (IllegalArgumentException e) {
+                    cmdline.errorExit("Illegal key ID (" + e.getMessage() + ") -- " + keyID);
+                    return;
+                }
+                
+                List<KidIndex.Entry> entries = index.lookup(kid);
+                if (entries.isEmpty()) {
+                    System.out.println(kid + " : not found");
+                    allFound = false;
+                    continue;
+                }
+                System.out.println(kid + " : " + entries.size() + " use(s)");
+                for (KidIndex.Entry entry : entries) {
+                    System.out.println("\t" + entry);
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Error reading KID index (" + indexDir + ") -- " + e.getMessage());
+            System.exit(1);
+        }
+        
+        if (!allFound) {
+            System.exit(EXIT_NOT_FOUND);
+        }
+    }
+}
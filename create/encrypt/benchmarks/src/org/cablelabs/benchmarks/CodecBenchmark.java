@@ -0,0 +1,183 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.cryptfile.KeyPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link KeyCodec} against commons-codec for the conversions used on key
+ * material, and measures the {@link KeyPair} GUID conversions built on top of it.  <i>size</i> 16 is a single key or key ID, larger sizes are typical of
+ * PSSH boxes and WRMHeaders.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    
+    @Param({ "16", "1024" })
+    public int size;
+    
+    private byte[] data;
+    private String hex;
+    private String base64;
+    private byte[] keyID;
+    private String guid;
+    
+    // Caller-provided buffers
+    private char[] charBuffer;
+    private byte[] byteBuffer;
+    
+    @Setup
+    public void setup() {
+        Random r = new Random(0);
+        data = new byte[size];
+        r.nextBytes(data);
+        hex = Hex.encodeHexString(data);
+        base64 = Base64.encodeBase64String(data);
+        keyID = Arrays.copyOf(data, 16);
+        guid = KeyCodec.encodeGUID(keyID);
+        charBuffer = new char[size * 2];
+        byteBuffer = new byte[size];
+    }
+    
+    @Benchmark
+    public String hexEncodeCommons() {
+        return Hex.encodeHexString(data);
+    }
+    
+    @Benchmark
+    public String hexEncodeKeyCodec() {
+        return KeyCodec.encodeHex(data);
+    }
+    
+    @Benchmark
+    public char[] hexEncodeKeyCodecBuffer() {
+        KeyCodec.encodeHex(data, 0, data.length, charBuffer, 0);
+        return charBuffer;
+    }
+    
+    @Benchmark
+    public byte[] hexDecodeCommons() throws DecoderException {
+        return Hex.decodeHex(hex.toCharArray());
+    }
+    
+    @Benchmark
+    public byte[] hexDecodeKeyCodec() {
+        return KeyCodec.decodeHex(hex);
+    }
+    
+    @Benchmark
+    public byte[] hexDecodeKeyCodecBuffer() {
+        KeyCodec.decodeHex(hex, 0, hex.length(), byteBuffer, 0);
+        return byteBuffer;
+    }
+    
+    @Benchmark
+    public String base64EncodeCommons() {
+        return Base64.encodeBase64String(data);
+    }
+    
+    @Benchmark
+    public String base64EncodeKeyCodec() {
+        return KeyCodec.encodeBase64(data);
+    }
+    
+    @Benchmark
+    public char[] base64EncodeKeyCodecBuffer() {
+        KeyCodec.encodeBase64(data, 0, data.length, charBuffer, 0);
+        return charBuffer;
+    }
+    
+    @Benchmark
+    public byte[] base64DecodeCommons() {
+        return Base64.decodeBase64(base64);
+    }
+    
+    @Benchmark
+    public byte[] base64DecodeKeyCodec() {
+        return KeyCodec.decodeBase64(base64);
+    }
+    
+    @Benchmark
+    public byte[] base64DecodeKeyCodecBuffer() {
+        KeyCodec.decodeBase64(base64, 0, base64.length(), byteBuffer, 0);
+        return byteBuffer;
+    }
+    
+    @Benchmark
+    public String base64URLEncodeCommons() {
+        return Base64.encodeBase64URLSafeString(data);
+    }
+    
+    @Benchmark
+    public String base64URLEncodeKeyCodec() {
+        return KeyCodec.encodeBase64URL(data);
+    }
+    
+    @Benchmark
+    public String guidEncodeKeyCodec() {
+        return KeyCodec.encodeGUID(keyID);
+    }
+    
+    @Benchmark
+    public byte[] guidDecodeKeyCodec() {
+        KeyCodec.decodeGUID(guid, 0, byteBuffer, 0);
+        return byteBuffer;
+    }
+    
+    @Benchmark
+    public String keyPairToGUID() {
+        return KeyPair.toGUID(keyID);
+    }
+    
+    @Benchmark
+    public byte[] keyPairParseGUID() {
+        return KeyPair.parseGUID(guid);
+    }
+}
@@ -0,0 +1,117 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.benchmarks;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Cryptfile generation for several track and key counts.  Each track holds
+ * <i>keys</i> rolling keys and a ClearKey PSSH lists all key IDs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptfileBenchmark {
+    
+    @Param({ "1", "4" })
+    public int tracks;
+    
+    @Param({ "1", "100", "10000" })
+    public int keys;
+    
+    private CryptfileBuilder builder;
+    
+    // Discards everything so that only XML generation is measured
+    private OutputStream nullStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    
+    @Setup
+    public void setup() {
+        List<CryptTrack> trackList = new ArrayList<CryptTrack>();
+        List<byte[]> keyIDs = new ArrayList<byte[]>();
+        for (int t = 1; t <= tracks; t++) {
+            List<CryptKey> keyList = new ArrayList<CryptKey>();
+            for (int k = 0; k < keys; k++) {
+                KeyPair keypair = KeyPair.random();
+                keyList.add(new CryptKey(keypair));
+                keyIDs.add(keypair.getID());
+            }
+            trackList.add(new CryptTrack(t, 8, null, keyList, (keys > 1) ? 100 : -1));
+        }
+        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+        psshList.add(new ClearKeyPSSH(keyIDs.toArray(new byte[keyIDs.size()][])));
+        builder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR, trackList, psshList);
+    }
+    
+    @Benchmark
+    public Document buildCryptfile() {
+        return builder.buildCryptfile();
+    }
+    
+    @Benchmark
+    public void writeXML() {
+        CryptfileBuilder.writeXML(builder.buildCryptfile(), nullStream);
+    }
+    
+    @Benchmark
+    public void writeCryptfile() throws XMLStreamException {
+        builder.writeCryptfile(nullStream);
+    }
+}
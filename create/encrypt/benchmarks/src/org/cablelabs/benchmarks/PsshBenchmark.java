@@ -0,0 +1,121 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.playready.PlayReadyKeyPair;
+import org.cablelabs.playready.WRMHeader;
+import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
+import org.cablelabs.widevine.cryptfile.WidevinePSSH;
+import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Construction of each DRM's PSSH from its key material, through to the complete
+ * binary PSSH box
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PsshBenchmark {
+    
+    @Param({ "1", "16" })
+    public int keys;
+    
+    private byte[][] keyIDs;
+    private String[] guids;
+    private List<PlayReadyKeyPair> prKeys;
+    
+    @Setup
+    public void setup() {
+        keyIDs = new byte[keys][];
+        guids = new String[keys];
+        prKeys = new ArrayList<PlayReadyKeyPair>();
+        for (int i = 0; i < keys; i++) {
+            KeyPair keypair = KeyPair.random();
+            keyIDs[i] = keypair.getID();
+            guids[i] = KeyPair.toGUID(keyIDs[i]);
+            prKeys.add(new PlayReadyKeyPair(keypair));
+        }
+    }
+    
+    @Benchmark
+    public byte[] clearKey() throws IOException {
+        return new ClearKeyPSSH(keyIDs).generatePSSHBox();
+    }
+    
+    @Benchmark
+    public byte[] playReady() throws IOException {
+        List<WRMHeader> headers = new ArrayList<WRMHeader>(keys);
+        for (PlayReadyKeyPair key : prKeys) {
+            headers.add(new WRMHeader(WRMHeader.Version.V_4000, key, PlayReadyPSSH.TEST_URL));
+        }
+        return new PlayReadyPSSH(headers, PlayReadyPSSH.ContentProtectionType.CENC).generatePSSHBox();
+    }
+    
+    @Benchmark
+    public List<PlayReadyKeyPair> playReadyKeyDerivation() {
+        List<PlayReadyKeyPair> derived = new ArrayList<PlayReadyKeyPair>(keys);
+        for (String guid : guids) {
+            derived.add(new PlayReadyKeyPair(guid));
+        }
+        return derived;
+    }
+    
+    @Benchmark
+    public byte[] widevine() throws IOException {
+        WidevinePSSHProtoBuf.WidevineCencHeader.Builder proto =
+                WidevinePSSHProtoBuf.WidevineCencHeader.newBuilder();
+        proto.setAlgorithm(WidevinePSSHProtoBuf.WidevineCencHeader.Algorithm.AESCTR);
+        for (byte[] keyID : keyIDs) {
+            proto.addKeyId(ByteString.copyFrom(keyID));
+        }
+        proto.setProvider("widevine_test");
+        return new WidevinePSSH(proto.build()).generatePSSHBox();
+    }
+}
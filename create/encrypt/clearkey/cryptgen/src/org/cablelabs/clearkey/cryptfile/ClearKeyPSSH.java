@@ -26,9 +26,16 @@
 
 package org.cablelabs.clearkey.cryptfile;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyId;
+import org.cablelabs.cryptfile.KeyIdSet;
+import org.cablelabs.cryptfile.PSSHCache;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -55,10 +62,45 @@ public class ClearKeyPSSH extends DRMInfoPSSH {
         return systemIDMatch(CLEARKEY_SYSTEM_ID, systemID);
     }
     
+    /**
+     * Returns the {@link PSSHCache} key for the ClearKey PSSH with the given key IDs
+     * 
+     * @param keyIDs the key IDs
+     * @return the cache key
+     */
+    public static String cacheKey(KeyIdSet keyIDs) {
+        PSSHCache.KeyBuilder kb = new PSSHCache.KeyBuilder(CLEARKEY_SYSTEM_ID, 1);
+        kb.add(keyIDs.size());
+        for (KeyId keyID : keyIDs) {
+            kb.add(keyID);
+        }
+        return kb.build();
+    }
+    
     // Must be PSSH version 1 
     public ClearKeyPSSH(byte[][] keyIDs) {
         super(CLEARKEY_SYSTEM_ID, 1, keyIDs);
     }
+    
+    /**
+     * Create a ClearKey PSSH for the given key IDs
+     * 
+     * @param keyIDs the key IDs, in the order they should appear in the PSSH
+     */
+    public ClearKeyPSSH(KeyIdSet keyIDs) {
+        super(CLEARKEY_SYSTEM_ID, 1, keyIDs);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#merge(org.cablelabs.cryptfile.DRMInfoPSSH)
+     */
+    @Override
+    public DRMInfoPSSH merge(DRMInfoPSSH other) {
+        if (!(other instanceof ClearKeyPSSH))
+            return null;
+        return new ClearKeyPSSH(mergeKeyIDs(other));
+    }
 
     @Override
     public Element generateContentProtection(Document d) throws IOException {
@@ -67,9 +109,33 @@ public class ClearKeyPSSH extends DRMInfoPSSH {
         return e;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#generatePSSHData(java.io.DataOutputStream)
+     */
+    @Override
+    protected void generatePSSHData(DataOutputStream dos) throws IOException {
+        // ClearKey PSSH carries only the KID list -- no data
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPSSHDataSize()
+     */
+    @Override
+    protected int getPSSHDataSize() {
+        return 0;
+    }
+
     @Override
     public Node generateXML(Document d) {
         Element e = generateDRMInfo(d);
         return e;
     }
+
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        w.writeEndElement();
+    }
 }
@@ -26,26 +26,32 @@
 
 package org.cablelabs.clearkey.cryptgen;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
+import javax.xml.stream.XMLStreamException;
+
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.KeyStoreOption;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.HKDFKeyDeriver;
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.cryptfile.KeyFileImporter;
+import org.cablelabs.cryptfile.KeyIdSet;
+import org.cablelabs.cryptfile.KeyMaterialSource;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KidIndex;
 import org.w3c.dom.Document;
 
 /**
@@ -57,7 +63,7 @@ public class CryptfileGen {
         public void usage() {
             System.out.println("ClearKey MP4Box cryptfile generation tool.");
             System.out.println("");
-            System.out.println("usage:  CryptfileGen [OPTIONS] <track_id>:{@<key_file>|<key_id>=[<key>][,<key_id>=[<key>]...]} [<track_id>:{@<key_file>|<key_id>=[<key>][,<key_id>=[<key>]...]}]...");
+            System.out.println("usage:  CryptfileGen [OPTIONS] <track_id>:{@<key_file>|#<periods>|<key_id>=[<key>][,<key_id>=[<key>]...]} [<track_id>:{@<key_file>|#<periods>|<key_id>=[<key>][,<key_id>=[<key>]...]}]...");
             System.out.println("");
             System.out.println("\t<track_id> is the track ID from the MP4 file to be encrypted.");
             System.out.println("\tAfter the '<track_id>:', you can specify either a file containing key/keyID pairs");
@@ -65,14 +71,19 @@ public class CryptfileGen {
             System.out.println("\trepresented in GUID form (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx).  Key values are");
             System.out.println("\talways in hexadecimal.  Multiple key IDs indicate the use of rolling keys.");
             System.out.println("");
-            System.out.println("\t\t<keyid_file> is a file that contains a list of key IDs, one pair per line in");
-            System.out.println("\t\tGUID form.");
+            System.out.println("\t\t<key_file> is a file that contains one '<key_id>:<key>' pair per line.  CSV lines");
+            System.out.println("\t\t('<key_id>,<key>') and JSON lines ({\"kid\":\"<key_id>\",\"key\":\"<key>\"}) are also");
+            System.out.println("\t\taccepted.  Keys may be in hex or base64, and a random key is generated for lines");
+            System.out.println("\t\twithout one.");
             System.out.println("");
             System.out.println("\t\t<keyid> is a key ID in GUID form.");
             System.out.println("");
             System.out.println("\t\t<key> is a 16-byte key value in hexadecimal (with or without the leading '0x').");
             System.out.println("\t\tIf key is ommitted, a random key will be generated for you.");
             System.out.println("");
+            System.out.println("\t\t#<periods> derives <periods> rolling keys and key IDs for the track from the");
+            System.out.println("\t\tmaster secret given with -derive.");
+            System.out.println("");
             System.out.println("\tOPTIONS:");
             System.out.println("");
             System.out.println("\t-help");
@@ -89,13 +100,24 @@ public class CryptfileGen {
             System.out.println("\t\tUsed for rolling keys only.  <sample_count> is the number of consecutive samples to be");
             System.out.println("\t\tencrypted with each key before moving to the next.");
             System.out.println("");
+            System.out.println("\t-derive <master_secret>,<asset_id>");
+            System.out.println("\t\tMaster secret (16 or more bytes in hexadecimal) and asset ID used to derive the keys");
+            System.out.println("\t\tof '#<periods>' tracks with HKDF-SHA256.  Derived keys can be recomputed from these");
+            System.out.println("\t\ttwo values at any time.");
+            System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element that can be pasted into the MPD");
+            System.out.println("");
+            KeyStoreOption.usage();
+            System.out.println("\t-kidindex <index_dir>[,<asset_id>]");
+            System.out.println("\t\tRecord every key ID with its track, DRM systems and cryptfile in the given KID index.");
+            System.out.println("\t\t<asset_id> defaults to the cryptfile path.");
         }
     }
     
     private static class Track {
         List<KeyPair> keypairs = new ArrayList<KeyPair>();
+        int derivedPeriods = 0;
         int id;
     }
     
@@ -110,6 +132,10 @@ public class CryptfileGen {
         boolean printCP = false;
         
         String outfile = null;
+        KeyStoreOption keystore = new KeyStoreOption();
+        String kidIndex = null;
+        String assetID = null;
+        HKDFKeyDeriver deriver = null;
         List<Track> tracks = new ArrayList<Track>();
 
         PrintStream outputStream = System.out;
@@ -132,6 +158,24 @@ public class CryptfileGen {
                     rollingKeySamples = Integer.parseInt(subopts[0]);
                     i++;
                 }
+                else if ((subopts = cmdline.checkOption("-derive", args, i, 2)) != null) {
+                    try {
+                        deriver = new HKDFKeyDeriver(KeyCodec.decodeHex(subopts[0]), subopts[1]);
+                    }
+                    catch (IllegalArgumentException e) {
+                        cmdline.errorExit("Illegal master secret (" + e.getMessage() + ") -- " + subopts[0]);
+                    }
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-kidindex", args, i, 1, 2)) != null) {
+                    kidIndex = subopts[0];
+                    if (subopts.length > 1)
+                        assetID = subopts[1];
+                    i++;
+                }
+                else if (keystore.parse(cmdline, args, i)) {
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -160,16 +204,22 @@ public class CryptfileGen {
                 // Read key pairs from file
                 if (track_desc[1].startsWith("@")) {
                     String keyfile = track_desc[1].substring(1);
-                    BufferedReader br = new BufferedReader(new FileReader(keyfile));
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        String[] keypair = line.split(":");
-                        if (keypair.length != 2) {
-                            cmdline.errorExit("Illegal keypair from file: " + line);
+                    KeyFileImporter.Result<KeyPair> result =
+                            new KeyFileImporter<KeyPair>(KeyFileImporter.KEY_PAIRS).importFile(new File(keyfile));
+                    if (result.hasErrors()) {
+                        for (KeyFileImporter.LineError e : result.getErrors()) {
+                            System.err.println(keyfile + ": " + e);
                         }
-                        t.keypairs.add(new KeyPair(keypair[0], keypair[1]));
+                        cmdline.errorExit("Illegal keypairs in key file: " + keyfile +
+                                " (" + result.getErrors().size() + " line(s))");
+                    }
+                    t.keypairs.addAll(result.getKeys());
+                }
+                else if (track_desc[1].startsWith("#")) { // Derived keys
+                    t.derivedPeriods = Integer.parseInt(track_desc[1].substring(1));
+                    if (t.derivedPeriods < 1) {
+                        cmdline.errorExit("Illegal number of crypto periods: " + track_desc[1]);
                     }
-                    br.close();
                 }
                 else { // Key pairs on command line
                     String[] keypairsarg = track_desc[1].split(",");
@@ -178,9 +228,7 @@ public class CryptfileGen {
                         if (keypair.length == 2) {
                             t.keypairs.add(new KeyPair(keypair[0], keypair[1]));
                         } else if (keypair.length == 1) {
-                            Random r = new Random();
-                            byte[] key = new byte[16];
-                            r.nextBytes(key);
+                            byte[] key = KeyMaterialSource.getDefault().nextKey();
                             t.keypairs.add(new KeyPair(keypair[0], key));
                         } else {
                             cmdline.errorExit("Illegal keypair: " + keypairs);
@@ -202,28 +250,36 @@ public class CryptfileGen {
         }
         
         List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
-        List<KeyPair> keypairs = new ArrayList<KeyPair>(); // Need this for URL-based PSSH
         for (Track t : tracks) {
+            if (t.derivedPeriods > 0) {
+                if (deriver == null) {
+                    cmdline.errorExit("Derived keys for track " + t.id + " require the -derive option");
+                }
+                cryptTracks.add(new CryptTrack(t.id, 8, null, deriver, 0, t.derivedPeriods, rollingKeySamples));
+                continue;
+            }
+            
             List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
             for (KeyPair key : t.keypairs) {
                 cryptKeys.add(new CryptKey(key));
             }
-            keypairs.addAll(t.keypairs);
-            
             cryptTracks.add(new CryptTrack(t.id, 8, null, cryptKeys, rollingKeySamples));
         }
         
         ClearKeyPSSH ckPSSH = null;
         
-        byte[][] keyIDs = new byte[keypairs.size()][];
-        int i = 0;
+        // Derived keys are computed again here rather than kept in memory
+        KeyIdSet keyIDs = new KeyIdSet();
         outputStream.println("Ensure the following keys are available to the client:");
-        for (KeyPair keypair : keypairs) {
-            outputStream.println("\t" + Hex.encodeHexString(keypair.getID()) +
-                               " : " + Hex.encodeHexString(keypair.getKey()) +
-                               " (" + Base64.encodeBase64URLSafeString(keypair.getID()) +
-                               " : " + Base64.encodeBase64URLSafeString(keypair.getKey()) + ")");
-            keyIDs[i++] = keypair.getID();
+        for (CryptTrack t : cryptTracks) {
+            for (CryptKey key : t.getKeys()) {
+                KeyPair keypair = key.getKeyPair();
+                outputStream.println("\t" + KeyCodec.encodeHex(keypair.getID()) +
+                                   " : " + KeyCodec.encodeHex(keypair.getKey()) +
+                                   " (" + KeyCodec.encodeBase64URL(keypair.getID()) +
+                                   " : " + KeyCodec.encodeBase64URL(keypair.getKey()) + ")");
+                keyIDs.add(keypair.getID());
+            }
         }
         outputStream.println("");
         ckPSSH = new ClearKeyPSSH(keyIDs);
@@ -231,6 +287,9 @@ public class CryptfileGen {
         List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
         psshList.add(ckPSSH);
         
+        // Record all keys in the local key store
+        keystore.putTrackKeys(cmdline, cryptTracks, outputStream);
+        
         // Print ContentProtection element
         if (printCP) {
             outputStream.println("############# Content Protection Element #############");
@@ -252,15 +311,35 @@ public class CryptfileGen {
                                                           cryptTracks, psshList);
         
         // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, outputStream);
-        if (outfile != null) {
-            try {
+        try {
+            cfBuilder.writeCryptfile(outputStream);
+            if (outfile != null) {
                 outputStream.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(outfile));
+                cfBuilder.writeCryptfile(os);
+                os.close();
             }
-            catch (FileNotFoundException e) {
-                cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
+        }
+        catch (FileNotFoundException e) {
+            cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
+        }
+        catch (IOException e) {
+            cmdline.errorExit("Error writing output file (" + outfile + ") -- " + e.getMessage());
+        }
+        catch (XMLStreamException e) {
+            cmdline.errorExit("Error writing cryptfile -- " + e.getMessage());
+        }
+        
+        // Record key IDs in the KID index
+        if (kidIndex != null) {
+            String cryptfile = (outfile != null) ? new File(outfile).getAbsolutePath() : "-";
+            try {
+                int recorded = KidIndex.record(new File(kidIndex), (assetID != null) ? assetID : cryptfile,
+                                               cryptfile, cfBuilder);
+                outputStream.println("Recorded " + recorded + " key ID(s) in KID index: " + kidIndex);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error writing KID index (" + kidIndex + ") -- " + e.getMessage());
             }
         }
     }
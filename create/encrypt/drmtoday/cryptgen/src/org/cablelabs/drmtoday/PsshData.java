@@ -30,8 +30,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.codec.binary.Base64;
-import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KeyCodec;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -58,12 +57,12 @@ public class PsshData {
         for (Map.Entry<String, JsonElement> systemId : root.entrySet()) {
             String systemName = null;
             byte[] psshData = null;
-            byte[] systemID = KeyPair.parseGUID(systemId.getKey());
+            byte[] systemID = KeyCodec.decodeGUID(systemId.getKey());
             for (Map.Entry<String, JsonElement> system : systemId.getValue().getAsJsonObject().entrySet()) {
                 if (system.getKey().equals("name")) {
                     systemName = system.getValue().getAsString();
                 } else if (system.getKey().equals("psshBoxContent")) {
-                    psshData = Base64.decodeBase64(system.getValue().getAsString());
+                    psshData = KeyCodec.decodeBase64(system.getValue().getAsString());
                 }
             }
             retVal.add(new PsshData(systemName, systemID, psshData));
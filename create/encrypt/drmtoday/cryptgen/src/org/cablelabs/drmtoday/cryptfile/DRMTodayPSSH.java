@@ -29,6 +29,9 @@ package org.cablelabs.drmtoday.cryptfile;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
 import org.cablelabs.drmtoday.PsshData;
@@ -66,6 +69,15 @@ public class DRMTodayPSSH extends DRMInfoPSSH {
         dos.write(data.getData());
     }
     
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPSSHDataSize()
+     */
+    @Override
+    protected int getPSSHDataSize() {
+        return data.getData().length;
+    }
+    
     /*
      * (non-Javadoc)
      * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
@@ -78,4 +90,17 @@ public class DRMTodayPSSH extends DRMInfoPSSH {
         e.appendChild(b.generateXML(d));
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        b.setupDataB64(data.getData());
+        b.writeXML(w);
+        w.writeEndElement();
+    }
 }
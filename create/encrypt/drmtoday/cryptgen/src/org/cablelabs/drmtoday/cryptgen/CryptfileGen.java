@@ -26,6 +26,8 @@
 
 package org.cablelabs.drmtoday.cryptgen;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -34,16 +36,21 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
+import javax.xml.stream.XMLStreamException;
+
 import org.cablelabs.access.cryptfile.AccessPSSH;
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.KeyStoreOption;
+import org.cablelabs.cmdline.ResponseCacheOption;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyCodec;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KidIndex;
+import org.cablelabs.cryptfile.ResponseCache;
 import org.cablelabs.drmtoday.AuthAPI;
 import org.cablelabs.drmtoday.CencKey;
 import org.cablelabs.drmtoday.CencKeyAPI;
@@ -56,6 +63,8 @@ import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
 import org.cablelabs.widevine.cryptfile.WidevinePSSH;
 import org.w3c.dom.Document;
 
+import com.google.gson.Gson;
+
 /**
  * This utility will build a MP4Box cryptfile for a given piece of content using DRMToday.  The steps
  * involved are:
@@ -70,6 +79,7 @@ import org.w3c.dom.Document;
  */
 public class CryptfileGen {
     
+    
     private static class Usage implements org.cablelabs.cmdline.Usage {
         public void usage() {
             System.out.println("DRMToday MP4Box cryptfile generation tool.");
@@ -124,6 +134,14 @@ public class CryptfileGen {
             System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element (for each DRM) that can be pasted into the MPD");
+            System.out.println("");
+            KeyStoreOption.usage();
+            ResponseCacheOption.usage("Cache the generated keys and DRMToday key ingest responses in the given directory.",
+                                      "Re-running for the same merchant, asset, variant and track types reuses the cached",
+                                      "keys and does not contact DRMToday.");
+            System.out.println("\t-kidindex <index_dir>[,<asset_id>]");
+            System.out.println("\t\tRecord every key ID with its track, DRM systems and cryptfile in the given KID index.");
+            System.out.println("\t\t<asset_id> defaults to the cryptfile path.");
         }
     }
     
@@ -140,6 +158,13 @@ public class CryptfileGen {
         StreamType streamType;
     }
     
+    // A track key and its DRMToday ingest response, as stored in the response cache
+    private static class CachedIngest {
+        String key_id;
+        String key;
+        String response;
+    }
+    
     public static void main(String[] args) {
         
         CmdLine cmdline = new CmdLine(new Usage());
@@ -154,6 +179,10 @@ public class CryptfileGen {
         String variantId = null;
         
         String outfile = null;
+        KeyStoreOption keystore = new KeyStoreOption();
+        String kidIndex = null;
+        String assetID = null;
+        ResponseCacheOption respCache = new ResponseCacheOption();
         
         // DRMs
         boolean clearkey = false;
@@ -201,6 +230,18 @@ public class CryptfileGen {
                 else if ((subopts = cmdline.checkOption("-prdt", args, i, 0)) != null) {
                     playreadyDT = true;
                 }
+                else if ((subopts = cmdline.checkOption("-kidindex", args, i, 1, 2)) != null) {
+                    kidIndex = subopts[0];
+                    if (subopts.length > 1)
+                        assetID = subopts[1];
+                    i++;
+                }
+                else if (respCache.parse(cmdline, args, i)) {
+                    i++;
+                }
+                else if (keystore.parse(cmdline, args, i)) {
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -288,14 +329,13 @@ public class CryptfileGen {
             cmdline.errorExit("Must specify at least one non-ClearKey DRM!");
         }
         
-        // Login and get ticket for key ingest API
-        AuthAPI drmtodayAuth = new AuthAPI(props.getUsername(), props.getPassword(), props.getAuthHost());
-        try {
-            drmtodayAuth.login();
-            
-        } catch (Exception e) {
-            cmdline.errorExit("Error during DRMToday CAS process! -- " + e.getMessage());
-        }
+        // Cached keys and key ingest responses
+        ResponseCache responseCache = respCache.open(cmdline);
+        Gson gson = new Gson();
+        
+        // Login and get ticket for key ingest API.  Deferred until a key is not found in
+        // the response cache
+        CencKeyAPI cencKeyAPI = null;
         
         List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
         List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
@@ -306,13 +346,53 @@ public class CryptfileGen {
         if (variantId != null) {
             cencKey.variantId = variantId;
         }
-        CencKeyAPI cencKeyAPI = new CencKeyAPI(drmtodayAuth, props.getFeHost(), props.getMerchant());
         for (Track t : trackList) {
-            cencKey.key = Base64.encodeBase64String(t.keypair.getKey());
-            cencKey.keyId = Base64.encodeBase64String(t.keypair.getID());
-            cencKey.streamType = t.streamType.toString();
+            
+            // Reuse the key and ingest response of an earlier run
+            String resp = null;
+            String responseKey = null;
+            if (responseCache != null) {
+                responseKey = ResponseCache.key("drmtoday", props.getMerchant(), props.getFeHost(),
+                                                assetId, variantId, t.streamType.toString());
+                try {
+                    byte[] cached = responseCache.get(responseKey);
+                    if (cached != null) {
+                        CachedIngest c = gson.fromJson(new String(cached, "UTF-8"), CachedIngest.class);
+                        t.keypair = new KeyPair(KeyCodec.decodeBase64(c.key_id), KeyCodec.decodeBase64(c.key));
+                        resp = c.response;
+                        outputStream.println("Using cached key ingest for " + t.streamType + " track from: " + respCache.getDirectory());
+                    }
+                }
+                catch (IOException e) {
+                    cmdline.errorExit("Error reading response cache (" + respCache.getDirectory() + ") -- " + e.getMessage());
+                }
+            }
+            
+            if (resp == null && cencKeyAPI == null) {
+                AuthAPI drmtodayAuth = new AuthAPI(props.getUsername(), props.getPassword(), props.getAuthHost());
+                try {
+                    drmtodayAuth.login();
+                    
+                } catch (Exception e) {
+                    cmdline.errorExit("Error during DRMToday CAS process! -- " + e.getMessage());
+                }
+                cencKeyAPI = new CencKeyAPI(drmtodayAuth, props.getFeHost(), props.getMerchant());
+            }
+            
             try {
-                String resp = cencKeyAPI.ingestKey(cencKey);
+                if (resp == null) {
+                    cencKey.key = KeyCodec.encodeBase64(t.keypair.getKey());
+                    cencKey.keyId = KeyCodec.encodeBase64(t.keypair.getID());
+                    cencKey.streamType = t.streamType.toString();
+                    resp = cencKeyAPI.ingestKey(cencKey);
+                    if (responseCache != null) {
+                        CachedIngest c = new CachedIngest();
+                        c.key_id = cencKey.keyId;
+                        c.key = cencKey.key;
+                        c.response = resp;
+                        responseCache.put(responseKey, gson.toJson(c).getBytes("UTF-8"));
+                    }
+                }
                 List<PsshData> psshdata = PsshData.parseFromDrmTodayJson(resp);
                 for (PsshData d : psshdata) {
                     // Add DRMToday PSSH boxes if requested
@@ -356,10 +436,10 @@ public class CryptfileGen {
             outputStream.println("Ensure the following keys are available to the client:");
             for (CryptTrack t : cryptTracks) {
                 for (CryptKey key : t.getKeys()) {
-                    outputStream.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
-                                       " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
-                                       " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
-                                       " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
+                    outputStream.println("\t" + KeyCodec.encodeHex(key.getKeyPair().getID()) +
+                                       " : " + KeyCodec.encodeHex(key.getKeyPair().getKey()) +
+                                       " (" + KeyCodec.encodeBase64(key.getKeyPair().getID()) +
+                                       " : " + KeyCodec.encodeBase64(key.getKeyPair().getKey()) + ")");
                     keyIDs[i++] = key.getKeyPair().getID();
                 }
             }
@@ -367,10 +447,18 @@ public class CryptfileGen {
             psshList.add(new ClearKeyPSSH(keyIDs));
         }
         
+        // Merge PSSH of the same DRM system and drop duplicates
+        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
+                                                          cryptTracks, psshList);
+        cfBuilder.consolidatePSSH();
+        
+        // Record all keys in the local key store
+        keystore.putTrackKeys(cmdline, cryptTracks, outputStream);
+        
         // Print ContentProtection element
         if (printCP) {
             outputStream.println("############# Content Protection Element #############");
-            for (DRMInfoPSSH pssh : psshList) {
+            for (DRMInfoPSSH pssh : cfBuilder.getPSSH()) {
                 Document d = CryptfileBuilder.newDocument();
                 try {
                     d.appendChild(pssh.generateContentProtection(d));
@@ -384,21 +472,37 @@ public class CryptfileGen {
             outputStream.println("######################################################");
         }
         
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
-        
         // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, outputStream);
         try {
+            cfBuilder.writeCryptfile(outputStream);
             if (outfile != null) {
                 outputStream.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(outfile));
+                cfBuilder.writeCryptfile(os);
+                os.close();
             }
         }
         catch (FileNotFoundException e) {
             cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (IOException e) {
+            cmdline.errorExit("Error writing output file (" + outfile + ") -- " + e.getMessage());
+        }
+        catch (XMLStreamException e) {
+            cmdline.errorExit("Error writing cryptfile -- " + e.getMessage());
+        }
         
+        // Record key IDs in the KID index
+        if (kidIndex != null) {
+            String cryptfile = (outfile != null) ? new File(outfile).getAbsolutePath() : "-";
+            try {
+                int recorded = KidIndex.record(new File(kidIndex), (assetID != null) ? assetID : cryptfile,
+                                               cryptfile, cfBuilder);
+                outputStream.println("Recorded " + recorded + " key ID(s) in KID index: " + kidIndex);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error writing KID index (" + kidIndex + ") -- " + e.getMessage());
+            }
+        }
     }
 }
@@ -0,0 +1,209 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes and validates large numbers of PlayReady PSSH boxes or PlayReady Header
+ * Objects on a pool of worker threads (see {@link PlayReadyObject}).
+ */
+public class PROValidator {
+    
+    // Blobs are handed to the workers in batches of at most this many
+    private static final int MAX_BATCH = 256;
+    
+    private PlayReadyKeyDeriver deriver;
+    private int threads;
+    
+    /**
+     * The outcome of validating one blob
+     */
+    public static class Result {
+        
+        private int index;
+        private PlayReadyObject pro;
+        private List<String> errors;
+        
+        Result(int index, PlayReadyObject pro, List<String> errors) {
+            this.index = index;
+            this.pro = pro;
+            this.errors = errors;
+        }
+        
+        /**
+         * Returns the position of the blob in the validated list
+         * 
+         * @return the index
+         */
+        public int getIndex() {
+            return index;
+        }
+        
+        /**
+         * Returns the decoded PRO
+         * 
+         * @return the PRO
+         */
+        public PlayReadyObject getPRO() {
+            return pro;
+        }
+        
+        /**
+         * Returns all problems found in the blob
+         * 
+         * @return the errors, or an empty list if the blob is valid
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+        
+        /**
+         * Returns whether or not the blob is valid
+         * 
+         * @return true if no errors were found
+         */
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+    }
+    
+    /**
+     * Validates a contiguous range of blobs
+     */
+    private class Batch implements Callable<List<Result>> {
+        
+        private List<byte[]> blobs;
+        private int from;
+        private int to;
+        
+        Batch(List<byte[]> blobs, int from, int to) {
+            this.blobs = blobs;
+            this.from = from;
+            this.to = to;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.Callable#call()
+         */
+        @Override
+        public List<Result> call() {
+            List<Result> results = new ArrayList<Result>(to - from);
+            for (int i = from; i < to; i++) {
+                results.add(validate(i, blobs.get(i)));
+            }
+            return results;
+        }
+    }
+    
+    /**
+     * Create a validator that uses one thread per processor
+     * 
+     * @param deriver derives the keys used to check checksums, or null to not check
+     * checksum values
+     */
+    public PROValidator(PlayReadyKeyDeriver deriver) {
+        this(deriver, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Create a validator
+     * 
+     * @param deriver derives the keys used to check checksums, or null to not check
+     * checksum values
+     * @param threads the number of worker threads
+     */
+    public PROValidator(PlayReadyKeyDeriver deriver, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        this.deriver = deriver;
+        this.threads = threads;
+    }
+    
+    /**
+     * Validate a single blob
+     * 
+     * @param index the position of the blob, reported in the result
+     * @param blob a complete PlayReady PSSH box or a PRO
+     * @return the result
+     */
+    public Result validate(int index, byte[] blob) {
+        PlayReadyObject pro = PlayReadyObject.isPSSHBox(blob) ?
+                PlayReadyObject.parsePSSHBox(blob) : PlayReadyObject.parse(blob);
+        return new Result(index, pro, pro.validate(deriver));
+    }
+    
+    /**
+     * Validate all of the given blobs on the worker threads
+     * 
+     * @param blobs complete PlayReady PSSH boxes or PROs
+     * @return the results, in the order of the blobs
+     */
+    public List<Result> validate(List<byte[]> blobs) {
+        int batch = Math.max(1, Math.min(MAX_BATCH, blobs.size() / (threads * 4)));
+        List<Future<List<Result>>> futures = new ArrayList<Future<List<Result>>>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < blobs.size(); i += batch) {
+                futures.add(executor.submit(new Batch(blobs, i, Math.min(blobs.size(), i + batch))));
+            }
+            
+            List<Result> results = new ArrayList<Result>(blobs.size());
+            for (Future<List<Result>> f : futures) {
+                results.addAll(get(f));
+            }
+            return results;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static List<Result> get(Future<List<Result>> f) {
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while validating PlayReady Objects");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.cablelabs.cryptfile.KeyCodec;
+
+/**
+ * Derives PlayReady content keys from a key seed and key ID using the algorithm
+ * <a href="http://download.microsoft.com/download/2/0/2/202E5BD8-36C6-4DB8-9178-12472F8B119E/PlayReady%20Header%20Object%204-15-2013.docx">documented by Microsoft</a>,
+ * and generates the AESCTR key checksums.
+ * <p>
+ * The key is the XOR of both halves of three SHA-256 hashes:
+ * <pre>
+ *     key seed || key ID
+ *     key seed || key ID || key seed
+ *     key seed || key ID || key seed || key ID
+ * </pre>
+ * All three hashes start with the key seed, so the seed is hashed once when the deriver
+ * is created.  Each key ID continues from a copy of that digest state, and the three
+ * hashes are taken from copies of one running digest so no input is hashed twice.
+ * <p>
+ * Instances are thread-safe.  Large batches of key IDs are derived in parallel (see
+ * {@link #keyPairs(List)}).
+ */
+public class PlayReadyKeyDeriver {
+    
+    /**
+     * Size of Microsoft key seeds
+     */
+    public static final int KEY_SEED_SIZE = 30;
+    
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String CIPHER_ALGORITHM = "AES/ECB/NoPadding";
+    private static final int KEY_SIZE = 16;
+    private static final int GUID_SIZE = 16;
+    private static final int CHECKSUM_SIZE = 8;
+    
+    // Batches of at most this many key IDs are derived on a single thread
+    private static final int BATCH_THRESHOLD = 256;
+    
+    // Default key seed is the one used by the Microsoft test server
+    private static final byte[] DEFAULT_KEY_SEED = {
+            (byte)0x5D, (byte)0x50, (byte)0x68, (byte)0xBE,
+            (byte)0xC9, (byte)0xB3, (byte)0x84, (byte)0xFF,
+            (byte)0x60, (byte)0x44, (byte)0x86, (byte)0x71,
+            (byte)0x59, (byte)0xF1, (byte)0x6D, (byte)0x6B,
+            (byte)0x75, (byte)0x55, (byte)0x44, (byte)0xFC,
+            (byte)0xD5, (byte)0x11, (byte)0x69, (byte)0x89,
+            (byte)0xB1, (byte)0xAC, (byte)0xC4, (byte)0x27,
+            (byte)0x8E, (byte)0x88 
+    };
+    
+    private static final PlayReadyKeyDeriver DEFAULT = new PlayReadyKeyDeriver(DEFAULT_KEY_SEED);
+    
+    // AES cipher used for checksums for each thread
+    private static final ThreadLocal<Cipher> aes = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(CIPHER_ALGORITHM);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Java Virtual Machine does not support " + CIPHER_ALGORITHM, e);
+            }
+        }
+    };
+    
+    // Created on first use so that single keys never start worker threads
+    private static class Pool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+    
+    private final byte[] keySeed;
+    
+    // Digest that has consumed the key seed.  Never updated after construction, or
+    // null if the digest state can not be copied
+    private final MessageDigest seeded;
+    
+    // Copy of the seeded digest (or a plain digest) for each thread
+    private final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return (seeded != null) ? copy(seeded) : newDigest();
+        }
+    };
+    
+    /**
+     * Derives a contiguous range of a batch of key IDs, splitting it across the
+     * fork-join pool
+     */
+    private class DeriveTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private byte[][] keyIDs;
+        private PlayReadyKeyPair[] keyPairs;
+        private int from;
+        private int to;
+        
+        DeriveTask(byte[][] keyIDs, PlayReadyKeyPair[] keyPairs, int from, int to) {
+            this.keyIDs = keyIDs;
+            this.keyPairs = keyPairs;
+            this.from = from;
+            this.to = to;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    keyPairs[i] = keyPair(keyIDs[i]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new DeriveTask(keyIDs, keyPairs, from, mid),
+                      new DeriveTask(keyIDs, keyPairs, mid, to));
+        }
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Java Virtual Machine does not support " + DIGEST_ALGORITHM, e);
+        }
+    }
+    
+    private static MessageDigest copy(MessageDigest md) {
+        try {
+            return (MessageDigest)md.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Can not copy " + DIGEST_ALGORITHM + " digest", e);
+        }
+    }
+    
+    /**
+     * Returns the deriver for the key seed of the
+     * <a href="http://playready.directtaps.net/pr/doc/customrights/">PlayReady Test Server</a>
+     * 
+     * @return the default key deriver
+     */
+    public static PlayReadyKeyDeriver getDefault() {
+        return DEFAULT;
+    }
+    
+    /**
+     * Parse a base64 key seed as given on the command line.  Only the first
+     * {@link #KEY_SEED_SIZE} bytes of longer key seeds are used
+     * 
+     * @param keySeed the base64 key seed
+     * @return the key seed, or null if it is not valid base64 or is shorter than
+     * {@link #KEY_SEED_SIZE} bytes
+     */
+    public static byte[] parseKeySeed(String keySeed) {
+        byte[] raw;
+        try {
+            raw = KeyCodec.decodeBase64(keySeed);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (raw.length < KEY_SEED_SIZE)
+            return null;
+        return Arrays.copyOf(raw, KEY_SEED_SIZE);
+    }
+    
+    /**
+     * Returns a key deriver for the given key seed.  The default deriver is returned
+     * if the key seed is the default one
+     * 
+     * @param keySeed the key seed
+     * @return the key deriver
+     */
+    public static PlayReadyKeyDeriver forKeySeed(byte[] keySeed) {
+        if (Arrays.equals(keySeed, DEFAULT_KEY_SEED))
+            return DEFAULT;
+        return new PlayReadyKeyDeriver(keySeed);
+    }
+    
+    /**
+     * Create a key deriver
+     * 
+     * @param keySeed the key seed.  Microsoft key seeds are 30 bytes
+     */
+    public PlayReadyKeyDeriver(byte[] keySeed) {
+        if (keySeed == null || keySeed.length == 0)
+            throw new IllegalArgumentException("Key seed may not be null or empty");
+        
+        this.keySeed = Arrays.copyOf(keySeed, keySeed.length);
+        
+        MessageDigest md = newDigest();
+        md.update(this.keySeed);
+        MessageDigest seeded = null;
+        try {
+            md.clone();
+            seeded = md;
+        }
+        catch (CloneNotSupportedException e) {
+            // Rehash the key seed for every key
+        }
+        this.seeded = seeded;
+    }
+    
+    /**
+     * Returns the key seed
+     * 
+     * @return a copy of the key seed
+     */
+    public byte[] getKeySeed() {
+        return Arrays.copyOf(keySeed, keySeed.length);
+    }
+    
+    /**
+     * Derive the content key for the given key ID
+     * 
+     * @param msKeyID the 16-byte, Microsoft binary encoded, key ID (see
+     * {@link #encodeMSGUID(byte[])})
+     * @return the 16-byte content key
+     */
+    public byte[] deriveKey(byte[] msKeyID) {
+        MessageDigest md = digest.get();
+        byte[] shaA;
+        byte[] shaB;
+        byte[] shaC;
+        if (seeded != null) {
+            MessageDigest running = copy(md);
+            running.update(msKeyID);
+            shaA = copy(running).digest();
+            running.update(keySeed);
+            shaB = copy(running).digest();
+            running.update(msKeyID);
+            shaC = running.digest();
+        }
+        else {
+            md.update(keySeed);
+            md.update(msKeyID);
+            shaA = md.digest();
+            md.update(keySeed);
+            md.update(msKeyID);
+            md.update(keySeed);
+            shaB = md.digest();
+            md.update(keySeed);
+            md.update(msKeyID);
+            md.update(keySeed);
+            md.update(msKeyID);
+            shaC = md.digest();
+        }
+        
+        byte[] key = new byte[KEY_SIZE];
+        for (int i = 0; i < KEY_SIZE; i++) {
+            key[i] = (byte)
+                    (shaA[i] ^ shaA[i + KEY_SIZE] ^
+                    shaB[i] ^ shaB[i + KEY_SIZE] ^
+                    shaC[i] ^ shaC[i + KEY_SIZE]);
+        }
+        return key;
+    }
+    
+    /**
+     * Create a PlayReady key whose content key is derived from the given key ID
+     * 
+     * @param keyID the 16-byte key ID GUID
+     * @return the key
+     */
+    public PlayReadyKeyPair keyPair(byte[] keyID) {
+        byte[] msKeyID = encodeMSGUID(keyID);
+        byte[] key = deriveKey(msKeyID);
+        return new PlayReadyKeyPair(keyID, msKeyID, key, checksum(msKeyID, key),
+                                    Arrays.copyOf(keySeed, keySeed.length));
+    }
+    
+    /**
+     * Create PlayReady keys for all of the given key IDs.  Batches of more than a few
+     * hundred key IDs are split across a shared fork-join pool
+     * 
+     * @param keyIDs the 16-byte key ID GUIDs
+     * @return the keys, in the order of the key IDs
+     * @throws IllegalArgumentException if a key ID is not 16 bytes
+     */
+    public List<PlayReadyKeyPair> keyPairs(List<byte[]> keyIDs) {
+        byte[][] ids = keyIDs.toArray(new byte[keyIDs.size()][]);
+        PlayReadyKeyPair[] keyPairs = new PlayReadyKeyPair[ids.length];
+        DeriveTask task = new DeriveTask(ids, keyPairs, 0, ids.length);
+        if (ids.length <= BATCH_THRESHOLD)
+            task.compute();
+        else
+            Pool.INSTANCE.invoke(task);
+        return Arrays.asList(keyPairs);
+    }
+    
+    /**
+     * Generate the key/key ID checksum for the AESCTR algorithm ID according to
+     * the Microsoft documentation
+     * 
+     * @param msKeyID the 16-byte, Microsoft binary encoded, key ID
+     * @param key the 16-byte content key
+     * @return the 8-byte checksum
+     */
+    public static byte[] checksum(byte[] msKeyID, byte[] key) {
+        Cipher cipher = aes.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            return Arrays.copyOf(cipher.doFinal(msKeyID), CHECKSUM_SIZE);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Error during checksum generation: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Converts a GUID into the Microsoft-specific binary encoded form as described
+     * <a href="http://en.wikipedia.org/wiki/Globally_unique_identifier#Binary_encoding">here</a>
+     * for little-endian platforms
+     * 
+     * @param guid the 16-byte GUID
+     * @return the binary encoded GUID for little-endian platforms
+     */
+    public static byte[] encodeMSGUID(byte[] guid) {
+        if (guid.length != GUID_SIZE)
+            throw new IllegalArgumentException("Illegal GUID length: " + guid.length);
+        
+        byte[] retVal = new byte[GUID_SIZE];
+        
+        int pos = 0;
+        for (int j = 4; j > 0; j--)
+            retVal[pos++] = guid[j-1];
+        for (int j = 6; j > 4; j--)
+            retVal[pos++] = guid[j-1];
+        for (int j = 8; j > 6; j--)
+            retVal[pos++] = guid[j-1];
+        for (int j = 8; j < 16; j++)
+            retVal[pos++] = guid[j];
+        
+        return retVal;
+    }
+}
@@ -26,17 +26,7 @@
 
 package org.cablelabs.playready;
 
-import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
-
+import org.cablelabs.cryptfile.KeyFileImporter;
 import org.cablelabs.cryptfile.KeyPair;
 
 /**
@@ -49,122 +39,29 @@ public class PlayReadyKeyPair extends KeyPair {
     
     private byte[] mskeyID;
     private byte[] checksum;
-    
-    // Default key seed is the one used by the Microsoft test server
-    private byte[] keySeed = {
-            (byte)0x5D, (byte)0x50, (byte)0x68, (byte)0xBE,
-            (byte)0xC9, (byte)0xB3, (byte)0x84, (byte)0xFF,
-            (byte)0x60, (byte)0x44, (byte)0x86, (byte)0x71,
-            (byte)0x59, (byte)0xF1, (byte)0x6D, (byte)0x6B,
-            (byte)0x75, (byte)0x55, (byte)0x44, (byte)0xFC,
-            (byte)0xD5, (byte)0x11, (byte)0x69, (byte)0x89,
-            (byte)0xB1, (byte)0xAC, (byte)0xC4, (byte)0x27,
-            (byte)0x8E, (byte)0x88 
-    };
+    private byte[] keySeed;
     
     /**
-     * Converts a GUID into the Microsoft-specific binary encoded form as described
-     * <a href="http://en.wikipedia.org/wiki/Globally_unique_identifier#Binary_encoding">here</a>
-     * for little-endian platforms
-     * 
-     * @param guid the 16-byte GUID
-     * @return the binary encoded GUID for little-endian platforms
+     * Key file factory for PlayReady keys.  Lines with only a key ID get a key
+     * generated from the default key seed; lines with a key use that key.
      */
-    private byte[] binaryEncodeMSGUID(byte[] guid) {
-        if (guid.length != 16)
-            throw new IllegalArgumentException("Illegal GUID length: " + guid.length);
-        
-        byte[] retVal = new byte[GUID_SIZE];
-        
-        int pos = 0;
-        for (int j = 4; j > 0; j--)
-            retVal[pos++] = guid[j-1];
-        for (int j = 6; j > 4; j--)
-            retVal[pos++] = guid[j-1];
-        for (int j = 8; j > 6; j--)
-            retVal[pos++] = guid[j-1];
-        for (int j = 8; j < 16; j++)
-            retVal[pos++] = guid[j];
-        
-        return retVal;
-    }
-    
-    // Generate the key from the key ID according to the Microsoft-documented algorithm
-    private static byte[] generateKey(byte[] keyID, byte[] keySeed) {
-        byte[] key = new byte[AES_128_KEYSIZE];
-        
-        try {
-            
-            // First hash is
-            //     - Key Seed
-            //     - Key ID
-            MessageDigest sha256_a = MessageDigest.getInstance("SHA-256");
-            sha256_a.update(keySeed);
-            sha256_a.update(keyID);
-            byte[] sha_a = sha256_a.digest();
-            
-            // Second hash is
-            //     - Key Seed
-            //     - Key ID
-            //     - Key Seed
-            MessageDigest sha256_b = MessageDigest.getInstance("SHA-256");
-            sha256_b.update(keySeed);
-            sha256_b.update(keyID);
-            sha256_b.update(keySeed);
-            byte[] sha_b = sha256_b.digest();
-            
-            // Third hash is
-            //     - Key Seed
-            //     - Key ID
-            //     - Key Seed
-            //     - Key ID
-            MessageDigest sha256_c = MessageDigest.getInstance("SHA-256");
-            sha256_c.update(keySeed);
-            sha256_c.update(keyID);
-            sha256_c.update(keySeed);
-            sha256_c.update(keyID);
-            byte[] sha_c = sha256_c.digest();
-            
-            for (int i = 0; i < AES_128_KEYSIZE; i++) {
-                key[i] = (byte)
-                        (sha_a[i] ^ sha_a[i + AES_128_KEYSIZE] ^
-                        sha_b[i] ^ sha_b[i + AES_128_KEYSIZE] ^
-                        sha_c[i] ^ sha_c[i + AES_128_KEYSIZE]);
+    public static final KeyFileImporter.Factory<PlayReadyKeyPair> KEY_FILE_FACTORY =
+            new KeyFileImporter.Factory<PlayReadyKeyPair>() {
+        @Override
+        public PlayReadyKeyPair create(byte[] keyID, byte[] key) {
+            if (key == null) {
+                return PlayReadyKeyDeriver.getDefault().keyPair(keyID);
             }
+            return new PlayReadyKeyPair(new KeyPair(keyID, key));
         }
-        catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support SHA-256 algorithm!");
-        }
-        
-        return key;
-    }
+    };
     
-    // Generate the key/keyID checksum according to the Microsoft documentation
-    private static byte[] generateChecksum(byte[] mskeyID, byte[] key) {
-        byte[] checksum = null;
-        // Generate checksum
-        try {
-            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-            SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-            checksum = Arrays.copyOf(cipher.doFinal(mskeyID), 8);
-        }
-        catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support AES/ECB cipher!");
-        }
-        catch (NoSuchPaddingException e) {
-            System.out.println("Java Virtual Machine does not support NoPadding!");
-        }
-        catch (InvalidKeyException e) {
-            System.out.println("Invalid key during checksum generation!");
-        }
-        catch (IllegalBlockSizeException e) {
-            System.out.println("Illegal block size exception during checksum generation!");
-        }
-        catch (BadPaddingException e) {
-            System.out.println("Bad padding exception during checksum generation!");
-        }
-        return checksum;
+    // Key whose key and checksum were computed by a PlayReadyKeyDeriver
+    PlayReadyKeyPair(byte[] keyID, byte[] mskeyID, byte[] key, byte[] checksum, byte[] keySeed) {
+        super(keyID, key);
+        this.mskeyID = mskeyID;
+        this.checksum = checksum;
+        this.keySeed = keySeed;
     }
     
     /**
@@ -177,8 +74,8 @@ public class PlayReadyKeyPair extends KeyPair {
     public PlayReadyKeyPair(String keyID, byte[] key, byte[] keySeed) {
         super(keyID, key);
         this.keySeed = keySeed;
-        this.mskeyID = binaryEncodeMSGUID(this.keyID);
-        this.checksum = generateChecksum(mskeyID, key);
+        this.mskeyID = PlayReadyKeyDeriver.encodeMSGUID(this.keyID);
+        this.checksum = PlayReadyKeyDeriver.checksum(mskeyID, key);
     }
 
     /**
@@ -190,12 +87,7 @@ public class PlayReadyKeyPair extends KeyPair {
      * @param keySeed
      */
     public PlayReadyKeyPair(String keyID, byte[] keySeed) {
-        super();
-        this.keyID = parseGUID(keyID);
-        this.mskeyID = binaryEncodeMSGUID(this.keyID);
-        this.key = generateKey(this.mskeyID, keySeed);
-        this.checksum = generateChecksum(mskeyID, key);
-        this.keySeed = keySeed;
+        this(PlayReadyKeyDeriver.forKeySeed(keySeed).keyPair(parseGUID(keyID)), keySeed);
     }
     
     /**
@@ -208,23 +100,27 @@ public class PlayReadyKeyPair extends KeyPair {
      * @param keyID the key ID GUID in xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx format
      */
     public PlayReadyKeyPair(String keyID) {
-        super();
-        this.keyID = parseGUID(keyID);
-        this.mskeyID = binaryEncodeMSGUID(this.keyID);
-        this.key = generateKey(this.mskeyID, keySeed);
-        this.checksum = generateChecksum(mskeyID, key);
+        this(PlayReadyKeyDeriver.getDefault().keyPair(parseGUID(keyID)),
+             PlayReadyKeyDeriver.getDefault().getKeySeed());
+    }
+    
+    // Copy of a derived key
+    private PlayReadyKeyPair(PlayReadyKeyPair derived, byte[] keySeed) {
+        this(derived.keyID, derived.mskeyID, derived.key, derived.checksum, keySeed);
     }
     
     /**
-     * Create a PlayReady key from a custom key pair
+     * Create a PlayReady key from a custom key pair.  The key ID and key are shared
+     * with the given key pair rather than copied, so key pairs held in a
+     * {@link org.cablelabs.cryptfile.KeyVault} stay off the heap
      * 
      * @param kp the key pair
      */
     public PlayReadyKeyPair(KeyPair kp) {
-        super(kp);
+        super(kp, false);
         keySeed = null;
-        this.mskeyID = binaryEncodeMSGUID(this.keyID);
-        this.checksum = generateChecksum(mskeyID, key);
+        this.mskeyID = PlayReadyKeyDeriver.encodeMSGUID(getID());
+        this.checksum = PlayReadyKeyDeriver.checksum(mskeyID, getKey());
     }
 
     /**
@@ -0,0 +1,556 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready;
+
+import java.io.ByteArrayInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
+
+/**
+ * A PlayReady Header Object (PRO) decoded from the data of a PlayReady PSSH or from the
+ * text of an mspr:pro element.
+ * <p>
+ * A PRO is a 32-bit size and a 16-bit record count followed by the records, each a
+ * 16-bit type, a 16-bit length and the record data, all little-endian.  Rights
+ * management header records hold a UTF-16LE WRMHEADER document, which is read with a
+ * streaming XML parser.  Problems with the structure of the PRO are collected rather
+ * than thrown, so a damaged PRO still reports everything that could be read (see
+ * {@link #getErrors()}).  {@link #validate(PlayReadyKeyDeriver)} also checks the headers
+ * and their key checksums.
+ */
+public class PlayReadyObject {
+    
+    /**
+     * Record type of a rights management header (WRMHEADER)
+     */
+    public static final int RECORD_WRM_HEADER = 1;
+    
+    /**
+     * Record type of an embedded license store
+     */
+    public static final int RECORD_LICENSE_STORE = 3;
+    
+    private static final int PSSH_TYPE = ('p' << 24) | ('s' << 16) | ('s' << 8) | 'h';
+    private static final int CHECKSUM_SIZE = 8;
+    private static final int GUID_SIZE = 16;
+    
+    private static final String ELEMENT_WRMHEADER = "WRMHEADER";
+    private static final String ELEMENT_KID = "KID";
+    private static final String ELEMENT_CHECKSUM = "CHECKSUM";
+    private static final String ELEMENT_ALGID = "ALGID";
+    private static final String ELEMENT_LA_URL = "LA_URL";
+    private static final String ELEMENT_LUI_URL = "LUI_URL";
+    private static final String ELEMENT_DS_ID = "DS_ID";
+    private static final String ATTR_VERSION = "version";
+    private static final String ATTR_ALGID = "ALGID";
+    private static final String ATTR_CHECKSUM = "CHECKSUM";
+    private static final String ATTR_VALUE = "VALUE";
+    
+    private static final String ALGID_AESCTR = "AESCTR";
+    private static final String ALGID_AESCBC = "AESCBC";
+    private static final String ALGID_COCKTAIL = "COCKTAIL";
+    
+    // Streaming XML parser factory for each thread.  DTDs are never needed
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory f = XMLInputFactory.newInstance();
+            f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return f;
+        }
+    };
+    
+    /**
+     * A single record of the PRO
+     */
+    public static class Record {
+        
+        private int type;
+        private byte[] data;
+        
+        Record(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+        
+        /**
+         * Returns the record type
+         * 
+         * @return the record type (see {@link PlayReadyObject#RECORD_WRM_HEADER})
+         */
+        public int getType() {
+            return type;
+        }
+        
+        /**
+         * Returns the record data
+         * 
+         * @return the record data
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+    
+    /**
+     * A key ID listed in a WRMHEADER
+     */
+    public static class KID {
+        
+        private byte[] msKeyID;
+        private String algID;
+        private byte[] checksum;
+        
+        /**
+         * Returns the key ID as it appears in the header
+         * 
+         * @return the 16-byte, Microsoft binary encoded, key ID or null if it
+         * is missing or invalid
+         */
+        public byte[] getMSKeyID() {
+            return msKeyID;
+        }
+        
+        /**
+         * Returns the key ID in GUID byte order
+         * 
+         * @return the 16-byte key ID or null if it is missing or invalid
+         */
+        public byte[] getKeyID() {
+            return (msKeyID != null && msKeyID.length == GUID_SIZE) ?
+                    PlayReadyKeyDeriver.encodeMSGUID(msKeyID) : null;
+        }
+        
+        /**
+         * Returns the content encryption algorithm
+         * 
+         * @return the algorithm ID (AESCTR, AESCBC or COCKTAIL) or null if none
+         * is given
+         */
+        public String getAlgorithmID() {
+            return algID;
+        }
+        
+        /**
+         * Returns the key checksum
+         * 
+         * @return the checksum or null if none is given
+         */
+        public byte[] getChecksum() {
+            return checksum;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            byte[] keyID = getKeyID();
+            return (keyID != null) ? KeyCodec.encodeGUID(keyID) : "(invalid)";
+        }
+    }
+    
+    /**
+     * A WRMHEADER record
+     */
+    public static class Header {
+        
+        private String version;
+        private List<KID> kids = new ArrayList<KID>();
+        private String laURL;
+        private String luiURL;
+        private String dsID;
+        
+        /**
+         * Returns the header version
+         * 
+         * @return the value of the version attribute (e.g. 4.0.0.0), or null
+         */
+        public String getVersion() {
+            return version;
+        }
+        
+        /**
+         * Returns the key IDs in the header
+         * 
+         * @return the key IDs
+         */
+        public List<KID> getKIDs() {
+            return kids;
+        }
+        
+        /**
+         * Returns the license acquisition URL
+         * 
+         * @return the URL, or null
+         */
+        public String getLicenseURL() {
+            return laURL;
+        }
+        
+        /**
+         * Returns the license UI URL
+         * 
+         * @return the URL, or null
+         */
+        public String getLicenseUIURL() {
+            return luiURL;
+        }
+        
+        /**
+         * Returns the domain service ID
+         * 
+         * @return the base64 service ID, or null
+         */
+        public String getDomainServiceID() {
+            return dsID;
+        }
+    }
+    
+    private List<Record> records = new ArrayList<Record>();
+    private List<Header> headers = new ArrayList<Header>();
+    private List<String> errors = new ArrayList<String>();
+    
+    private PlayReadyObject() {
+    }
+    
+    /**
+     * Returns whether or not the given data starts with a PSSH box header rather than
+     * a PRO
+     * 
+     * @param data the data
+     * @return true if the data is a PSSH box
+     */
+    public static boolean isPSSHBox(byte[] data) {
+        return data.length >= 8 && ByteBuffer.wrap(data).getInt(4) == PSSH_TYPE;
+    }
+    
+    /**
+     * Decode a PRO from the text of an mspr:pro element
+     * 
+     * @param pro the base64 PRO
+     * @return the decoded PRO
+     * @throws IllegalArgumentException if the text is not valid base64
+     */
+    public static PlayReadyObject parseBase64(String pro) {
+        return parse(KeyCodec.decodeBase64(pro));
+    }
+    
+    /**
+     * Decode the PRO in a complete PlayReady PSSH box
+     * 
+     * @param box the PSSH box, including the box header
+     * @return the decoded PRO.  Problems with the box are reported as errors
+     */
+    public static PlayReadyObject parsePSSHBox(byte[] box) {
+        ByteBuffer bb = ByteBuffer.wrap(box);
+        try {
+            int size = bb.getInt();
+            if (size != box.length)
+                return invalid("PSSH box size (" + size + ") does not match data length (" + box.length + ")");
+            if (bb.getInt() != PSSH_TYPE)
+                return invalid("Not a PSSH box");
+            int version = bb.getInt() >>> 24;
+            byte[] systemID = new byte[16];
+            bb.get(systemID);
+            if (!PlayReadyPSSH.isPlayReady(systemID))
+                return invalid("Not a PlayReady PSSH box (system ID " + KeyCodec.encodeHex(systemID) + ")");
+            if (version > 0) {
+                int count = bb.getInt();
+                if (count < 0 || count > bb.remaining() / GUID_SIZE)
+                    return invalid("Invalid PSSH key ID count: " + count);
+                bb.position(bb.position() + count * GUID_SIZE);
+            }
+            int dataSize = bb.getInt();
+            if (dataSize != bb.remaining())
+                return invalid("PSSH data size (" + dataSize + ") does not match remaining box data (" +
+                               bb.remaining() + ")");
+            return parse(Arrays.copyOfRange(box, bb.position(), box.length));
+        }
+        catch (BufferUnderflowException e) {
+            return invalid("Truncated PSSH box");
+        }
+    }
+    
+    /**
+     * Decode a PRO
+     * 
+     * @param pro the PRO, such as the data of a PlayReady PSSH
+     * @return the decoded PRO.  Problems with its structure are reported as errors
+     */
+    public static PlayReadyObject parse(byte[] pro) {
+        PlayReadyObject o = new PlayReadyObject();
+        if (pro.length < 6) {
+            o.errors.add("PlayReady Object is too short (" + pro.length + " bytes)");
+            return o;
+        }
+        
+        ByteBuffer bb = ByteBuffer.wrap(pro).order(ByteOrder.LITTLE_ENDIAN);
+        long size = bb.getInt() & 0xFFFFFFFFL;
+        if (size != pro.length)
+            o.errors.add("PlayReady Object size (" + size + ") does not match data length (" + pro.length + ")");
+        
+        int count = bb.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            if (bb.remaining() < 4) {
+                o.errors.add("Record " + i + " of " + count + " is missing");
+                break;
+            }
+            int type = bb.getShort() & 0xFFFF;
+            int length = bb.getShort() & 0xFFFF;
+            if (length > bb.remaining()) {
+                o.errors.add("Record " + i + " length (" + length + ") exceeds remaining data (" +
+                             bb.remaining() + ")");
+                break;
+            }
+            byte[] data = new byte[length];
+            bb.get(data);
+            o.records.add(new Record(type, data));
+            if (type == RECORD_WRM_HEADER) {
+                Header h = o.parseHeader(data, i);
+                if (h != null)
+                    o.headers.add(h);
+            }
+        }
+        if (bb.hasRemaining() && o.records.size() == count)
+            o.errors.add(bb.remaining() + " byte(s) after the last record");
+        
+        return o;
+    }
+    
+    private static PlayReadyObject invalid(String error) {
+        PlayReadyObject o = new PlayReadyObject();
+        o.errors.add(error);
+        return o;
+    }
+    
+    private byte[] decodeBase64(String value, String what, int record) {
+        try {
+            return KeyCodec.decodeBase64(value.trim());
+        }
+        catch (IllegalArgumentException e) {
+            errors.add("Record " + record + ": invalid " + what + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+    
+    // Read a WRMHEADER document, or return null if it is not well-formed
+    private Header parseHeader(byte[] data, int record) {
+        if (data.length % 2 != 0) {
+            errors.add("Record " + record + ": WRMHEADER has an odd number of bytes (" + data.length + ")");
+            return null;
+        }
+        
+        // Skip a byte order mark
+        int offset = (data.length >= 2 && data[0] == (byte)0xFF && data[1] == (byte)0xFE) ? 2 : 0;
+        
+        Header h = new Header();
+        KID legacy = null;  // KID of 4.0.0.0 headers, given by separate elements
+        XMLStreamReader r = null;
+        try {
+            r = xmlInputFactory.get().createXMLStreamReader(
+                    new ByteArrayInputStream(data, offset, data.length - offset), "UTF-16LE");
+            boolean root = true;
+            while (r.hasNext()) {
+                if (r.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                
+                String name = r.getLocalName();
+                if (root) {
+                    if (!ELEMENT_WRMHEADER.equals(name)) {
+                        errors.add("Record " + record + ": root element is " + name + ", not " + ELEMENT_WRMHEADER);
+                        return null;
+                    }
+                    h.version = r.getAttributeValue(null, ATTR_VERSION);
+                    root = false;
+                }
+                else if (ELEMENT_KID.equals(name) && r.getAttributeValue(null, ATTR_VALUE) != null) {
+                    KID kid = new KID();
+                    kid.msKeyID = decodeBase64(r.getAttributeValue(null, ATTR_VALUE), "KID VALUE", record);
+                    kid.algID = r.getAttributeValue(null, ATTR_ALGID);
+                    String checksum = r.getAttributeValue(null, ATTR_CHECKSUM);
+                    if (checksum != null)
+                        kid.checksum = decodeBase64(checksum, "KID CHECKSUM", record);
+                    h.kids.add(kid);
+                }
+                else if (ELEMENT_KID.equals(name) || ELEMENT_CHECKSUM.equals(name) || ELEMENT_ALGID.equals(name)) {
+                    if (legacy == null) {
+                        legacy = new KID();
+                        h.kids.add(legacy);
+                    }
+                    String text = r.getElementText();
+                    if (ELEMENT_KID.equals(name))
+                        legacy.msKeyID = decodeBase64(text, "KID", record);
+                    else if (ELEMENT_CHECKSUM.equals(name))
+                        legacy.checksum = decodeBase64(text, "CHECKSUM", record);
+                    else
+                        legacy.algID = text.trim();
+                }
+                else if (ELEMENT_LA_URL.equals(name)) {
+                    h.laURL = r.getElementText();
+                }
+                else if (ELEMENT_LUI_URL.equals(name)) {
+                    h.luiURL = r.getElementText();
+                }
+                else if (ELEMENT_DS_ID.equals(name)) {
+                    h.dsID = r.getElementText();
+                }
+            }
+        }
+        catch (XMLStreamException e) {
+            errors.add("Record " + record + ": WRMHEADER is not well-formed XML (" + e.getMessage() + ")");
+            return null;
+        }
+        finally {
+            if (r != null) {
+                try {
+                    r.close();
+                }
+                catch (XMLStreamException e) {
+                    // Nothing to release
+                }
+            }
+        }
+        return h;
+    }
+    
+    /**
+     * Returns the records of the PRO, in order
+     * 
+     * @return the records
+     */
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+    
+    /**
+     * Returns the WRMHEADER records that could be read, in order
+     * 
+     * @return the headers
+     */
+    public List<Header> getHeaders() {
+        return Collections.unmodifiableList(headers);
+    }
+    
+    /**
+     * Returns the problems found while decoding the PRO
+     * 
+     * @return the errors, or an empty list if the PRO was decoded
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+    
+    /**
+     * Validate the PRO.  In addition to the decoding errors, each WRMHEADER is checked
+     * for a known version, the key IDs and algorithms allowed by its version, and the
+     * presence and size of its key IDs and checksums.  AESCTR checksums are compared
+     * against the key derived from the key seed, as for {@link PlayReadyKeyPair}
+     * 
+     * @param deriver derives the keys used to check checksums, or null to not check
+     * checksum values
+     * @return all errors, or an empty list if the PRO is valid
+     */
+    public List<String> validate(PlayReadyKeyDeriver deriver) {
+        List<String> result = new ArrayList<String>(errors);
+        
+        if (headers.isEmpty() && errors.isEmpty())
+            result.add("No WRMHEADER record");
+        
+        for (int i = 0; i < headers.size(); i++) {
+            Header h = headers.get(i);
+            String prefix = "WRMHEADER " + i + ": ";
+            
+            WRMHeader.Version version = null;
+            for (WRMHeader.Version v : WRMHeader.Version.values()) {
+                if (v.toXMLAttr().equals(h.version))
+                    version = v;
+            }
+            if (version == null) {
+                result.add(prefix + "unknown version " + h.version);
+                continue;
+            }
+            
+            if (h.kids.isEmpty() && version != WRMHeader.Version.V_4300)
+                result.add(prefix + "no KID");
+            if (h.kids.size() > 1 && !version.supportsMultipleKeys())
+                result.add(prefix + h.kids.size() + " KIDs in a version " + h.version + " header");
+            
+            for (KID kid : h.kids) {
+                String kidPrefix = prefix + "KID " + kid + ": ";
+                if (kid.msKeyID == null || kid.msKeyID.length != GUID_SIZE) {
+                    result.add(kidPrefix + "key ID is missing or not " + GUID_SIZE + " bytes");
+                    continue;
+                }
+                
+                // ALGID is required before 4.3.0.0, which added AESCBC
+                if (kid.algID == null) {
+                    if (version != WRMHeader.Version.V_4300)
+                        result.add(kidPrefix + "no ALGID");
+                }
+                else if (ALGID_AESCBC.equals(kid.algID)) {
+                    if (version != WRMHeader.Version.V_4300)
+                        result.add(kidPrefix + "AESCBC requires version 4.3.0.0");
+                }
+                else if (!ALGID_AESCTR.equals(kid.algID) && !ALGID_COCKTAIL.equals(kid.algID)) {
+                    result.add(kidPrefix + "unknown ALGID " + kid.algID);
+                }
+                
+                // Only AESCTR checksums can be checked.  4.0.0.0 headers require them
+                if (kid.checksum == null) {
+                    if (version == WRMHeader.Version.V_4000)
+                        result.add(kidPrefix + "no CHECKSUM");
+                }
+                else if (kid.checksum.length != CHECKSUM_SIZE) {
+                    result.add(kidPrefix + "CHECKSUM is " + kid.checksum.length + " bytes, not " + CHECKSUM_SIZE);
+                }
+                else if (deriver != null && ALGID_AESCTR.equals(kid.algID)) {
+                    PlayReadyKeyPair key = deriver.keyPair(kid.getKeyID());
+                    if (!Arrays.equals(key.getChecksum(), kid.checksum))
+                        result.add(kidPrefix + "CHECKSUM does not match the key derived from the key seed");
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -26,30 +26,34 @@
 
 package org.cablelabs.playready;
 
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.apache.commons.codec.binary.Base64;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import org.cablelabs.cryptfile.KeyCodec;
 
 /**
- * Generates a PlayReady Windows Rights Management Header XML document
+ * Generates a PlayReady Windows Rights Management Header XML document.
+ * <p>
+ * Versions 4.0.0.0 and 4.1.0.0 hold a single key ID.  Versions 4.2.0.0 and 4.3.0.0
+ * hold a list of key IDs (&lt;KIDS&gt;), so all of the rolling keys of an asset can
+ * share one header.  Version 4.3.0.0 adds the AESCBC algorithm.
+ * <p>
+ * Each header version has a WRMHEADER template that is compiled once into UTF-16LE
+ * bytes.  A header is generated by copying the template bytes and the values of the
+ * key ID, checksum and license URL elements into a single array, so no XML document or
+ * serializer is needed.  The output matches the serialization of the equivalent DOM
+ * document with no declaration and no indenting.
  */
 public class WRMHeader {
     
     public enum Version {
         V_4000("4.0.0.0"),
-        V_4100("4.1.0.0");
+        V_4100("4.1.0.0"),
+        V_4200("4.2.0.0"),
+        V_4300("4.3.0.0");
         
         private String xml_attr;
         
@@ -60,112 +64,431 @@ public class WRMHeader {
         String toXMLAttr() {
             return xml_attr;
         }
+        
+        /**
+         * Returns whether or not headers of this version can hold more than one key ID
+         * 
+         * @return true for versions 4.2.0.0 and later
+         */
+        public boolean supportsMultipleKeys() {
+            return this == V_4200 || this == V_4300;
+        }
+        
+        /**
+         * Returns whether or not headers of this version can use the given algorithm
+         * 
+         * @param algID the content encryption algorithm
+         * @return true if the algorithm is supported
+         */
+        public boolean supports(AlgorithmID algID) {
+            return algID == AlgorithmID.AESCTR || this == V_4300;
+        }
     }
     
-    private static final String XMLNS = "http://schemas.microsoft.com/DRM/2007/03/PlayReadyHeader";
+    /**
+     * Content encryption algorithms of the KID ALGID attribute
+     */
+    public enum AlgorithmID {
+        AESCTR,
+        AESCBC
+    }
     
-    private Document doc;
+    /**
+     * Maximum size of a header.  The PlayReady Object record length field is 16 bits
+     */
+    public static final int MAX_SIZE = 0xFFFF;
     
-    // Build a version 4.0.0.0 WRM Header
-    private void build4000Doc(PlayReadyKeyPair key, String url, Element root) {
-        Element data = doc.createElement("DATA");
-        root.appendChild(data);
+    private static final String XMLNS = "http://schemas.microsoft.com/DRM/2007/03/PlayReadyHeader";
+    
+    /**
+     * Elements whose content is filled in for each header
+     */
+    private enum Slot {
+        KID("KID"),
+        CHECKSUM("CHECKSUM"),
+        LA_URL("LA_URL"),
         
-        Element protectinfo = doc.createElement("PROTECTINFO");
-        data.appendChild(protectinfo);
+        // KID elements (with attributes) of 4.1.0.0 and later headers.  Filled in
+        // with markup rather than text
+        KIDS(null);
         
-        Element keylen = doc.createElement("KEYLEN");
-        keylen.setTextContent("16");
-        Element algid = doc.createElement("ALGID");
-        algid.setTextContent("AESCTR");
-        protectinfo.appendChild(keylen);
-        protectinfo.appendChild(algid);
+        private final byte[] start;
+        private final byte[] end;
+        private final byte[] empty;
         
-        Element kid = doc.createElement("KID");
-        kid.setTextContent(Base64.encodeBase64String(key.getMSKeyID()));
-        Element checksum = doc.createElement("CHECKSUM");
-        checksum.setTextContent(Base64.encodeBase64String(key.getChecksum()));
-        Element la_url = doc.createElement("LA_URL");
-        la_url.setTextContent(url);
-        data.appendChild(kid);
-        data.appendChild(checksum);
-        data.appendChild(la_url);
-    }
-    
-    // Build a version 4.1.0.0 WRM Header
-    private void build4100Doc(PlayReadyKeyPair key, String url, Element root) {
-        // This is not working in my scripts yet, so I'm not going to implement it
-        // here until I have a working test
+        Slot(String element) {
+            start = (element != null) ? encode("<" + element + ">") : null;
+            end = (element != null) ? encode("</" + element + ">") : null;
+            empty = (element != null) ? encode("<" + element + "/>") : null;
+        }
+        
+        // Size in bytes of the slot with the given value
+        int size(String value) {
+            if (start == null)
+                return value.length() * 2;
+            return value.isEmpty() ? empty.length : start.length + value.length() * 2 + end.length;
+        }
     }
     
-    public WRMHeader(Version version, PlayReadyKeyPair key, String url) {
+    /**
+     * A WRMHEADER document compiled to UTF-16LE bytes.  The template is a sequence of
+     * literal byte arrays with a slot between each pair
+     */
+    private static class Template {
         
-        // Create a new document
-        DocumentBuilder builder = null;
-        try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        private byte[][] literals;
+        private Slot[] slots;
+        
+        /**
+         * Compile a template
+         * 
+         * @param parts literal XML strings and slots.  Consecutive strings are
+         * concatenated
+         */
+        Template(Object... parts) {
+            int slotCount = 0;
+            for (Object part : parts) {
+                if (part instanceof Slot)
+                    slotCount++;
+            }
+            literals = new byte[slotCount + 1][];
+            slots = new Slot[slotCount];
+            
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            for (Object part : parts) {
+                if (part instanceof Slot) {
+                    literals[i] = encode(literal.toString());
+                    slots[i++] = (Slot)part;
+                    literal.setLength(0);
+                }
+                else {
+                    literal.append(part);
+                }
+            }
+            literals[i] = encode(literal.toString());
+        }
+        
+        /**
+         * Returns the size of a header
+         * 
+         * @param values the escaped content of each slot, indexed by slot ordinal
+         * @return the size in bytes
+         */
+        int size(String[] values) {
+            int size = 0;
+            for (byte[] literal : literals) {
+                size += literal.length;
+            }
+            for (Slot slot : slots) {
+                size += slot.size(values[slot.ordinal()]);
+            }
+            return size;
         }
-        catch (ParserConfigurationException ex) {
-            System.out.println("Error creating XML DocumentBuilder: " + ex.getMessage());
-            System.exit(1);
+        
+        /**
+         * Generate a header
+         * 
+         * @param values the escaped content of each slot, indexed by slot ordinal
+         * @return the UTF-16LE header
+         */
+        byte[] fill(String[] values) {
+            byte[] data = new byte[size(values)];
+            int pos = 0;
+            for (int i = 0; i < slots.length; i++) {
+                pos = copy(literals[i], data, pos);
+                Slot slot = slots[i];
+                String value = values[slot.ordinal()];
+                if (slot.start == null) {
+                    pos = copy(value, data, pos);
+                }
+                else if (value.isEmpty()) {
+                    pos = copy(slot.empty, data, pos);
+                }
+                else {
+                    pos = copy(slot.start, data, pos);
+                    pos = copy(value, data, pos);
+                    pos = copy(slot.end, data, pos);
+                }
+            }
+            copy(literals[slots.length], data, pos);
+            return data;
         }
-        doc = builder.newDocument();
         
-        // Create root element and set namespace and version
-        Element root = doc.createElement("WRMHEADER");
-        root.setAttribute("xmlns", XMLNS);
-        root.setAttribute("version", version.toXMLAttr());
-        doc.appendChild(root);
+        private static int copy(byte[] src, byte[] dest, int pos) {
+            System.arraycopy(src, 0, dest, pos, src.length);
+            return pos + src.length;
+        }
         
-        // Build the version-specific document
-        switch (version) {
-        case V_4000:
-            build4000Doc(key, url, root);
-            break;
-        case V_4100:
-            build4100Doc(key, url, root);
-            break;
-        default:
-            break;
+        private static int copy(String src, byte[] dest, int pos) {
+            for (int j = 0; j < src.length(); j++) {
+                char c = src.charAt(j);
+                dest[pos++] = (byte)c;
+                dest[pos++] = (byte)(c >> 8);
+            }
+            return pos;
+        }
+    }
+    
+    private static final Map<Version, Template> templates = new EnumMap<Version, Template>(Version.class);
+    static {
+        templates.put(Version.V_4000, new Template(
+                "<WRMHEADER xmlns=\"", XMLNS, "\" version=\"", Version.V_4000.toXMLAttr(), "\">",
+                "<DATA>",
+                "<PROTECTINFO><KEYLEN>16</KEYLEN><ALGID>AESCTR</ALGID></PROTECTINFO>",
+                Slot.KID, Slot.CHECKSUM, Slot.LA_URL,
+                "</DATA>",
+                "</WRMHEADER>"));
+        templates.put(Version.V_4100, new Template(
+                "<WRMHEADER xmlns=\"", XMLNS, "\" version=\"", Version.V_4100.toXMLAttr(), "\">",
+                "<DATA>",
+                "<PROTECTINFO>", Slot.KIDS, "</PROTECTINFO>",
+                Slot.LA_URL,
+                "</DATA>",
+                "</WRMHEADER>"));
+        for (Version v : new Version[] { Version.V_4200, Version.V_4300 }) {
+            templates.put(v, new Template(
+                    "<WRMHEADER xmlns=\"", XMLNS, "\" version=\"", v.toXMLAttr(), "\">",
+                    "<DATA>",
+                    "<PROTECTINFO><KIDS>", Slot.KIDS, "</KIDS></PROTECTINFO>",
+                    Slot.LA_URL,
+                    "</DATA>",
+                    "</WRMHEADER>"));
         }
     }
     
+    private Version version;
+    private List<PlayReadyKeyPair> keys;
+    private String url;
+    private AlgorithmID algID;
+    private byte[] data;
+    
+    private static byte[] encode(String s) {
+        byte[] b = new byte[s.length() * 2];
+        Template.copy(s, b, 0);
+        return b;
+    }
+    
+    // Escape element text the same way as the JAXP serializer.  Control characters
+    // are written as character references
+    private static String escapeText(String s) {
+        if (s == null)
+            return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String ref;
+            if (c == '&')
+                ref = "&amp;";
+            else if (c == '<')
+                ref = "&lt;";
+            else if (c == '>')
+                ref = "&gt;";
+            else if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F))
+                ref = "&#" + (int)c + ";";
+            else
+                ref = null;
+            
+            if (ref == null) {
+                if (sb != null)
+                    sb.append(c);
+                continue;
+            }
+            if (sb == null)
+                sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+            sb.append(ref);
+        }
+        return (sb == null) ? s : sb.toString();
+    }
+    
+    // KID element of 4.1.0.0 and later headers.  Checksums are only defined for AESCTR
+    private static String kidElement(PlayReadyKeyPair key, AlgorithmID algID) {
+        StringBuilder sb = new StringBuilder(80);
+        sb.append("<KID ALGID=\"").append(algID.name()).append('"');
+        if (algID == AlgorithmID.AESCTR)
+            sb.append(" CHECKSUM=\"").append(KeyCodec.encodeBase64(key.getChecksum())).append('"');
+        sb.append(" VALUE=\"").append(KeyCodec.encodeBase64(key.getMSKeyID())).append("\"></KID>");
+        return sb.toString();
+    }
+    
     /**
-     * Returns the WRMHeader data exactly as it should be used in the PlayReady PSSH 
+     * Returns the lowest header version that can hold the given number of key IDs
+     * in one header.  Lower versions are supported by more clients
      * 
-     * @return the WRMHeader data
+     * @param keyCount the number of key IDs
+     * @param algID the content encryption algorithm
+     * @return the header version
      */
-    public byte[] getWRMHeaderData() {
+    public static Version minimumVersion(int keyCount, AlgorithmID algID) {
+        if (algID == AlgorithmID.AESCBC)
+            return Version.V_4300;
+        return (keyCount > 1) ? Version.V_4200 : Version.V_4000;
+    }
+    
+    /**
+     * Build the headers for the given keys.  Versions that hold a single key ID get
+     * one header per key.  Other versions get as few headers as possible without
+     * exceeding {@link #MAX_SIZE}
+     * 
+     * @param version the header version, or null to use the lowest version that can
+     * hold all keys in one header (see {@link #minimumVersion(int, AlgorithmID)})
+     * @param keys the keys
+     * @param url the license acquisition URL
+     * @param algID the content encryption algorithm
+     * @return the headers
+     * @throws IllegalArgumentException if the version does not support the algorithm,
+     * or a single key does not fit in a header
+     */
+    public static List<WRMHeader> build(Version version, List<PlayReadyKeyPair> keys, String url,
+                                        AlgorithmID algID) {
+        if (keys.isEmpty())
+            throw new IllegalArgumentException("Must specify at least one key");
+        if (version == null)
+            version = minimumVersion(keys.size(), algID);
         
-        // Setup our transformer to output UTF16 little-endian, with no declaration and no
-        // indenting
-        Transformer tf = null;
-        try {
-            tf = TransformerFactory.newInstance().newTransformer();
-            tf.setOutputProperty(OutputKeys.ENCODING, "UTF-16LE");
-            tf.setOutputProperty(OutputKeys.INDENT, "no");
-            tf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        List<WRMHeader> headers = new ArrayList<WRMHeader>();
+        if (!version.supportsMultipleKeys()) {
+            for (PlayReadyKeyPair key : keys) {
+                headers.add(new WRMHeader(version, key, url, algID));
+            }
+            return headers;
         }
-        catch (Exception ex) {
-            System.out.println("Error creating XML Transformer: " + ex.getMessage());
-            System.exit(1);;
+        
+        // KID elements of a given algorithm are all the same length
+        String[] values = slotValues(null, url);
+        int fixedSize = templates.get(version).size(values);
+        int kidSize = kidElement(keys.get(0), algID).length() * 2;
+        int perHeader = (MAX_SIZE - fixedSize) / kidSize;
+        if (perHeader < 1)
+            throw new IllegalArgumentException("License URL is too long for a WRMHeader");
+        
+        for (int i = 0; i < keys.size(); i += perHeader) {
+            headers.add(new WRMHeader(version, keys.subList(i, Math.min(keys.size(), i + perHeader)), url, algID));
         }
+        return headers;
+    }
+    
+    // Slot values other than the keys
+    private static String[] slotValues(String kids, String url) {
+        String[] values = new String[Slot.values().length];
+        values[Slot.KIDS.ordinal()] = (kids != null) ? kids : "";
+        values[Slot.LA_URL.ordinal()] = escapeText(url);
+        return values;
+    }
+    
+    /**
+     * Create a header for a single AESCTR key
+     * 
+     * @param version the header version
+     * @param key the key
+     * @param url the license acquisition URL
+     */
+    public WRMHeader(Version version, PlayReadyKeyPair key, String url) {
+        this(version, key, url, AlgorithmID.AESCTR);
+    }
+    
+    /**
+     * Create a header for a single key
+     * 
+     * @param version the header version
+     * @param key the key
+     * @param url the license acquisition URL
+     * @param algID the content encryption algorithm
+     * @throws IllegalArgumentException if the version does not support the algorithm
+     */
+    public WRMHeader(Version version, PlayReadyKeyPair key, String url, AlgorithmID algID) {
+        this(version, Collections.singletonList(key), url, algID);
+    }
+    
+    /**
+     * Create a header for one or more keys
+     * 
+     * @param version the header version.  Only versions 4.2.0.0 and later can hold
+     * more than one key
+     * @param keys the keys
+     * @param url the license acquisition URL
+     * @param algID the content encryption algorithm
+     * @throws IllegalArgumentException if the version does not support the number of
+     * keys or the algorithm, or the header would exceed {@link #MAX_SIZE}
+     */
+    public WRMHeader(Version version, List<PlayReadyKeyPair> keys, String url, AlgorithmID algID) {
+        if (keys.isEmpty() || (keys.size() > 1 && !version.supportsMultipleKeys()))
+            throw new IllegalArgumentException("WRMHeader version " + version.toXMLAttr() +
+                                               " can not hold " + keys.size() + " key(s)");
+        if (!version.supports(algID))
+            throw new IllegalArgumentException("WRMHeader version " + version.toXMLAttr() +
+                                               " does not support " + algID);
         
-        byte[] retVal = null;
+        this.version = version;
+        this.keys = Collections.unmodifiableList(new ArrayList<PlayReadyKeyPair>(keys));
+        this.url = url;
+        this.algID = algID;
         
-        // Write the document to a byte array
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DOMSource source = new DOMSource(doc);
-        StreamResult result = new StreamResult(baos);
-        try {
-            tf.transform(source, result);
-            retVal = baos.toByteArray();
+        String[] values;
+        if (version == Version.V_4000) {
+            PlayReadyKeyPair key = keys.get(0);
+            values = slotValues(null, url);
+            values[Slot.KID.ordinal()] = KeyCodec.encodeBase64(key.getMSKeyID());
+            values[Slot.CHECKSUM.ordinal()] = KeyCodec.encodeBase64(key.getChecksum());
         }
-        catch (TransformerException ex) {
-            System.out.println("Error performing XML transform: " + ex.getMessage());
+        else {
+            StringBuilder kids = new StringBuilder(keys.size() * 80);
+            for (PlayReadyKeyPair key : keys) {
+                kids.append(kidElement(key, algID));
+            }
+            values = slotValues(kids.toString(), url);
         }
         
-        return retVal;
+        Template template = templates.get(version);
+        if (template.size(values) > MAX_SIZE)
+            throw new IllegalArgumentException("WRMHeader exceeds " + MAX_SIZE + " bytes");
+        data = template.fill(values);
+    }
+    
+    /**
+     * Returns the header version
+     * 
+     * @return the version
+     */
+    public Version getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the keys in this header
+     * 
+     * @return an unmodifiable list of the keys
+     */
+    public List<PlayReadyKeyPair> getKeys() {
+        return keys;
+    }
+    
+    /**
+     * Returns the license acquisition URL
+     * 
+     * @return the URL
+     */
+    public String getURL() {
+        return url;
+    }
+    
+    /**
+     * Returns the content encryption algorithm
+     * 
+     * @return the algorithm
+     */
+    public AlgorithmID getAlgorithmID() {
+        return algID;
+    }
+    
+    /**
+     * Returns the WRMHeader data exactly as it should be used in the PlayReady PSSH.
+     * The data is generated once, when the header is created
+     * 
+     * @return the WRMHeader data.  The array is shared and must not be modified
+     */
+    public byte[] getWRMHeaderData() {
+        return data;
     }
 
 }
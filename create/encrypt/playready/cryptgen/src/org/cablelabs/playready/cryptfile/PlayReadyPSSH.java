@@ -31,11 +31,21 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
-import org.apache.commons.codec.binary.Base64;
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.cryptfile.KeyId;
+import org.cablelabs.cryptfile.PSSHCache;
+import org.cablelabs.playready.PlayReadyKeyPair;
 import org.cablelabs.playready.WRMHeader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -60,6 +70,10 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
     private int proSize;
     private ContentProtectionType cpType;
     
+    // Keys and URL of PSSH whose headers were chosen automatically, or null
+    private List<PlayReadyKeyPair> keys;
+    private String url;
+    
     /**
      * License server URL to use for testing
      */
@@ -85,8 +99,60 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
         return systemIDMatch(PLAYREADY_SYSTEM_ID, systemID);
     }
     
+    /**
+     * Returns the {@link PSSHCache} key for the PlayReady PSSH containing WRMHeaders
+     * of the given version for the given keys.  Cached entries always generate CENC
+     * ContentProtection elements.
+     * 
+     * @param version the WRMHeader version
+     * @param keys the key pairs
+     * @param url the license acquisition URL
+     * @return the cache key
+     */
+    public static String cacheKey(WRMHeader.Version version, List<PlayReadyKeyPair> keys, String url) {
+        PSSHCache.KeyBuilder kb = new PSSHCache.KeyBuilder(PLAYREADY_SYSTEM_ID, 0);
+        kb.add(version.toString());
+        kb.add(url);
+        kb.add(keys.size());
+        for (PlayReadyKeyPair key : keys) {
+            kb.add(key.getID());
+            kb.add(key.getKey());
+        }
+        return kb.build();
+    }
+    
+    /**
+     * Create a PlayReady PSSH for the given keys.  The lowest WRMHeader version that
+     * can hold all of the keys in one header is used, so an asset with rolling keys
+     * gets a single PlayReady Object record (or as few records as the 16-bit record
+     * length allows).  Keys use the AESCTR algorithm
+     * 
+     * @param keys the keys
+     * @param url the license acquisition URL
+     * @param cpType the type of ContentProtection element to generate
+     * @see WRMHeader#build(WRMHeader.Version, List, String, WRMHeader.AlgorithmID)
+     */
+    public PlayReadyPSSH(List<PlayReadyKeyPair> keys, String url, ContentProtectionType cpType) {
+        this(WRMHeader.build(null, keys, url, WRMHeader.AlgorithmID.AESCTR), cpType);
+        this.keys = new ArrayList<PlayReadyKeyPair>(keys);
+        this.url = url;
+    }
+    
+    /**
+     * Create a PlayReady PSSH with one PlayReady Object record for each of the given
+     * headers
+     * 
+     * @param wrmHeaders the headers
+     * @param cpType the type of ContentProtection element to generate
+     * @throws IllegalArgumentException if there are more than 65535 headers
+     */
     public PlayReadyPSSH(List<WRMHeader> wrmHeaders, ContentProtectionType cpType) {
         super(PLAYREADY_SYSTEM_ID);
+        
+        // Number of Records is a 16-bit field
+        if (wrmHeaders.size() > 0xFFFF)
+            throw new IllegalArgumentException("Too many WRMHeaders: " + wrmHeaders.size());
+        
         this.wrmHeaders = wrmHeaders;
         this.cpType = cpType;
         
@@ -105,6 +171,54 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
         proSize = 4 + 2 + (4*wrmHeaders.size()) + wrmHeadersSize;
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#merge(org.cablelabs.cryptfile.DRMInfoPSSH)
+     */
+    @Override
+    public DRMInfoPSSH merge(DRMInfoPSSH other) {
+        if (!(other instanceof PlayReadyPSSH))
+            return null;
+        PlayReadyPSSH pr = (PlayReadyPSSH)other;
+        if (cpType != pr.cpType)
+            return null;
+        
+        // Automatically built PSSH with the same URL are rebuilt from all their keys
+        if (keys != null && pr.keys != null &&
+                (url == null ? pr.url == null : url.equals(pr.url))) {
+            Set<KeyId> keyIDs = new HashSet<KeyId>();
+            List<PlayReadyKeyPair> mergedKeys = new ArrayList<PlayReadyKeyPair>(keys.size() + pr.keys.size());
+            for (PlayReadyKeyPair key : keys) {
+                if (keyIDs.add(key.getKeyId()))
+                    mergedKeys.add(key);
+            }
+            for (PlayReadyKeyPair key : pr.keys) {
+                if (keyIDs.add(key.getKeyId()))
+                    mergedKeys.add(key);
+            }
+            return new PlayReadyPSSH(mergedKeys, url, cpType);
+        }
+        
+        // One PRO record per WRMHeader, skipping headers we already have
+        List<WRMHeader> merged = new ArrayList<WRMHeader>(wrmHeaders);
+        for (WRMHeader header : pr.wrmHeaders) {
+            boolean duplicate = false;
+            for (WRMHeader existing : wrmHeaders) {
+                if (Arrays.equals(existing.getWRMHeaderData(), header.getWRMHeaderData())) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate)
+                merged.add(header);
+        }
+        
+        // Number of Records is a 16-bit field
+        if (merged.size() > 0xFFFF)
+            return null;
+        return new PlayReadyPSSH(merged, cpType);
+    }
+
     @Override
     public Element generateContentProtection(Document d) throws IOException {
         Element e = super.generateContentProtection(d);
@@ -148,7 +262,7 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
                     dos.write(wrmData);
                 }
                 
-                pro.setTextContent(Base64.encodeBase64String(baos.toByteArray()));
+                pro.setTextContent(KeyCodec.encodeBase64(baos.toByteArray()));
                 
                 e.appendChild(pro);
                 break;
@@ -191,6 +305,15 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPSSHDataSize()
+     */
+    @Override
+    protected int getPSSHDataSize() {
+        return proSize;
+    }
+
     /*
      * (non-Javadoc)
      * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
@@ -228,4 +351,42 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
         
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        
+        // PlayReady Header Object Size field
+        b.setupIntegerLE(proSize, 32);
+        b.writeXML(w);
+        
+        // Number of Records field
+        b.setupIntegerLE(wrmHeaders.size(), 16);
+        b.writeXML(w);
+        
+        for (WRMHeader header : wrmHeaders) {
+            
+            byte[] wrmData = header.getWRMHeaderData();
+            
+            // Record Type (always 1 for WRM Headers)
+            b.setupIntegerLE(1, 16);
+            b.writeXML(w);
+            
+            // Record Length
+            b.setupIntegerLE(wrmData.length, 16);
+            b.writeXML(w);
+            
+            // Data
+            b.setupDataB64(wrmData);
+            b.writeXML(w);
+        }
+        
+        w.writeEndElement();
+    }
 }
@@ -26,24 +26,30 @@
 
 package org.cablelabs.playready.cryptgen;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
+import javax.xml.stream.XMLStreamException;
+
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.KeyStoreOption;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.cryptfile.KeyFileImporter;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KidIndex;
+import org.cablelabs.playready.PlayReadyKeyDeriver;
 import org.cablelabs.playready.PlayReadyKeyPair;
 import org.cablelabs.playready.WRMHeader;
 import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
@@ -64,6 +70,8 @@ public class CryptfileGen {
             System.out.println("\trolling keys.");
             System.out.println("");
             System.out.println("\t\t<keyid_file> is a file that contains a list of key IDs, one key ID per line.");
+            System.out.println("\t\tA line may also give the key for its key ID as '<key_id>:<key>', as CSV or as a");
+            System.out.println("\t\tJSON object ({\"kid\":\"<key_id>\",\"key\":\"<key>\"}).  Keys are in hex or base64.");
             System.out.println("");
             System.out.println("\t\t<keyid> is a key ID in GUID form.");
             System.out.println("");
@@ -79,9 +87,12 @@ public class CryptfileGen {
             System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
             System.out.println("\t\twritten to stdout.");
             System.out.println("");
-            System.out.println("\t-version {4000|4100}");
-            System.out.println("\t\tIf present, specifies the WRMHeader version to generate.  Must be either '4000' for v4.0.0.0");
-            System.out.println("\t\tor '4100' for v4.1.0.0.  Default is '4000'.");
+            System.out.println("\t-version {4000|4100|4200|4300}");
+            System.out.println("\t\tIf present, specifies the WRMHeader version to generate: '4000' for v4.0.0.0, '4100' for");
+            System.out.println("\t\tv4.1.0.0, '4200' for v4.2.0.0 or '4300' for v4.3.0.0.  Versions 4000 and 4100 generate one");
+            System.out.println("\t\tWRMHeader per key ID.  Versions 4200 and 4300 put all key IDs in one WRMHeader.  By default,");
+            System.out.println("\t\tthe lowest version that holds all key IDs in one WRMHeader is used ('4000' for a single key");
+            System.out.println("\t\tID, '4200' otherwise).");
             System.out.println("");
             System.out.println("\t-url <license_url>");
             System.out.println("\t\tIf present, specifies the license URL to embed in the WRMHeaders.  If not specified, will");
@@ -97,11 +108,16 @@ public class CryptfileGen {
             System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element that can be pasted into the MPD");
+            System.out.println("");
+            KeyStoreOption.usage();
+            System.out.println("\t-kidindex <index_dir>[,<asset_id>]");
+            System.out.println("\t\tRecord every key ID with its track, DRM systems and cryptfile in the given KID index.");
+            System.out.println("\t\t<asset_id> defaults to the cryptfile path.");
         }
     }
     
     private static class Track {
-        List<String> keyIDs = new ArrayList<String>();
+        List<PlayReadyKeyPair> keys = new ArrayList<PlayReadyKeyPair>();
         int id;
     }
     
@@ -113,9 +129,12 @@ public class CryptfileGen {
         int rollingKeySamples = -1;
         
         String outfile = null;
+        KeyStoreOption keystore = new KeyStoreOption();
+        String kidIndex = null;
+        String assetID = null;
         String url = PlayReadyPSSH.TEST_URL;
         List<Track> tracks = new ArrayList<Track>();
-        WRMHeader.Version headerVersion = WRMHeader.Version.V_4000;
+        WRMHeader.Version headerVersion = null;
         
         // Clearkey
         boolean clearkey = false;
@@ -144,7 +163,13 @@ public class CryptfileGen {
                         headerVersion = WRMHeader.Version.V_4000;
                     }
                     else if ("4100".equals(subopts[0])) {
-                        headerVersion = WRMHeader.Version.V_4000;
+                        headerVersion = WRMHeader.Version.V_4100;
+                    }
+                    else if ("4200".equals(subopts[0])) {
+                        headerVersion = WRMHeader.Version.V_4200;
+                    }
+                    else if ("4300".equals(subopts[0])) {
+                        headerVersion = WRMHeader.Version.V_4300;
                     }
                     else {
                         cmdline.errorExit("Illegal WRMHeader version: " + subopts[0]);
@@ -162,6 +187,15 @@ public class CryptfileGen {
                 else if ((subopts = cmdline.checkOption("-ck", args, i, 0)) != null) {
                     clearkey = true;
                 }
+                else if ((subopts = cmdline.checkOption("-kidindex", args, i, 1, 2)) != null) {
+                    kidIndex = subopts[0];
+                    if (subopts.length > 1)
+                        assetID = subopts[1];
+                    i++;
+                }
+                else if (keystore.parse(cmdline, args, i)) {
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -190,18 +224,24 @@ public class CryptfileGen {
                 // Read key IDs from file
                 if (track_desc[1].startsWith("@")) {
                     String keyfile = track_desc[1].substring(1);
-                    BufferedReader br = new BufferedReader(new FileReader(keyfile));
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        t.keyIDs.add(line.trim());
+                    KeyFileImporter.Result<PlayReadyKeyPair> result =
+                            new KeyFileImporter<PlayReadyKeyPair>(PlayReadyKeyPair.KEY_FILE_FACTORY).importFile(new File(keyfile));
+                    if (result.hasErrors()) {
+                        for (KeyFileImporter.LineError e : result.getErrors()) {
+                            System.err.println(keyfile + ": " + e);
+                        }
+                        cmdline.errorExit("Illegal key IDs in key ID file: " + keyfile +
+                                " (" + result.getErrors().size() + " line(s))");
                     }
-                    br.close();
+                    t.keys.addAll(result.getKeys());
                 }
                 else { // Key IDs on command line
                     String[] keyIDs = track_desc[1].split(",");
+                    List<byte[]> guids = new ArrayList<byte[]>(keyIDs.length);
                     for (String keyID : keyIDs) {
-                        t.keyIDs.add(keyID);
+                        guids.add(KeyPair.parseGUID(keyID));
                     }
+                    t.keys.addAll(PlayReadyKeyDeriver.getDefault().keyPairs(guids));
                 }
                 
                 tracks.add(t);
@@ -217,17 +257,15 @@ public class CryptfileGen {
             }
         }
         
-        List<WRMHeader> wrmHeaders = new ArrayList<WRMHeader>();
+        List<PlayReadyKeyPair> prKeys = new ArrayList<PlayReadyKeyPair>();
         List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
         
         // Build one CryptTrack for every track and gather a list of all
-        // WRMHeaders to put in one PSSH
+        // keys to put in one PSSH
         for (Track t : tracks) {
             List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
-            for (String keyID : t.keyIDs) {
-                PlayReadyKeyPair prKey = new PlayReadyKeyPair(keyID);
-                wrmHeaders.add(new WRMHeader(headerVersion, prKey, url));
-                
+            for (PlayReadyKeyPair prKey : t.keys) {
+                prKeys.add(prKey);
                 cryptKeys.add(new CryptKey(prKey));
             }
             cryptTracks.add(new CryptTrack(t.id, 8, null, cryptKeys, rollingKeySamples));
@@ -235,7 +273,18 @@ public class CryptfileGen {
         
         // Create our PSSH
         List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
-        psshList.add(new PlayReadyPSSH(wrmHeaders, PlayReadyPSSH.ContentProtectionType.CENC));
+        try {
+            if (headerVersion == null) {
+                psshList.add(new PlayReadyPSSH(prKeys, url, PlayReadyPSSH.ContentProtectionType.CENC));
+            }
+            else {
+                List<WRMHeader> wrmHeaders = WRMHeader.build(headerVersion, prKeys, url, WRMHeader.AlgorithmID.AESCTR);
+                psshList.add(new PlayReadyPSSH(wrmHeaders, PlayReadyPSSH.ContentProtectionType.CENC));
+            }
+        }
+        catch (IllegalArgumentException e) {
+            cmdline.errorExit("Could not generate PlayReady PSSH: " + e.getMessage());
+        }
         
         // Add clearkey PSSH if requested
         if (clearkey) {
@@ -248,10 +297,10 @@ public class CryptfileGen {
             outputStream.println("Ensure the following keys are available to the client:");
             for (CryptTrack t : cryptTracks) {
                 for (CryptKey key : t.getKeys()) {
-                    outputStream.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
-                                       " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
-                                       " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
-                                       " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
+                    outputStream.println("\t" + KeyCodec.encodeHex(key.getKeyPair().getID()) +
+                                       " : " + KeyCodec.encodeHex(key.getKeyPair().getKey()) +
+                                       " (" + KeyCodec.encodeBase64(key.getKeyPair().getID()) +
+                                       " : " + KeyCodec.encodeBase64(key.getKeyPair().getKey()) + ")");
                     keyIDs[i++] = key.getKeyPair().getID();
                 }
             }
@@ -259,6 +308,9 @@ public class CryptfileGen {
             psshList.add(new ClearKeyPSSH(keyIDs));
         }
         
+        // Record all keys in the local key store
+        keystore.putTrackKeys(cmdline, cryptTracks, outputStream);
+        
         // Print ContentProtection element
         if (printCP) {
             outputStream.println("############# Content Protection Element #############");
@@ -281,16 +333,36 @@ public class CryptfileGen {
                                                           cryptTracks, psshList);
         
         // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, outputStream);
         try {
+            cfBuilder.writeCryptfile(outputStream);
             if (outfile != null) {
                 outputStream.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(outfile));
+                cfBuilder.writeCryptfile(os);
+                os.close();
             }
         }
         catch (FileNotFoundException e) {
             cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (IOException e) {
+            cmdline.errorExit("Error writing output file (" + outfile + ") -- " + e.getMessage());
+        }
+        catch (XMLStreamException e) {
+            cmdline.errorExit("Error writing cryptfile -- " + e.getMessage());
+        }
+        
+        // Record key IDs in the KID index
+        if (kidIndex != null) {
+            String cryptfile = (outfile != null) ? new File(outfile).getAbsolutePath() : "-";
+            try {
+                int recorded = KidIndex.record(new File(kidIndex), (assetID != null) ? assetID : cryptfile,
+                                               cryptfile, cfBuilder);
+                outputStream.println("Recorded " + recorded + " key ID(s) in KID index: " + kidIndex);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error writing KID index (" + kidIndex + ") -- " + e.getMessage());
+            }
+        }
     }
 }
@@ -26,32 +26,78 @@
 
 package org.cablelabs.playready.keygen;
 
-import java.util.Arrays;
-import java.security.InvalidKeyException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
-
-import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.cryptfile.KeyFileImporter;
+import org.cablelabs.cryptfile.KeyMaterialSource;
+import org.cablelabs.playready.PlayReadyKeyDeriver;
+import org.cablelabs.playready.PlayReadyKeyPair;
 
 public class PlayReadyKeygen {
     
-    private static final int DRM_AES_KEYSIZE_128 = 16;
     private static final String DEFAULT_KEY_SEED = "XVBovsmzhP9gRIZxWfFta3VVRPzVEWmJsazEJ46I";
+    
+    // Number of key IDs read, derived and written at a time in stream mode.  Bounds the
+    // memory used regardless of the length of the input
+    private static final int CHUNK_SIZE = 4096;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    /**
+     * Output formats of the stream mode
+     */
+    public enum Format {
+        
+        /** One JSON object per line */
+        JSONL,
+        
+        /** Comma-separated values with a header line */
+        CSV
+    }
 
-    private static void usage() {
-        System.out.println("usage:  PlayReadyKeygen <key_id> [<key_seed>]");
-        System.out.println("\t <key_id> is a UUID representing the Key ID in the form xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx");
-        System.out.println("\t\t where 'x' is any hexadecimal digit in the range [0-9a-f] (case insensitive)");
-        System.out.println("\t <key_seed> is a 30-byte key seed value in Base64 notation.  If not provided, the default");
-        System.out.println("\t\t value of the Microsoft test server is used (" + DEFAULT_KEY_SEED + ")");
+    private static class Usage implements org.cablelabs.cmdline.Usage {
+        public void usage() {
+            System.out.println("usage:  PlayReadyKeygen <key_id> [<key_seed>]");
+            System.out.println("\t <key_id> is a UUID representing the Key ID in the form xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx");
+            System.out.println("\t\t where 'x' is any hexadecimal digit in the range [0-9a-f] (case insensitive)");
+            System.out.println("\t <key_seed> is a 30-byte key seed value in Base64 notation.  If not provided, the default");
+            System.out.println("\t\t value of the Microsoft test server is used (" + DEFAULT_KEY_SEED + ")");
+            System.out.println("");
+            System.out.println("usage:  PlayReadyKeygen -stream [OPTIONS]");
+            System.out.println("\t Reads key IDs, one per line, and writes the content key and checksum of each in the");
+            System.out.println("\t same order.  Key IDs may be GUIDs, 32 hex digits or base64.  Keys are derived in");
+            System.out.println("\t parallel.  Lines with invalid key IDs are reported in the output and cause an exit");
+            System.out.println("\t status of 1 once all lines have been processed.");
+            System.out.println("");
+            System.out.println("\t OPTIONS:");
+            System.out.println("");
+            System.out.println("\t -in <file>");
+            System.out.println("\t\t Read key IDs from the given file.  If not specified, key IDs are read from stdin.");
+            System.out.println("");
+            System.out.println("\t -out <file>");
+            System.out.println("\t\t Write the keys to the given file.  If not specified, keys are written to stdout.");
+            System.out.println("");
+            System.out.println("\t -format <jsonl|csv>");
+            System.out.println("\t\t The output format.  Defaults to 'jsonl', one JSON object per line.  Both formats");
+            System.out.println("\t\t have the fields kid (GUID), ms_kid (base64, MS binary), key (hex), key_base64,");
+            System.out.println("\t\t checksum (base64) and, for invalid lines, error.");
+            System.out.println("");
+            System.out.println("\t -seed <key_seed>");
+            System.out.println("\t\t The 30-byte key seed in Base64 notation.  Defaults to the test server key seed.");
+        }
     }
     
     /**
@@ -61,10 +107,15 @@ public class PlayReadyKeygen {
         
         // Make sure we have at least 1 arg
         if (args.length < 1) {
-            usage();
+            new Usage().usage();
             System.exit(1);
         }
         
+        if (args[0].startsWith("-")) {
+            streamMain(args);
+            return;
+        }
+        
         String key_id_str = args[0];
         String key_seed_str = DEFAULT_KEY_SEED;
         if (args.length > 1) {
@@ -75,141 +126,247 @@ public class PlayReadyKeygen {
         if (key_id_str.length() != 36 ||
                 key_id_str.charAt(8) != '-' || key_id_str.charAt(13) != '-' ||
                 key_id_str.charAt(18) != '-' || key_id_str.charAt(23) != '-') {
-            usage();
+            new Usage().usage();
             System.out.println("****** Invalid key ID (UUID format)!");
             System.exit(1);;
         }
         
         // Parse key ID 
-        key_id_str = key_id_str.replaceAll("-", "");
         byte[] key_id = null;
         try {
-            key_id = DatatypeConverter.parseHexBinary(key_id_str);
+            key_id = KeyCodec.decodeGUID(key_id_str);
         }
         catch (IllegalArgumentException e) {
-            System.out.println("******  Invalid key ID (not valid Base64 string)!");
+            System.out.println("******  Invalid key ID (not valid hex string)!");
             System.exit(1);
         }
         
         // Key ID in the PlayReady Header object must be little endian 
-        byte[] ms_key_id = new byte[key_id.length];
-        int le_pos = 0;
-        for (int j = 4; j > 0; j--)
-            ms_key_id[le_pos++] = key_id[j-1];
-        for (int j = 6; j > 4; j--)
-            ms_key_id[le_pos++] = key_id[j-1];
-        for (int j = 8; j > 6; j--)
-            ms_key_id[le_pos++] = key_id[j-1];
-        for (int j = 8; j < 16; j++)
-            ms_key_id[le_pos++] = key_id[j];
-        
-        // Ensure that key seed is at least 30 bytes in length
-        byte[] key_seed_raw = Base64.decodeBase64(key_seed_str);
-        if (key_seed_raw.length < 30) {
-            usage();
-            System.out.println("******  Invalid key seed ( < 30 bytes )!");
+        byte[] ms_key_id = PlayReadyKeyDeriver.encodeMSGUID(key_id);
+        
+        byte[] key_seed = PlayReadyKeyDeriver.parseKeySeed(key_seed_str);
+        if (key_seed == null) {
+            new Usage().usage();
+            System.out.println("******  Invalid key seed (not valid Base64 or < 30 bytes)!");
             System.exit(1);;
         }
         
-        // Truncate to 30 bytes
-        byte[] key_seed = Arrays.copyOf(key_seed_raw, 30);
+        // Generate content key and checksum
+        byte[] contentKey = PlayReadyKeyDeriver.forKeySeed(key_seed).deriveKey(ms_key_id);
+        byte checksum[] = PlayReadyKeyDeriver.checksum(ms_key_id, contentKey);
         
-        byte[] contentKey = new byte[DRM_AES_KEYSIZE_128];
-        try {
-            
-            // First hash is
-            //     - Key Seed
-            //     - Key ID
-            MessageDigest sha256_a = MessageDigest.getInstance("SHA-256");
-            sha256_a.update(key_seed);
-            sha256_a.update(ms_key_id);
-            byte[] sha_a = sha256_a.digest();
-            
-            // Second hash is
-            //     - Key Seed
-            //     - Key ID
-            //     - Key Seed
-            MessageDigest sha256_b = MessageDigest.getInstance("SHA-256");
-            sha256_b.update(key_seed);
-            sha256_b.update(ms_key_id);
-            sha256_b.update(key_seed);
-            byte[] sha_b = sha256_b.digest();
-            
-            // Third hash is
-            //     - Key Seed
-            //     - Key ID
-            //     - Key Seed
-            //     - Key ID
-            MessageDigest sha256_c = MessageDigest.getInstance("SHA-256");
-            sha256_c.update(key_seed);
-            sha256_c.update(ms_key_id);
-            sha256_c.update(key_seed);
-            sha256_c.update(ms_key_id);
-            byte[] sha_c = sha256_c.digest();
+        // Now generate a random 8-byte IV
+        byte[] iv = KeyMaterialSource.getDefault().nextIV(8);
             
-            for (int i = 0; i < DRM_AES_KEYSIZE_128; i++) {
-                contentKey[i] = (byte)
-                        (sha_a[i] ^ sha_a[i + DRM_AES_KEYSIZE_128] ^
-                        sha_b[i] ^ sha_b[i + DRM_AES_KEYSIZE_128] ^
-                        sha_c[i] ^ sha_c[i + DRM_AES_KEYSIZE_128]);
+        System.out.println("===============================================");
+        System.out.println("Content key ID = ");
+        System.out.println("\t0x" + printHex(key_id));
+        System.out.println("\t0x" + printHex(ms_key_id) + " (MS binary)");
+        System.out.println("\t" + KeyCodec.encodeBase64(key_id) + " (Base64)");
+        System.out.println("\t" + KeyCodec.encodeBase64(ms_key_id) + " (Base64, MS binary)");
+        System.out.println("Content key = ");
+        System.out.println("\t0x" + printHex(contentKey));
+        System.out.println("\t" + KeyCodec.encodeBase64(contentKey) + " (Base64)");
+        System.out.println("Checksum = ");
+        System.out.println("\t0x" + printHex(checksum));
+        System.out.println("\t" + KeyCodec.encodeBase64(checksum) + " (Base64)");
+        System.out.println("IV = ");
+        System.out.println("\t0x" + printHex(iv));
+        System.out.println("\t" + KeyCodec.encodeBase64(iv) + " (Base64)");
+        System.out.println("===============================================");
+        
+    }
+    
+    // Upper-case hex, as printed by earlier versions of this tool
+    private static String printHex(byte[] data) {
+        return KeyCodec.encodeHex(data).toUpperCase();
+    }
+    
+    private static void streamMain(String[] args) {
+        
+        CmdLine cmdline = new CmdLine(new Usage());
+        
+        boolean stream = false;
+        String inFile = null;
+        String outFile = null;
+        Format format = Format.JSONL;
+        PlayReadyKeyDeriver deriver = PlayReadyKeyDeriver.getDefault();
+        
+        for (int i = 0; i < args.length; i++) {
+            String[] subopts;
+            if ((subopts = cmdline.checkOption("-stream", args, i, 0)) != null) {
+                stream = true;
+            }
+            else if ((subopts = cmdline.checkOption("-in", args, i, 1)) != null) {
+                inFile = subopts[0];
+                i++;
+            }
+            else if ((subopts = cmdline.checkOption("-out", args, i, 1)) != null) {
+                outFile = subopts[0];
+                i++;
+            }
+            else if ((subopts = cmdline.checkOption("-format", args, i, 1)) != null) {
+                try {
+                    format = Format.valueOf(subopts[0].toUpperCase());
+                }
+                catch (IllegalArgumentException e) {
+                    cmdline.errorExit("Illegal output format: " + subopts[0]);
+                }
+                i++;
+            }
+            else if ((subopts = cmdline.checkOption("-seed", args, i, 1)) != null) {
+                byte[] keySeed = PlayReadyKeyDeriver.parseKeySeed(subopts[0]);
+                if (keySeed == null)
+                    cmdline.errorExit("Invalid key seed (not valid Base64 or < 30 bytes)!");
+                deriver = PlayReadyKeyDeriver.forKeySeed(keySeed);
+                i++;
+            }
+            else {
+                cmdline.errorExit("Illegal argument: " + args[i]);
             }
         }
-        catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support SHA-256 algorithm!");
-            System.exit(1);
+        
+        if (!stream) {
+            cmdline.errorExit("Must specify a key ID or -stream!");
         }
         
-        // Generate checksum
-        byte checksum[] = null;
+        int errors = 0;
         try {
-            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-            SecretKeySpec key = new SecretKeySpec(contentKey, "AES");
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            checksum = Arrays.copyOf(cipher.doFinal(ms_key_id), 8);
-        }
-        catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support AES/ECB cipher!");
-            System.exit(1);
+            Reader in = new InputStreamReader((inFile != null) ? new FileInputStream(inFile) : System.in, UTF_8);
+            Writer out = new OutputStreamWriter((outFile != null) ? new FileOutputStream(outFile) : System.out, UTF_8);
+            try {
+                errors = stream(new BufferedReader(in), new BufferedWriter(out), deriver, format);
+            }
+            finally {
+                in.close();
+                out.close();
+            }
         }
-        catch (NoSuchPaddingException e) {
-            System.out.println("Java Virtual Machine does not support NoPadding!");
+        catch (IOException e) {
+            System.err.println("Error generating keys -- " + e.getMessage());
             System.exit(1);
         }
-        catch (InvalidKeyException e) {
-            System.out.println("Invalid key during checksum generation!");
+        
+        if (errors > 0) {
+            System.err.println(errors + " invalid key ID(s)");
             System.exit(1);
         }
-        catch (IllegalBlockSizeException e) {
-            System.out.println("Illegal block size exception during checksum generation!");
-            e.printStackTrace();
-        }
-        catch (BadPaddingException e) {
-            System.out.println("Bad padding exception during checksum generation!");
-            e.printStackTrace();
-        }
+    }
+    
+    /**
+     * Derive the content key and checksum for every key ID read from the given
+     * reader and write them in the order of the input.  Key IDs are read and derived
+     * in fixed-size chunks, each derived in parallel, so memory use does not grow with
+     * the length of the input.  Blank lines are skipped.  Lines that are not valid key
+     * IDs produce an error record in place of the key.
+     * 
+     * @param in the key IDs, one per line, as GUIDs, 32 hex digits or base64
+     * @param out the writer for the keys.  It is flushed after every chunk but not closed
+     * @param deriver the key deriver
+     * @param format the output format
+     * @return the number of invalid key IDs
+     * @throws IOException if there was an error reading key IDs or writing keys
+     */
+    public static int stream(BufferedReader in, Writer out, PlayReadyKeyDeriver deriver,
+                             Format format) throws IOException {
         
-        // Now generate a random 8-byte IV
-        byte[] iv = new byte[8];
-        SecureRandom sr = new SecureRandom();
-        sr.nextBytes(iv);
-            
-        System.out.println("===============================================");
-        System.out.println("Content key ID = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(key_id));
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(ms_key_id) + " (MS binary)");
-        System.out.println("\t" + Base64.encodeBase64String(key_id) + " (Base64)");
-        System.out.println("\t" + Base64.encodeBase64String(ms_key_id) + " (Base64, MS binary)");
-        System.out.println("Content key = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(contentKey));
-        System.out.println("\t" + Base64.encodeBase64String(contentKey) + " (Base64)");
-        System.out.println("Checksum = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(checksum));
-        System.out.println("\t" + Base64.encodeBase64String(checksum) + " (Base64)");
-        System.out.println("IV = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(iv));
-        System.out.println("\t" + Base64.encodeBase64String(iv) + " (Base64)");
-        System.out.println("===============================================");
+        if (format == Format.CSV)
+            out.write("kid,ms_kid,key,key_base64,checksum,error\n");
         
+        List<String> lines = new ArrayList<String>(CHUNK_SIZE);
+        List<byte[]> keyIDs = new ArrayList<byte[]>(CHUNK_SIZE);
+        List<String> errors = new ArrayList<String>(CHUNK_SIZE);
+        StringBuilder sb = new StringBuilder(256);
+        int errorCount = 0;
+        boolean eof = false;
+        
+        while (!eof) {
+            
+            // Read a chunk.  Invalid key IDs keep their place in the chunk so the
+            // output stays in input order
+            lines.clear();
+            keyIDs.clear();
+            errors.clear();
+            while (lines.size() < CHUNK_SIZE) {
+                String line = in.readLine();
+                if (line == null) {
+                    eof = true;
+                    break;
+                }
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                lines.add(line);
+                try {
+                    keyIDs.add(KeyFileImporter.parseKeyID(line));
+                    errors.add(null);
+                }
+                catch (IllegalArgumentException e) {
+                    errors.add(e.getMessage());
+                    errorCount++;
+                }
+            }
+            if (lines.isEmpty())
+                break;
+            
+            List<PlayReadyKeyPair> keys = deriver.keyPairs(keyIDs);
+            
+            int k = 0;
+            for (int i = 0; i < lines.size(); i++) {
+                sb.setLength(0);
+                String error = errors.get(i);
+                if (error != null) {
+                    if (format == Format.CSV)
+                        sb.append(csv(lines.get(i))).append(",,,,,").append(csv(error));
+                    else
+                        sb.append("{\"kid\":\"").append(json(lines.get(i))).
+                           append("\",\"error\":\"").append(json(error)).append("\"}");
+                }
+                else {
+                    PlayReadyKeyPair key = keys.get(k++);
+                    String kid = KeyCodec.encodeGUID(key.getID());
+                    String msKid = KeyCodec.encodeBase64(key.getMSKeyID());
+                    String keyHex = KeyCodec.encodeHex(key.getKey());
+                    String keyBase64 = KeyCodec.encodeBase64(key.getKey());
+                    String checksum = KeyCodec.encodeBase64(key.getChecksum());
+                    if (format == Format.CSV)
+                        sb.append(kid).append(',').append(msKid).append(',').append(keyHex).append(',').
+                           append(keyBase64).append(',').append(checksum).append(',');
+                    else
+                        sb.append("{\"kid\":\"").append(kid).
+                           append("\",\"ms_kid\":\"").append(msKid).
+                           append("\",\"key\":\"").append(keyHex).
+                           append("\",\"key_base64\":\"").append(keyBase64).
+                           append("\",\"checksum\":\"").append(checksum).append("\"}");
+                }
+                sb.append('\n');
+                out.write(sb.toString());
+            }
+            out.flush();
+        }
+        return errorCount;
+    }
+    
+    // Quote a CSV field if needed
+    private static String csv(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0)
+            return field;
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+    
+    // Escape a JSON string value
+    private static String json(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int)c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
     }
 
 }
@@ -0,0 +1,213 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.playready.procheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.playready.PROValidator;
+import org.cablelabs.playready.PlayReadyKeyDeriver;
+import org.cablelabs.playready.PlayReadyObject;
+
+/**
+ * This utility decodes and validates PlayReady PSSH boxes and PlayReady Header Objects
+ * in bulk, without pushing content through a player.
+ */
+public class PROCheck {
+    
+    private static final int EXIT_INVALID = 2;
+    
+    // Markup around base64 text, such as <mspr:pro> and </mspr:pro>
+    private static final Pattern MARKUP = Pattern.compile("<[^>]*>");
+    
+    private static class Usage implements org.cablelabs.cmdline.Usage {
+        public void usage() {
+            System.out.println("PlayReady Header Object validator.");
+            System.out.println("");
+            System.out.println("usage:  PROCheck [OPTIONS] <file>...");
+            System.out.println("");
+            System.out.println("\t<file> is either a single binary PlayReady PSSH box or PlayReady Object, or a text");
+            System.out.println("\tfile holding one base64 PSSH box or PRO per line.  Lines may be complete mspr:pro");
+            System.out.println("\telements.  Exits with status " + EXIT_INVALID + " if any object is invalid.");
+            System.out.println("");
+            System.out.println("\tOPTIONS:");
+            System.out.println("");
+            System.out.println("\t-help");
+            System.out.println("\t\tDisplay this usage message.");
+            System.out.println("");
+            System.out.println("\t-seed <key_seed>");
+            System.out.println("\t\tThe base64 PlayReady key seed used to check KID checksums.  If not");
+            System.out.println("\t\tspecified, the default test key seed is used.");
+            System.out.println("");
+            System.out.println("\t-nochecksum");
+            System.out.println("\t\tOnly check the structure of the checksums, not their values.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tThe number of worker threads.  Defaults to one per processor.");
+            System.out.println("");
+            System.out.println("\t-v");
+            System.out.println("\t\tAlso print the key IDs and license URL of every valid object.");
+        }
+    }
+    
+    public static void main(String[] args) {
+        
+        CmdLine cmdline = new CmdLine(new Usage());
+        
+        PlayReadyKeyDeriver deriver = PlayReadyKeyDeriver.getDefault();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean verbose = false;
+        List<String> files = new ArrayList<String>();
+        
+        // Parse arguments
+        for (int i = 0; i < args.length; i++) {
+            
+            // Parse options
+            if (args[i].startsWith("-")) {
+                String[] subopts;
+                if ((subopts = cmdline.checkOption("-help", args, i, 0)) != null) {
+                    (new Usage()).usage();
+                    System.exit(0);
+                }
+                else if ((subopts = cmdline.checkOption("-seed", args, i, 1)) != null) {
+                    byte[] keySeed = PlayReadyKeyDeriver.parseKeySeed(subopts[0]);
+                    if (keySeed == null)
+                        cmdline.errorExit("Invalid key seed (not valid Base64 or < 30 bytes)!");
+                    deriver = PlayReadyKeyDeriver.forKeySeed(keySeed);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-nochecksum", args, i, 0)) != null) {
+                    deriver = null;
+                }
+                else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                    try {
+                        threads = Integer.parseInt(subopts[0]);
+                    }
+                    catch (NumberFormatException e) {
+                        threads = 0;
+                    }
+                    if (threads < 1)
+                        cmdline.errorExit("Illegal thread count: " + subopts[0]);
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-v", args, i, 0)) != null) {
+                    verbose = true;
+                }
+                else {
+                    cmdline.errorExit("Illegal argument: " + args[i]);
+                }
+                
+                continue;
+            }
+            
+            files.add(args[i]);
+        }
+        
+        if (files.isEmpty()) {
+            cmdline.errorExit("Must specify at least one file!");
+        }
+        
+        // Gather every blob, remembering where it came from
+        List<byte[]> blobs = new ArrayList<byte[]>();
+        List<String> sources = new ArrayList<String>();
+        for (String file : files) {
+            byte[] data;
+            try {
+                data = Files.readAllBytes(new File(file).toPath());
+            }
+            catch (IOException e) {
+                System.err.println("Error reading file (" + file + ") -- " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            if (!isText(data)) {
+                blobs.add(data);
+                sources.add(file);
+                continue;
+            }
+            String[] lines = new String(data, Charset.forName("US-ASCII")).split("\r?\n");
+            for (int l = 0; l < lines.length; l++) {
+                String text = MARKUP.matcher(lines[l]).replaceAll("").trim();
+                if (text.isEmpty())
+                    continue;
+                String source = file + ":" + (l + 1);
+                try {
+                    blobs.add(KeyCodec.decodeBase64(text));
+                }
+                catch (IllegalArgumentException e) {
+                    System.err.println("Skipping " + source + " -- not base64 (" + e.getMessage() + ")");
+                    continue;
+                }
+                sources.add(source);
+            }
+        }
+        
+        int invalid = 0;
+        for (PROValidator.Result r : new PROValidator(deriver, threads).validate(blobs)) {
+            String source = sources.get(r.getIndex());
+            if (!r.isValid()) {
+                invalid++;
+                System.out.println(source + " : INVALID");
+                for (String error : r.getErrors()) {
+                    System.out.println("\t" + error);
+                }
+            }
+            else if (verbose) {
+                System.out.println(source + " : OK");
+                for (PlayReadyObject.Header h : r.getPRO().getHeaders()) {
+                    System.out.println("\tWRMHEADER " + h.getVersion() + ", " + h.getKIDs().size() +
+                                       " KID(s), LA_URL " + h.getLicenseURL());
+                    for (PlayReadyObject.KID kid : h.getKIDs()) {
+                        System.out.println("\t\t" + kid +
+                                           ((kid.getAlgorithmID() != null) ? " " + kid.getAlgorithmID() : ""));
+                    }
+                }
+            }
+        }
+        System.out.println("Checked " + blobs.size() + " PlayReady Object(s): " + invalid + " invalid");
+        
+        if (invalid > 0) {
+            System.exit(EXIT_INVALID);
+        }
+    }
+    
+    // Base64 files and mspr:pro elements are plain ASCII; anything else is binary
+    private static boolean isText(byte[] data) {
+        for (byte b : data) {
+            if (b < 0x09 || (b > 0x0D && b < 0x20) || b == 0x7F)
+                return false;
+        }
+        return true;
+    }
+}
@@ -28,16 +28,32 @@ package org.cablelabs.widevine.cryptfile;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.cablelabs.cryptfile.Bitstream;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.widevine.proto.ProtobufWriter;
 import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import com.google.protobuf.ByteString;
+
 /**
- * Generates Widevine-specific PSSH for MP4Box cryptfiles
+ * Generates Widevine-specific PSSH for MP4Box cryptfiles.  The PSSH data is a
+ * <i>WidevineCencHeader</i> protobuf message (see WidevinePSSH.proto).  It is encoded
+ * once, when the PSSH is created, with {@link ProtobufWriter}, so the protobuf runtime
+ * is only needed to read headers provided by the key server.
  */
 public class WidevinePSSH extends DRMInfoPSSH {
     
@@ -49,7 +65,49 @@ public class WidevinePSSH extends DRMInfoPSSH {
         (byte)0xd5, (byte)0x1d, (byte)0x21, (byte)0xed
     };
     
-    private WidevinePSSHProtoBuf.WidevineCencHeader psshProto;
+    // WidevineCencHeader field numbers
+    private static final int FIELD_ALGORITHM = 1;
+    private static final int FIELD_KEY_ID = 2;
+    private static final int FIELD_PROVIDER = 3;
+    private static final int FIELD_CONTENT_ID = 4;
+    private static final int FIELD_TRACK_TYPE = 5;
+    private static final int FIELD_POLICY = 6;
+    
+    /**
+     * Content encryption algorithms of the WidevineCencHeader
+     */
+    public enum Algorithm {
+        UNENCRYPTED(0),
+        AESCTR(1);
+        
+        private int value;
+        
+        Algorithm(int value) {
+            this.value = value;
+        }
+        
+        /**
+         * Returns the protobuf enum value
+         * 
+         * @return the value
+         */
+        public int getValue() {
+            return value;
+        }
+    }
+    
+    // Optional fields are null when not present
+    private Integer algorithm;
+    private List<byte[]> keyIDs;
+    private String provider;
+    private byte[] contentID;
+    private String trackType;
+    private String policy;
+    
+    // Fields of server-provided headers that are not in our .proto
+    private byte[] unknownFields;
+    
+    private byte[] psshData;
     
     /**
      * Returns whether or not the given systemID is Widevine
@@ -67,8 +125,101 @@ public class WidevinePSSH extends DRMInfoPSSH {
      * @param psshProto
      */
     public WidevinePSSH(WidevinePSSHProtoBuf.WidevineCencHeader psshProto) {
+        this(psshProto.hasAlgorithm() ? Integer.valueOf(psshProto.getAlgorithm().getNumber()) : null,
+             toByteArrays(psshProto.getKeyIdList()),
+             psshProto.hasProvider() ? psshProto.getProvider() : null,
+             psshProto.hasContentId() ? psshProto.getContentId().toByteArray() : null,
+             psshProto.hasTrackType() ? psshProto.getTrackType() : null,
+             psshProto.hasPolicy() ? psshProto.getPolicy() : null,
+             psshProto.getUnknownFields().toByteArray());
+    }
+    
+    /**
+     * Create a new AESCTR Widevine PSSH for the given content keys.  A single PSSH
+     * can reference the keys of all tracks, and all crypto periods, of an asset
+     * 
+     * @param keyIDs the key IDs
+     * @param provider the content provider name, or null
+     * @param contentID the content identifier, or null
+     */
+    public WidevinePSSH(List<byte[]> keyIDs, String provider, byte[] contentID) {
+        this(Integer.valueOf(Algorithm.AESCTR.getValue()), keyIDs, provider, contentID, null, null, null);
+    }
+    
+    private WidevinePSSH(Integer algorithm, List<byte[]> keyIDs, String provider, byte[] contentID,
+                         String trackType, String policy, byte[] unknownFields) {
         super(WIDEVINE_SYSTEM_ID);
-        this.psshProto = psshProto;
+        this.algorithm = algorithm;
+        this.keyIDs = Collections.unmodifiableList(new ArrayList<byte[]>(keyIDs));
+        this.provider = provider;
+        this.contentID = contentID;
+        this.trackType = trackType;
+        this.policy = policy;
+        this.unknownFields = (unknownFields != null) ? unknownFields : new byte[0];
+        this.psshData = encode();
+    }
+    
+    private static List<byte[]> toByteArrays(List<ByteString> list) {
+        List<byte[]> arrays = new ArrayList<byte[]>(list.size());
+        for (ByteString bs : list) {
+            arrays.add(bs.toByteArray());
+        }
+        return arrays;
+    }
+    
+    // Fields are written in field-number order, followed by unknown fields, which is
+    // also how the protobuf runtime serializes the message
+    private byte[] encode() {
+        ProtobufWriter w = new ProtobufWriter(32 + keyIDs.size() * 18 + unknownFields.length);
+        if (algorithm != null)
+            w.writeVarint(FIELD_ALGORITHM, algorithm.intValue());
+        for (byte[] keyID : keyIDs) {
+            w.writeBytes(FIELD_KEY_ID, keyID);
+        }
+        if (provider != null)
+            w.writeString(FIELD_PROVIDER, provider);
+        if (contentID != null)
+            w.writeBytes(FIELD_CONTENT_ID, contentID);
+        if (trackType != null)
+            w.writeString(FIELD_TRACK_TYPE, trackType);
+        if (policy != null)
+            w.writeString(FIELD_POLICY, policy);
+        w.writeRaw(unknownFields);
+        return w.toByteArray();
+    }
+    
+    private static boolean equal(Object o1, Object o2) {
+        return (o1 == null) ? o2 == null : o1.equals(o2);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#merge(org.cablelabs.cryptfile.DRMInfoPSSH)
+     */
+    @Override
+    public DRMInfoPSSH merge(DRMInfoPSSH other) {
+        if (!(other instanceof WidevinePSSH))
+            return null;
+        WidevinePSSH o = (WidevinePSSH)other;
+        
+        // Headers can only be combined if they differ in nothing but their key IDs
+        if (!equal(algorithm, o.algorithm) || !equal(provider, o.provider) ||
+                !Arrays.equals(contentID, o.contentID) || !equal(trackType, o.trackType) ||
+                !equal(policy, o.policy) || !Arrays.equals(unknownFields, o.unknownFields))
+            return null;
+        
+        Set<ByteBuffer> merged = new LinkedHashSet<ByteBuffer>();
+        for (byte[] keyID : keyIDs) {
+            merged.add(ByteBuffer.wrap(keyID));
+        }
+        for (byte[] keyID : o.keyIDs) {
+            merged.add(ByteBuffer.wrap(keyID));
+        }
+        List<byte[]> mergedKeyIDs = new ArrayList<byte[]>(merged.size());
+        for (ByteBuffer keyID : merged) {
+            mergedKeyIDs.add(keyID.array());
+        }
+        return new WidevinePSSH(algorithm, mergedKeyIDs, provider, contentID, trackType, policy, unknownFields);
     }
 
     @Override
@@ -84,7 +235,16 @@ public class WidevinePSSH extends DRMInfoPSSH {
      */
     @Override
     protected void generatePSSHData(DataOutputStream dos) throws IOException {
-        dos.write(psshProto.toByteArray());
+        dos.write(psshData);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPSSHDataSize()
+     */
+    @Override
+    protected int getPSSHDataSize() {
+        return psshData.length;
     }
 
     /*
@@ -95,8 +255,21 @@ public class WidevinePSSH extends DRMInfoPSSH {
     public Node generateXML(Document d) {
         Element e = generateDRMInfo(d);
         Bitstream b = new Bitstream();
-        b.setupDataB64(psshProto.toByteArray());
+        b.setupDataB64(psshData);
         e.appendChild(b.generateXML(d));
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        b.setupDataB64(psshData);
+        b.writeXML(w);
+        w.writeEndElement();
+    }
 }
@@ -26,31 +26,49 @@
 
 package org.cablelabs.widevine.cryptgen;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.stream.XMLStreamException;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
 import org.cablelabs.clearkey.cryptfile.ClearKeyPSSH;
 import org.cablelabs.cmdline.CmdLine;
+import org.cablelabs.cmdline.KeyStoreOption;
+import org.cablelabs.cmdline.ResponseCacheOption;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyCodec;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KidIndex;
+import org.cablelabs.cryptfile.ResponseCache;
 import org.cablelabs.widevine.Track;
 import org.cablelabs.widevine.TrackType;
 import org.cablelabs.widevine.cryptfile.WidevinePSSH;
 import org.cablelabs.widevine.keyreq.KeyRequest;
+import org.cablelabs.widevine.keyreq.KeyRequestClient;
 import org.cablelabs.widevine.keyreq.ResponseMessage;
 import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
 import org.w3c.dom.Document;
 
+import com.google.gson.Gson;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 /**
@@ -61,15 +79,20 @@ import com.google.protobuf.InvalidProtocolBufferException;
  *   <li>Build the Widevine PSSH</li>
  *   <li>Generate the MP4Box cryptfile</li>
  * </ol>
+ * With <i>-contentids</i>, one cryptfile is generated for each content ID in a file.  The
+ * key requests are sent concurrently over a pool of connections to the key server
+ * (see {@link KeyRequestClient}).
  *
  */
 public class CryptfileGen {
+    
 
     private static class Usage implements org.cablelabs.cmdline.Usage {
         public void usage() {
             System.out.println("Google Widevine MP4Box cryptfile generation tool.");
             System.out.println("");
             System.out.println("usage:  CryptfileGen [OPTIONS] <content_id> <track_id>:<track_type> [<track_id>:<track_type>]...");
+            System.out.println("        CryptfileGen [OPTIONS] -contentids <id_file>,<out_dir> <track_id>:<track_type> [<track_id>:<track_type>]...");
             System.out.println("");
             System.out.println("\t<content_id> is a unique string representing the content to be encrypted");
             System.out.println("");
@@ -89,6 +112,17 @@ public class CryptfileGen {
             System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
             System.out.println("\t\twritten to stdout");
             System.out.println("");
+            System.out.println("\t-contentids <id_file>,<out_dir>");
+            System.out.println("\t\tGenerate one cryptfile for each content ID in <id_file> (one per line, blank lines and");
+            System.out.println("\t\tlines starting with '#' are ignored) instead of for a single <content_id>.  Each");
+            System.out.println("\t\tcryptfile is written to <out_dir>/<content_id>.xml, with characters other than letters,");
+            System.out.println("\t\tdigits, '.', '-' and '_' replaced by '_'.  Key requests are sent concurrently over a");
+            System.out.println("\t\tpool of connections to the key server.  A failed content ID does not stop the others.");
+            System.out.println("");
+            System.out.println("\t-threads <count>");
+            System.out.println("\t\tMaximum number of concurrent key requests with -contentids.  Default is " +
+                               KeyRequestClient.DEFAULT_MAX_CONCURRENT + ".");
+            System.out.println("");
             System.out.println("\t-sign <sign_props_file>");
             System.out.println("\t\tIf present, key requests will be signed with the given key information.  <sign_props_file> is");
             System.out.println("\t\ta Java properties file with the following properties:");
@@ -105,11 +139,23 @@ public class CryptfileGen {
             System.out.println("\t\tis the integer number of keys requested.  <sample_count> is the number of consecutive");
             System.out.println("\t\tsamples to be encrypted with each key before moving to the next.");
             System.out.println("");
+            System.out.println("\t-serverpssh");
+            System.out.println("\t\tUse the PSSH returned by the key server, one for every key of every track, instead");
+            System.out.println("\t\tof a single locally built Widevine PSSH that lists all key IDs of the content.");
+            System.out.println("");
             System.out.println("\t-ck");
             System.out.println("\t\tAdd ClearKey PSSH to the cryptfile.");
             System.out.println("");
             System.out.println("\t-cp");
             System.out.println("\t\tPrint a DASH <ContentProtection> element that can be pasted into the MPD");
+            System.out.println("");
+            KeyStoreOption.usage();
+            ResponseCacheOption.usage("Cache key server responses in the given directory.  Re-running for the same key server,",
+                                      "content ID, tracks and rolling keys reuses the cached keys and does not contact the",
+                                      "key server.");
+            System.out.println("\t-kidindex <index_dir>[,<asset_id>]");
+            System.out.println("\t\tRecord every key ID with its track, DRM systems and cryptfile in the given KID index.");
+            System.out.println("\t\t<asset_id> defaults to the cryptfile path, or to the content ID with -contentids.");
         }
     }
     
@@ -129,10 +175,21 @@ public class CryptfileGen {
         int rollingKeySamples = -1;
         
         String outfile = null;
+        KeyStoreOption keystore = new KeyStoreOption();
+        String kidIndex = null;
+        String assetID = null;
+        ResponseCacheOption respCache = new ResponseCacheOption();
+        
+        // Content ID file and output directory
+        String[] contentList = null;
+        int maxConcurrent = KeyRequestClient.DEFAULT_MAX_CONCURRENT;
         
         // Clearkey
         boolean clearkey = false;
         
+        // Use the key server PSSH rather than building our own
+        boolean serverPSSH = false;
+        
         // Print content protection element?
         boolean printCP = false;
 
@@ -141,6 +198,7 @@ public class CryptfileGen {
         
         // Parse arguments
         String content_id_str = null;
+        List<String> positional = new ArrayList<String>();
         for (int i = 0; i < args.length; i++) {
             
             // Parse options
@@ -155,10 +213,28 @@ public class CryptfileGen {
                     outfile = subopts[0];
                     i++;
                 }
+                else if ((subopts = cmdline.checkOption("-contentids", args, i, 2)) != null) {
+                    contentList = subopts;
+                    i++;
+                }
+                else if ((subopts = cmdline.checkOption("-threads", args, i, 1)) != null) {
+                    try {
+                        maxConcurrent = Integer.parseInt(subopts[0]);
+                    }
+                    catch (NumberFormatException e) {
+                        maxConcurrent = 0;
+                    }
+                    if (maxConcurrent < 1)
+                        cmdline.errorExit("Invalid concurrent key request count: " + subopts[0]);
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-sign", args, i, 1)) != null) {
                     signingFile = subopts[0];
                     i++;
                 }
+                else if ((subopts = cmdline.checkOption("-serverpssh", args, i, 0)) != null) {
+                    serverPSSH = true;
+                }
                 else if ((subopts = cmdline.checkOption("-ck", args, i, 0)) != null) {
                     clearkey = true;
                 }
@@ -174,6 +250,18 @@ public class CryptfileGen {
                         }
                     });
                 }
+                else if ((subopts = cmdline.checkOption("-kidindex", args, i, 1, 2)) != null) {
+                    kidIndex = subopts[0];
+                    if (subopts.length > 1)
+                        assetID = subopts[1];
+                    i++;
+                }
+                else if (respCache.parse(cmdline, args, i)) {
+                    i++;
+                }
+                else if (keystore.parse(cmdline, args, i)) {
+                    i++;
+                }
                 else if ((subopts = cmdline.checkOption("-cp", args, i, 0)) != null) {
                     printCP = true;
                 }
@@ -184,16 +272,24 @@ public class CryptfileGen {
                 continue;
             }
             
-            // Get content ID
-            if (content_id_str == null) {
-                content_id_str = args[i];
-                continue;
+            positional.add(args[i]);
+        }
+        
+        // Get content ID, unless there is a content ID file
+        int firstTrack = 0;
+        if (contentList == null) {
+            if (positional.isEmpty()) {
+                cmdline.errorExit("Must specify content_id string!");
             }
-            
-            // Parse tracks
-            String track_desc[] = args[i].split(":");
+            content_id_str = positional.get(0);
+            firstTrack = 1;
+        }
+        
+        // Parse tracks
+        for (String arg : positional.subList(firstTrack, positional.size())) {
+            String track_desc[] = arg.split(":");
             if (track_desc.length != 2) {
-                cmdline.errorExit("Illegal track specification: " + args[i]);
+                cmdline.errorExit("Illegal track specification: " + arg);
             }
             try {
                 Track t = new Track();
@@ -207,10 +303,6 @@ public class CryptfileGen {
             }
         }
         
-        if (content_id_str == null) {
-            cmdline.errorExit("Must specify content_id string!");
-        }
-        
         // Request keys
         List<Track> trackList = new ArrayList<Track>();
         for (Track t : track_args) {
@@ -221,6 +313,16 @@ public class CryptfileGen {
             cmdline.errorExit("Must specify at least one track!");
         }
         
+        if (contentList != null) {
+            if (outfile != null) {
+                cmdline.errorExit("-out can not be used with -contentids");
+            }
+            generateAll(cmdline, contentList, trackList, track_args, signingFile, maxConcurrent,
+                        rollingKeyStart, rollingKeyCount, rollingKeySamples, serverPSSH, clearkey, printCP,
+                        keystore, respCache, kidIndex, outputStream);
+            return;
+        }
+        
         KeyRequest request = (rollingKeyCount != -1 && rollingKeyStart != -1) ?
             new KeyRequest(content_id_str, trackList, rollingKeyStart, rollingKeyCount) :
             new KeyRequest(content_id_str, trackList);
@@ -233,46 +335,327 @@ public class CryptfileGen {
                 System.exit(1);
             }
         }
-        ResponseMessage m = request.requestKeys();
-        if (m.status != ResponseMessage.StatusCode.OK) {
-            System.err.println("Received error from key server! Code = " + m.status.toString());
+        
+        // Use the cached response for the same request, if there is one
+        ResponseCache responseCache = respCache.open(cmdline);
+        String responseKey = null;
+        ResponseMessage m = null;
+        Gson gson = new Gson();
+        if (responseCache != null) {
+            try {
+                responseKey = responseKey(request.getServerURL(), request.getProvider(), content_id_str,
+                                          trackList, rollingKeyStart, rollingKeyCount);
+                byte[] cached = responseCache.get(responseKey);
+                if (cached != null) {
+                    m = gson.fromJson(new String(cached, "UTF-8"), ResponseMessage.class);
+                    outputStream.println("Using cached key server response from: " + respCache.getDirectory());
+                }
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error reading response cache (" + respCache.getDirectory() + ") -- " + e.getMessage());
+            }
+            catch (IllegalArgumentException e) {
+                cmdline.errorExit("Error reading response cache (" + respCache.getDirectory() + ") -- " + e.getMessage());
+            }
+        }
+        
+        if (m == null) {
+            m = request.requestKeys();
+            if (m.status != ResponseMessage.StatusCode.OK) {
+                System.err.println("Received error from key server! Code = " + m.status.toString());
+                System.exit(1);
+            }
+            if (responseCache != null) {
+                try {
+                    responseCache.put(responseKey, gson.toJson(m).getBytes("UTF-8"));
+                }
+                catch (IOException e) {
+                    cmdline.errorExit("Error writing response cache (" + respCache.getDirectory() + ") -- " + e.getMessage());
+                }
+            }
+        }
+    
+        CryptfileBuilder cfBuilder = null;
+        try {
+            cfBuilder = buildCryptfile(m, content_id_str, request.getProvider(), track_args,
+                                       rollingKeySamples, serverPSSH, clearkey, outputStream);
+        }
+        catch (InvalidProtocolBufferException e) {
+            cmdline.errorExit("Could not parse PSSH protobuf from key response message");
+        }
+        
+        // Record all keys in the local key store
+        keystore.putTrackKeys(cmdline, cfBuilder.getTracks(), outputStream);
+        
+        // Print ContentProtection element
+        if (printCP) {
+            printContentProtection(cfBuilder, outputStream);
+        }
+        
+        // Write the output
+        try {
+            cfBuilder.writeCryptfile(outputStream);
+            if (outfile != null) {
+                outputStream.println("Writing cryptfile to: " + outfile);
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(outfile));
+                cfBuilder.writeCryptfile(os);
+                os.close();
+            }
+        }
+        catch (FileNotFoundException e) {
+            cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
+        }
+        catch (IOException e) {
+            cmdline.errorExit("Error writing output file (" + outfile + ") -- " + e.getMessage());
+        }
+        catch (XMLStreamException e) {
+            cmdline.errorExit("Error writing cryptfile -- " + e.getMessage());
+        }
+        
+        // Record key IDs in the KID index
+        if (kidIndex != null) {
+            String cryptfile = (outfile != null) ? new File(outfile).getAbsolutePath() : "-";
+            try {
+                int recorded = KidIndex.record(new File(kidIndex), (assetID != null) ? assetID : cryptfile,
+                                               cryptfile, cfBuilder);
+                outputStream.println("Recorded " + recorded + " key ID(s) in KID index: " + kidIndex);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error writing KID index (" + kidIndex + ") -- " + e.getMessage());
+            }
+        }
+    }
+    
+    // Generate one cryptfile for each content ID in a file.  Key requests for every
+    // content ID that is not in the response cache are queued up front, and the
+    // responses are processed in file order as they complete
+    private static void generateAll(CmdLine cmdline, String[] contentList, List<Track> trackList, Track[] track_args,
+                                    String signingFile, int maxConcurrent,
+                                    int rollingKeyStart, int rollingKeyCount, int rollingKeySamples,
+                                    boolean serverPSSH, boolean clearkey, boolean printCP,
+                                    KeyStoreOption keystore, ResponseCacheOption respCache, String kidIndex,
+                                    PrintStream outputStream) {
+        
+        // Content IDs and their cryptfiles
+        List<String> contentIDs = new ArrayList<String>();
+        List<String> cryptfiles = new ArrayList<String>();
+        Map<String, String> cryptfileNames = new HashMap<String, String>();
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(contentList[0]),
+                                                                         StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+                    String name = line.replaceAll("[^A-Za-z0-9._-]", "_") + ".xml";
+                    String other = cryptfileNames.put(name, line);
+                    if (other != null)
+                        cmdline.errorExit("Content IDs '" + other + "' and '" + line + "' both write " + name);
+                    contentIDs.add(line);
+                    cryptfiles.add(name);
+                }
+            }
+            finally {
+                br.close();
+            }
+        }
+        catch (FileNotFoundException e) {
+            cmdline.errorExit("Content ID file not found: " + contentList[0]);
+        }
+        catch (IOException e) {
+            cmdline.errorExit("Error reading content ID file (" + contentList[0] + ") -- " + e.getMessage());
+        }
+        
+        File outDir = new File(contentList[1]);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            cmdline.errorExit("Could not create output directory: " + outDir);
+        }
+        
+        KeyRequestClient client = null;
+        try {
+            client = (signingFile != null) ? new KeyRequestClient(signingFile, maxConcurrent) :
+                                             new KeyRequestClient(maxConcurrent);
+        }
+        catch (Exception e) {
+            System.err.println("Error in signing file: " + e.getMessage());
             System.exit(1);
         }
+        
+        KidIndex.Batch kidBatch = null;
+        if (kidIndex != null) {
+            try {
+                kidBatch = new KidIndex(new File(kidIndex)).newBatch();
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error opening KID index (" + kidIndex + ") -- " + e.getMessage());
+            }
+        }
+        
+        // Queue the requests.  Cached responses are already complete
+        ResponseCache responseCache = respCache.open(cmdline);
+        Gson gson = new Gson();
+        List<CompletableFuture<ResponseMessage>> responses = new ArrayList<CompletableFuture<ResponseMessage>>();
+        List<String> responseKeys = new ArrayList<String>();
+        int cacheHits = 0;
+        for (String contentID : contentIDs) {
+            ResponseMessage cached = null;
+            String responseKey = null;
+            if (responseCache != null) {
+                responseKey = responseKey(client.getServerURL(), client.getProvider(), contentID,
+                                          trackList, rollingKeyStart, rollingKeyCount);
+                try {
+                    byte[] entry = responseCache.get(responseKey);
+                    if (entry != null)
+                        cached = gson.fromJson(new String(entry, StandardCharsets.UTF_8), ResponseMessage.class);
+                }
+                catch (IOException e) {
+                    cmdline.errorExit("Error reading response cache (" + respCache.getDirectory() + ") -- " + e.getMessage());
+                }
+            }
+            if (cached != null) {
+                cacheHits++;
+                responses.add(CompletableFuture.completedFuture(cached));
+                responseKeys.add(null);
+                continue;
+            }
+            KeyRequest request = (rollingKeyCount != -1 && rollingKeyStart != -1) ?
+                new KeyRequest(contentID, trackList, rollingKeyStart, rollingKeyCount) :
+                new KeyRequest(contentID, trackList);
+            responses.add(client.requestKeys(request));
+            responseKeys.add(responseKey);
+        }
+        if (responseCache != null) {
+            outputStream.println("Using " + cacheHits + " cached key server response(s) from: " + respCache.getDirectory());
+        }
+        
+        List<CryptTrack> allTracks = new ArrayList<CryptTrack>();
+        int succeeded = 0;
+        int failed = 0;
+        for (int i = 0; i < contentIDs.size(); i++) {
+            String contentID = contentIDs.get(i);
+            File outfile = new File(outDir, cryptfiles.get(i));
+            try {
+                ResponseMessage m = responses.get(i).get();
+                if (m.status != ResponseMessage.StatusCode.OK)
+                    throw new IOException("Received error from key server! Code = " + m.status);
+                if (responseKeys.get(i) != null)
+                    responseCache.put(responseKeys.get(i), gson.toJson(m).getBytes(StandardCharsets.UTF_8));
+                
+                CryptfileBuilder cfBuilder = buildCryptfile(m, contentID, client.getProvider(), track_args,
+                                                            rollingKeySamples, serverPSSH, clearkey, outputStream);
+                if (printCP)
+                    printContentProtection(cfBuilder, outputStream);
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(outfile));
+                try {
+                    cfBuilder.writeCryptfile(os);
+                }
+                finally {
+                    os.close();
+                }
+                allTracks.addAll(cfBuilder.getTracks());
+                if (kidBatch != null)
+                    kidBatch.addCryptfile(contentID, outfile.getAbsolutePath(), cfBuilder);
+                succeeded++;
+                outputStream.println("OK " + contentID + " -> " + outfile);
+            }
+            catch (ExecutionException e) {
+                failed++;
+                System.err.println("FAILED " + contentID + " -- " + e.getCause().getMessage());
+            }
+            catch (CancellationException e) {
+                failed++;
+                System.err.println("FAILED " + contentID + " -- Key request cancelled");
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed += contentIDs.size() - i;
+                break;
+            }
+            catch (IOException e) {
+                failed++;
+                System.err.println("FAILED " + contentID + " -- " + e.getMessage());
+            }
+            catch (XMLStreamException e) {
+                failed++;
+                System.err.println("FAILED " + contentID + " -- Error writing cryptfile -- " + e.getMessage());
+            }
+        }
+        try {
+            client.close();
+        }
+        catch (IOException e) {
+            // Nothing left to send
+        }
+        
+        outputStream.println("Generated " + succeeded + " cryptfile(s), " + failed + " failed");
+        
+        // Record all keys in the local key store and the KID index
+        keystore.putTrackKeys(cmdline, allTracks, outputStream);
+        if (kidBatch != null) {
+            try {
+                outputStream.println("Recorded " + kidBatch.commit() + " key ID(s) in KID index: " + kidIndex);
+            }
+            catch (IOException e) {
+                cmdline.errorExit("Error writing KID index (" + kidIndex + ") -- " + e.getMessage());
+            }
+        }
+        if (failed != 0) {
+            System.exit(1);
+        }
+    }
+    
+    // Cache key of a key server response
+    private static String responseKey(String serverURL, String provider, String contentID, List<Track> trackList,
+                                      int rollingKeyStart, int rollingKeyCount) {
+        StringBuilder trackTypes = new StringBuilder();
+        for (Track t : trackList) {
+            trackTypes.append(t.type).append(' ');
+        }
+        return ResponseCache.key("widevine", serverURL, provider, contentID, trackTypes.toString(),
+                                 String.valueOf(rollingKeyStart), String.valueOf(rollingKeyCount));
+    }
     
-        // The Widevine key server provides the PSSH data directly to us.  Optionally, we could
-        // build our own WidevineCencHeader protobuf object from the information in the response.
-        // For rolling keys it might be a better solution to build our own, since the widevine server
-        // currently sends a new PSSH for every key in every track.  Building our own, we could keep
-        // a single PSSH per track
+    // Build the tracks and PSSH of a cryptfile from the key server response.
+    //
+    // The Widevine key server provides PSSH data directly to us, but it sends a separate
+    // PSSH for every key of every track (and every crypto period, for rolling keys).  By
+    // default we build a single WidevineCencHeader for the content that lists all of its
+    // key IDs instead
+    private static CryptfileBuilder buildCryptfile(ResponseMessage m, String contentID, String provider,
+                                                   Track[] track_args, int rollingKeySamples,
+                                                   boolean serverPSSH, boolean clearkey, PrintStream outputStream)
+            throws InvalidProtocolBufferException {
         
         List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
         List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
+        List<byte[]> widevineKeyIDs = new ArrayList<byte[]>();
         
-        // Build PSSH's (has to be one for each track in the Widevine world)
         for (ResponseMessage.Track track : m.tracks) {
-            for (ResponseMessage.Track.PSSH pssh : track.pssh) {
-                
-                // Only widevine DRM for now
-                if (!pssh.drm_type.equalsIgnoreCase("widevine"))
-                    continue;
-                
-                WidevinePSSHProtoBuf.WidevineCencHeader wvPSSH = null;
-                try {
-                    wvPSSH = WidevinePSSHProtoBuf.WidevineCencHeader.parseFrom(Base64.decodeBase64(pssh.data));
+            if (serverPSSH) {
+                for (ResponseMessage.Track.PSSH pssh : track.pssh) {
+                    
+                    // Only widevine DRM for now
+                    if (!pssh.drm_type.equalsIgnoreCase("widevine"))
+                        continue;
+                    
+                    psshList.add(new WidevinePSSH(WidevinePSSHProtoBuf.WidevineCencHeader.parseFrom(
+                            KeyCodec.decodeBase64(pssh.data))));
                 }
-                catch (InvalidProtocolBufferException e) {
-                    cmdline.errorExit("Could not parse PSSH protobuf from key response message");
-                }
-                psshList.add(new WidevinePSSH(wvPSSH));
             }
                 
             // Get the keys for this track and add to our cryptfile
+            byte[] keyID = KeyCodec.decodeBase64(track.key_id);
+            widevineKeyIDs.add(keyID);
             List<CryptKey> keyList = new ArrayList<CryptKey>();
-            keyList.add(new CryptKey(new KeyPair(Base64.decodeBase64(track.key_id),
-                                                 Base64.decodeBase64(track.key))));
+            keyList.add(new CryptKey(new KeyPair(keyID, KeyCodec.decodeBase64(track.key))));
             cryptTracks.add(new CryptTrack(track_args[track.type.ordinal()].id, 8, null,
                                            keyList, rollingKeySamples));
         }
+        if (!serverPSSH) {
+            psshList.add(new WidevinePSSH(widevineKeyIDs, provider, contentID.getBytes(StandardCharsets.UTF_8)));
+        }
         
         // Add clearkey PSSH if requested
         if (clearkey) {
@@ -285,10 +668,10 @@ public class CryptfileGen {
             outputStream.println("Ensure the following keys are available to the client:");
             for (CryptTrack t : cryptTracks) {
                 for (CryptKey key : t.getKeys()) {
-                    outputStream.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
-                                       " : " + Hex.encodeHexString(key.getKeyPair().getKey()) +
-                                       " (" + Base64.encodeBase64String(key.getKeyPair().getID()) +
-                                       " : " + Base64.encodeBase64String(key.getKeyPair().getKey()) + ")");
+                    outputStream.println("\t" + KeyCodec.encodeHex(key.getKeyPair().getID()) +
+                                       " : " + KeyCodec.encodeHex(key.getKeyPair().getKey()) +
+                                       " (" + KeyCodec.encodeBase64(key.getKeyPair().getID()) +
+                                       " : " + KeyCodec.encodeBase64(key.getKeyPair().getKey()) + ")");
                     keyIDs[i++] = key.getKeyPair().getID();
                 }
             }
@@ -296,38 +679,26 @@ public class CryptfileGen {
             psshList.add(new ClearKeyPSSH(keyIDs));
         }
         
-        // Print ContentProtection element
-        if (printCP) {
-            outputStream.println("############# Content Protection Element #############");
-            for (DRMInfoPSSH pssh : psshList) {
-                Document d = CryptfileBuilder.newDocument();
-                try {
-                    d.appendChild(pssh.generateContentProtection(d));
-                }
-                catch (IOException e) {
-                    outputStream.println("Could not generate ContentProtection element!");
-                    continue;
-                }
-                CryptfileBuilder.writeXML(d, outputStream);
-            }
-            outputStream.println("######################################################");
-        }
-        
+        // Merge PSSH of the same DRM system and drop duplicates
         CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
                                                           cryptTracks, psshList);
-        
-        // Write the output
-        Document d = cfBuilder.buildCryptfile();
-        CryptfileBuilder.writeXML(d, outputStream);
-        try {
-            if (outfile != null) {
-                outputStream.println("Writing cryptfile to: " + outfile);
-                CryptfileBuilder.writeXML(d, new FileOutputStream(outfile));
+        cfBuilder.consolidatePSSH();
+        return cfBuilder;
+    }
+    
+    private static void printContentProtection(CryptfileBuilder cfBuilder, PrintStream outputStream) {
+        outputStream.println("############# Content Protection Element #############");
+        for (DRMInfoPSSH pssh : cfBuilder.getPSSH()) {
+            Document d = CryptfileBuilder.newDocument();
+            try {
+                d.appendChild(pssh.generateContentProtection(d));
             }
+            catch (IOException e) {
+                outputStream.println("Could not generate ContentProtection element!");
+                continue;
+            }
+            CryptfileBuilder.writeXML(d, outputStream);
         }
-        catch (FileNotFoundException e) {
-            cmdline.errorExit("Could not open output file (" + outfile + ") for writing");
-        }
-        
+        outputStream.println("######################################################");
     }
 }
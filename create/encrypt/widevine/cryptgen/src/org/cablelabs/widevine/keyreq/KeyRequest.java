@@ -26,16 +26,15 @@
 
 package org.cablelabs.widevine.keyreq;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.List;
-import java.util.Properties;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
@@ -44,8 +43,7 @@ import javax.crypto.spec.IvParameterSpec;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.cryptfile.KeyCodec;
 import org.cablelabs.widevine.Track;
 
 public class KeyRequest {
@@ -55,13 +53,9 @@ public class KeyRequest {
     private static final String CLIENT_ID = null;
     private static final String[] DRM_TYPES = { "WIDEVINE", "PLAYREADY" };
     
-    private static final String TEST_PROVIDER   = "widevine_test";
-    private static final String TEST_SERVER_URL = "https://license.uat.widevine.com/cenc/getcontentkey/widevine_test";
+    static final String TEST_PROVIDER   = "widevine_test";
+    static final String TEST_SERVER_URL = "https://license.uat.widevine.com/cenc/getcontentkey/widevine_test";
     
-    private static final String SIGN_PROPS_URL      = "url";
-    private static final String SIGN_PROPS_KEY      = "key";
-    private static final String SIGN_PROPS_IV       = "iv";
-    private static final String SIGN_PROPS_PROVIDER = "provider";
     
     private String content_id;
     private List<Track> tracks;
@@ -134,60 +128,61 @@ public class KeyRequest {
      * @throws FileNotFoundException if the properties file was not found
      */
     public void setSigningProperties(String props_file) throws FileNotFoundException, IOException {
-        Properties props = new Properties();
-        props.load(new FileInputStream(props_file));
-        
-        String prop;
-        
-        // Key server URL
-        if ((prop = props.getProperty(SIGN_PROPS_URL)) == null)
-            throw new IllegalArgumentException("'" + SIGN_PROPS_URL + "' property not found in request signing properties file");
-        license_url = prop;
-        
-        // Signing key
-        if ((prop = props.getProperty(SIGN_PROPS_KEY)) == null)
-            throw new IllegalArgumentException("'" + SIGN_PROPS_KEY + "' property not found in request signing properties file");
-        sign_key = Base64.decodeBase64(prop);
-        if (sign_key.length != 32)
-            throw new IllegalArgumentException("Request signing key is not 32 bytes in length");
-        
-        // Signing initialization vector
-        if ((prop = props.getProperty(SIGN_PROPS_IV)) == null)
-            throw new IllegalArgumentException("'" + SIGN_PROPS_IV + "' property not found in request signing properties file");
-        sign_iv = Base64.decodeBase64(prop);
-        if (sign_iv.length != 16)
-            throw new IllegalArgumentException("Request initialization vector is not 16 bytes in length");
-        
-        // Provider name
-        if ((prop = props.getProperty(SIGN_PROPS_PROVIDER)) == null)
-            throw new IllegalArgumentException("'" + SIGN_PROPS_PROVIDER + "' property not found in request signing properties file");
-        provider = prop;
+        SigningCredentials c = SigningCredentials.load(props_file);
+        license_url = c.url;
+        sign_key = c.key;
+        sign_iv = c.iv;
+        provider = c.provider;
         
         sign_request = true;
     }
     
     /**
-     * Perform the key request.
+     * Returns the content provider name of this request.  This is the provider from the
+     * signing properties, or the Widevine test provider for unsigned requests
      * 
-     * @return the response message
+     * @return the provider name
      */
-    public ResponseMessage requestKeys() {
-        
-        int i;
+    public String getProvider() {
+        return sign_request ? provider : TEST_PROVIDER;
+    }
+    
+    /**
+     * Returns the key server URL of this request.  This is the license URL from the
+     * signing properties, or the Widevine test server for unsigned requests
+     * 
+     * @return the key server URL
+     */
+    public String getServerURL() {
+        return sign_request ? license_url : TEST_SERVER_URL;
+    }
+    
+    /**
+     * Returns the content ID of this request
+     * 
+     * @return the content ID
+     */
+    public String getContentID() {
+        return content_id;
+    }
+    
+    /**
+     * Creates the request message (before signing) for this request
+     * 
+     * @return the request message
+     */
+    RequestMessage buildRequestMessage() {
         
-        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-        Gson prettyGson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-
         // Create request object
         RequestMessage requestMessage = new RequestMessage();
-        requestMessage.content_id = Base64.encodeBase64String(content_id.getBytes());
+        requestMessage.content_id = KeyCodec.encodeBase64(content_id.getBytes(StandardCharsets.UTF_8));
         requestMessage.policy = POLICY;
         requestMessage.client_id = CLIENT_ID;
         //requestMessage.drm_types = DRM_TYPES;
         
         // Add the track requests to the message
         requestMessage.tracks = new RequestMessage.Track[tracks.size()];
-        i = 0;
+        int i = 0;
         for (Track t : tracks) {
             RequestMessage.Track track = new RequestMessage.Track();
             track.type = t.type;
@@ -200,6 +195,21 @@ public class KeyRequest {
             requestMessage.first_crypto_period_index = rollingKeyStart;
         }
         
+        return requestMessage;
+    }
+    
+    /**
+     * Perform the key request.
+     * 
+     * @return the response message
+     */
+    public ResponseMessage requestKeys() {
+        
+        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+        Gson prettyGson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
+
+        RequestMessage requestMessage = buildRequestMessage();
+        
         // Convert request message to JSON and base64 encode
         String jsonRequestMessage = gson.toJson(requestMessage);
         System.out.println("Request Message:");
@@ -207,7 +217,7 @@ public class KeyRequest {
         
         // Create request JSON
         Request request = new Request();
-        request.request = Base64.encodeBase64String(jsonRequestMessage.getBytes());
+        request.request = KeyCodec.encodeBase64(jsonRequestMessage.getBytes());
         
         String serverURL = null;
         if (sign_request) {
@@ -216,7 +226,7 @@ public class KeyRequest {
                 MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
                 sha1.update(jsonRequestMessage.getBytes());
                 byte[] sha1_b = sha1.digest();
-                System.out.println("SHA-1 hash of JSON request message = 0x" + Hex.encodeHexString(sha1_b));
+                System.out.println("SHA-1 hash of JSON request message = 0x" + KeyCodec.encodeHex(sha1_b));
                 
                 // Use AES/CBC/PKCS5Padding with CableLabs Key and InitVector
                 SecretKeySpec keySpec = new SecretKeySpec(sign_key, "AES");
@@ -226,12 +236,12 @@ public class KeyRequest {
                 // Encrypt the SHA-1 hash of our request message
                 cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
                 byte[] encrypted = cipher.doFinal(sha1_b);
-                System.out.println("AES/CBC/PKCS5Padding Encrypted SHA1-hash = 0x" + Hex.encodeHexString(encrypted));
+                System.out.println("AES/CBC/PKCS5Padding Encrypted SHA1-hash = 0x" + KeyCodec.encodeHex(encrypted));
                 
                 request.signer = provider;
-                request.signature = Base64.encodeBase64String(encrypted);
+                request.signature = KeyCodec.encodeBase64(encrypted);
                 
-                serverURL = license_url;
+                serverURL = getServerURL();
             }
             catch (Exception e) {
                 System.out.println("Error performing message encryption!  Message = " + e.getMessage());
@@ -239,7 +249,7 @@ public class KeyRequest {
             }
         } else {
             request.signer = TEST_PROVIDER;
-            serverURL = TEST_SERVER_URL;
+            serverURL = getServerURL();
         }
         
         String jsonRequest = gson.toJson(request);
@@ -268,14 +278,13 @@ public class KeyRequest {
             System.out.println("Received response code -- " + responseCode);
             
             // Read response data
-            DataInputStream dis = new DataInputStream(con.getInputStream());
-            int bytesRead;
-            byte responseData[] = new byte[1024];
-            StringBuffer sb = new StringBuffer();
-            while ((bytesRead = dis.read(responseData)) != -1) {
-                sb.append(new String(responseData,0,bytesRead));
+            InputStream is = con.getInputStream();
+            try {
+                jsonResponseStr = KeyRequestClient.readUTF8(is);
+            }
+            finally {
+                is.close();
             }
-            jsonResponseStr = sb.toString();
         }
         catch (Exception e) {
             System.err.println("Error in HTTP communication! -- " + e.getMessage());
@@ -286,7 +295,7 @@ public class KeyRequest {
         System.out.println("Response:");
         System.out.println(prettyGson.toJson(response));
         
-        String responseMessageStr = new String(Base64.decodeBase64(response.response));
+        String responseMessageStr = new String(KeyCodec.decodeBase64(response.response));
         ResponseMessage responseMessage = gson.fromJson(responseMessageStr, ResponseMessage.class);
         System.out.println("ResponseMessage:");
         System.out.println(prettyGson.toJson(responseMessage));
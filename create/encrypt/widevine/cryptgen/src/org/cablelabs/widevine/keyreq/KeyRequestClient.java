@@ -0,0 +1,381 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.widevine.keyreq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.cablelabs.cryptfile.KeyCodec;
+import org.cablelabs.widevine.Track;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * Sends Widevine key requests for many content IDs concurrently.  Requests are sent
+ * over a pool of keep-alive connections to the key server, by at most a configured
+ * number of worker threads at a time.  Signed requests reuse one SHA-1 digest and one
+ * AES cipher per worker thread.
+ * <p>
+ * Unlike {@link KeyRequest#requestKeys()}, the client does not log the messages it
+ * sends and receives, and reports errors by completing the returned futures
+ * exceptionally rather than exiting.  Instances are thread-safe.  Clients must be
+ * closed to release their threads and connections.
+ */
+public class KeyRequestClient implements Closeable {
+    
+    /**
+     * Default number of concurrent requests
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = 8;
+    
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final int HTTP_OK = 200;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private final String serverURL;
+    private final String provider;
+    private final byte[] signKey;
+    private final byte[] signIV;
+    
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient client;
+    private final ExecutorService executor;
+    
+    // SHA-1 digest for each worker thread
+    private static final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Java Virtual Machine does not support " + DIGEST_ALGORITHM, e);
+            }
+        }
+    };
+    
+    // Signing cipher for each worker thread, initialized once with this client's key and IV.
+    // The cipher returns to that state after every doFinal()
+    private final ThreadLocal<Cipher> signer = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(signKey, "AES"), new IvParameterSpec(signIV));
+                return cipher;
+            }
+            catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not create request signing cipher: " + e.getMessage(), e);
+            }
+        }
+    };
+    
+    /**
+     * Sends a single key request and completes its future
+     */
+    private class Send implements Runnable {
+        
+        private KeyRequest request;
+        private CompletableFuture<ResponseMessage> response = new CompletableFuture<ResponseMessage>();
+        
+        Send(KeyRequest request) {
+            this.request = request;
+        }
+        
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            
+            // Cancelled while queued
+            if (response.isDone())
+                return;
+            try {
+                response.complete(send(request));
+            }
+            catch (IOException e) {
+                response.completeExceptionally(e);
+            }
+            catch (RuntimeException e) {
+                response.completeExceptionally(e);
+            }
+        }
+    }
+    
+    /**
+     * Create a client that sends unsigned requests to the Widevine test server
+     * 
+     * @param maxConcurrent the maximum number of requests in progress at a time
+     */
+    public KeyRequestClient(int maxConcurrent) {
+        this(KeyRequest.TEST_SERVER_URL, KeyRequest.TEST_PROVIDER, null, null, maxConcurrent);
+    }
+    
+    /**
+     * Create a client that signs its requests with the key information in the given
+     * signing properties file (see {@link KeyRequest#setSigningProperties(String)})
+     * 
+     * @param props_file the signing properties file
+     * @param maxConcurrent the maximum number of requests in progress at a time
+     * @throws IOException if there was an error reading from the properties file 
+     * @throws FileNotFoundException if the properties file was not found
+     * @throws IllegalArgumentException if a property is missing or invalid
+     */
+    public KeyRequestClient(String props_file, int maxConcurrent) throws FileNotFoundException, IOException {
+        this(SigningCredentials.load(props_file), maxConcurrent);
+    }
+    
+    private KeyRequestClient(SigningCredentials c, int maxConcurrent) {
+        this(c.url, c.provider, c.key, c.iv, maxConcurrent);
+    }
+    
+    /**
+     * Create a client
+     * 
+     * @param serverURL the key server URL
+     * @param provider the provider name
+     * @param signKey the 32-byte request signing key, or null to send unsigned requests
+     * @param signIV the 16-byte request signing IV, or null to send unsigned requests
+     * @param maxConcurrent the maximum number of requests in progress at a time
+     */
+    public KeyRequestClient(String serverURL, String provider, byte[] signKey, byte[] signIV,
+                            int maxConcurrent) {
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("Invalid maximum concurrent request count: " + maxConcurrent);
+        if ((signKey == null) != (signIV == null))
+            throw new IllegalArgumentException("Signing key and IV must both be given");
+        this.serverURL = serverURL;
+        this.provider = provider;
+        this.signKey = signKey;
+        this.signIV = signIV;
+        
+        // One pooled connection for each concurrent request
+        connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(maxConcurrent);
+        connections.setDefaultMaxPerRoute(maxConcurrent);
+        client = HttpClients.custom().setConnectionManager(connections).build();
+        
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(maxConcurrent, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "KeyRequestClient-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Returns whether or not requests are signed
+     * 
+     * @return true if requests are signed
+     */
+    public boolean isSigned() {
+        return signKey != null;
+    }
+    
+    /**
+     * Returns the key server URL requests are sent to
+     * 
+     * @return the key server URL
+     */
+    public String getServerURL() {
+        return serverURL;
+    }
+    
+    /**
+     * Returns the provider name requests are sent with
+     * 
+     * @return the provider name
+     */
+    public String getProvider() {
+        return provider;
+    }
+    
+    /**
+     * Queue a key request.  The signing information of the request itself is not used
+     * 
+     * @param request the request
+     * @return the response.  Errors communicating with the key server, and responses
+     * that can not be parsed, complete the future exceptionally with an
+     * {@link IOException}.  The future is cancelled if the client is closed before
+     * the request is sent
+     */
+    public CompletableFuture<ResponseMessage> requestKeys(KeyRequest request) {
+        Send send = new Send(request);
+        try {
+            executor.execute(send);
+        }
+        catch (RejectedExecutionException e) {
+            send.response.cancel(false);
+        }
+        return send.response;
+    }
+    
+    /**
+     * Queue key requests for the given tracks of every content ID
+     * 
+     * @param contentIDs the content IDs
+     * @param tracks the tracks to request for each content
+     * @return the responses, in the order of the content IDs
+     * @see #requestKeys(KeyRequest)
+     */
+    public List<CompletableFuture<ResponseMessage>> requestKeys(List<String> contentIDs, List<Track> tracks) {
+        List<CompletableFuture<ResponseMessage>> responses =
+                new ArrayList<CompletableFuture<ResponseMessage>>(contentIDs.size());
+        for (String contentID : contentIDs) {
+            responses.add(requestKeys(new KeyRequest(contentID, tracks)));
+        }
+        return responses;
+    }
+    
+    /**
+     * Sends a key request on the calling thread
+     * 
+     * @param request the request
+     * @return the response
+     * @throws IOException if there was an error communicating with the key server or the
+     * response could not be parsed
+     */
+    public ResponseMessage send(KeyRequest request) throws IOException {
+        
+        byte[] jsonRequestMessage = gson.toJson(request.buildRequestMessage()).getBytes(UTF_8);
+        
+        Request r = new Request();
+        r.request = KeyCodec.encodeBase64(jsonRequestMessage);
+        r.signer = provider;
+        if (signKey != null)
+            r.signature = KeyCodec.encodeBase64(sign(jsonRequestMessage));
+        
+        HttpPost post = new HttpPost(serverURL);
+        post.setEntity(new ByteArrayEntity(gson.toJson(r).getBytes(UTF_8), ContentType.APPLICATION_JSON));
+        
+        String jsonResponseStr;
+        CloseableHttpResponse resp = client.execute(post);
+        try {
+            int code = resp.getStatusLine().getStatusCode();
+            
+            // Always consume the entity so the connection goes back to the pool
+            byte[] body = (resp.getEntity() != null) ? EntityUtils.toByteArray(resp.getEntity()) : new byte[0];
+            if (code != HTTP_OK)
+                throw new IOException("Key request (" + request.getContentID() + ") received status code " + code);
+            jsonResponseStr = new String(body, UTF_8);
+        }
+        finally {
+            resp.close();
+        }
+        
+        try {
+            Response response = gson.fromJson(jsonResponseStr, Response.class);
+            if (response == null || response.response == null)
+                throw new IOException("Key request (" + request.getContentID() + ") received an empty response");
+            return gson.fromJson(new String(KeyCodec.decodeBase64(response.response), UTF_8), ResponseMessage.class);
+        }
+        catch (JsonParseException e) {
+            throw new IOException("Key request (" + request.getContentID() + ") received an invalid response -- " +
+                                  e.getMessage(), e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Key request (" + request.getContentID() + ") received an invalid response -- " +
+                                  e.getMessage(), e);
+        }
+    }
+    
+    // AES/CBC encrypted SHA-1 hash of the request message
+    private byte[] sign(byte[] message) throws IOException {
+        try {
+            return signer.get().doFinal(sha1.get().digest(message));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Error signing key request -- " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Read a stream to its end and decode it as UTF-8
+     * 
+     * @param is the stream.  It is not closed
+     * @return the text
+     * @throws IOException if there was an error reading the stream
+     */
+    static String readUTF8(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        byte[] buf = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = is.read(buf)) != -1) {
+            bos.write(buf, 0, bytesRead);
+        }
+        return new String(bos.toByteArray(), UTF_8);
+    }
+    
+    /**
+     * Stop the worker threads and close all connections.  Requests that have not
+     * been sent are cancelled, and requests in progress complete exceptionally
+     */
+    @Override
+    public void close() throws IOException {
+        for (Runnable queued : executor.shutdownNow()) {
+            ((Send)queued).response.cancel(false);
+        }
+        client.close();
+    }
+}
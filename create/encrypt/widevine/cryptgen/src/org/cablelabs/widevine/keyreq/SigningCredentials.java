@@ -0,0 +1,106 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.widevine.keyreq;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.cablelabs.cryptfile.KeyCodec;
+
+/**
+ * The key server URL, provider name and request signing key of a Widevine provider,
+ * as read from a signing properties file
+ */
+class SigningCredentials {
+    
+    private static final String SIGN_PROPS_URL      = "url";
+    private static final String SIGN_PROPS_KEY      = "key";
+    private static final String SIGN_PROPS_IV       = "iv";
+    private static final String SIGN_PROPS_PROVIDER = "provider";
+    
+    String url;
+    String provider;
+    byte[] key;
+    byte[] iv;
+    
+    /**
+     * Read signing credentials from a properties file with the following properties:
+     * <p>
+     * <b>url</b> : The key server URL
+     * <b>key</b> : The 32-byte signing key, base64 notation
+     * <b>iv</b> : The 16-byte initialization vector, base64 notation
+     * <b>provider</b> : The provider name
+     * 
+     * @param props_file the signing properties file
+     * @return the credentials
+     * @throws IOException if there was an error reading from the properties file 
+     * @throws FileNotFoundException if the properties file was not found
+     * @throws IllegalArgumentException if a property is missing or invalid
+     */
+    static SigningCredentials load(String props_file) throws FileNotFoundException, IOException {
+        Properties props = new Properties();
+        InputStream is = new FileInputStream(props_file);
+        try {
+            props.load(is);
+        }
+        finally {
+            is.close();
+        }
+        
+        SigningCredentials c = new SigningCredentials();
+        String prop;
+        
+        // Key server URL
+        if ((prop = props.getProperty(SIGN_PROPS_URL)) == null)
+            throw new IllegalArgumentException("'" + SIGN_PROPS_URL + "' property not found in request signing properties file");
+        c.url = prop;
+        
+        // Signing key
+        if ((prop = props.getProperty(SIGN_PROPS_KEY)) == null)
+            throw new IllegalArgumentException("'" + SIGN_PROPS_KEY + "' property not found in request signing properties file");
+        c.key = KeyCodec.decodeBase64(prop);
+        if (c.key.length != 32)
+            throw new IllegalArgumentException("Request signing key is not 32 bytes in length");
+        
+        // Signing initialization vector
+        if ((prop = props.getProperty(SIGN_PROPS_IV)) == null)
+            throw new IllegalArgumentException("'" + SIGN_PROPS_IV + "' property not found in request signing properties file");
+        c.iv = KeyCodec.decodeBase64(prop);
+        if (c.iv.length != 16)
+            throw new IllegalArgumentException("Request initialization vector is not 16 bytes in length");
+        
+        // Provider name
+        if ((prop = props.getProperty(SIGN_PROPS_PROVIDER)) == null)
+            throw new IllegalArgumentException("'" + SIGN_PROPS_PROVIDER + "' property not found in request signing properties file");
+        c.provider = prop;
+        
+        return c;
+    }
+}
@@ -0,0 +1,148 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.widevine.proto;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Minimal protocol buffer encoder for the few field types used by Widevine PSSH data.
+ * Fields are appended in the order they are written, so callers must write them in
+ * field-number order to match the output of the protobuf runtime.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class ProtobufWriter {
+    
+    private static final int WIRE_TYPE_VARINT = 0;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private byte[] buffer;
+    private int size;
+    
+    /**
+     * Create a new writer
+     */
+    public ProtobufWriter() {
+        this(64);
+    }
+    
+    /**
+     * Create a new writer
+     * 
+     * @param capacity the initial size of the buffer, in bytes
+     */
+    public ProtobufWriter(int capacity) {
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+    
+    private void ensureRemaining(int len) {
+        if (buffer.length - size < len)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + len));
+    }
+    
+    private void writeRawVarint(long value) {
+        ensureRemaining(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte)value;
+    }
+    
+    private void writeTag(int field, int wireType) {
+        if (field < 1)
+            throw new IllegalArgumentException("Invalid field number: " + field);
+        writeRawVarint((field << 3) | wireType);
+    }
+    
+    /**
+     * Write an integer, enum or boolean field.  Negative values are written as 10-byte
+     * varints, like protobuf <i>int32</i> and <i>int64</i> fields
+     * 
+     * @param field the field number
+     * @param value the value
+     */
+    public void writeVarint(int field, long value) {
+        writeTag(field, WIRE_TYPE_VARINT);
+        writeRawVarint(value);
+    }
+    
+    /**
+     * Write a bytes field
+     * 
+     * @param field the field number
+     * @param value the value
+     */
+    public void writeBytes(int field, byte[] value) {
+        writeTag(field, WIRE_TYPE_LENGTH_DELIMITED);
+        writeRawVarint(value.length);
+        writeRaw(value);
+    }
+    
+    /**
+     * Write a string field.  The string is encoded as UTF-8
+     * 
+     * @param field the field number
+     * @param value the value
+     */
+    public void writeString(int field, String value) {
+        writeBytes(field, value.getBytes(UTF_8));
+    }
+    
+    /**
+     * Append already-encoded fields, such as fields that were not understood when a
+     * message was parsed
+     * 
+     * @param fields the encoded fields
+     */
+    public void writeRaw(byte[] fields) {
+        ensureRemaining(fields.length);
+        System.arraycopy(fields, 0, buffer, size, fields.length);
+        size += fields.length;
+    }
+    
+    /**
+     * Returns the number of bytes written so far
+     * 
+     * @return the encoded size
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the encoded message
+     * 
+     * @return a copy of the bytes written so far
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+}